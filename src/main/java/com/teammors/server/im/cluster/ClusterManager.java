@@ -3,17 +3,29 @@ package com.teammors.server.im.cluster;
 import com.alibaba.fastjson.JSON;
 import com.teammors.server.im.entity.Message;
 import com.teammors.server.im.service.ChannelManager;
+import com.teammors.server.im.service.GroupMemberCache;
 import com.teammors.server.im.service.MessageSender;
+import com.teammors.server.im.service.RedisBatcher;
 import io.netty.channel.Channel;
 import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.connection.MessageListener;
-import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.ByteRecord;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
 import org.springframework.data.redis.connection.stream.StreamOffset;
 import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
 import org.springframework.data.redis.listener.ChannelTopic;
 import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.scheduling.annotation.Scheduled;
@@ -22,14 +34,18 @@ import org.springframework.stereotype.Component;
 import jakarta.annotation.PostConstruct;
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 @Component
@@ -38,16 +54,50 @@ public class ClusterManager implements MessageListener {
     private static final Logger log = LoggerFactory.getLogger(ClusterManager.class);
     
     // Key prefix for instance heartbeat: server_heartbeat:{instanceId}
-    private static final String KEY_HEARTBEAT_PREFIX = "server_heartbeat:";
+    // Value: {timestamp}, or {timestamp}|{host}:{port} when the peer transport is enabled
+    static final String KEY_HEARTBEAT_PREFIX = "server_heartbeat:";
     // Key prefix for instance sessions (Reverse Index): instance_sessions:{instanceId} -> Set<uid:deviceId>
     private static final String KEY_INSTANCE_SESSIONS_PREFIX = "instance_sessions:";
+    // Cluster registry: ZSET instanceId -> last heartbeat (ms)
+    private static final String KEY_INSTANCES = "cluster:instances";
+    // Held by the node cleaning up dead instances; value = its instanceId
+    private static final String KEY_CLEANUP_LOCK = "cluster:cleanup:lock";
+    // SSCAN / HDEL chunk when cleaning up a dead instance's sessions
+    private static final int CLEANUP_BATCH = 500;
+
+    // Delete the lock only if we still hold it
+    private static final RedisScript<Long> RELEASE_LOCK = new DefaultRedisScript<>(
+            "if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('del', KEYS[1]) else return 0 end",
+            Long.class);
     
-    // Stream Key prefix: im:stream:instance:{instanceId}
+    // Stream Key prefix: im:stream:instance:{instanceId}:{shard}; older nodes use im:stream:instance:{instanceId}
     private static final String KEY_STREAM_PREFIX = "im:stream:instance:";
+    // Consumer group on each instance stream; the consumer is the instance itself
+    private static final String STREAM_GROUP = "im-node";
+
+    // Cluster topic event for a user whose sessions changed: {instanceId}:ROUTE:{publishedAt}:{uid}
+    private static final String EVENT_ROUTE = "ROUTE";
+    // Cluster topic event for a group whose membership changed: {instanceId}:GROUP:{version}:{groupId}
+    private static final String EVENT_GROUP = "GROUP";
 
     @Autowired
     private StringRedisTemplate redisTemplate;
 
+    @Autowired
+    private RedisBatcher redisBatcher;
+
+    @Autowired
+    private SessionRouteCache sessionRouteCache;
+
+    @Autowired
+    private GroupMemberCache groupMemberCache;
+
+    @Autowired
+    private StreamForwarder streamForwarder;
+
+    @Autowired
+    private PeerTransport peerTransport;
+
     @Autowired
     private RedisMessageListenerContainer redisMessageListenerContainer;
     
@@ -57,14 +107,49 @@ public class ClusterManager implements MessageListener {
     @Autowired
     private MessageSender messageSender;
 
-    private final String instanceId = UUID.randomUUID().toString();
+    // Stable across restarts only when configured; then unacknowledged stream entries are recovered
+    @Value("${im.cluster.instance-id:}")
+    private String configuredInstanceId;
+
+    // Inbound stream shards per instance, by hash(toUid); must be the same on every node
+    @Value("${im.cluster.stream.shards:4}")
+    private int streamShards;
+
+    @Value("${im.cluster.stream.read-count:200}")
+    private int streamReadCount;
+
+    @Value("${im.cluster.stream.block-ms:2000}")
+    private long streamBlockMs;
+
+    // XADD ... MAXLEN ~ this on every forward, 0 = no trimming
+    @Value("${im.cluster.stream.max-len:100000}")
+    private long streamMaxLen;
+
+    // Also read the unsharded stream that nodes predating the shards write to
+    @Value("${im.cluster.stream.drain-legacy:true}")
+    private boolean drainLegacy;
+
+    // Forward as single-message entries on the unsharded stream, the only format older nodes read
+    @Value("${im.cluster.stream.legacy-forward:false}")
+    private boolean legacyForward;
+
+    // An instance whose registry score is this old and whose heartbeat key is gone is dead
+    @Value("${im.cluster.dead-after-ms:15000}")
+    private long deadAfterMs;
+
+    // Lease of the cleanup lock; longer than one cleanup run
+    @Value("${im.cluster.cleanup-lock-ms:60000}")
+    private long cleanupLockMs;
+
+    private String instanceId = UUID.randomUUID().toString();
     private final String topicName = "im-cluster-topic";
     
-    // Stream listener executor
-    private final ExecutorService streamListenerExecutor = Executors.newSingleThreadExecutor();
-    // Virtual Thread Executor for dispatching stream messages
-    private final ExecutorService streamTaskExecutor = Executors.newVirtualThreadPerTaskExecutor();
+    // Stream listener executor, one reader thread per shard
+    private ExecutorService streamListenerExecutor;
     private volatile boolean isRunning = true;
+    // Membership view from the registry: instanceId -> last heartbeat (ms), refreshed every check
+    private volatile Map<String, Long> members = Map.of();
+    private volatile boolean legacyAdopted;
     
     public String getInstanceId() {
         return instanceId;
@@ -73,24 +158,48 @@ public class ClusterManager implements MessageListener {
     // Instance-specific topic for direct message forwarding
     // Format: im-instance-{instanceId}
     private String instanceTopicName;
-    private String instanceStreamKey;
 
     @PostConstruct
     public void init() {
+        if (configuredInstanceId != null && !configuredInstanceId.isBlank()) {
+            this.instanceId = configuredInstanceId.trim();
+            // The id is the first field of ':'-separated cluster events and stream keys
+            if (instanceId.indexOf(':') >= 0) {
+                throw new IllegalStateException("im.cluster.instance-id must not contain ':': " + instanceId);
+            }
+        } else {
+            // A new id on every start: entries delivered to the old id but not yet acknowledged are lost
+            log.warn("im.cluster.instance-id is not set, using random id {}; forwards pending at shutdown "
+                    + "will not be recovered after a restart", instanceId);
+        }
         this.instanceTopicName = "im-instance-" + instanceId;
-        this.instanceStreamKey = KEY_STREAM_PREFIX + instanceId;
+        this.streamShards = Math.max(1, streamShards);
         
         redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(topicName));
         // We still keep Pub/Sub for broadcast events, but use Stream for message forwarding
         
         log.info("Cluster Manager started. Instance ID: {}", instanceId);
-        log.info("Listening on private stream: {}", instanceStreamKey);
+        log.info("Listening on private streams: {}{0..{}}", KEY_STREAM_PREFIX + instanceId + ":", streamShards - 1);
+        if (legacyForward) {
+            log.info("Forwarding in the unsharded legacy format (im.cluster.stream.legacy-forward)");
+        }
         
         // Register shutdown hook for graceful shutdown
         Runtime.getRuntime().addShutdownHook(new Thread(this::gracefulShutdown));
         
-        // Start Stream Listener
-        streamListenerExecutor.submit(this::listenStream);
+        // Start Stream Listeners
+        AtomicInteger readerIndex = new AtomicInteger();
+        streamListenerExecutor = Executors.newFixedThreadPool(streamShards + (drainLegacy ? 1 : 0),
+                r -> new Thread(r, "im-stream-shard-" + readerIndex.getAndIncrement()));
+        for (int shard = 0; shard < streamShards; shard++) {
+            String key = streamKey(instanceId, shard);
+            streamListenerExecutor.submit(() -> listenStream(key));
+        }
+        if (drainLegacy) {
+            // Entries from nodes not yet upgraded; not ordered against the shards
+            streamListenerExecutor.submit(() -> listenStream(legacyStreamKey(instanceId)));
+        }
+        peerTransport.start(this::deliverForwards);
         
         publishEvent("STARTUP");
     }
@@ -99,31 +208,67 @@ public class ClusterManager implements MessageListener {
         log.info("Graceful shutdown triggered for instance {}", instanceId);
         isRunning = false;
         streamListenerExecutor.shutdownNow();
-        // Clean up self heartbeat immediately so other nodes can detect it faster (optional, or just let it expire)
+        // Clean up self heartbeat immediately so other nodes can detect it faster (optional, or just let it expire).
+        // The registry entry stays: it is removed by whoever cleans up after us
         redisTemplate.delete(KEY_HEARTBEAT_PREFIX + instanceId);
         // Note: Actual session cleanup is handled by channel inactive events during server stop,
         // or by the dead instance cleaner if we crash hard.
     }
     
-    private void listenStream() {
+    private String streamKey(String targetInstanceId, int shard) {
+        return KEY_STREAM_PREFIX + targetInstanceId + ":" + shard;
+    }
+
+    private String legacyStreamKey(String targetInstanceId) {
+        return KEY_STREAM_PREFIX + targetInstanceId;
+    }
+
+    // A user's forwards always land in the same shard, so they are delivered in order
+    private int shardOf(String uid) {
+        return uid == null ? 0 : Math.floorMod(uid.hashCode(), streamShards);
+    }
+
+    /**
+     * Consume one shard of this instance's stream through a consumer group: first whatever was
+     * delivered to this consumer but never acknowledged (a restart with the same instance id), then
+     * new entries (">"). Entries are handled in stream order on this shard's thread; each read is
+     * then acknowledged and deleted in one pipelined round trip.
+     */
+    private void listenStream(String streamKey) {
+        ensureConsumerGroup(streamKey);
+        byte[] rawKey = streamKey.getBytes(StandardCharsets.UTF_8);
+        Consumer consumer = Consumer.from(STREAM_GROUP, instanceId);
+        StreamReadOptions newEntries = StreamReadOptions.empty().count(streamReadCount).block(Duration.ofMillis(streamBlockMs));
+        StreamReadOptions pendingEntries = StreamReadOptions.empty().count(streamReadCount);
+        StreamOffset<byte[]>[] history = offsets(StreamOffset.create(rawKey, ReadOffset.from("0")));
+        StreamOffset<byte[]>[] latest = offsets(StreamOffset.create(rawKey, ReadOffset.lastConsumed()));
+        boolean recovering = true;
+        long recovered = 0;
         while (isRunning) {
             try {
-                // XREAD BLOCK 2000 STREAMS key $
-                // Read new messages only ($)
-                List<MapRecord<String, Object, Object>> records = redisTemplate.opsForStream().read(
-                        StreamReadOptions.empty().block(Duration.ofMillis(2000)).count(50), // Increase count for batching
-                        StreamOffset.latest(instanceStreamKey)
-                );
-                
-                if (records != null && !records.isEmpty()) {
-                    for (MapRecord<String, Object, Object> record : records) {
-                        // Dispatch to Virtual Thread for parallel processing
-                        streamTaskExecutor.submit(() -> handleStreamMessage(record));
+                // Raw records: coalesced entries may carry gzipped values
+                StreamReadOptions options = recovering ? pendingEntries : newEntries;
+                StreamOffset<byte[]>[] offset = recovering ? history : latest;
+                List<ByteRecord> records = redisTemplate.execute((RedisCallback<List<ByteRecord>>) connection ->
+                        connection.streamCommands().xReadGroup(consumer, options, offset));
+
+                if (records == null || records.isEmpty()) {
+                    if (recovering) {
+                        recovering = false;
+                        if (recovered > 0) log.info("Recovered {} pending entries from {}", recovered, streamKey);
                     }
+                    continue;
                 }
+                if (recovering) recovered += records.size();
+                processAndAck(streamKey, records);
             } catch (Exception e) {
                 if (isRunning) {
-                    log.error("Error reading from stream", e);
+                    log.error("Error reading from stream {}", streamKey, e);
+                    // Don't retry a history read that keeps failing; new entries still flow
+                    recovering = false;
+                    if (causeContains(e, "NOGROUP")) {
+                        ensureConsumerGroup(streamKey);
+                    }
                     try {
                         Thread.sleep(1000); // Backoff
                     } catch (InterruptedException ie) {
@@ -134,25 +279,65 @@ public class ClusterManager implements MessageListener {
             }
         }
     }
-    
-    private void handleStreamMessage(MapRecord<String, Object, Object> record) {
+
+    private void processAndAck(String streamKey, List<ByteRecord> records) {
+        // In order: delivery is only local channel writes, parallelism comes from the shards
+        for (ByteRecord record : records) {
+            handleStreamMessage(record);
+        }
+
+        // XACK + XDEL for the whole read; same key, so the batcher keeps them in order in one pipeline
+        RecordId[] ids = records.stream().map(ByteRecord::getId).toArray(RecordId[]::new);
+        CompletableFuture.allOf(
+                redisBatcher.xAck(streamKey, STREAM_GROUP, ids),
+                redisBatcher.xDel(streamKey, ids)).join();
+    }
+
+    @SafeVarargs
+    private static StreamOffset<byte[]>[] offsets(StreamOffset<byte[]>... offsets) {
+        return offsets;
+    }
+
+    private void ensureConsumerGroup(String streamKey) {
         try {
-            Map<Object, Object> value = record.getValue();
-            String jsonBody = (String) value.get("body");
-            
-            if (jsonBody != null) {
-                handleForwardedMessage(jsonBody);
+            // MKSTREAM: the stream may not exist until the first forward
+            redisTemplate.execute((RedisCallback<String>) connection -> connection.streamCommands().xGroupCreate(
+                    streamKey.getBytes(StandardCharsets.UTF_8), STREAM_GROUP, ReadOffset.from("0"), true));
+        } catch (Exception e) {
+            if (!causeContains(e, "BUSYGROUP")) { // BUSYGROUP: already exists
+                log.error("Failed to create consumer group on {}", streamKey, e);
             }
-            
-            // Acknowledge/Delete processed message
-            // Since we are not using consumer groups, we can just delete it to keep stream small
-            redisTemplate.opsForStream().delete(instanceStreamKey, record.getId());
-            
+        }
+    }
+
+    private static boolean causeContains(Throwable e, String text) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t.getMessage() != null && t.getMessage().contains(text)) return true;
+        }
+        return false;
+    }
+    
+    private void handleStreamMessage(ByteRecord record) {
+        try {
+            // One entry carries one or many coalesced forwards, in the order they were sent
+            deliverForwards(StreamForwarder.unpack(record));
+            // Acknowledged and deleted with the rest of its read in processAndAck
         } catch (Exception e) {
             log.error("Error processing stream message {}", record.getId(), e);
         }
     }
 
+    // Forwards from a stream entry or a peer frame
+    private void deliverForwards(List<StreamForwarder.Forward> forwards) {
+        for (StreamForwarder.Forward forward : forwards) {
+            if (forward.members() != null) {
+                handleGroupEnvelope(forward.body(), forward.members());
+            } else {
+                handleForwardedMessage(forward.body());
+            }
+        }
+    }
+
     @Override
     public void onMessage(org.springframework.data.redis.connection.Message message, byte[] pattern) {
         String topic = new String(message.getChannel(), StandardCharsets.UTF_8);
@@ -165,10 +350,25 @@ public class ClusterManager implements MessageListener {
     }
     
     private void handleClusterEvent(String body) {
-        // Format: INSTANCE_ID:EVENT
-        if (!body.startsWith(instanceId)) { // Ignore self
-            log.debug("Received cluster event: {}", body);
+        // Format: INSTANCE_ID:EVENT[:args]
+        String[] parts = body.split(":", 4);
+        if (parts[0].equals(instanceId)) { // Ignore self
+            return;
         }
+        if (parts.length == 4 && (EVENT_ROUTE.equals(parts[1]) || EVENT_GROUP.equals(parts[1]))) {
+            try {
+                long value = Long.parseLong(parts[2]);
+                if (EVENT_ROUTE.equals(parts[1])) {
+                    sessionRouteCache.invalidateRemote(parts[3], value);
+                } else {
+                    groupMemberCache.onVersion(parts[3], value);
+                }
+            } catch (NumberFormatException e) {
+                log.warn("Malformed cluster event: {}", body);
+            }
+            return;
+        }
+        log.debug("Received cluster event: {}", body);
     }
     
     private void handleForwardedMessage(String body) {
@@ -179,13 +379,13 @@ public class ClusterManager implements MessageListener {
             
             String toUid = msg.getToUid();
             // Check if this user is connected to this instance
-            Map<String, Channel> userChannels = channelManager.getUserChannels(toUid);
+            List<Channel> userChannels = channelManager.getUserChannels(toUid);
             
-            if (userChannels != null && !userChannels.isEmpty()) {
+            if (!userChannels.isEmpty()) {
                 log.debug("Received forwarded message for user {}, sending to local channels", toUid);
-                for (Channel channel : userChannels.values()) {
+                for (Channel channel : userChannels) {
                     if (channel.isActive()) {
-                        messageSender.send(channel, msg); // Use MessageSender
+                        deliver(channel, msg);
                     }
                 }
             } else {
@@ -196,114 +396,317 @@ public class ClusterManager implements MessageListener {
         }
     }
 
+    /**
+     * Fan a forwarded group message out to the listed members' local channels.
+     * @param body JSON of the message template (toUid unset)
+     * @param members JSON array of member uids on this instance
+     */
+    private void handleGroupEnvelope(String body, String members) {
+        try {
+            Message template = JSON.parseObject(body, Message.class);
+            List<String> memberIds = JSON.parseArray(members, String.class);
+            if (template == null || memberIds == null) return;
+
+            int missing = 0;
+            for (String memberId : memberIds) {
+                List<Channel> userChannels = channelManager.getUserChannels(memberId);
+                if (userChannels.isEmpty()) {
+                    missing++;
+                    continue;
+                }
+                Message msg = template.copyTo(memberId);
+                for (Channel channel : userChannels) {
+                    if (channel.isActive()) {
+                        deliver(channel, msg);
+                    }
+                }
+            }
+            if (missing > 0) {
+                log.warn("Received group {} message for {} members not found locally", template.getGroupId(), missing);
+            }
+        } catch (Exception e) {
+            log.error("Error handling forwarded group message", e);
+        }
+    }
+
+    // Same QoS as local delivery: cached messages go through the ACK store, not the drop-ephemeral path
+    private void deliver(Channel channel, Message msg) {
+        if (msg.isCache()) {
+            messageSender.sendAndCache(channel, msg);
+        } else {
+            messageSender.send(channel, msg);
+        }
+    }
+
     @Scheduled(fixedRate = 5000)
     public void sendHeartbeat() {
         // 1. Send Pub/Sub Heartbeat (Legacy/Optional)
         publishEvent("HEARTBEAT");
         
         // 2. Set/Update Heartbeat Key in Redis (For Dead Instance Detection)
-        // TTL = 10 seconds (if we crash, key expires in 10s)
-        redisTemplate.opsForValue().set(KEY_HEARTBEAT_PREFIX + instanceId, String.valueOf(System.currentTimeMillis()), 10, TimeUnit.SECONDS);
+        // TTL = 10 seconds (if we crash, key expires in 10s); also advertises the peer endpoint
+        String endpoint = peerTransport.endpoint();
+        String heartbeat = System.currentTimeMillis() + (endpoint != null ? "|" + endpoint : "");
+        redisTemplate.opsForValue().set(KEY_HEARTBEAT_PREFIX + instanceId, heartbeat, 10, TimeUnit.SECONDS);
+
+        // 3. Registry score, for the dead instance check
+        redisTemplate.opsForZSet().add(KEY_INSTANCES, instanceId, System.currentTimeMillis());
+    }
+
+    /**
+     * Instances in the cluster registry whose last heartbeat is recent, from this node's view.
+     */
+    public Set<String> liveInstances() {
+        long cutoff = System.currentTimeMillis() - deadAfterMs;
+        Set<String> live = new HashSet<>();
+        members.forEach((id, lastHeartbeat) -> {
+            if (lastHeartbeat >= cutoff) live.add(id);
+        });
+        return live;
     }
     
     /**
      * Periodically check for dead instances and clean up their sessions.
      * Running every 10 seconds.
-     * In a real production environment, you might want to use a distributed lock 
-     * so only one node performs this cleanup, or have a dedicated monitoring service.
-     * For simplicity here, all nodes will check (idempotent operations are preferred).
+     * Reads the registry (one ZRANGE) into this node's membership view. An instance whose score is
+     * older than im.cluster.dead-after-ms and whose heartbeat key has expired is dead: every node
+     * drops its cached routes, forward buffers and peer connections, and the node holding the
+     * cleanup lock removes its sessions, streams and registry entry.
      */
     @Scheduled(fixedRate = 10000)
     public void checkDeadInstances() {
         try {
-            // Scan for all instance session keys: instance_sessions:*
-            Set<String> instanceKeys = redisTemplate.keys(KEY_INSTANCE_SESSIONS_PREFIX + "*");
-            if (instanceKeys == null || instanceKeys.isEmpty()) return;
-            
-            for (String key : instanceKeys) {
-                // Extract instanceId from key "instance_sessions:{instanceId}"
-                String deadInstanceId = key.substring(KEY_INSTANCE_SESSIONS_PREFIX.length());
-                
-                // Check if this instance is still alive (has heartbeat key)
-                Boolean isAlive = redisTemplate.hasKey(KEY_HEARTBEAT_PREFIX + deadInstanceId);
-                
-                if (!isAlive) {
+            Set<ZSetOperations.TypedTuple<String>> registry = redisTemplate.opsForZSet().rangeWithScores(KEY_INSTANCES, 0, -1);
+            Map<String, Long> view = new HashMap<>();
+            if (registry != null) {
+                for (ZSetOperations.TypedTuple<String> entry : registry) {
+                    if (entry.getValue() != null && entry.getScore() != null) {
+                        view.put(entry.getValue(), entry.getScore().longValue());
+                    }
+                }
+            }
+            logMembershipChanges(members, view);
+            members = Map.copyOf(view);
+
+            long cutoff = System.currentTimeMillis() - deadAfterMs;
+            List<String> dead = new ArrayList<>();
+            for (Map.Entry<String, Long> entry : view.entrySet()) {
+                String id = entry.getKey();
+                // The score is the writer's clock; the heartbeat TTL confirms it without relying on it
+                if (entry.getValue() < cutoff && !id.equals(instanceId)
+                        && !Boolean.TRUE.equals(redisTemplate.hasKey(KEY_HEARTBEAT_PREFIX + id))) {
+                    dead.add(id);
+                }
+            }
+            for (String deadInstanceId : dead) {
+                sessionRouteCache.invalidateInstance(deadInstanceId);
+                peerTransport.forget(deadInstanceId);
+                streamForwarder.forget(deadInstanceId);
+            }
+            if (dead.isEmpty() && legacyAdopted) return;
+
+            Boolean locked = redisTemplate.opsForValue().setIfAbsent(KEY_CLEANUP_LOCK, instanceId, cleanupLockMs, TimeUnit.MILLISECONDS);
+            if (!Boolean.TRUE.equals(locked)) return; // Another node is cleaning up
+            try {
+                if (!legacyAdopted) {
+                    adoptLegacyInstances(view.keySet());
+                }
+                for (String deadInstanceId : dead) {
                     log.warn("Detected DEAD instance: {}. Starting session cleanup...", deadInstanceId);
-                    cleanUpDeadInstance(deadInstanceId, key);
+                    cleanUpDeadInstance(deadInstanceId);
                 }
+            } finally {
+                redisTemplate.execute(RELEASE_LOCK, List.of(KEY_CLEANUP_LOCK), instanceId);
             }
         } catch (Exception e) {
             log.error("Error checking dead instances", e);
         }
     }
-    
-    private void cleanUpDeadInstance(String deadInstanceId, String sessionSetKey) {
-        // 1. Get all users connected to that dead instance
+
+    private void logMembershipChanges(Map<String, Long> before, Map<String, Long> after) {
+        for (String id : after.keySet()) {
+            if (!before.isEmpty() && !before.containsKey(id)) log.info("Instance joined the cluster: {}", id);
+        }
+        for (String id : before.keySet()) {
+            if (!after.containsKey(id)) log.info("Instance left the cluster: {}", id);
+        }
+    }
+
+    /**
+     * Once per node, under the cleanup lock: register instances that only have an
+     * instance_sessions key (written by nodes predating the registry) with score 0, so the normal
+     * check cleans them up if they are dead. Uses a cursor SCAN, not KEYS.
+     */
+    private void adoptLegacyInstances(Set<String> registered) {
+        ScanOptions options = ScanOptions.scanOptions().match(KEY_INSTANCE_SESSIONS_PREFIX + "*").count(1000).build();
+        int adopted = 0;
+        try (Cursor<String> keys = redisTemplate.scan(options)) {
+            while (keys.hasNext()) {
+                String id = keys.next().substring(KEY_INSTANCE_SESSIONS_PREFIX.length());
+                if (!registered.contains(id) && Boolean.TRUE.equals(redisTemplate.opsForZSet().addIfAbsent(KEY_INSTANCES, id, 0))) {
+                    adopted++;
+                }
+            }
+        }
+        legacyAdopted = true;
+        if (adopted > 0) log.info("Registered {} instances found only by their session sets", adopted);
+    }
+
+    private void cleanUpDeadInstance(String deadInstanceId) {
+        String sessionSetKey = KEY_INSTANCE_SESSIONS_PREFIX + deadInstanceId;
+        // 1. Walk the users connected to that dead instance with SSCAN and remove them from the
+        // global session map (session:{uid} -> deviceId), one pipelined chunk of HDELs at a time.
         // Set members format: "uid:deviceId"
-        Set<String> userDevicePairs = redisTemplate.opsForSet().members(sessionSetKey);
-        
-        if (userDevicePairs != null && !userDevicePairs.isEmpty()) {
-            for (String pair : userDevicePairs) {
-                try {
-                    String[] parts = pair.split(":");
-                    if (parts.length == 2) {
-                        String uid = parts[0];
-                        String deviceId = parts[1];
-                        
-                        // 2. Remove from global session map: session:{uid} -> deviceId
-                        redisTemplate.opsForHash().delete("session:" + uid, deviceId);
-                        log.info("Cleaned up dead session for user {} device {} on dead instance {}", uid, deviceId, deadInstanceId);
-                    }
-                } catch (Exception e) {
-                    log.error("Error cleaning up user session {}", pair, e);
+        ScanOptions options = ScanOptions.scanOptions().count(CLEANUP_BATCH).build();
+        List<CompletableFuture<Long>> pending = new ArrayList<>(CLEANUP_BATCH);
+        long cleaned = 0;
+        try (Cursor<String> pairs = redisTemplate.opsForSet().scan(sessionSetKey, options)) {
+            while (pairs.hasNext()) {
+                String pair = pairs.next();
+                String[] parts = pair.split(":");
+                if (parts.length != 2) continue;
+                pending.add(redisBatcher.hDel("session:" + parts[0], parts[1]));
+                if (pending.size() >= CLEANUP_BATCH) {
+                    cleaned += awaitCleanup(pending);
                 }
             }
         }
-        
-        // 3. Remove the instance_sessions key itself
+        cleaned += awaitCleanup(pending);
+        log.info("Cleaned up {} dead sessions on dead instance {}", cleaned, deadInstanceId);
+
+        // 2. Remove the instance_sessions key itself
         redisTemplate.delete(sessionSetKey);
-        
-        // 4. Cleanup Stream Key
-        redisTemplate.delete(KEY_STREAM_PREFIX + deadInstanceId);
-        
+
+        // 3. Cleanup Stream Keys (all shards, plus the unsharded key of older nodes)
+        List<String> streamKeys = new ArrayList<>(streamShards + 1);
+        for (int shard = 0; shard < streamShards; shard++) {
+            streamKeys.add(streamKey(deadInstanceId, shard));
+        }
+        streamKeys.add(legacyStreamKey(deadInstanceId));
+        redisTemplate.delete(streamKeys);
+
+        // 4. Leave the registry last, so an interrupted cleanup is retried on the next check
+        redisTemplate.opsForZSet().remove(KEY_INSTANCES, deadInstanceId);
+
         log.info("Completed cleanup for dead instance {}", deadInstanceId);
     }
 
+    // Wait for a chunk of HDELs; returns how many were applied
+    private long awaitCleanup(List<CompletableFuture<Long>> pending) {
+        long applied = 0;
+        for (CompletableFuture<Long> hDel : pending) {
+            try {
+                applied += hDel.join() > 0 ? 1 : 0;
+            } catch (Exception e) {
+                log.error("Error cleaning up a dead session", e);
+            }
+        }
+        pending.clear();
+        return applied;
+    }
+
     private void publishEvent(String event) {
         String msg = instanceId + ":" + event;
         redisTemplate.convertAndSend(topicName, msg);
     }
     
     /**
-     * Forward message to a specific instance via Redis Stream
+     * Invalidate the user's cached route here and on every other node. Call after the change to
+     * session:{uid} has been applied, so a node reloading on the event sees it.
+     * @param uid User ID
+     */
+    public CompletableFuture<Long> publishRouteChange(String uid) {
+        sessionRouteCache.invalidate(uid);
+        String event = instanceId + ":" + EVENT_ROUTE + ":" + System.currentTimeMillis() + ":" + uid;
+        return redisBatcher.publish(topicName, event);
+    }
+
+    /**
+     * Bump the group's membership version and drop stale cached members here and on every other
+     * node. Call after the membership writes have been applied.
+     * @param groupId Group ID
+     * @return completes with the new version once it is published
+     */
+    public CompletableFuture<Long> publishGroupChange(String groupId) {
+        return redisBatcher.incr(GroupMemberCache.KEY_VERSION_PREFIX + groupId).thenCompose(version -> {
+            groupMemberCache.onVersion(groupId, version);
+            String event = instanceId + ":" + EVENT_GROUP + ":" + version + ":" + groupId;
+            return redisBatcher.publish(topicName, event).thenApply(receivers -> version);
+        });
+    }
+
+    /**
+     * Forward message to a specific instance via Redis Stream (coalesced with other forwards to the
+     * same shard, see {@link StreamForwarder})
      * @param targetInstanceId The target instance ID
      * @param message The message object to forward
      */
     public void forwardToInstance(String targetInstanceId, Message message) {
         if (targetInstanceId == null || targetInstanceId.isEmpty()) return;
-        
-        String targetStreamKey = KEY_STREAM_PREFIX + targetInstanceId;
-        String jsonBody = JSON.toJSONString(message);
-        
-        // XADD key * body {json}
-        redisTemplate.opsForStream().add(targetStreamKey, Collections.singletonMap("body", jsonBody));
+        if (legacyForward) {
+            RedisBatcher.logFailure(redisBatcher.xAdd(legacyStreamKey(targetInstanceId),
+                    Map.of(StreamForwarder.FIELD_BODY, JSON.toJSONString(message)), streamMaxLen), "forward XADD");
+            return;
+        }
+
+        int shard = shardOf(message.getToUid());
+        streamForwarder.forward(targetInstanceId, shard, streamKey(targetInstanceId, shard), streamMaxLen,
+                JSON.toJSONString(message), null);
     }
     
+    /**
+     * Forward a group message to a specific instance as one envelope per stream shard, each carrying
+     * that shard's members, so members keep their per-user order.
+     * @param targetInstanceId The target instance ID
+     * @param template The message, without toUid
+     * @param memberUids Members connected to the target instance
+     */
+    public void forwardGroupToInstance(String targetInstanceId, Message template, List<String> memberUids) {
+        if (targetInstanceId == null || targetInstanceId.isEmpty() || memberUids.isEmpty()) return;
+        if (legacyForward) {
+            // One envelope for all members, as older nodes expect
+            RedisBatcher.logFailure(redisBatcher.xAdd(legacyStreamKey(targetInstanceId), Map.of(
+                    StreamForwarder.FIELD_BODY, JSON.toJSONString(template),
+                    StreamForwarder.FIELD_MEMBERS, JSON.toJSONString(memberUids)), streamMaxLen), "forward XADD");
+            return;
+        }
+
+        List<List<String>> byShard = new ArrayList<>(streamShards);
+        for (int shard = 0; shard < streamShards; shard++) {
+            byShard.add(null);
+        }
+        for (String uid : memberUids) {
+            int shard = shardOf(uid);
+            if (byShard.get(shard) == null) byShard.set(shard, new ArrayList<>());
+            byShard.get(shard).add(uid);
+        }
+
+        String body = JSON.toJSONString(template);
+        for (int shard = 0; shard < streamShards; shard++) {
+            List<String> members = byShard.get(shard);
+            if (members == null) continue;
+            streamForwarder.forward(targetInstanceId, shard, streamKey(targetInstanceId, shard), streamMaxLen,
+                    body, JSON.toJSONString(members));
+        }
+    }
+
     /**
      * Register a user session to this instance (Reverse Index)
      * @param uid User ID
      * @param deviceId Device ID
+     * @return completes once the SADD has been applied
      */
-    public void registerSession(String uid, String deviceId) {
-        redisTemplate.opsForSet().add(KEY_INSTANCE_SESSIONS_PREFIX + instanceId, uid + ":" + deviceId);
+    public CompletableFuture<Long> registerSession(String uid, String deviceId) {
+        return redisBatcher.sAdd(KEY_INSTANCE_SESSIONS_PREFIX + instanceId, uid + ":" + deviceId);
     }
     
     /**
      * Unregister a user session from this instance
      * @param uid User ID
      * @param deviceId Device ID
+     * @return completes once the SREM has been applied
      */
-    public void unregisterSession(String uid, String deviceId) {
-        redisTemplate.opsForSet().remove(KEY_INSTANCE_SESSIONS_PREFIX + instanceId, uid + ":" + deviceId);
+    public CompletableFuture<Long> unregisterSession(String uid, String deviceId) {
+        return redisBatcher.sRem(KEY_INSTANCE_SESSIONS_PREFIX + instanceId, uid + ":" + deviceId);
     }
 }
@@ -0,0 +1,592 @@
+package com.teammors.server.im.cluster;
+
+import com.teammors.server.im.netty.NettyTransport;
+import com.teammors.server.im.service.RedisBatcher;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.MultiThreadIoEventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.handler.codec.LengthFieldPrepender;
+import io.netty.util.concurrent.Promise;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Optional direct node-to-node transport for forwarded messages (im.cluster.peer.enabled).
+ *
+ * Each node listens on im.cluster.peer.host:port and advertises it in its heartbeat value
+ * (server_heartbeat:{instanceId} = {timestamp}|{host}:{port}). A batch flushed by
+ * {@link StreamForwarder} for a peer then goes over a persistent connection as one frame instead of
+ * XADD + XREADGROUP + XACK/XDEL. Connections are pooled per peer (im.cluster.peer.connections) and
+ * a stream shard always uses the same one.
+ *
+ * A peer with no advertised endpoint, or whose connection is down or backed up, gets the batch
+ * through its Redis stream instead, and a frame whose write fails is re-sent there. A shard only
+ * moves from the stream to the connection once this node's last entry on that stream has been read
+ * and deleted, so that switch keeps per-user order. The other way round it does not: batches sent
+ * through the stream while earlier frames are still in flight may be delivered before them. Frames
+ * still in the socket buffers of a peer that crashes are lost, where the stream would have kept them.
+ *
+ * Handshake: the accepting node sends a random 32-byte nonce, the connecting node answers with one
+ * frame holding HMAC-SHA256(im.cluster.peer.secret, nonce). No other frame is accepted before that.
+ * Frame: [length:4][flags:1][batch]. Flag bit 0 = gzipped; the batch uses the stream entry format.
+ */
+@Component
+public class PeerTransport {
+
+    private static final Logger log = LoggerFactory.getLogger(PeerTransport.class);
+
+    private static final int FLAG_GZIP = 1;
+    private static final int NONCE_BYTES = 32;
+    // Between checks of whether a shard's stream has been read, while batches are held for the peer
+    private static final long DRAIN_CHECK_MS = 20;
+    private static final String HMAC = "HmacSHA256";
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    @Autowired
+    private RedisBatcher redisBatcher;
+
+    @Value("${im.cluster.peer.enabled:false}")
+    private boolean enabled;
+
+    @Value("${im.cluster.peer.port:9923}")
+    private int port;
+
+    // Address to listen on and advertise to other nodes; empty = this host's address
+    @Value("${im.cluster.peer.host:}")
+    private String advertisedHost;
+
+    // Shared by all nodes; required, the transport stays off without it
+    @Value("${im.cluster.peer.secret:}")
+    private String secret;
+
+    @Value("${im.cluster.peer.connections:2}")
+    private int connectionsPerPeer;
+
+    @Value("${im.cluster.peer.threads:2}")
+    private int threads;
+
+    @Value("${im.cluster.peer.connect-timeout-ms:1000}")
+    private int connectTimeoutMs;
+
+    // Wait before retrying an unreachable peer; its batches use the stream meanwhile
+    @Value("${im.cluster.peer.retry-ms:5000}")
+    private long retryMs;
+
+    @Value("${im.cluster.peer.max-frame-bytes:8388608}")
+    private int maxFrameBytes;
+
+    // Above high, a connection is backed up and batches go through the stream
+    @Value("${im.cluster.peer.write-buffer.low-watermark:1048576}")
+    private int writeBufferLowWatermark;
+
+    @Value("${im.cluster.peer.write-buffer.high-watermark:4194304}")
+    private int writeBufferHighWatermark;
+
+    @Value("${netty.transport:auto}")
+    private String transportMode;
+
+    private final ConcurrentHashMap<String, Peer> peers = new ConcurrentHashMap<>();
+    private EventLoopGroup group;
+    private Channel serverChannel;
+    private Bootstrap bootstrap;
+    private volatile String endpoint;
+    private volatile Consumer<List<StreamForwarder.Forward>> inbound;
+
+    private final LongAdder framesSent = new LongAdder();
+    private final LongAdder messagesSent = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder framesReceived = new LongAdder();
+    private final LongAdder messagesReceived = new LongAdder();
+    private final LongAdder viaStream = new LongAdder();
+    private final LongAdder writeFailures = new LongAdder();
+    private final LongAdder connects = new LongAdder();
+    private final LongAdder connectFailures = new LongAdder();
+    private final LongAdder rejectedHandshakes = new LongAdder();
+
+    /**
+     * Start listening for peers, if enabled. No secret, or an address that cannot be bound, leaves
+     * the transport disabled; forwarding then stays on the streams.
+     * @param inbound receives the messages of each inbound frame, in order, on the connection's event loop
+     */
+    public void start(Consumer<List<StreamForwarder.Forward>> inbound) {
+        if (!enabled) return;
+        if (secret == null || secret.isBlank()) {
+            log.error("im.cluster.peer.secret is not set, peer transport disabled; forwarding stays on Redis streams");
+            enabled = false;
+            return;
+        }
+        this.inbound = inbound;
+
+        String host = advertisedHost;
+        if (host == null || host.isBlank()) {
+            try {
+                host = InetAddress.getLocalHost().getHostAddress();
+            } catch (UnknownHostException e) {
+                log.warn("Cannot resolve local address, using 127.0.0.1 for the peer transport");
+                host = "127.0.0.1";
+            }
+        }
+        host = host.trim();
+
+        NettyTransport transport = NettyTransport.resolve(transportMode);
+        group = new MultiThreadIoEventLoopGroup(Math.max(1, threads), transport.ioHandlerFactory());
+        try {
+            serverChannel = new ServerBootstrap()
+                    .group(group)
+                    .channel(transport.serverChannelClass())
+                    .childOption(ChannelOption.TCP_NODELAY, true)
+                    .childHandler(new ChannelInitializer<SocketChannel>() {
+                        @Override
+                        protected void initChannel(SocketChannel ch) {
+                            ch.pipeline().addLast(new LengthFieldBasedFrameDecoder(maxFrameBytes, 0, 4, 0, 4),
+                                    new InboundFrameHandler());
+                        }
+                    })
+                    .bind(host, port).syncUninterruptibly().channel();
+        } catch (Exception e) {
+            log.error("Peer transport could not listen on {}:{}, forwarding stays on Redis streams", host, port, e);
+            enabled = false;
+            group.shutdownGracefully();
+            return;
+        }
+
+        bootstrap = new Bootstrap()
+                .group(group)
+                .channel(transport.socketChannelClass())
+                .option(ChannelOption.TCP_NODELAY, true)
+                .option(ChannelOption.SO_KEEPALIVE, true)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectTimeoutMs)
+                .option(ChannelOption.WRITE_BUFFER_WATER_MARK,
+                        new WriteBufferWaterMark(writeBufferLowWatermark, writeBufferHighWatermark))
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(new LengthFieldPrepender(4), new Handshake(ch.eventLoop().newPromise()));
+                    }
+                });
+
+        endpoint = host + ":" + port;
+        log.info("Peer transport listening on {}, transport: {}", endpoint, transport);
+    }
+
+    // HMAC-SHA256(secret, nonce)
+    private byte[] proof(byte[] nonce) {
+        try {
+            Mac mac = Mac.getInstance(HMAC);
+            mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), HMAC));
+            return mac.doFinal(nonce);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * host:port to advertise in the heartbeat, or null if the transport is off.
+     */
+    public String endpoint() {
+        return enabled ? endpoint : null;
+    }
+
+    /**
+     * The endpoint in a server_heartbeat value, or null if that node advertises none.
+     */
+    static String endpointOf(String heartbeat) {
+        if (heartbeat == null) return null;
+        int sep = heartbeat.indexOf('|');
+        return sep >= 0 && sep < heartbeat.length() - 1 ? heartbeat.substring(sep + 1) : null;
+    }
+
+    /**
+     * Send a flushed batch straight to the peer if the connection for its shard is up, otherwise
+     * through the stream. While this node's last entry on the shard's stream may still be unread the
+     * batch is held back, and follows that entry once it has been read.
+     * @param streamKey the shard's stream
+     * @param viaStream XADDs the batch to that stream; also re-sends it there if the write fails later
+     * @return false if the batch went through the stream
+     */
+    public boolean send(String targetInstanceId, int shard, String streamKey, byte[] batch, boolean gzipped,
+                        int messages, Supplier<CompletableFuture<RecordId>> viaStream) {
+        // The decoder's limit counts the length field too
+        if (!enabled || 4 + 1 + batch.length > maxFrameBytes) {
+            viaStream.get();
+            return false;
+        }
+        Peer peer = peers.computeIfAbsent(targetInstanceId, Peer::new);
+        Channel channel = peer.connection(shard);
+        return peer.route(shard, streamKey).send(channel, new Batch(batch, gzipped, messages, viaStream));
+    }
+
+    /**
+     * Close the connections to an instance that has died.
+     */
+    public void forget(String instanceId) {
+        Peer peer = peers.remove(instanceId);
+        if (peer != null) peer.close();
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (group == null) return;
+        peers.values().forEach(Peer::close);
+        peers.clear();
+        if (serverChannel != null) serverChannel.close();
+        group.shutdownGracefully();
+    }
+
+    private final class Peer {
+        final String instanceId;
+        final Slot[] slots;
+        final ConcurrentHashMap<Integer, Route> routes = new ConcurrentHashMap<>();
+
+        Peer(String instanceId) {
+            this.instanceId = instanceId;
+            this.slots = new Slot[Math.max(1, connectionsPerPeer)];
+            for (int i = 0; i < slots.length; i++) {
+                slots[i] = new Slot();
+            }
+        }
+
+        // The shard's connection if it is up; otherwise starts (re)connecting every idle slot and returns null
+        Channel connection(int shard) {
+            Channel channel = slots[shard % slots.length].channel;
+            if (channel != null && channel.isActive()) return channel;
+            for (Slot slot : slots) {
+                Channel c = slot.channel;
+                if (c == null || !c.isActive()) connect(slot);
+            }
+            return null;
+        }
+
+        Route route(int shard, String streamKey) {
+            return routes.computeIfAbsent(shard, k -> new Route(slots[shard % slots.length], streamKey));
+        }
+
+        // Re-reads the endpoint on every attempt: a restarted peer may have moved
+        private void connect(Slot slot) {
+            if (System.currentTimeMillis() < slot.retryAt || !slot.connecting.compareAndSet(false, true)) return;
+            redisBatcher.get(ClusterManager.KEY_HEARTBEAT_PREFIX + instanceId).whenComplete((heartbeat, error) -> {
+                String target = error == null ? endpointOf(heartbeat) : null;
+                int sep = target != null ? target.lastIndexOf(':') : -1;
+                if (sep <= 0) {
+                    failed(slot);
+                    return;
+                }
+                try {
+                    String host = target.substring(0, sep);
+                    int targetPort = Integer.parseInt(target.substring(sep + 1));
+                    bootstrap.connect(host, targetPort).addListener((ChannelFutureListener) f -> {
+                        if (!f.isSuccess()) {
+                            log.warn("Cannot connect to peer {} at {}: {}", instanceId, target, String.valueOf(f.cause()));
+                            failed(slot);
+                            return;
+                        }
+                        // Usable once the peer has taken our answer to its challenge
+                        f.channel().pipeline().get(Handshake.class).done.addListener(h -> {
+                            if (h.isSuccess()) {
+                                slot.channel = f.channel();
+                                slot.connecting.set(false);
+                                connects.increment();
+                                log.info("Connected to peer {} at {}", instanceId, target);
+                            } else {
+                                log.warn("Handshake with peer {} at {} failed: {}", instanceId, target, String.valueOf(h.cause()));
+                                f.channel().close();
+                                failed(slot);
+                            }
+                        });
+                    });
+                } catch (RuntimeException e) {
+                    log.warn("Bad endpoint {} for peer {}", target, instanceId);
+                    failed(slot);
+                }
+            });
+        }
+
+        private void failed(Slot slot) {
+            connectFailures.increment();
+            slot.retryAt = System.currentTimeMillis() + retryMs;
+            slot.connecting.set(false);
+        }
+
+        void close() {
+            for (Slot slot : slots) {
+                Channel channel = slot.channel;
+                if (channel != null) channel.close();
+            }
+        }
+    }
+
+    private static final class Slot {
+        volatile Channel channel;
+        volatile long retryAt;
+        final AtomicBoolean connecting = new AtomicBoolean();
+    }
+
+    private record Batch(byte[] batch, boolean gzipped, int messages, Supplier<CompletableFuture<RecordId>> viaStream) {
+    }
+
+    /**
+     * Where one shard's batches to a peer go. Moving from the stream to the connection waits until
+     * this node's last entry on the stream has been read (XRANGE finds it gone, the reader deletes
+     * what it has delivered); batches meanwhile are held, in order, and go to the stream instead if
+     * the wait exceeds connect-timeout-ms or the write buffer high watermark.
+     */
+    private final class Route {
+        final Slot slot;
+        final String streamKey;
+        // This node's last XADD to the stream, until known to be read
+        CompletableFuture<RecordId> tail;
+        final ArrayDeque<Batch> held = new ArrayDeque<>();
+        long heldBytes;
+        long heldSince;
+        boolean checking;
+
+        Route(Slot slot, String streamKey) {
+            this.slot = slot;
+            this.streamKey = streamKey;
+        }
+
+        synchronized boolean send(Channel channel, Batch batch) {
+            if (channel == null || !channel.isWritable()) {
+                toStream();
+                viaStream.increment();
+                tail = batch.viaStream().get();
+                return false;
+            }
+            if (tail == null && held.isEmpty()) {
+                write(channel, batch);
+                return true;
+            }
+            if (held.isEmpty()) heldSince = System.currentTimeMillis();
+            held.add(batch);
+            heldBytes += batch.batch().length;
+            if (heldBytes > writeBufferHighWatermark || System.currentTimeMillis() - heldSince > connectTimeoutMs) {
+                toStream();
+                return false;
+            }
+            check();
+            return true;
+        }
+
+        // One XRANGE at a time; re-checks while batches are held
+        private void check() {
+            if (checking) return;
+            CompletableFuture<RecordId> last = tail;
+            if (last == null) {
+                release();
+                return;
+            }
+            checking = true;
+            // An XADD that failed left nothing to wait for
+            last.exceptionally(e -> null)
+                    .thenCompose(id -> id == null ? CompletableFuture.completedFuture(false) : redisBatcher.xExists(streamKey, id))
+                    .whenComplete((exists, error) -> {
+                        synchronized (this) {
+                            checking = false;
+                            if (tail == last && error == null && !exists) tail = null;
+                            if (held.isEmpty()) return;
+                            if (tail == null) {
+                                release();
+                            } else if (System.currentTimeMillis() - heldSince > connectTimeoutMs) {
+                                toStream();
+                            } else if (tail == last) {
+                                group.schedule(this::recheck, DRAIN_CHECK_MS, TimeUnit.MILLISECONDS);
+                            } else {
+                                check();
+                            }
+                        }
+                    });
+        }
+
+        private synchronized void recheck() {
+            if (!held.isEmpty()) check();
+        }
+
+        // The stream has been read up to our last entry: held batches go to the peer, in order
+        private void release() {
+            Channel channel = slot.channel;
+            if (channel == null || !channel.isActive()) {
+                toStream();
+                return;
+            }
+            Batch batch;
+            while ((batch = held.poll()) != null) {
+                write(channel, batch);
+            }
+            heldBytes = 0;
+        }
+
+        private void toStream() {
+            Batch batch;
+            while ((batch = held.poll()) != null) {
+                viaStream.increment();
+                tail = batch.viaStream().get();
+            }
+            heldBytes = 0;
+        }
+
+        private void write(Channel channel, Batch batch) {
+            ByteBuf frame = channel.alloc().buffer(1 + batch.batch().length);
+            frame.writeByte(batch.gzipped() ? FLAG_GZIP : 0).writeBytes(batch.batch());
+            channel.writeAndFlush(frame).addListener((ChannelFutureListener) f -> {
+                if (!f.isSuccess()) {
+                    writeFailures.increment();
+                    synchronized (this) {
+                        tail = batch.viaStream().get();
+                    }
+                }
+            });
+            framesSent.increment();
+            messagesSent.add(batch.messages());
+            bytesSent.add(batch.batch().length);
+        }
+    }
+
+    // Connecting side: answers the peer's nonce, then leaves the pipeline
+    private final class Handshake extends ByteToMessageDecoder {
+        final Promise<Void> done;
+
+        Handshake(Promise<Void> done) {
+            this.done = done;
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            ctx.executor().schedule(() -> {
+                if (done.tryFailure(new TimeoutException("no challenge from peer"))) ctx.close();
+            }, connectTimeoutMs, TimeUnit.MILLISECONDS);
+            super.channelActive(ctx);
+        }
+
+        @Override
+        protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
+            if (in.readableBytes() < NONCE_BYTES) return;
+            byte[] nonce = new byte[NONCE_BYTES];
+            in.readBytes(nonce);
+            ctx.writeAndFlush(Unpooled.wrappedBuffer(proof(nonce))).addListener(f -> {
+                if (f.isSuccess()) {
+                    done.trySuccess(null);
+                } else {
+                    done.tryFailure(f.cause());
+                }
+            });
+            ctx.pipeline().remove(this);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            done.tryFailure(new ClosedChannelException());
+            super.channelInactive(ctx);
+        }
+    }
+
+    private final class InboundFrameHandler extends SimpleChannelInboundHandler<ByteBuf> {
+        // Sent to the connecting node; null once it has answered
+        private byte[] nonce;
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            nonce = new byte[NONCE_BYTES];
+            RANDOM.nextBytes(nonce);
+            ctx.writeAndFlush(Unpooled.wrappedBuffer(nonce.clone()));
+            ctx.executor().schedule(() -> {
+                if (nonce != null) ctx.close();
+            }, connectTimeoutMs, TimeUnit.MILLISECONDS);
+            super.channelActive(ctx);
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, ByteBuf frame) {
+            if (nonce != null) {
+                if (!MessageDigest.isEqual(proof(nonce), ByteBufUtil.getBytes(frame))) {
+                    rejectedHandshakes.increment();
+                    log.warn("Peer connection {} failed the handshake, closing", ctx.channel().remoteAddress());
+                    ctx.close();
+                    return;
+                }
+                nonce = null;
+                return;
+            }
+            boolean gzipped = (frame.readByte() & FLAG_GZIP) != 0;
+            List<StreamForwarder.Forward> forwards = StreamForwarder.unpack(ByteBufUtil.getBytes(frame), gzipped);
+            framesReceived.increment();
+            messagesReceived.add(forwards.size());
+            inbound.accept(forwards);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            log.warn("Peer connection {} failed: {}", ctx.channel().remoteAddress(), cause.toString());
+            ctx.close();
+        }
+    }
+
+    /**
+     * Peers, frames / messages / bytes sent, frames and messages received, batches that went
+     * through the stream because the peer was not connected or backed up, failed writes (re-sent
+     * through the stream), connects, failed connects and inbound connections that failed the handshake.
+     */
+    public Map<String, Long> metrics() {
+        Map<String, Long> m = new LinkedHashMap<>();
+        m.put("peers", (long) peers.size());
+        m.put("framesSent", framesSent.sum());
+        m.put("messagesSent", messagesSent.sum());
+        m.put("bytesSent", bytesSent.sum());
+        m.put("framesReceived", framesReceived.sum());
+        m.put("messagesReceived", messagesReceived.sum());
+        m.put("viaStream", viaStream.sum());
+        m.put("writeFailures", writeFailures.sum());
+        m.put("connects", connects.sum());
+        m.put("connectFailures", connectFailures.sum());
+        m.put("rejectedHandshakes", rejectedHandshakes.sum());
+        return m;
+    }
+
+    @Scheduled(fixedRate = 60000)
+    public void logMetrics() {
+        if (enabled && framesSent.sum() + framesReceived.sum() + viaStream.sum() > 0) {
+            log.info("Peer transport: {}", metrics());
+        }
+    }
+}
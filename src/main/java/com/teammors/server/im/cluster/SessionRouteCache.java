@@ -0,0 +1,252 @@
+package com.teammors.server.im.cluster;
+
+import com.alibaba.fastjson.JSON;
+import com.teammors.server.im.model.UserSessionInfo;
+import com.teammors.server.im.service.RedisBatcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Node-local cache of where a user is connected: uid -> instanceIds holding a session.
+ *
+ * Replaces the HGETALL session:{uid} + JSON parse per delivered message. Entries expire after
+ * im.route-cache.ttl-ms and the map is capped at im.route-cache.max-entries. Login and logout
+ * invalidate the uid here and, through {@link ClusterManager#publishRouteChange}, on every other
+ * node. An empty route (user offline) is cached too.
+ *
+ * A load that races an invalidation of the same uid is used once but not cached: each
+ * invalidation bumps a striped stamp, and the load only stores its result if the stamp is
+ * unchanged.
+ */
+@Component
+public class SessionRouteCache {
+
+    private static final Logger log = LoggerFactory.getLogger(SessionRouteCache.class);
+
+    private static final String[] NO_ROUTE = new String[0];
+    private static final int STRIPES = 1024;
+
+    private record Route(String[] instanceIds, long loadedAt) {
+    }
+
+    @Autowired
+    private RedisBatcher redisBatcher;
+
+    @Value("${im.route-cache.ttl-ms:5000}")
+    private long ttlMs;
+
+    @Value("${im.route-cache.max-entries:100000}")
+    private int maxEntries;
+
+    private final ConcurrentHashMap<String, Route> routes = new ConcurrentHashMap<>();
+    private final AtomicLongArray stamps = new AtomicLongArray(STRIPES);
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+    private final LongAdder remoteInvalidations = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder racedLoads = new LongAdder();
+    private final LongAdder hitAgeMs = new LongAdder();
+    private final LongAdder invalidationLagMs = new LongAdder();
+    private final AtomicLong maxInvalidationLagMs = new AtomicLong();
+
+    /**
+     * Instances the user has a session on (may include this one); empty if offline.
+     * Loads from session:{uid} on a miss.
+     */
+    public String[] instancesOf(String uid) {
+        long now = System.currentTimeMillis();
+        String[] cached = cached(uid, now);
+        if (cached != null) {
+            return cached;
+        }
+        long stamp = stamps.get(stripe(uid));
+        String[] instanceIds = parse(redisBatcher.hGetAll("session:" + uid).join());
+        store(uid, stamp, instanceIds, now);
+        return instanceIds;
+    }
+
+    /**
+     * {@link #instancesOf(String)} for many users: all misses are loaded together, so they share
+     * pipelined round trips instead of paying one each.
+     */
+    public Map<String, String[]> instancesOf(Collection<String> uids) {
+        long now = System.currentTimeMillis();
+        Map<String, String[]> routesByUid = new HashMap<>(Math.max(4, uids.size() * 2));
+        Map<String, CompletableFuture<Map<String, String>>> loads = new HashMap<>();
+        Map<String, Long> loadStamps = new HashMap<>();
+        for (String uid : uids) {
+            String[] cached = cached(uid, now);
+            if (cached != null) {
+                routesByUid.put(uid, cached);
+            } else if (!loads.containsKey(uid)) {
+                loadStamps.put(uid, stamps.get(stripe(uid)));
+                loads.put(uid, redisBatcher.hGetAll("session:" + uid));
+            }
+        }
+        loads.forEach((uid, load) -> {
+            String[] instanceIds = parse(load.join());
+            store(uid, loadStamps.get(uid), instanceIds, now);
+            routesByUid.put(uid, instanceIds);
+        });
+        return routesByUid;
+    }
+
+    // A live entry's instances, or null on a miss
+    private String[] cached(String uid, long now) {
+        Route route = routes.get(uid);
+        if (route != null) {
+            long age = now - route.loadedAt();
+            if (age < ttlMs) {
+                hits.increment();
+                hitAgeMs.add(age);
+                return route.instanceIds();
+            }
+            expired.increment();
+            routes.remove(uid, route);
+        }
+        misses.increment();
+        return null;
+    }
+
+    // Cache a loaded route unless the uid was invalidated since stamp was read
+    private void store(String uid, long stamp, String[] instanceIds, long now) {
+        if (stamps.get(stripe(uid)) != stamp) {
+            racedLoads.increment();
+            return;
+        }
+        if (routes.size() >= maxEntries) {
+            evict(now);
+        }
+        routes.put(uid, new Route(instanceIds, now));
+    }
+
+    /**
+     * Drop the uid's route after its sessions changed on this node.
+     */
+    public void invalidate(String uid) {
+        stamps.incrementAndGet(stripe(uid));
+        routes.remove(uid);
+        invalidations.increment();
+    }
+
+    /**
+     * Drop the uid's route on a change published by another node.
+     * @param publishedAt publisher's clock when the change was applied, for the staleness metric
+     */
+    public void invalidateRemote(String uid, long publishedAt) {
+        invalidate(uid);
+        remoteInvalidations.increment();
+        long lag = Math.max(0, System.currentTimeMillis() - publishedAt);
+        invalidationLagMs.add(lag);
+        maxInvalidationLagMs.accumulateAndGet(lag, Math::max);
+    }
+
+    /**
+     * Drop every route through an instance that has died.
+     */
+    public void invalidateInstance(String instanceId) {
+        routes.forEach((uid, route) -> {
+            for (String id : route.instanceIds()) {
+                if (id.equals(instanceId)) {
+                    invalidate(uid);
+                    break;
+                }
+            }
+        });
+    }
+
+    private static String[] parse(Map<String, String> sessions) {
+        if (sessions.isEmpty()) {
+            return NO_ROUTE;
+        }
+        Set<String> instanceIds = new LinkedHashSet<>(4);
+        for (String json : sessions.values()) {
+            UserSessionInfo sessionInfo = JSON.parseObject(json, UserSessionInfo.class);
+            if (sessionInfo != null && sessionInfo.getInstanceId() != null) {
+                instanceIds.add(sessionInfo.getInstanceId());
+            }
+        }
+        return instanceIds.toArray(NO_ROUTE);
+    }
+
+    // Over capacity: drop expired entries, then arbitrary ones down to 90%
+    private void evict(long now) {
+        int target = maxEntries - maxEntries / 10;
+        Iterator<Route> it = routes.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().loadedAt() >= ttlMs) {
+                it.remove();
+                evictions.increment();
+            }
+        }
+        it = routes.values().iterator();
+        while (routes.size() > target && it.hasNext()) {
+            it.next();
+            it.remove();
+            evictions.increment();
+        }
+    }
+
+    private static int stripe(String uid) {
+        return uid.hashCode() & (STRIPES - 1);
+    }
+
+    @Scheduled(fixedRate = 10000)
+    public void sweep() {
+        long now = System.currentTimeMillis();
+        routes.values().removeIf(route -> now - route.loadedAt() >= ttlMs);
+    }
+
+    /**
+     * Hits, misses, hit ratio (%), expired and evicted entries, invalidations (all / from other
+     * nodes), loads not cached because of a concurrent invalidation, average age of a hit entry and
+     * average / max delay between a remote change and its invalidation here (ms).
+     */
+    public Map<String, Long> metrics() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        long remote = remoteInvalidations.sum();
+        Map<String, Long> m = new LinkedHashMap<>();
+        m.put("size", (long) routes.size());
+        m.put("hits", h);
+        m.put("misses", misses.sum());
+        m.put("hitRatio", total > 0 ? h * 100 / total : 0);
+        m.put("expired", expired.sum());
+        m.put("evicted", evictions.sum());
+        m.put("invalidations", invalidations.sum());
+        m.put("remoteInvalidations", remote);
+        m.put("racedLoads", racedLoads.sum());
+        m.put("avgHitAgeMs", h > 0 ? hitAgeMs.sum() / h : 0);
+        m.put("avgInvalidationLagMs", remote > 0 ? invalidationLagMs.sum() / remote : 0);
+        m.put("maxInvalidationLagMs", maxInvalidationLagMs.get());
+        return m;
+    }
+
+    @Scheduled(fixedRate = 60000)
+    public void logMetrics() {
+        if (hits.sum() + misses.sum() > 0) {
+            log.info("Session route cache: {}", metrics());
+        }
+        maxInvalidationLagMs.set(0);
+    }
+}
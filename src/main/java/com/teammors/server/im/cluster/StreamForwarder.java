@@ -0,0 +1,314 @@
+package com.teammors.server.im.cluster;
+
+import com.teammors.server.im.service.RedisBatcher;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.stream.ByteRecord;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Coalesces cross-instance forwards into few stream entries.
+ *
+ * Each target stream (instance + shard) has a buffer. A forward appends one line to it: the message
+ * JSON, optionally followed by a tab and the JSON member array of a group envelope (fastjson
+ * escapes control characters, so neither contains a raw tab or newline). The buffer becomes one
+ * XADD when it holds im.cluster.forward.max-messages or max-bytes, or linger-micros after its
+ * first line. Entries above compress-threshold bytes are gzipped.
+ *
+ * Entry fields: "batch" (lines) or "batchz" (gzipped lines). {@link #unpack} also accepts the
+ * single-message "body" / "members" entries of older nodes. With the {@link PeerTransport} enabled a
+ * batch goes straight to a connected peer and only falls back to the stream.
+ *
+ * Nodes predating this class ignore batch entries: while any remain, set
+ * im.cluster.stream.legacy-forward so {@link ClusterManager} writes single-message entries instead.
+ */
+@Component
+public class StreamForwarder {
+
+    private static final Logger log = LoggerFactory.getLogger(StreamForwarder.class);
+
+    static final String FIELD_BATCH = "batch";
+    static final String FIELD_BATCH_GZIP = "batchz";
+    static final String FIELD_BODY = "body";
+    static final String FIELD_MEMBERS = "members";
+
+    /**
+     * One forwarded message: the JSON body and, for a group envelope, the JSON member array (else null).
+     */
+    public record Forward(String body, String members) {
+    }
+
+    @Autowired
+    private RedisBatcher redisBatcher;
+
+    @Autowired
+    private PeerTransport peerTransport;
+
+    @Value("${im.cluster.forward.max-messages:128}")
+    private int maxMessages;
+
+    @Value("${im.cluster.forward.max-bytes:65536}")
+    private int maxBytes;
+
+    @Value("${im.cluster.forward.linger-micros:1000}")
+    private long lingerMicros;
+
+    // 0 = never compress
+    @Value("${im.cluster.forward.compress-threshold:4096}")
+    private int compressThreshold;
+
+    private final ConcurrentHashMap<String, Buffer> buffers = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService lingerTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "im-forward-linger");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder entries = new LongAdder();
+    private final LongAdder compressedEntries = new LongAdder();
+    private final LongAdder rawBytes = new LongAdder();
+    private final LongAdder sentBytes = new LongAdder();
+    private final LongAdder peerEntries = new LongAdder();
+
+    /**
+     * Queue one message for shard {@code shard} of the target instance.
+     * @param streamKey that shard's stream
+     * @param members JSON member array of a group envelope, or null
+     */
+    public void forward(String targetInstanceId, int shard, String streamKey, long maxLen, String body, String members) {
+        Buffer buffer = buffers.computeIfAbsent(streamKey, k -> new Buffer(targetInstanceId, shard, k, maxLen));
+        buffer.append(body, members);
+    }
+
+    /**
+     * Drop the buffers of a dead instance, with whatever they still hold; its streams are being
+     * deleted.
+     */
+    public void forget(String targetInstanceId) {
+        buffers.values().removeIf(buffer -> {
+            if (!buffer.targetInstanceId.equals(targetInstanceId)) return false;
+            buffer.discard();
+            return true;
+        });
+    }
+
+    @PreDestroy
+    public void flushAll() {
+        buffers.values().forEach(Buffer::flush);
+        lingerTimer.shutdown();
+    }
+
+    private final class Buffer {
+        final String targetInstanceId;
+        final int shard;
+        final String streamKey;
+        final long maxLen;
+        final ReentrantLock lock = new ReentrantLock();
+        final ByteArrayOutputStream lines = new ByteArrayOutputStream(1024);
+        int count;
+        long generation;
+
+        Buffer(String targetInstanceId, int shard, String streamKey, long maxLen) {
+            this.targetInstanceId = targetInstanceId;
+            this.shard = shard;
+            this.streamKey = streamKey;
+            this.maxLen = maxLen;
+        }
+
+        void append(String body, String members) {
+            lock.lock();
+            try {
+                if (count > 0) lines.write('\n');
+                lines.writeBytes(body.getBytes(StandardCharsets.UTF_8));
+                if (members != null) {
+                    lines.write('\t');
+                    lines.writeBytes(members.getBytes(StandardCharsets.UTF_8));
+                }
+                count++;
+                if (count >= maxMessages || lines.size() >= maxBytes || lingerMicros <= 0) {
+                    flushLocked();
+                } else if (count == 1) {
+                    long scheduled = generation;
+                    lingerTimer.schedule(() -> flushIfStill(scheduled), lingerMicros, TimeUnit.MICROSECONDS);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Linger expired: flush unless a size-triggered flush already took this batch
+        void flushIfStill(long scheduled) {
+            lock.lock();
+            try {
+                if (generation == scheduled) flushLocked();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void discard() {
+            lock.lock();
+            try {
+                lines.reset();
+                count = 0;
+                generation++;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void flush() {
+            lock.lock();
+            try {
+                flushLocked();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Submitted under the lock: the batcher keeps per-key FIFO, so entries keep their order
+        private void flushLocked() {
+            if (count == 0) return;
+            byte[] raw = lines.toByteArray();
+            int batched = count;
+            lines.reset();
+            count = 0;
+            generation++;
+
+            boolean gzipped = compressThreshold > 0 && raw.length >= compressThreshold;
+            byte[] payload = gzipped ? gzip(raw) : raw;
+            if (gzipped) compressedEntries.increment();
+            messages.add(batched);
+            entries.increment();
+            rawBytes.add(raw.length);
+            sentBytes.add(payload.length);
+
+            Supplier<CompletableFuture<RecordId>> viaStream = () -> {
+                CompletableFuture<RecordId> id = redisBatcher.xAddRaw(streamKey,
+                        Map.of(gzipped ? FIELD_BATCH_GZIP : FIELD_BATCH, payload), maxLen);
+                RedisBatcher.logFailure(id, "forward XADD");
+                return id;
+            };
+            if (peerTransport.send(targetInstanceId, shard, streamKey, payload, gzipped, batched, viaStream)) {
+                peerEntries.increment();
+            }
+        }
+    }
+
+    /**
+     * The messages carried by one stream entry, in order.
+     */
+    public static List<Forward> unpack(ByteRecord record) {
+        byte[] batch = null;
+        boolean gzipped = false;
+        String body = null;
+        String members = null;
+        for (Map.Entry<byte[], byte[]> field : record.getValue().entrySet()) {
+            String name = new String(field.getKey(), StandardCharsets.UTF_8);
+            switch (name) {
+                case FIELD_BATCH -> batch = field.getValue();
+                case FIELD_BATCH_GZIP -> {
+                    batch = field.getValue();
+                    gzipped = true;
+                }
+                case FIELD_BODY -> body = new String(field.getValue(), StandardCharsets.UTF_8);
+                case FIELD_MEMBERS -> members = new String(field.getValue(), StandardCharsets.UTF_8);
+                default -> {
+                }
+            }
+        }
+        if (batch == null) {
+            return body != null ? List.of(new Forward(body, members)) : List.of();
+        }
+        return unpack(batch, gzipped);
+    }
+
+    /**
+     * The messages in one batch (stream entry value or peer frame), in order.
+     */
+    public static List<Forward> unpack(byte[] batch, boolean gzipped) {
+        String text = new String(gzipped ? gunzip(batch) : batch, StandardCharsets.UTF_8);
+        List<Forward> forwards = new ArrayList<>();
+        int start = 0;
+        while (start <= text.length()) {
+            int end = text.indexOf('\n', start);
+            if (end < 0) end = text.length();
+            if (end > start) {
+                int tab = text.indexOf('\t', start);
+                forwards.add(tab >= 0 && tab < end
+                        ? new Forward(text.substring(start, tab), text.substring(tab + 1, end))
+                        : new Forward(text.substring(start, end), null));
+            }
+            start = end + 1;
+        }
+        return forwards;
+    }
+
+    private static byte[] gzip(byte[] raw) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 4 + 64);
+        try (GZIPOutputStream gz = new GZIPOutputStream(out)) {
+            gz.write(raw);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] gunzip(byte[] packed) {
+        try (GZIPInputStream gz = new GZIPInputStream(new ByteArrayInputStream(packed))) {
+            return gz.readAllBytes();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Messages forwarded, entries written (to streams or peers), messages per entry, entries sent to
+     * a peer directly, gzipped entries and bytes before / after compression.
+     */
+    public Map<String, Long> metrics() {
+        long e = entries.sum();
+        Map<String, Long> m = new LinkedHashMap<>();
+        m.put("messages", messages.sum());
+        m.put("entries", e);
+        m.put("messagesPerEntry", e > 0 ? messages.sum() / e : 0);
+        m.put("peerEntries", peerEntries.sum());
+        m.put("compressedEntries", compressedEntries.sum());
+        m.put("rawBytes", rawBytes.sum());
+        m.put("sentBytes", sentBytes.sum());
+        return m;
+    }
+
+    @Scheduled(fixedRate = 60000)
+    public void logMetrics() {
+        if (entries.sum() > 0) {
+            log.info("Stream forwarder: {}", metrics());
+        }
+    }
+}
@@ -1,11 +1,18 @@
 package com.teammors.server.im.entity;
 
+import com.alibaba.fastjson.annotation.JSONField;
 import lombok.Data;
 
+/**
+ * Numeric fields are held as primitives. The JSON wire format is unchanged: eventId, cTimest and
+ * sTimest are strings (omitted when 0), isGroup / isCache are "1" / "0". The *Text accessors below
+ * are the JSON mapping; code should use the typed accessors.
+ */
 @Data
 public class Message {
 
-    private String eventId; // Event ID, refer to the Event ID document
+    @JSONField(serialize = false, deserialize = false)
+    private int eventId; // Event ID, refer to the Event ID document
 
     private String fromUid; // Sender ID
     private String toUid; // Receiver ID
@@ -14,13 +21,100 @@ public class Message {
     private String deviceId = ""; // Unique device ID for the sender token
 
     private String type; // Message type
-    private String cTimest; // Client-side timestamp (when sent)
-    private String sTimest; // Server-side timestamp (when received)
+    @JSONField(serialize = false, deserialize = false)
+    private long cTimest; // Client-side timestamp (when sent), 0 = not set
+    @JSONField(serialize = false, deserialize = false)
+    private long sTimest; // Server-side timestamp (when received), 0 = not set
     private String dataBody; // Message body, can be freely defined, passed as a string format {}
 
-    private String isGroup = "0"; // Whether it is a group message: 1 - group, 0 - personal
+    @JSONField(serialize = false, deserialize = false)
+    private boolean group; // Whether it is a group message (isGroup: 1 - group, 0 - personal)
     private String groupId = ""; // Group ID. For messages sent from the client, this cannot coexist with toUid; only one of them can be present at a time
 
-    private String isCache = "1"; // Whether offline storage is required: 1 - required, 0 - not required
+    @JSONField(serialize = false, deserialize = false)
+    private boolean cache = true; // Whether offline storage is required (isCache: 1 - required, 0 - not required)
 
+    @JSONField(name = "eventId")
+    public String getEventIdText() {
+        return eventId == 0 ? null : String.valueOf(eventId);
+    }
+
+    @JSONField(name = "eventId")
+    public void setEventIdText(String value) {
+        eventId = (int) parseNumber(value);
+    }
+
+    @JSONField(name = "cTimest")
+    public String getCTimestText() {
+        return cTimest == 0 ? null : String.valueOf(cTimest);
+    }
+
+    @JSONField(name = "cTimest")
+    public void setCTimestText(String value) {
+        cTimest = parseNumber(value);
+    }
+
+    @JSONField(name = "sTimest")
+    public String getSTimestText() {
+        return sTimest == 0 ? null : String.valueOf(sTimest);
+    }
+
+    @JSONField(name = "sTimest")
+    public void setSTimestText(String value) {
+        sTimest = parseNumber(value);
+    }
+
+    @JSONField(name = "isGroup")
+    public String getIsGroupText() {
+        return group ? "1" : "0";
+    }
+
+    @JSONField(name = "isGroup")
+    public void setIsGroupText(String value) {
+        group = parseFlag(value);
+    }
+
+    @JSONField(name = "isCache")
+    public String getIsCacheText() {
+        return cache ? "1" : "0";
+    }
+
+    @JSONField(name = "isCache")
+    public void setIsCacheText(String value) {
+        cache = parseFlag(value);
+    }
+
+    /**
+     * Copy addressed to another receiver, for group fan-out.
+     */
+    public Message copyTo(String receiverUid) {
+        Message copy = new Message();
+        copy.eventId = eventId;
+        copy.fromUid = fromUid;
+        copy.toUid = receiverUid;
+        copy.token = token;
+        copy.deviceId = deviceId;
+        copy.type = type;
+        copy.cTimest = cTimest;
+        copy.sTimest = sTimest;
+        copy.dataBody = dataBody;
+        copy.group = group;
+        copy.groupId = groupId;
+        copy.cache = cache;
+        return copy;
+    }
+
+    private static long parseNumber(String value) {
+        if (value == null || value.isEmpty()) return 0;
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            // Clients only ever send digits here; treat anything else as not set
+            return 0;
+        }
+    }
+
+    private static boolean parseFlag(String value) {
+        return "1".equals(value) || "true".equalsIgnoreCase(value);
+    }
 }
@@ -1,14 +1,32 @@
 package com.teammors.server.im.handler;
 
 import com.teammors.server.im.entity.Message;
+import com.teammors.server.im.service.RedisAdmission;
 import io.netty.channel.ChannelHandlerContext;
 
 public interface EventHandler {
+    /**
+     * Get the numeric event code this handler is responsible for, e.g. 1000001.
+     * Codes are dispatched through a dense array, see {@link com.teammors.server.im.service.IMService}.
+     * @return Event code
+     */
+    int getEventCode();
+
     /**
      * Get the event ID this handler is responsible for
-     * @return Event ID
+     * @return Event ID as sent on the wire
+     */
+    default String getEventId() {
+        return String.valueOf(getEventCode());
+    }
+
+    /**
+     * Admission class for the Redis work this handler does, see {@link RedisAdmission}
+     * @return Redis operation class
      */
-    String getEventId();
+    default RedisAdmission.OpClass getRedisClass() {
+        return RedisAdmission.OpClass.DELIVERY;
+    }
 
     /**
      * Handle the message
@@ -3,11 +3,12 @@ package com.teammors.server.im.handler.impl;
 import com.alibaba.fastjson.JSON;
 import com.teammors.server.im.entity.Message;
 import com.teammors.server.im.handler.EventHandler;
+import com.teammors.server.im.service.RedisAdmission;
+import com.teammors.server.im.service.RedisBatcher;
 import io.netty.channel.ChannelHandlerContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
 import java.util.List;
@@ -18,11 +19,16 @@ public class AckHandler implements EventHandler {
     private static final Logger log = LoggerFactory.getLogger(AckHandler.class);
 
     @Autowired
-    private StringRedisTemplate redisTemplate;
+    private RedisBatcher redisBatcher;
 
     @Override
-    public String getEventId() {
-        return "1000002";
+    public int getEventCode() {
+        return 1000002;
+    }
+
+    @Override
+    public RedisAdmission.OpClass getRedisClass() {
+        return RedisAdmission.OpClass.ACK;
     }
 
     @Override
@@ -39,9 +45,8 @@ public class AckHandler implements EventHandler {
             if (ackIds != null && !ackIds.isEmpty()) {
                 String ackKey = "ack:msg:" + fromUid;
                 
-                // Batch delete acked messages from Redis
-                // opsForHash().delete accepts varargs
-                redisTemplate.opsForHash().delete(ackKey, ackIds.toArray());
+                // Batch delete acked messages from Redis (one HDEL, pipelined with other sessions' commands)
+                redisBatcher.hDel(ackKey, ackIds.toArray(new String[0])).join();
                 
                 log.debug("User {} acked messages: {}", fromUid, ackIds);
             }
@@ -1,20 +1,24 @@
 package com.teammors.server.im.handler.impl;
 
 import com.alibaba.fastjson.JSON;
+import com.teammors.server.im.cluster.ClusterManager;
 import com.teammors.server.im.entity.Message;
 import com.teammors.server.im.handler.EventHandler;
 import com.teammors.server.im.model.GroupMember;
 import com.teammors.server.im.service.MessageSender;
+import com.teammors.server.im.service.RedisAdmission;
+import com.teammors.server.im.service.RedisBatcher;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 @Component
 public class CreateGroupHandler implements EventHandler {
@@ -22,16 +26,24 @@ public class CreateGroupHandler implements EventHandler {
     private static final Logger log = LoggerFactory.getLogger(CreateGroupHandler.class);
 
     @Autowired
-    private StringRedisTemplate redisTemplate;
+    private RedisBatcher redisBatcher;
     @Autowired
     MessageSender messageSender;
 
     @Autowired
     private GroupMessageHandler groupMessageHandler;
 
+    @Autowired
+    private ClusterManager clusterManager;
+
+    @Override
+    public int getEventCode() {
+        return 5000001;
+    }
+
     @Override
-    public String getEventId() {
-        return "5000001";
+    public RedisAdmission.OpClass getRedisClass() {
+        return RedisAdmission.OpClass.GROUP;
     }
 
     @Override
@@ -44,7 +56,7 @@ public class CreateGroupHandler implements EventHandler {
             List<GroupMember> members = JSON.parseArray(dataBody, GroupMember.class);
             if (members == null || members.isEmpty()) {
                 log.warn("Create group failed: Empty member list from user {}", fromUid);
-                sendResponse(ctx, msg, "5000001", "Fail: Empty members");
+                sendResponse(ctx, msg, 5000001, "Fail: Empty members");
                 return;
             }
 
@@ -54,41 +66,46 @@ public class CreateGroupHandler implements EventHandler {
             // 3. Store Group Info to Redis
             //String groupKey = groupId;
             
+            // Queue every write first so they share pipelines, then wait for all of them
+            List<CompletableFuture<?>> writes = new ArrayList<>(members.size() * 2);
             for (GroupMember member : members) {
-                redisTemplate.opsForHash().put(groupId, member.getUserId(), member.getIsAdmin());
-                redisTemplate.opsForSet().add("user:groups:" + member.getUserId(), groupId);
+                writes.add(redisBatcher.hSet(groupId, member.getUserId(), member.getIsAdmin()));
+                writes.add(redisBatcher.sAdd("user:groups:" + member.getUserId(), groupId));
             }
+            CompletableFuture.allOf(writes.toArray(new CompletableFuture[0])).join();
+            // New version drops the cached member list on every node
+            clusterManager.publishGroupChange(groupId).join();
 
             log.info("Group created successfully. GroupId: {}, Creator: {}, Members: {}", groupId, fromUid, members.size());
 
             // 4. Respond with Group ID
             String responseBody = JSON.toJSONString(java.util.Map.of("groupId", groupId));
-            sendResponse(ctx, msg, "5000001", responseBody);
+            sendResponse(ctx, msg, 5000001, responseBody);
             
             // 5. Notify all initial members
             Message notifyMsg = new Message();
-            notifyMsg.setEventId("5000004"); // Use Group Message Event ID
+            notifyMsg.setEventId(5000004); // Use Group Message Event ID
             notifyMsg.setFromUid("SYSTEM");
             notifyMsg.setGroupId(groupId);
-            notifyMsg.setIsGroup("1");
+            notifyMsg.setGroup(true);
             notifyMsg.setDataBody(JSON.toJSONString(java.util.Map.of(
                 "type", "GROUP_CREATED",
                 "groupId", groupId,
                 "creator", fromUid,
                 "timestamp", System.currentTimeMillis()
             )));
-            notifyMsg.setSTimest(String.valueOf(System.currentTimeMillis()));
-            notifyMsg.setIsCache("0"); // System notification usually not cached or handle separately
+            notifyMsg.setSTimest(System.currentTimeMillis());
+            notifyMsg.setCache(false); // System notification usually not cached or handle separately
             
             groupMessageHandler.handle(ctx, notifyMsg);
 
         } catch (Exception e) {
             log.error("Error creating group for user {}", fromUid, e);
-            sendResponse(ctx, msg, "5000001", "Fail: System Error");
+            sendResponse(ctx, msg, 5000001, "Fail: System Error");
         }
     }
 
-    private void sendResponse(ChannelHandlerContext ctx, Message originalMsg, String eventId, String body) {
+    private void sendResponse(ChannelHandlerContext ctx, Message originalMsg, int eventId, String body) {
         messageSender.sendResponse(ctx,originalMsg,eventId,body);
     }
 }
@@ -1,18 +1,23 @@
 package com.teammors.server.im.handler.impl;
 
 import com.alibaba.fastjson.JSON;
+import com.teammors.server.im.cluster.ClusterManager;
 import com.teammors.server.im.entity.Message;
 import com.teammors.server.im.handler.EventHandler;
 import com.teammors.server.im.service.MessageSender;
+import com.teammors.server.im.service.RedisAdmission;
+import com.teammors.server.im.service.RedisBatcher;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 @Component
 public class DismissGroupHandler implements EventHandler {
@@ -20,17 +25,25 @@ public class DismissGroupHandler implements EventHandler {
     private static final Logger log = LoggerFactory.getLogger(DismissGroupHandler.class);
 
     @Autowired
-    private StringRedisTemplate redisTemplate;
+    private RedisBatcher redisBatcher;
     
     @Autowired
     private GroupMessageHandler groupMessageHandler;
 
+    @Autowired
+    private ClusterManager clusterManager;
+
     @Autowired
     MessageSender messageSender;
 
     @Override
-    public String getEventId() {
-        return "5000003";
+    public int getEventCode() {
+        return 5000003;
+    }
+
+    @Override
+    public RedisAdmission.OpClass getRedisClass() {
+        return RedisAdmission.OpClass.GROUP;
     }
 
     @Override
@@ -40,34 +53,33 @@ public class DismissGroupHandler implements EventHandler {
         
         if (groupId == null || groupId.isEmpty()) {
             log.warn("Dismiss group failed: Missing groupId from user {}", fromUid);
-            sendResponse(ctx, msg, "5000003", "Fail: Missing GroupId");
+            sendResponse(ctx, msg, 5000003, "Fail: Missing GroupId");
             return;
         }
 
         try {
             // 1. Check permission (Is Admin/Owner?)
             //String groupKey = groupId;
-            Object roleObj = redisTemplate.opsForHash().get(groupId, fromUid);
+            String role = redisBatcher.hGet(groupId, fromUid).join();
             
-            if (roleObj == null) {
-                sendResponse(ctx, msg, "5000003", "Fail: Not a member");
+            if (role == null) {
+                sendResponse(ctx, msg, 5000003, "Fail: Not a member");
                 return;
             }
             
-            String role = (String) roleObj;
             if (!"1".equals(role)) { // "1" means admin/owner
-                sendResponse(ctx, msg, "5000003", "Fail: Permission Denied");
+                sendResponse(ctx, msg, 5000003, "Fail: Permission Denied");
                 return;
             }
 
             // 2. Broadcast dismissal notification to all members
             Message notifyMsg = new Message();
-            notifyMsg.setEventId("5000004"); // Use Group Message Event ID
+            notifyMsg.setEventId(5000004); // Use Group Message Event ID
             notifyMsg.setFromUid(fromUid);
             notifyMsg.setToUid(groupId);
             notifyMsg.setDataBody("Group has been dismissed by admin.");
-            notifyMsg.setSTimest(String.valueOf(System.currentTimeMillis()));
-            notifyMsg.setIsCache("0"); // Notification doesn't need to be cached if group is gone
+            notifyMsg.setSTimest(System.currentTimeMillis());
+            notifyMsg.setCache(false); // Notification doesn't need to be cached if group is gone
             
             // We use GroupMessageHandler to broadcast.
             // Note: Since we are about to delete the group, we must send notification BEFORE deleting.
@@ -100,26 +112,29 @@ public class DismissGroupHandler implements EventHandler {
             // No need, it's synchronous up to the point of fetching keys.
             // However, let's be safer and fetch members here for cleanup anyway.
             
-            Set<Object> memberIds = redisTemplate.opsForHash().keys(groupId);
-            for (Object memberIdObj : memberIds) {
-                String memberId = (String) memberIdObj;
+            Set<String> memberIds = redisBatcher.hKeys(groupId).join();
+            List<CompletableFuture<?>> writes = new ArrayList<>(memberIds.size() + 1);
+            for (String memberId : memberIds) {
                 // Remove from reverse index
-                redisTemplate.opsForSet().remove("user:groups:" + memberId, groupId);
+                writes.add(redisBatcher.sRem("user:groups:" + memberId, groupId));
             }
 
             // Delete Group Key
-            redisTemplate.delete(groupId);
+            writes.add(redisBatcher.del(groupId));
+            CompletableFuture.allOf(writes.toArray(new CompletableFuture[0])).join();
+            // New version drops the cached member list on every node
+            clusterManager.publishGroupChange(groupId).join();
             
             log.info("Group {} dismissed by {}", groupId, fromUid);
-            sendResponse(ctx, msg, "5000003", "Success");
+            sendResponse(ctx, msg, 5000003, "Success");
 
         } catch (Exception e) {
             log.error("Error dismissing group {} for user {}", groupId, fromUid, e);
-            sendResponse(ctx, msg, "5000003", "Fail: System Error");
+            sendResponse(ctx, msg, 5000003, "Fail: System Error");
         }
     }
 
-    private void sendResponse(ChannelHandlerContext ctx, Message originalMsg, String eventId, String body) {
+    private void sendResponse(ChannelHandlerContext ctx, Message originalMsg, int eventId, String body) {
         messageSender.sendResponse(ctx,originalMsg,eventId,body);
     }
 }
@@ -2,21 +2,21 @@ package com.teammors.server.im.handler.impl;
 
 import com.teammors.server.im.entity.Message;
 import com.teammors.server.im.handler.EventHandler;
+import com.teammors.server.im.service.GroupMemberCache;
 import com.teammors.server.im.service.IMService;
-import com.teammors.server.im.service.MessageSender;
+import com.teammors.server.im.service.RedisAdmission;
 import io.netty.channel.ChannelHandlerContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
 import java.util.List;
-import java.util.Set;
-import java.util.concurrent.CompletableFuture;
-import java.util.stream.Collectors;
-import java.util.stream.IntStream;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 @Component
 public class GroupMessageHandler implements EventHandler {
@@ -27,7 +27,7 @@ public class GroupMessageHandler implements EventHandler {
     private static final int BATCH_SIZE = 500;
 
     @Autowired
-    private StringRedisTemplate redisTemplate;
+    private GroupMemberCache groupMemberCache;
 
     @Autowired
     private PrivateMessageHandler privateMessageHandler;
@@ -37,8 +37,13 @@ public class GroupMessageHandler implements EventHandler {
     private IMService imService;
 
     @Override
-    public String getEventId() {
-        return "5000004";
+    public int getEventCode() {
+        return 5000004;
+    }
+
+    @Override
+    public RedisAdmission.OpClass getRedisClass() {
+        return RedisAdmission.OpClass.GROUP;
     }
 
     @Override
@@ -54,16 +59,16 @@ public class GroupMessageHandler implements EventHandler {
         // 1. Get all group members
         // Key: "group:info:{groupId}"
         //String groupKey = groupId;
-        Set<Object> memberIdsSet = redisTemplate.opsForHash().keys(groupId);
+        // Node-local, versioned copy of HKEYS groupId
+        String[] members = groupMemberCache.members(groupId);
         
-        if (memberIdsSet == null || memberIdsSet.isEmpty()) {
+        if (members.length == 0) {
             log.warn("Group message failed: Group {} not found or empty", groupId);
             return;
         }
         
-        List<String> memberIds = memberIdsSet.stream()
-                .map(Object::toString)
-                .collect(Collectors.toList());
+        // Fixed-size view over the shared array; the batches below are views into it as well
+        List<String> memberIds = Arrays.asList(members);
         
         int totalMembers = memberIds.size();
         log.info("Sending group message to {} members in group {}", totalMembers, groupId);
@@ -73,30 +78,38 @@ public class GroupMessageHandler implements EventHandler {
         List<List<String>> batches = partition(memberIds, BATCH_SIZE);
         
         for (List<String> batch : batches) {
-            imService.executeAsync(() -> processBatch(ctx, msg, batch, fromUid));
+            imService.executeAsync(RedisAdmission.OpClass.GROUP, () -> processBatch(ctx, msg, batch, fromUid));
         }
     }
     
+    /**
+     * Deliver one batch through {@link PrivateMessageHandler#deliverBatch}: members on this node
+     * directly, the rest resolved in one pipelined pass and forwarded as one envelope per instance,
+     * so cross-node traffic grows with the node count (times the batch count), not the member count.
+     */
     private void processBatch(ChannelHandlerContext ctx, Message originalMsg, List<String> batch, String fromUid) {
-        for (String memberId : batch) {
-            try {
-                // Create a copy for each recipient to avoid race conditions
-                Message copyMsg = new Message();
-                copyMsg.setEventId("1000001"); // Convert to Private Message Event ID
-                copyMsg.setFromUid(fromUid);
-                copyMsg.setToUid(memberId);
-                copyMsg.setDataBody(originalMsg.getDataBody());
-                copyMsg.setSTimest(String.valueOf(System.currentTimeMillis()));
-                copyMsg.setIsCache(originalMsg.getIsCache());
-                copyMsg.setToken(originalMsg.getToken());
-                copyMsg.setGroupId(originalMsg.getGroupId());
-                copyMsg.setIsGroup(originalMsg.getIsGroup());
-                
-                privateMessageHandler.handle(ctx, copyMsg);
-                
-            } catch (Exception e) {
-                log.error("Failed to send group message to member {}", memberId, e);
+        long start = System.nanoTime();
+        // Template for every recipient; deliverBatch copies it per member to avoid race conditions
+        Message template = new Message();
+        template.setEventId(1000001); // Convert to Private Message Event ID
+        template.setFromUid(fromUid);
+        template.setDataBody(originalMsg.getDataBody());
+        template.setSTimest(System.currentTimeMillis());
+        template.setCache(originalMsg.isCache());
+        template.setToken(originalMsg.getToken());
+        template.setGroupId(originalMsg.getGroupId());
+        template.setGroup(originalMsg.isGroup());
+
+        try {
+            Map<String, PrivateMessageHandler.Delivery> outcomes = privateMessageHandler.deliverBatch(template, batch);
+            if (log.isDebugEnabled()) {
+                Map<PrivateMessageHandler.Delivery, Integer> counts = new EnumMap<>(PrivateMessageHandler.Delivery.class);
+                outcomes.values().forEach(d -> counts.merge(d, 1, Integer::sum));
+                log.debug("Group {} batch of {} delivered in {} ms: {}", originalMsg.getGroupId(), batch.size(),
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), counts);
             }
+        } catch (Exception e) {
+            log.error("Failed to send group message batch of {} members in group {}", batch.size(), originalMsg.getGroupId(), e);
         }
     }
     
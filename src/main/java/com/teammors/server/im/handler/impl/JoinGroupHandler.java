@@ -1,19 +1,23 @@
 package com.teammors.server.im.handler.impl;
 
 import com.alibaba.fastjson.JSON;
+import com.teammors.server.im.cluster.ClusterManager;
 import com.teammors.server.im.entity.Message;
 import com.teammors.server.im.handler.EventHandler;
 import com.teammors.server.im.model.GroupMember;
 import com.teammors.server.im.service.MessageSender;
+import com.teammors.server.im.service.RedisAdmission;
+import com.teammors.server.im.service.RedisBatcher;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 @Component
 public class JoinGroupHandler implements EventHandler {
@@ -21,7 +25,7 @@ public class JoinGroupHandler implements EventHandler {
     private static final Logger log = LoggerFactory.getLogger(JoinGroupHandler.class);
 
     @Autowired
-    private StringRedisTemplate redisTemplate;
+    private RedisBatcher redisBatcher;
 
     @Autowired
     MessageSender messageSender;
@@ -29,9 +33,17 @@ public class JoinGroupHandler implements EventHandler {
     @Autowired
     private GroupMessageHandler groupMessageHandler;
 
+    @Autowired
+    private ClusterManager clusterManager;
+
+    @Override
+    public int getEventCode() {
+        return 5000002;
+    }
+
     @Override
-    public String getEventId() {
-        return "5000002";
+    public RedisAdmission.OpClass getRedisClass() {
+        return RedisAdmission.OpClass.GROUP;
     }
 
     @Override
@@ -42,17 +54,17 @@ public class JoinGroupHandler implements EventHandler {
 
         if (groupId == null || groupId.isEmpty()) {
             log.warn("Join group failed: Missing groupId from user {}", fromUid);
-            sendResponse(ctx, msg, "5000002", "Fail: Missing GroupId");
+            sendResponse(ctx, msg, 5000002, "Fail: Missing GroupId");
             return;
         }
 
         try {
             // 1. Check if group exists
             //String groupKey = groupId;
-            Boolean hasKey = redisTemplate.hasKey(groupId);
+            boolean hasKey = redisBatcher.exists(groupId).join();
             if (!hasKey) {
                 log.warn("Join group failed: Group {} not found", groupId);
-                sendResponse(ctx, msg, "5000002", "Fail: Group Not Found");
+                sendResponse(ctx, msg, 5000002, "Fail: Group Not Found");
                 return;
             }
 
@@ -60,26 +72,30 @@ public class JoinGroupHandler implements EventHandler {
             List<GroupMember> newMembers = JSON.parseArray(dataBody, GroupMember.class);
             if (newMembers == null || newMembers.isEmpty()) {
                 log.warn("Join group failed: Empty member list from user {}", fromUid);
-                sendResponse(ctx, msg, "5000002", "Fail: Empty members");
+                sendResponse(ctx, msg, 5000002, "Fail: Empty members");
                 return;
             }
 
             // 3. Add members to Group
+            List<CompletableFuture<?>> writes = new ArrayList<>(newMembers.size() * 2);
             for (GroupMember member : newMembers) {
-                redisTemplate.opsForHash().put(groupId, member.getUserId(), member.getIsAdmin());
-                redisTemplate.opsForSet().add("user:groups:" + member.getUserId(), groupId);
+                writes.add(redisBatcher.hSet(groupId, member.getUserId(), member.getIsAdmin()));
+                writes.add(redisBatcher.sAdd("user:groups:" + member.getUserId(), groupId));
             }
+            CompletableFuture.allOf(writes.toArray(new CompletableFuture[0])).join();
+            // New version drops the cached member list on every node
+            clusterManager.publishGroupChange(groupId).join();
 
             log.info("Users joined group {} successfully. Count: {}", groupId, newMembers.size());
 
-            sendResponse(ctx, msg, "5000002", "Success");
+            sendResponse(ctx, msg, 5000002, "Success");
             
             // 4. Notify all group members (including new ones)
             Message notifyMsg = new Message();
-            notifyMsg.setEventId("5000004");
+            notifyMsg.setEventId(5000004);
             notifyMsg.setFromUid("SYSTEM");
             notifyMsg.setGroupId(groupId);
-            notifyMsg.setIsGroup("1");
+            notifyMsg.setGroup(true);
             notifyMsg.setDataBody(JSON.toJSONString(java.util.Map.of(
                 "type", "MEMBER_JOINED",
                 "groupId", groupId,
@@ -87,18 +103,18 @@ public class JoinGroupHandler implements EventHandler {
                 "newMembers", newMembers,
                 "timestamp", System.currentTimeMillis()
             )));
-            notifyMsg.setSTimest(String.valueOf(System.currentTimeMillis()));
-            notifyMsg.setIsCache("0");
+            notifyMsg.setSTimest(System.currentTimeMillis());
+            notifyMsg.setCache(false);
             
             groupMessageHandler.handle(ctx, notifyMsg);
 
         } catch (Exception e) {
             log.error("Error joining group {} for user {}", groupId, fromUid, e);
-            sendResponse(ctx, msg, "5000002", "Fail: System Error");
+            sendResponse(ctx, msg, 5000002, "Fail: System Error");
         }
     }
 
-    private void sendResponse(ChannelHandlerContext ctx, Message originalMsg, String eventId, String body) {
+    private void sendResponse(ChannelHandlerContext ctx, Message originalMsg, int eventId, String body) {
         messageSender.sendResponse(ctx,originalMsg,eventId,body);
     }
 }
@@ -1,19 +1,23 @@
 package com.teammors.server.im.handler.impl;
 
 import com.alibaba.fastjson.JSON;
+import com.teammors.server.im.cluster.ClusterManager;
 import com.teammors.server.im.entity.Message;
 import com.teammors.server.im.handler.EventHandler;
 import com.teammors.server.im.model.GroupMember;
 import com.teammors.server.im.service.MessageSender;
+import com.teammors.server.im.service.RedisAdmission;
+import com.teammors.server.im.service.RedisBatcher;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 @Component
 public class LeaveGroupHandler implements EventHandler {
@@ -21,7 +25,7 @@ public class LeaveGroupHandler implements EventHandler {
     private static final Logger log = LoggerFactory.getLogger(LeaveGroupHandler.class);
 
     @Autowired
-    private StringRedisTemplate redisTemplate;
+    private RedisBatcher redisBatcher;
 
     @Autowired
     MessageSender messageSender;
@@ -29,9 +33,17 @@ public class LeaveGroupHandler implements EventHandler {
     @Autowired
     private GroupMessageHandler groupMessageHandler;
 
+    @Autowired
+    private ClusterManager clusterManager;
+
+    @Override
+    public int getEventCode() {
+        return 5000005;
+    }
+
     @Override
-    public String getEventId() {
-        return "5000005";
+    public RedisAdmission.OpClass getRedisClass() {
+        return RedisAdmission.OpClass.GROUP;
     }
 
     @Override
@@ -42,17 +54,17 @@ public class LeaveGroupHandler implements EventHandler {
 
         if (groupId == null || groupId.isEmpty()) {
             log.warn("Leave group failed: Missing groupId from user {}", fromUid);
-            sendResponse(ctx, msg, "5000005", "Fail: Missing GroupId");
+            sendResponse(ctx, msg, 5000005, "Fail: Missing GroupId");
             return;
         }
 
         try {
             // 1. Check if group exists
             //String groupKey = groupId;
-            Boolean hasKey = redisTemplate.hasKey(groupId);
+            boolean hasKey = redisBatcher.exists(groupId).join();
             if (!hasKey) {
                 log.warn("Leave group failed: Group {} not found", groupId);
-                sendResponse(ctx, msg, "5000005", "Fail: Group Not Found");
+                sendResponse(ctx, msg, 5000005, "Fail: Group Not Found");
                 return;
             }
 
@@ -60,7 +72,7 @@ public class LeaveGroupHandler implements EventHandler {
             List<GroupMember> leavingMembers = JSON.parseArray(dataBody, GroupMember.class);
             if (leavingMembers == null || leavingMembers.isEmpty()) {
                 log.warn("Leave group failed: Empty member list from user {}", fromUid);
-                sendResponse(ctx, msg, "5000005", "Fail: Empty members");
+                sendResponse(ctx, msg, 5000005, "Fail: Empty members");
                 return;
             }
 
@@ -68,10 +80,10 @@ public class LeaveGroupHandler implements EventHandler {
             // Note: We already removed the members from Redis, so they won't receive this notification
             // which is correct behavior (they left).
             Message notifyMsg = new Message();
-            notifyMsg.setEventId("5000004");
+            notifyMsg.setEventId(5000004);
             notifyMsg.setFromUid("SYSTEM");
             notifyMsg.setGroupId(groupId);
-            notifyMsg.setIsGroup("1");
+            notifyMsg.setGroup(true);
             notifyMsg.setDataBody(JSON.toJSONString(java.util.Map.of(
                 "type", "MEMBER_LEFT",
                 "groupId", groupId,
@@ -79,28 +91,32 @@ public class LeaveGroupHandler implements EventHandler {
                 "leftMembers", leavingMembers,
                 "timestamp", System.currentTimeMillis()
             )));
-            notifyMsg.setSTimest(String.valueOf(System.currentTimeMillis()));
-            notifyMsg.setIsCache("0");
+            notifyMsg.setSTimest(System.currentTimeMillis());
+            notifyMsg.setCache(false);
             
             groupMessageHandler.handle(ctx, notifyMsg);
 
             // 4. Remove members from Group
+            List<CompletableFuture<?>> writes = new ArrayList<>(leavingMembers.size() * 2);
             for (GroupMember member : leavingMembers) {
-                redisTemplate.opsForHash().delete(groupId, member.getUserId());
-                redisTemplate.opsForSet().remove("user:groups:" + member.getUserId(), groupId);
+                writes.add(redisBatcher.hDel(groupId, member.getUserId()));
+                writes.add(redisBatcher.sRem("user:groups:" + member.getUserId(), groupId));
             }
+            CompletableFuture.allOf(writes.toArray(new CompletableFuture[0])).join();
+            // New version drops the cached member list on every node
+            clusterManager.publishGroupChange(groupId).join();
 
             log.info("Users left group {} successfully. Count: {}", groupId, leavingMembers.size());
 
-            sendResponse(ctx, msg, "5000005", "Success");
+            sendResponse(ctx, msg, 5000005, "Success");
 
         } catch (Exception e) {
             log.error("Error leaving group {} for user {}", groupId, fromUid, e);
-            sendResponse(ctx, msg, "5000005", "Fail: System Error");
+            sendResponse(ctx, msg, 5000005, "Fail: System Error");
         }
     }
 
-    private void sendResponse(ChannelHandlerContext ctx, Message originalMsg, String eventId, String body) {
+    private void sendResponse(ChannelHandlerContext ctx, Message originalMsg, int eventId, String body) {
         messageSender.sendResponse(ctx,originalMsg,eventId,body);
     }
 }
@@ -8,15 +8,17 @@ import com.teammors.server.im.model.UserSessionInfo;
 import com.teammors.server.im.service.ChannelManager;
 import com.teammors.server.im.service.IMService;
 import com.teammors.server.im.service.MessageSender;
+import com.teammors.server.im.service.RedisAdmission;
+import com.teammors.server.im.service.RedisBatcher;
 import io.netty.channel.ChannelHandlerContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 
 @Component
@@ -25,7 +27,7 @@ public class LoginHandler implements EventHandler {
     private static final Logger log = LoggerFactory.getLogger(LoginHandler.class);
 
     @Autowired
-    private StringRedisTemplate redisTemplate;
+    private RedisBatcher redisBatcher;
 
     @Autowired
     private ChannelManager channelManager;
@@ -41,8 +43,13 @@ public class LoginHandler implements EventHandler {
     private IMService imService;
 
     @Override
-    public String getEventId() {
-        return "1000000";
+    public int getEventCode() {
+        return 1000000;
+    }
+
+    @Override
+    public RedisAdmission.OpClass getRedisClass() {
+        return RedisAdmission.OpClass.LOGIN;
     }
 
     @Override
@@ -56,55 +63,63 @@ public class LoginHandler implements EventHandler {
         }
 
         // Validate token: GET "token_list:用户Id"
-        String storedToken = redisTemplate.opsForValue().get("token_list:" + uid);
+        String storedToken = redisBatcher.get("token_list:" + uid).join();
 
         if (token != null && token.equals(storedToken)) {
             channelManager.bind(uid, deviceId, ctx.channel());
-
-            // 1. Store UserSessionInfo to Redis
-            UserSessionInfo sessionInfo = new UserSessionInfo();
-            sessionInfo.setUserId(uid);
-            sessionInfo.setChannelId(ctx.channel().id().asLongText());
-            sessionInfo.setDeviceId(deviceId);
-            sessionInfo.setLoginTime(System.currentTimeMillis());
-            sessionInfo.setInstanceId(clusterManager.getInstanceId());
-            
-            // Key: "session:用户Id" -> HashKey: "设备Id" -> Value: JSON(UserSessionInfo)
-            // This supports multi-device login info
-            redisTemplate.opsForHash().put("session:" + uid, deviceId, JSON.toJSONString(sessionInfo));
-            
-            // 2. Register to ClusterManager (Reverse Index for Dead Instance Cleanup)
-            clusterManager.registerSession(uid, deviceId);
-
-            log.info("User {} logged in successfully on device {}", uid, deviceId);
-
-            sendResponse(ctx, "1000000", "Success");
-            
-            // 2. Async offline & unacked message retrieval and push
-            imService.executeAsync(() -> {
-                pushOfflineMessages(ctx, uid);
-                pushUnackedMessages(ctx, uid);
-            });
+            onAuthenticated(ctx, uid, deviceId);
         } else {
             log.warn("Login failed for user {}. Invalid token.", uid);
-            sendResponse(ctx, "1000000", "Fail");
+            sendResponse(ctx, 1000000, "Fail");
             ctx.close();
         }
     }
+
+    /**
+     * Complete a login whose token has been validated and whose channel is already bound locally.
+     * Shared by the 1000000 login event and handshake-time authentication.
+     */
+    public void onAuthenticated(ChannelHandlerContext ctx, String uid, String deviceId) {
+        // 1. Store UserSessionInfo to Redis
+        UserSessionInfo sessionInfo = new UserSessionInfo();
+        sessionInfo.setUserId(uid);
+        sessionInfo.setChannelId(ctx.channel().id().asLongText());
+        sessionInfo.setDeviceId(deviceId);
+        sessionInfo.setLoginTime(System.currentTimeMillis());
+        sessionInfo.setInstanceId(clusterManager.getInstanceId());
+
+        // Key: "session:用户Id" -> HashKey: "设备Id" -> Value: JSON(UserSessionInfo)
+        // This supports multi-device login info
+        CompletableFuture<Boolean> session = redisBatcher.hSet("session:" + uid, deviceId, JSON.toJSONString(sessionInfo));
+
+        // 2. Register to ClusterManager (Reverse Index for Dead Instance Cleanup)
+        // Both writes go out together; wait for them so the session is visible before "Success"
+        CompletableFuture.allOf(session, clusterManager.registerSession(uid, deviceId)).join();
+        RedisBatcher.logFailure(clusterManager.publishRouteChange(uid), "route change PUBLISH");
+
+        log.info("User {} logged in successfully on device {}", uid, deviceId);
+
+        sendResponse(ctx, 1000000, "Success");
+
+        // 2. Async offline & unacked message retrieval and push
+        imService.executeAsync(RedisAdmission.OpClass.DELIVERY, () -> {
+            pushOfflineMessages(ctx, uid);
+            pushUnackedMessages(ctx, uid);
+        });
+    }
     
     // Push messages that were sent but not ACKed (QoS 1 Re-delivery)
     private void pushUnackedMessages(ChannelHandlerContext ctx, String uid) {
         String ackKey = "ack:msg:" + uid;
         try {
             // Get all unacked messages
-            Map<Object, Object> unackedMsgs = redisTemplate.opsForHash().entries(ackKey);
-            if (unackedMsgs != null && !unackedMsgs.isEmpty()) {
+            Map<String, String> unackedMsgs = redisBatcher.hGetAll(ackKey).join();
+            if (!unackedMsgs.isEmpty()) {
                 log.info("Resending {} unacked messages for user {}", unackedMsgs.size(), uid);
-                for (Object msgJsonObj : unackedMsgs.values()) {
-                    String msgJson = (String) msgJsonObj;
+                for (String msgJson : unackedMsgs.values()) {
                     Message msg = JSON.parseObject(msgJson, Message.class);
                     if (ctx.channel().isActive()) {
-                        messageSender.send(ctx, msg); // Already cached, just send
+                        messageSender.sendCached(ctx, msg); // Already cached, just send
                     } else {
                         return;
                     }
@@ -118,21 +133,22 @@ public class LoginHandler implements EventHandler {
     private void pushOfflineMessages(ChannelHandlerContext ctx, String uid) {
         String key = "offline:msg:" + uid;
         try {
-            Long size = redisTemplate.opsForList().size(key);
-            if (size != null && size > 0) {
+            long size = redisBatcher.lLen(key).join();
+            if (size > 0) {
                 log.info("Start pushing {} offline messages for user {}", size, uid);
                 
                 int batchSize = 200;
                 long count = 0;
                 
                 while (true) {
-                    List<String> messages = redisTemplate.opsForList().range(key, 0, batchSize - 1);
-                    if (messages == null || messages.isEmpty()) {
+                    List<String> messages = redisBatcher.lRange(key, 0, batchSize - 1).join();
+                    if (messages.isEmpty()) {
                         break;
                     }
                     
                     // Trim the list after reading
-                    redisTemplate.opsForList().trim(key, messages.size(), -1);
+                    // Not awaited: per-key order keeps the next LRANGE behind this LTRIM
+                    RedisBatcher.logFailure(redisBatcher.lTrim(key, messages.size(), -1), "offline LTRIM");
                     
                     for (String jsonMsg : messages) {
                         Message msg = JSON.parseObject(jsonMsg, Message.class);
@@ -166,7 +182,7 @@ public class LoginHandler implements EventHandler {
         }
     }
 
-    private void sendResponse(ChannelHandlerContext ctx, String eventId, String body) {
+    private void sendResponse(ChannelHandlerContext ctx, int eventId, String body) {
         messageSender.sendResponse(ctx, eventId, "SYSTEM", null, body);
     }
 }
@@ -3,14 +3,16 @@ package com.teammors.server.im.handler.impl;
 import com.alibaba.fastjson.JSON;
 import com.teammors.server.im.entity.Message;
 import com.teammors.server.im.handler.EventHandler;
+import com.teammors.server.im.service.ChannelManager;
 import com.teammors.server.im.service.IMService;
 import com.teammors.server.im.service.MessageSender;
+import com.teammors.server.im.service.RedisAdmission;
+import com.teammors.server.im.service.RedisBatcher;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
 import java.util.Map;
@@ -22,7 +24,7 @@ public class PingHandler implements EventHandler {
     private static final long RETRY_TIMEOUT_MS = 5000; // 5 seconds
 
     @Autowired
-    private StringRedisTemplate redisTemplate;
+    private RedisBatcher redisBatcher;
     
     @Autowired
     @org.springframework.context.annotation.Lazy
@@ -32,44 +34,70 @@ public class PingHandler implements EventHandler {
     private MessageSender messageSender;
 
     @Override
-    public String getEventId() {
-        return "9000000";
+    public int getEventCode() {
+        return 9000000;
     }
 
+    /**
+     * Slow path, for pings the decoder did not recognise (see HeartbeatHandler for the fast path).
+     */
     @Override
     public void handle(ChannelHandlerContext ctx, Message msg) {
         // 1. Respond PONG
-        messageSender.sendResponse(ctx, "9000000", null, null, "PONG");
+        messageSender.sendResponse(ctx, 9000000, null, null, "PONG");
         
-        // 2. Check unacked messages (Async)
-        String fromUid = msg.getFromUid();
-        if (fromUid != null && !fromUid.isEmpty()) {
-            imService.executeAsync(() -> checkAndResendUnacked(ctx, fromUid));
+        // 2. Check unacked messages
+        onHeartbeat(ctx.channel());
+    }
+
+    /**
+     * Resend timed-out unacked messages, but only while this channel has something in its ACK
+     * cache; the common heartbeat does no Redis access at all.
+     */
+    public void onHeartbeat(Channel channel) {
+        if (!Boolean.TRUE.equals(channel.attr(MessageSender.ATTR_ACK_PENDING).get())) {
+            return;
         }
+        String uid = channel.attr(ChannelManager.ATTR_USER_ID).get();
+        if (uid == null) {
+            return;
+        }
+        imService.executeAsync(RedisAdmission.OpClass.DELIVERY, () -> checkAndResendUnacked(channel, uid));
     }
     
-    private void checkAndResendUnacked(ChannelHandlerContext ctx, String uid) {
+    private void checkAndResendUnacked(Channel channel, String uid) {
         String ackKey = "ack:msg:" + uid;
+        // Cleared only once admitted and right before reading: a rejected check leaves it set, and
+        // a message cached during the check sets it again
+        channel.attr(MessageSender.ATTR_ACK_PENDING).set(Boolean.FALSE);
         try {
             // Get all unacked messages
-            Map<Object, Object> unackedMsgs = redisTemplate.opsForHash().entries(ackKey);
+            Map<String, String> unackedMsgs;
+            try {
+                unackedMsgs = redisBatcher.hGetAll(ackKey).join();
+            } catch (RuntimeException e) {
+                channel.attr(MessageSender.ATTR_ACK_PENDING).set(Boolean.TRUE);
+                throw e;
+            }
             
-            if (unackedMsgs != null && !unackedMsgs.isEmpty()) {
+            if (!unackedMsgs.isEmpty()) {
+                // Still waiting for ACKs: check again on the next heartbeat
+                channel.attr(MessageSender.ATTR_ACK_PENDING).set(Boolean.TRUE);
                 long now = System.currentTimeMillis();
                 
-                for (Map.Entry<Object, Object> entry : unackedMsgs.entrySet()) {
-                    String sTimestStr = (String) entry.getKey();
-                    String msgJson = (String) entry.getValue();
+                for (Map.Entry<String, String> entry : unackedMsgs.entrySet()) {
+                    String sTimestStr = entry.getKey();
+                    String msgJson = entry.getValue();
                     
                     try {
                         long sTimest = Long.parseLong(sTimestStr);
                         
                         // Check if timeout exceeded
                         if (now - sTimest > RETRY_TIMEOUT_MS) {
-                            if (ctx.channel().isActive()) {
+                            if (channel.isActive()) {
                                 Message resendMsg = JSON.parseObject(msgJson, Message.class);
                                 log.debug("Resending timed-out message to user {}, timest: {}", uid, sTimest);
-                                messageSender.send(ctx, resendMsg); // Already cached, just send
+                                messageSender.sendCached(channel, resendMsg); // Already cached, just send
                             } else {
                                 return;
                             }
@@ -2,43 +2,63 @@ package com.teammors.server.im.handler.impl;
 
 import com.alibaba.fastjson.JSON;
 import com.teammors.server.im.cluster.ClusterManager;
+import com.teammors.server.im.cluster.SessionRouteCache;
 import com.teammors.server.im.entity.Message;
 import com.teammors.server.im.handler.EventHandler;
-import com.teammors.server.im.model.UserSessionInfo;
 import com.teammors.server.im.service.ChannelManager;
 import com.teammors.server.im.service.MessageSender;
+import com.teammors.server.im.service.RedisBatcher;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 @Component
 public class PrivateMessageHandler implements EventHandler {
 
     private static final Logger log = LoggerFactory.getLogger(PrivateMessageHandler.class);
 
+    private static final String[] NO_INSTANCES = new String[0];
+
     @Autowired
     private ChannelManager channelManager;
 
     @Autowired
-    private StringRedisTemplate redisTemplate;
+    private RedisBatcher redisBatcher;
 
     @Autowired
     private ClusterManager clusterManager;
+
+    @Autowired
+    private SessionRouteCache sessionRouteCache;
     
     @Autowired
     private MessageSender messageSender;
 
+    /**
+     * Per-receiver result of {@link #deliverBatch}.
+     */
+    public enum Delivery {
+        LOCAL, FORWARDED, LOCAL_AND_FORWARDED,
+        // queued in offline:msg:{uid}
+        OFFLINE,
+        // no active channel and nothing queued (non-cached message, or sessions only on inactive local channels)
+        NOT_DELIVERED,
+        FAILED
+    }
+
     @Override
-    public String getEventId() {
-        return "1000001";
+    public int getEventCode() {
+        return 1000001;
     }
 
     @Override
@@ -46,55 +66,118 @@ public class PrivateMessageHandler implements EventHandler {
         String toUid = msg.getToUid();
         
         // 1. Try to send locally
-        Map<String, Channel> userChannels = channelManager.getUserChannels(toUid);
-        
-        boolean sentLocally = false;
-        if (userChannels != null && !userChannels.isEmpty()) {
-            for (Channel channel : userChannels.values()) {
-                if (channel.isActive()) {
-                    // Send and cache for ACK
-                    messageSender.sendAndCache(channel, msg);
-                    sentLocally = true;
-                }
-            }
-        }
+        boolean sentLocally = deliverLocally(msg);
         
-        // 2. If not sent locally (or to support multi-device on other instances), check Redis session
-        // We always check session to support multi-device across different instances
+        // 2. If not sent locally (or to support multi-device on other instances), check where the user is
+        // We always check to support multi-device across different instances; the route cache
+        // answers most lookups without touching session:{uid}
         try {
-            Map<Object, Object> sessions = redisTemplate.opsForHash().entries("session:" + toUid);
-            if (sessions != null && !sessions.isEmpty()) {
-                Set<String> forwardedInstances = new HashSet<>();
-                
-                for (Object value : sessions.values()) {
-                    String json = (String) value;
-                    UserSessionInfo sessionInfo = JSON.parseObject(json, UserSessionInfo.class);
-                    
+            String[] instanceIds = sessionRouteCache.instancesOf(toUid);
+            if (instanceIds.length > 0) {
+                String self = clusterManager.getInstanceId();
+                // Instance ids are distinct, so each instance gets the message once even with several devices there
+                for (String targetInstanceId : instanceIds) {
                     // If the user is on another instance, forward the message
-                    if (sessionInfo != null && !clusterManager.getInstanceId().equals(sessionInfo.getInstanceId())) {
-                        String targetInstanceId = sessionInfo.getInstanceId();
-                        
-                        // Avoid sending to the same instance multiple times if user has multiple devices there
-                        if (!forwardedInstances.contains(targetInstanceId)) {
-                            log.debug("User {} found on another instance {}, forwarding message", toUid, targetInstanceId);
-                            clusterManager.forwardToInstance(targetInstanceId, msg);
-                            forwardedInstances.add(targetInstanceId);
-                        }
+                    if (!self.equals(targetInstanceId)) {
+                        log.debug("User {} found on another instance {}, forwarding message", toUid, targetInstanceId);
+                        clusterManager.forwardToInstance(targetInstanceId, msg);
                     }
                 }
             } else if (!sentLocally) {
                 // User is offline (no session in Redis and no local channel)
-                handleOffline(msg, toUid);
+                storeOffline(msg);
             }
         } catch (Exception e) {
             log.error("Error checking remote session", e);
-            if (!sentLocally) handleOffline(msg, toUid);
+            if (!sentLocally) storeOffline(msg);
         }
     }
     
-    private void handleOffline(Message msg, String toUid) {
-        if ("1".equals(msg.getIsCache())) {
-            redisTemplate.opsForList().rightPush("offline:msg:" + toUid, JSON.toJSONString(msg));
+    /**
+     * Deliver one message to many receivers (group fan-out), resolving them together.
+     *
+     * Receivers with a channel here get a copy directly (their ACK-cache HSETs are pipelined by the
+     * batcher). The others' routes are resolved in one pipelined pass; each remote instance gets one
+     * envelope for all of its receivers, and receivers without any session get their offline RPUSH
+     * sent as one batch, awaited so failures show up in the outcome.
+     * @param template the message without toUid; copied per receiver
+     * @return outcome per receiver, in the order given
+     */
+    public Map<String, Delivery> deliverBatch(Message template, List<String> uids) {
+        Map<String, Delivery> outcomes = new LinkedHashMap<>(Math.max(4, uids.size() * 2));
+        Map<String, Message> copies = new HashMap<>(Math.max(4, uids.size() * 2));
+        for (String uid : uids) {
+            Message copy = template.copyTo(uid);
+            copies.put(uid, copy);
+            outcomes.put(uid, deliverLocally(copy) ? Delivery.LOCAL : Delivery.NOT_DELIVERED);
+        }
+
+        Map<String, String[]> routes;
+        try {
+            routes = sessionRouteCache.instancesOf(uids);
+        } catch (Exception e) {
+            log.error("Error resolving sessions for {} receivers", uids.size(), e);
+            routes = Map.of();
+        }
+
+        String self = clusterManager.getInstanceId();
+        Map<String, List<String>> remoteUids = new HashMap<>();
+        Map<String, CompletableFuture<Long>> offline = new LinkedHashMap<>();
+        for (String uid : uids) {
+            String[] instanceIds = routes.getOrDefault(uid, NO_INSTANCES);
+            boolean forwarded = false;
+            for (String instanceId : instanceIds) {
+                if (!self.equals(instanceId)) {
+                    remoteUids.computeIfAbsent(instanceId, k -> new ArrayList<>()).add(uid);
+                    forwarded = true;
+                }
+            }
+            Delivery local = outcomes.get(uid);
+            if (forwarded) {
+                outcomes.put(uid, local == Delivery.LOCAL ? Delivery.LOCAL_AND_FORWARDED : Delivery.FORWARDED);
+            } else if (instanceIds.length == 0 && local != Delivery.LOCAL && template.isCache()) {
+                offline.put(uid, redisBatcher.rPush("offline:msg:" + uid, JSON.toJSONString(copies.get(uid))));
+            }
+        }
+
+        remoteUids.forEach((instanceId, members) -> {
+            log.debug("Forwarding message to {} receivers on instance {}", members.size(), instanceId);
+            clusterManager.forwardGroupToInstance(instanceId, template, members);
+        });
+
+        offline.forEach((uid, push) -> {
+            try {
+                push.join();
+                outcomes.put(uid, Delivery.OFFLINE);
+            } catch (Exception e) {
+                log.error("Failed to store offline message for user {}", uid, e);
+                outcomes.put(uid, Delivery.FAILED);
+            }
+        });
+        return outcomes;
+    }
+
+    /**
+     * Send and cache for ACK on every active local channel of msg's receiver.
+     * @return true if at least one channel got it
+     */
+    public boolean deliverLocally(Message msg) {
+        boolean sent = false;
+        for (Channel channel : channelManager.getUserChannels(msg.getToUid())) {
+            if (channel.isActive()) {
+                messageSender.sendAndCache(channel, msg);
+                sent = true;
+            }
+        }
+        return sent;
+    }
+
+    /**
+     * Queue msg for its receiver's next login, if it is a cached message.
+     */
+    public void storeOffline(Message msg) {
+        if (msg.isCache()) {
+            RedisBatcher.logFailure(redisBatcher.rPush("offline:msg:" + msg.getToUid(), JSON.toJSONString(msg)), "offline RPUSH");
         }
     }
 }
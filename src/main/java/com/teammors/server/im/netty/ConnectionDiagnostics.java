@@ -0,0 +1,144 @@
+package com.teammors.server.im.netty;
+
+import com.teammors.server.im.netty.handler.IdleTracker;
+import com.teammors.server.im.service.ChannelManager;
+import com.teammors.server.im.utils.SessionCrypto;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.util.AttributeKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-connection memory accounting for C1000K sizing.
+ *
+ * Reports what each connection retains besides the socket itself: pipeline handler contexts,
+ * channel attributes, its ChannelManager entries and pending outbound bytes. Object sizes are
+ * estimates for a 64-bit JVM with compressed oops; they track changes in the footprint rather
+ * than replace a heap dump. The average is checked against netty.diagnostics.footprint-budget-bytes.
+ */
+@Component
+public class ConnectionDiagnostics {
+
+    private static final Logger log = LoggerFactory.getLogger(ConnectionDiagnostics.class);
+
+    // Every attribute the server sets on a channel
+    private static final List<String> ATTRIBUTE_NAMES = List.of("userId", "deviceId", "sessionCrypto",
+            "wireProtocol", "handshakeAuth", "idleEntry", "parkedMessages", "slowConsumer", "ackPending", "pong", "mailbox");
+
+    // Context object, its name and the handler when it is per-channel
+    private static final int HANDLER_BYTES = 120;
+    // DefaultAttribute plus its slot in the attribute array
+    private static final int ATTRIBUTE_BYTES = 28;
+    // Map node and uid key; single-device users store the Channel itself as the value
+    private static final int REGISTRY_USER_BYTES = 80;
+    // Slot in the Channel[] of a multi-device user (charged to every channel)
+    private static final int REGISTRY_DEVICE_BYTES = 8;
+
+    @Autowired
+    private ChannelManager channelManager;
+
+    @Autowired
+    private IdleTracker idleTracker;
+
+    // 0 = no budget check
+    @Value("${netty.diagnostics.footprint-budget-bytes:0}")
+    private long footprintBudgetBytes;
+
+    /**
+     * Estimated retained bytes of one channel, by component.
+     */
+    public Map<String, Long> footprint(Channel channel) {
+        long handlers = channel.pipeline().names().size() - 1; // minus the tail context
+        long attributes = 0;
+        long attributeBytes = 0;
+        for (String name : ATTRIBUTE_NAMES) {
+            AttributeKey<Object> key = AttributeKey.valueOf(name);
+            if (channel.hasAttr(key)) {
+                attributes++;
+                attributeBytes += ATTRIBUTE_BYTES + valueSize(channel.attr(key).get());
+            }
+        }
+        ChannelOutboundBuffer outbound = channel.unsafe().outboundBuffer();
+
+        Map<String, Long> m = new LinkedHashMap<>();
+        m.put("handlers", handlers);
+        m.put("pipelineBytes", handlers * HANDLER_BYTES);
+        m.put("attributes", attributes);
+        m.put("attributeBytes", attributeBytes);
+        m.put("registryBytes", channel.hasAttr(ChannelManager.ATTR_USER_ID)
+                ? REGISTRY_DEVICE_BYTES : 0L);
+        m.put("pendingOutboundBytes", outbound != null ? outbound.totalPendingWriteBytes() : 0L);
+        return m;
+    }
+
+    /**
+     * Totals and per-connection averages over all bound channels.
+     */
+    public Map<String, Long> metrics() {
+        Map<String, Long> totals = new LinkedHashMap<>();
+        long[] maxPending = new long[1];
+        int[] bound = new int[1];
+        channelManager.forEachChannel(channel -> {
+            Map<String, Long> f = footprint(channel);
+            f.forEach((k, v) -> totals.merge(k, v, Long::sum));
+            maxPending[0] = Math.max(maxPending[0], f.get("pendingOutboundBytes"));
+            bound[0]++;
+        });
+        long channels = Math.max(1, bound[0]);
+        long registryBytes = totals.getOrDefault("registryBytes", 0L)
+                + (long) channelManager.userCount() * REGISTRY_USER_BYTES;
+        long pipelineBytes = totals.getOrDefault("pipelineBytes", 0L);
+        long attributeBytes = totals.getOrDefault("attributeBytes", 0L);
+
+        Map<String, Long> m = new LinkedHashMap<>();
+        m.put("connections", (long) idleTracker.trackedChannels());
+        m.put("boundChannels", (long) bound[0]);
+        m.put("users", (long) channelManager.userCount());
+        m.put("handlersPerConnection", totals.getOrDefault("handlers", 0L) / channels);
+        m.put("pipelineBytesPerConnection", pipelineBytes / channels);
+        m.put("attributesPerConnection", totals.getOrDefault("attributes", 0L) / channels);
+        m.put("attributeBytesPerConnection", attributeBytes / channels);
+        m.put("registryBytesPerConnection", registryBytes / channels);
+        m.put("pendingOutboundBytes", totals.getOrDefault("pendingOutboundBytes", 0L));
+        m.put("maxPendingOutboundBytes", maxPending[0]);
+        m.put("bytesPerConnection", (pipelineBytes + attributeBytes + registryBytes) / channels);
+        return m;
+    }
+
+    @Scheduled(fixedRate = 60000)
+    public void logMetrics() {
+        if (channelManager.userCount() == 0) {
+            return;
+        }
+        Map<String, Long> m = metrics();
+        log.info("Connection footprint: {}", m);
+        if (footprintBudgetBytes > 0 && m.get("bytesPerConnection") > footprintBudgetBytes) {
+            log.warn("Connection footprint {} bytes exceeds budget of {} bytes",
+                    m.get("bytesPerConnection"), footprintBudgetBytes);
+        }
+    }
+
+    private static long valueSize(Object value) {
+        if (value instanceof String s) {
+            return 40 + s.length();
+        }
+        if (value instanceof SessionCrypto crypto) {
+            return crypto.estimatedSize();
+        }
+        if (value instanceof ByteBuf buf) {
+            return 48 + buf.capacity();
+        }
+        // Booleans and enums are shared constants; anything else is a small holder object
+        return value == null || value instanceof Boolean || value instanceof Enum<?> ? 0 : 16;
+    }
+}
@@ -0,0 +1,90 @@
+package com.teammors.server.im.netty;
+
+import io.netty.channel.IoHandlerFactory;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollIoHandler;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioIoHandler;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.channel.uring.IoUring;
+import io.netty.channel.uring.IoUringIoHandler;
+import io.netty.channel.uring.IoUringServerSocketChannel;
+import io.netty.channel.uring.IoUringSocketChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Transport modes supported by the WebSocket server.
+ * Native transports (epoll / io_uring) are only used when the native library is loadable,
+ * otherwise we fall back to NIO.
+ */
+public enum NettyTransport {
+
+    NIO,
+    EPOLL,
+    IO_URING;
+
+    private static final Logger log = LoggerFactory.getLogger(NettyTransport.class);
+
+    public IoHandlerFactory ioHandlerFactory() {
+        return switch (this) {
+            case EPOLL -> EpollIoHandler.newFactory();
+            case IO_URING -> IoUringIoHandler.newFactory();
+            default -> NioIoHandler.newFactory();
+        };
+    }
+
+    public Class<? extends ServerChannel> serverChannelClass() {
+        return switch (this) {
+            case EPOLL -> EpollServerSocketChannel.class;
+            case IO_URING -> IoUringServerSocketChannel.class;
+            default -> NioServerSocketChannel.class;
+        };
+    }
+
+    /**
+     * Client socket channel, for outbound connections (cluster peers).
+     */
+    public Class<? extends SocketChannel> socketChannelClass() {
+        return switch (this) {
+            case EPOLL -> EpollSocketChannel.class;
+            case IO_URING -> IoUringSocketChannel.class;
+            default -> NioSocketChannel.class;
+        };
+    }
+
+    public boolean isNative() {
+        return this != NIO;
+    }
+
+    /**
+     * Resolve the configured transport name (auto | io_uring | epoll | nio).
+     * "auto" prefers io_uring, then epoll, then NIO.
+     * @param configured value of netty.transport
+     * @return the transport that is actually usable on this host
+     */
+    public static NettyTransport resolve(String configured) {
+        String mode = configured == null ? "auto" : configured.trim().toLowerCase();
+        switch (mode) {
+            case "io_uring":
+            case "iouring":
+                if (IoUring.isAvailable()) return IO_URING;
+                log.warn("io_uring transport requested but not available, falling back: {}", String.valueOf(IoUring.unavailabilityCause()));
+                return Epoll.isAvailable() ? EPOLL : NIO;
+            case "epoll":
+                if (Epoll.isAvailable()) return EPOLL;
+                log.warn("epoll transport requested but not available, falling back to NIO: {}", String.valueOf(Epoll.unavailabilityCause()));
+                return NIO;
+            case "nio":
+                return NIO;
+            default:
+                if (IoUring.isAvailable()) return IO_URING;
+                if (Epoll.isAvailable()) return EPOLL;
+                return NIO;
+        }
+    }
+}
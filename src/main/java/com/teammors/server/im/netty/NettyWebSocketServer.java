@@ -1,10 +1,12 @@
 package com.teammors.server.im.netty;
 
 import io.netty.bootstrap.ServerBootstrap;
-import io.netty.channel.ChannelFuture;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.MultiThreadIoEventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.unix.UnixChannelOption;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -14,6 +16,9 @@ import org.springframework.stereotype.Component;
 import jakarta.annotation.PostConstruct;
 import jakarta.annotation.PreDestroy;
 
+import java.util.ArrayList;
+import java.util.List;
+
 @Component
 public class NettyWebSocketServer {
 
@@ -22,27 +27,77 @@ public class NettyWebSocketServer {
     @Value("${netty.port:8088}")
     private int port;
 
+    // auto | io_uring | epoll | nio
+    @Value("${netty.transport:auto}")
+    private String transportMode;
+
+    // 0 = one acceptor, or one per core when SO_REUSEPORT is enabled on a native transport
+    @Value("${netty.boss-threads:0}")
+    private int bossThreads;
+
+    // 0 = Netty default (2 * cores)
+    @Value("${netty.worker-threads:0}")
+    private int workerThreads;
+
+    @Value("${netty.so-backlog:1024}")
+    private int soBacklog;
+
+    @Value("${netty.tcp-nodelay:true}")
+    private boolean tcpNoDelay;
+
+    @Value("${netty.so-reuseport:false}")
+    private boolean soReusePort;
+
+    // Per-channel outbound buffer watermarks; above high the channel is unwritable (slow consumer)
+    @Value("${netty.write-buffer.low-watermark:32768}")
+    private int writeBufferLowWatermark;
+
+    @Value("${netty.write-buffer.high-watermark:65536}")
+    private int writeBufferHighWatermark;
+
     @Autowired
     private WebSocketChannelInitializer webSocketChannelInitializer;
 
     private EventLoopGroup bossGroup;
     private EventLoopGroup workerGroup;
-    private ChannelFuture channelFuture;
+    private final List<Channel> serverChannels = new ArrayList<>();
 
     @PostConstruct
     public void start() {
         new Thread(() -> {
-            bossGroup = new NioEventLoopGroup(1);
-            workerGroup = new NioEventLoopGroup();
+            NettyTransport transport = NettyTransport.resolve(transportMode);
+            // SO_REUSEPORT lets the kernel balance accepts across several listening sockets (native only)
+            boolean reusePort = soReusePort && transport.isNative();
+            int acceptors = bossThreads > 0 ? bossThreads : (reusePort ? Runtime.getRuntime().availableProcessors() : 1);
+            int binds = reusePort ? acceptors : 1;
+
+            bossGroup = new MultiThreadIoEventLoopGroup(acceptors, transport.ioHandlerFactory());
+            workerGroup = new MultiThreadIoEventLoopGroup(workerThreads, transport.ioHandlerFactory());
             try {
                 ServerBootstrap b = new ServerBootstrap();
                 b.group(bossGroup, workerGroup)
-                        .channel(NioServerSocketChannel.class)
+                        .channel(transport.serverChannelClass())
+                        .option(ChannelOption.SO_BACKLOG, soBacklog)
+                        .childOption(ChannelOption.TCP_NODELAY, tcpNoDelay)
+                        .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK,
+                                new WriteBufferWaterMark(writeBufferLowWatermark, writeBufferHighWatermark))
                         .childHandler(webSocketChannelInitializer);
 
-                channelFuture = b.bind(port).sync();
-                log.info("Netty WebSocket server started on port: {}", port);
-                channelFuture.channel().closeFuture().sync();
+                // epoll is edge-triggered by default in Netty 4.2
+                if (reusePort) {
+                    b.option(UnixChannelOption.SO_REUSEPORT, true);
+                }
+
+                // Each bind registers its listening socket on the next boss event loop
+                for (int i = 0; i < binds; i++) {
+                    serverChannels.add(b.bind(port).sync().channel());
+                }
+                log.info("Netty WebSocket server started on port: {}, transport: {}, acceptors: {}, reusePort: {}",
+                        port, transport, binds, reusePort);
+
+                for (Channel serverChannel : serverChannels) {
+                    serverChannel.closeFuture().sync();
+                }
             } catch (InterruptedException e) {
                 log.error("Netty server interrupted", e);
                 Thread.currentThread().interrupt();
@@ -1,42 +1,74 @@
 package com.teammors.server.im.netty;
 
+import com.teammors.server.im.netty.codec.InboundMessageDecoder;
+import com.teammors.server.im.netty.codec.OutboundMessageEncoder;
+import com.teammors.server.im.netty.codec.WireProtocol;
+import com.teammors.server.im.netty.handler.HandshakeAuthHandler;
 import com.teammors.server.im.netty.handler.HeartbeatHandler;
+import com.teammors.server.im.netty.handler.IdleTracker;
 import com.teammors.server.im.netty.handler.WebSocketHandler;
+import com.teammors.server.im.netty.handler.WriteCoalescingHandler;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpServerCodec;
 import io.netty.handler.codec.http.websocketx.WebSocketServerProtocolHandler;
-import io.netty.handler.stream.ChunkedWriteHandler;
-import io.netty.handler.timeout.IdleStateHandler;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
-import java.util.concurrent.TimeUnit;
-
 @Component
 public class WebSocketChannelInitializer extends ChannelInitializer<SocketChannel> {
 
     @Autowired
     private WebSocketHandler webSocketHandler;
     
+    @Autowired
+    private IdleTracker idleTracker;
+
     @Autowired
     private HeartbeatHandler heartbeatHandler;
 
+    @Autowired
+    private HandshakeAuthHandler handshakeAuthHandler;
+
+    @Autowired
+    private InboundMessageDecoder inboundMessageDecoder;
+
+    // Flush once per event-loop tick, or earlier when this many messages / bytes are pending
+    @Value("${netty.outbound.flush-max-messages:64}")
+    private int flushMaxMessages;
+
+    @Value("${netty.outbound.flush-max-bytes:65536}")
+    private int flushMaxBytes;
+
+    // Pack pending messages into one envelope frame for clients on a ".batch" subprotocol
+    @Value("${netty.outbound.envelope:true}")
+    private boolean envelopeEnabled;
+
     @Override
     protected void initChannel(SocketChannel ch) throws Exception {
         ChannelPipeline pipeline = ch.pipeline();
 
+        // HTTP is only needed for the upgrade; WebSocketHandler slims the pipeline once it completes.
+        // Nothing writes ChunkedInput, so there is no ChunkedWriteHandler.
         pipeline.addLast(new HttpServerCodec());
-        pipeline.addLast(new ChunkedWriteHandler());
         pipeline.addLast(new HttpObjectAggregator(8192));
         
-        // Add IdleStateHandler: 60 seconds reader idle time
-        pipeline.addLast(new IdleStateHandler(60, 0, 0, TimeUnit.SECONDS));
-        pipeline.addLast(heartbeatHandler);
+        // Reader idle detection on a shared per-event-loop wheel (netty.idle.reader-timeout-seconds)
+        pipeline.addLast(idleTracker);
         
-        pipeline.addLast(new WebSocketServerProtocolHandler("/"));
+        // Optional uid/deviceId/token on the upgrade request, removes itself after the handshake
+        pipeline.addLast(handshakeAuthHandler);
+
+        // Clients pick the JSON or binary protocol through Sec-WebSocket-Protocol
+        pipeline.addLast(new WebSocketServerProtocolHandler("/", WireProtocol.SUBPROTOCOLS));
+        pipeline.addLast(OutboundMessageEncoder.INSTANCE);
+        pipeline.addLast(new WriteCoalescingHandler(flushMaxMessages, flushMaxBytes, envelopeEnabled));
+        pipeline.addLast(inboundMessageDecoder);
+        // Answers 9000000 heartbeats on the event loop; everything else goes on to WebSocketHandler
+        pipeline.addLast(heartbeatHandler);
         pipeline.addLast(webSocketHandler);
     }
 }
@@ -0,0 +1,158 @@
+package com.teammors.server.im.netty.codec;
+
+import com.teammors.server.im.entity.Message;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.handler.codec.CorruptedFrameException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Compact binary encoding of {@link Message} used by the "xmsg-bin" subprotocol.
+ *
+ * Layout (all integers are unsigned LEB128 varints):
+ * <pre>
+ * version(1 byte) eventId flags(1 byte) sTimest cTimest
+ * fromUid toUid token deviceId type groupId   -- strings: len+1 then UTF-8 bytes, 0 = null
+ * dataBody                                    -- len+1 then raw bytes, 0 = null
+ * </pre>
+ * flags: bit0 isGroup, bit1 isCache. Timestamps of 0 mean "not set".
+ *
+ * Envelope (batch clients only): version 2, varint count, then count x (int32 length + message).
+ */
+public final class BinaryMessageCodec {
+
+    public static final byte VERSION = 1;
+    public static final byte VERSION_BATCH = 2;
+
+    private static final int FLAG_GROUP = 1;
+    private static final int FLAG_CACHE = 1 << 1;
+
+    // Guard against hostile length prefixes
+    private static final int MAX_FIELD_LENGTH = 1 << 20;
+
+    private BinaryMessageCodec() {
+    }
+
+    public static void encode(Message msg, ByteBuf out) {
+        out.writeByte(VERSION);
+        writeVarLong(out, msg.getEventId());
+
+        int flags = 0;
+        if (msg.isGroup()) flags |= FLAG_GROUP;
+        if (msg.isCache()) flags |= FLAG_CACHE;
+        out.writeByte(flags);
+
+        writeVarLong(out, msg.getSTimest());
+        writeVarLong(out, msg.getCTimest());
+
+        writeString(out, msg.getFromUid());
+        writeString(out, msg.getToUid());
+        writeString(out, msg.getToken());
+        writeString(out, msg.getDeviceId());
+        writeString(out, msg.getType());
+        writeString(out, msg.getGroupId());
+        writeString(out, msg.getDataBody());
+    }
+
+    public static void encodeBatch(List<Message> messages, ByteBuf out) {
+        out.writeByte(VERSION_BATCH);
+        writeVarLong(out, messages.size());
+        for (Message msg : messages) {
+            int lengthIndex = out.writerIndex();
+            out.writeInt(0);
+            encode(msg, out);
+            out.setInt(lengthIndex, out.writerIndex() - lengthIndex - 4);
+        }
+    }
+
+    public static Message decode(ByteBuf in) {
+        byte version = in.readByte();
+        if (version != VERSION) {
+            throw new CorruptedFrameException("Unsupported binary message version: " + version);
+        }
+
+        Message msg = new Message();
+        msg.setEventId((int) readVarLong(in));
+
+        int flags = in.readUnsignedByte();
+        msg.setGroup((flags & FLAG_GROUP) != 0);
+        msg.setCache((flags & FLAG_CACHE) != 0);
+
+        msg.setSTimest(readVarLong(in));
+        msg.setCTimest(readVarLong(in));
+
+        msg.setFromUid(readString(in));
+        msg.setToUid(readString(in));
+        msg.setToken(readString(in));
+        String deviceId = readString(in);
+        msg.setDeviceId(deviceId != null ? deviceId : "");
+        msg.setType(readString(in));
+        String groupId = readString(in);
+        msg.setGroupId(groupId != null ? groupId : "");
+        msg.setDataBody(readString(in));
+        return msg;
+    }
+
+    /**
+     * Event id of an encoded message without decoding it or moving the reader index; 0 if unknown.
+     */
+    public static long peekEventId(ByteBuf in) {
+        int start = in.readerIndex();
+        if (in.readableBytes() < 2 || in.getByte(start) != VERSION) {
+            return 0;
+        }
+        long value = 0;
+        for (int i = 0, shift = 0; i < 5 && start + 1 + i < in.writerIndex(); i++, shift += 7) {
+            byte b = in.getByte(start + 1 + i);
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        return 0;
+    }
+
+    private static void writeString(ByteBuf out, String value) {
+        if (value == null) {
+            out.writeByte(0);
+            return;
+        }
+        int len = ByteBufUtil.utf8Bytes(value);
+        writeVarLong(out, len + 1L);
+        ByteBufUtil.reserveAndWriteUtf8(out, value, len);
+    }
+
+    private static String readString(ByteBuf in) {
+        long lenPlusOne = readVarLong(in);
+        if (lenPlusOne == 0) return null;
+        long len = lenPlusOne - 1;
+        if (len > MAX_FIELD_LENGTH || len > in.readableBytes()) {
+            throw new CorruptedFrameException("Invalid field length: " + len);
+        }
+        String value = in.toString(in.readerIndex(), (int) len, StandardCharsets.UTF_8);
+        in.skipBytes((int) len);
+        return value;
+    }
+
+    static void writeVarLong(ByteBuf out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    static long readVarLong(ByteBuf in) {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.readByte();
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new CorruptedFrameException("Malformed varint");
+    }
+}
@@ -0,0 +1,195 @@
+package com.teammors.server.im.netty.codec;
+
+import com.alibaba.fastjson.JSON;
+import com.teammors.server.im.entity.Message;
+import com.teammors.server.im.service.ChannelManager;
+import com.teammors.server.im.service.MessageSender;
+import com.teammors.server.im.utils.SessionCrypto;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToMessageDecoder;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Single inbound decode stage: turns text (JSON) and binary frames into {@link Message}.
+ * Encryption is decided from session state instead of trial-parsing the payload,
+ * and every frame is parsed exactly once.
+ *
+ * Heartbeats (9000000) are recognised from the plaintext bytes, by the top-level eventId only,
+ * and emitted as {@link InboundPing#INSTANCE} without being parsed.
+ */
+@Component
+@ChannelHandler.Sharable
+public class InboundMessageDecoder extends MessageToMessageDecoder<WebSocketFrame> {
+
+    private static final Logger log = LoggerFactory.getLogger(InboundMessageDecoder.class);
+
+    // Structured error pushed back to the client when a frame cannot be decoded
+    public static final int EVENT_DECODE_ERROR = 9000001;
+
+    // Matched only as a key of the top-level object, see isPing
+    private static final byte[] EVENT_ID_KEY = "\"eventId\":".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PING_VALUE = String.valueOf(InboundPing.EVENT_ID).getBytes(StandardCharsets.US_ASCII);
+
+    @Autowired
+    private MessageSender messageSender;
+
+    @Override
+    public boolean acceptInboundMessage(Object msg) {
+        return msg instanceof TextWebSocketFrame || msg instanceof BinaryWebSocketFrame;
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, WebSocketFrame frame, List<Object> out) throws Exception {
+        String uid = ctx.channel().attr(ChannelManager.ATTR_USER_ID).get();
+        SessionCrypto crypto = ctx.channel().attr(SessionCrypto.ATTR_CRYPTO).get();
+        ByteBuf content = frame.content();
+        try {
+            Object msg = frame instanceof BinaryWebSocketFrame
+                    ? decodeBinary(ctx, crypto, content)
+                    : decodeText(ctx, crypto, content);
+            if (msg == null) {
+                throw new IllegalArgumentException("Empty message");
+            }
+            out.add(msg);
+        } catch (Exception e) {
+            log.warn("Failed to decode frame from channel {}: {}", ctx.channel().id(), e.toString());
+            messageSender.sendResponse(ctx, EVENT_DECODE_ERROR, "SYSTEM", uid,
+                    JSON.toJSONString(Map.of("code", "BAD_FRAME", "reason", String.valueOf(e.getMessage()))));
+        }
+    }
+
+    private Object decodeText(ChannelHandlerContext ctx, SessionCrypto crypto, ByteBuf content) {
+        // Once the session is bound the client sends Base64 ciphertext, which never starts with '{'
+        if (crypto != null && firstNonWhitespace(content) != '{') {
+            ByteBuf plain = crypto.decrypt(Unpooled.wrappedBuffer(decodeBase64(content)), ctx.alloc());
+            try {
+                return parseJson(plain);
+            } finally {
+                plain.release();
+            }
+        }
+        return parseJson(content);
+    }
+
+    // The JDK decoder is several times faster than Netty's Base64; MIME only for text with line breaks
+    private static ByteBuffer decodeBase64(ByteBuf text) {
+        try {
+            return Base64.getDecoder().decode(text.nioBuffer());
+        } catch (IllegalArgumentException e) {
+            return Base64.getMimeDecoder().decode(text.nioBuffer());
+        }
+    }
+
+    private static Object parseJson(ByteBuf json) {
+        if (isPing(json)) {
+            return InboundPing.INSTANCE;
+        }
+        return JSON.parseObject(json.toString(StandardCharsets.UTF_8), Message.class);
+    }
+
+    /**
+     * True if the top-level object has "eventId":"9000000" or "eventId":9000000. Keys of nested
+     * objects and text inside string values never match. Stops at the first top-level eventId;
+     * anything unusual (whitespace around the colon, escapes in the key) just takes the full parse.
+     */
+    static boolean isPing(ByteBuf json) {
+        int depth = 0;
+        boolean inString = false;
+        for (int i = json.readerIndex(), end = json.writerIndex(); i < end; i++) {
+            byte b = json.getByte(i);
+            if (inString) {
+                if (b == '\\') {
+                    i++;
+                } else if (b == '"') {
+                    inString = false;
+                }
+                continue;
+            }
+            if (b == '{' || b == '[') {
+                depth++;
+            } else if (b == '}' || b == ']') {
+                depth--;
+            } else if (b == '"') {
+                if (depth == 1 && regionMatches(json, i, EVENT_ID_KEY)) {
+                    return isPingValue(json, i + EVENT_ID_KEY.length);
+                }
+                inString = true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isPingValue(ByteBuf json, int index) {
+        boolean quoted = index < json.writerIndex() && json.getByte(index) == '"';
+        int start = quoted ? index + 1 : index;
+        if (!regionMatches(json, start, PING_VALUE)) {
+            return false;
+        }
+        int after = start + PING_VALUE.length;
+        if (quoted) {
+            return after < json.writerIndex() && json.getByte(after) == '"';
+        }
+        // 9000000 but not 90000001 or 9000000.5
+        return after >= json.writerIndex() || !isNumberPart(json.getByte(after));
+    }
+
+    private static boolean regionMatches(ByteBuf buf, int index, byte[] expected) {
+        if (index + expected.length > buf.writerIndex()) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if (buf.getByte(index + i) != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isNumberPart(byte b) {
+        return (b >= '0' && b <= '9') || b == '.' || b == 'e' || b == 'E';
+    }
+
+    private Object decodeBinary(ChannelHandlerContext ctx, SessionCrypto crypto, ByteBuf content) {
+        if (crypto != null) {
+            ByteBuf plain = crypto.decrypt(content, ctx.alloc());
+            try {
+                return parseBinary(plain);
+            } finally {
+                plain.release();
+            }
+        }
+        return parseBinary(content);
+    }
+
+    private static Object parseBinary(ByteBuf buf) {
+        if (BinaryMessageCodec.peekEventId(buf) == InboundPing.EVENT_ID) {
+            return InboundPing.INSTANCE;
+        }
+        return BinaryMessageCodec.decode(buf);
+    }
+
+    private static int firstNonWhitespace(ByteBuf content) {
+        for (int i = content.readerIndex(); i < content.writerIndex(); i++) {
+            byte b = content.getByte(i);
+            if (!Character.isWhitespace(b)) {
+                return b;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,15 @@
+package com.teammors.server.im.netty.codec;
+
+/**
+ * Emitted by {@link InboundMessageDecoder} instead of a {@link com.teammors.server.im.entity.Message}
+ * for a 9000000 heartbeat, so it can be answered on the event loop without parsing or dispatch.
+ */
+public final class InboundPing {
+
+    public static final InboundPing INSTANCE = new InboundPing();
+
+    public static final int EVENT_ID = 9000000;
+
+    private InboundPing() {
+    }
+}
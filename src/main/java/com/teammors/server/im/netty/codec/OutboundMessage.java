@@ -0,0 +1,49 @@
+package com.teammors.server.im.netty.codec;
+
+import com.teammors.server.im.entity.Message;
+
+import java.util.List;
+
+/**
+ * Outbound pipeline message: a {@link Message} plus its JSON bytes when the caller already
+ * serialized it (e.g. for the ACK cache). Encoded into a frame by {@link OutboundMessageEncoder}.
+ */
+public final class OutboundMessage {
+
+    private final Message message;
+    private final byte[] json;
+
+    public OutboundMessage(Message message, byte[] json) {
+        this.message = message;
+        this.json = json;
+    }
+
+    public Message getMessage() {
+        return message;
+    }
+
+    public byte[] getJson() {
+        return json;
+    }
+
+    // Rough size used for flush thresholds before the frame is encoded
+    public int estimatedSize() {
+        return json != null ? json.length : 256;
+    }
+
+    /**
+     * Several messages for the same channel packed into a single envelope frame.
+     */
+    public static final class Batch {
+
+        private final List<OutboundMessage> messages;
+
+        public Batch(List<OutboundMessage> messages) {
+            this.messages = messages;
+        }
+
+        public List<OutboundMessage> getMessages() {
+            return messages;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.teammors.server.im.netty.codec;
+
+import com.alibaba.fastjson.JSON;
+import com.teammors.server.im.entity.Message;
+import com.teammors.server.im.utils.SessionCrypto;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToMessageEncoder;
+import io.netty.handler.codec.base64.Base64;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Encodes {@link OutboundMessage} / {@link OutboundMessage.Batch} into a WebSocket frame in the
+ * protocol negotiated by the channel, encrypting with the session crypto context once bound.
+ * Frame payloads are built in pooled direct buffers from the channel allocator.
+ *
+ * JSON envelopes are a JSON array of messages; binary envelopes use
+ * {@link BinaryMessageCodec#encodeBatch}.
+ */
+@ChannelHandler.Sharable
+public class OutboundMessageEncoder extends MessageToMessageEncoder<Object> {
+
+    public static final OutboundMessageEncoder INSTANCE = new OutboundMessageEncoder();
+
+    private OutboundMessageEncoder() {
+    }
+
+    @Override
+    public boolean acceptOutboundMessage(Object msg) {
+        return msg instanceof OutboundMessage || msg instanceof OutboundMessage.Batch;
+    }
+
+    @Override
+    protected void encode(ChannelHandlerContext ctx, Object msg, List<Object> out) throws Exception {
+        WireProtocol protocol = WireProtocol.of(ctx.channel());
+        SessionCrypto crypto = ctx.channel().attr(SessionCrypto.ATTR_CRYPTO).get();
+        ByteBufAllocator alloc = ctx.alloc();
+
+        if (protocol.isBinary()) {
+            ByteBuf buf = alloc.directBuffer();
+            try {
+                if (msg instanceof OutboundMessage single) {
+                    BinaryMessageCodec.encode(single.getMessage(), buf);
+                } else {
+                    List<OutboundMessage> batch = ((OutboundMessage.Batch) msg).getMessages();
+                    List<Message> messages = new ArrayList<>(batch.size());
+                    for (OutboundMessage m : batch) {
+                        messages.add(m.getMessage());
+                    }
+                    BinaryMessageCodec.encodeBatch(messages, buf);
+                }
+                if (crypto != null) {
+                    ByteBuf cipher = crypto.encrypt(buf, alloc);
+                    buf.release();
+                    buf = cipher;
+                }
+            } catch (RuntimeException e) {
+                buf.release();
+                throw e;
+            }
+            out.add(new BinaryWebSocketFrame(buf));
+            return;
+        }
+
+        ByteBuf json = msg instanceof OutboundMessage single
+                ? Unpooled.wrappedBuffer(jsonOf(single))
+                : jsonArray(((OutboundMessage.Batch) msg).getMessages(), alloc);
+        try {
+            if (crypto == null) {
+                ByteBuf buf = alloc.directBuffer(json.readableBytes()).writeBytes(json);
+                out.add(new TextWebSocketFrame(buf));
+                return;
+            }
+
+            //encrypt data, Base64 straight into the frame buffer
+            ByteBuf cipher = crypto.encrypt(json, alloc);
+            try {
+                out.add(new TextWebSocketFrame(Base64.encode(cipher, false)));
+            } finally {
+                cipher.release();
+            }
+        } finally {
+            json.release();
+        }
+    }
+
+    private static byte[] jsonOf(OutboundMessage msg) {
+        return msg.getJson() != null ? msg.getJson() : JSON.toJSONBytes(msg.getMessage());
+    }
+
+    // [json1,json2,...] assembled from the already serialized messages
+    private static ByteBuf jsonArray(List<OutboundMessage> batch, ByteBufAllocator alloc) {
+        byte[][] parts = new byte[batch.size()][];
+        int size = 2 + Math.max(0, batch.size() - 1);
+        for (int i = 0; i < parts.length; i++) {
+            parts[i] = jsonOf(batch.get(i));
+            size += parts[i].length;
+        }
+        ByteBuf buf = alloc.heapBuffer(size);
+        buf.writeByte('[');
+        for (int i = 0; i < parts.length; i++) {
+            if (i > 0) buf.writeByte(',');
+            buf.writeBytes(parts[i]);
+        }
+        buf.writeByte(']');
+        return buf;
+    }
+}
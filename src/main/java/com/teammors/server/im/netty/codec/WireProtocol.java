@@ -0,0 +1,60 @@
+package com.teammors.server.im.netty.codec;
+
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+
+/**
+ * Wire protocol negotiated per connection through the Sec-WebSocket-Protocol header.
+ * Clients that do not ask for a subprotocol keep using the JSON text protocol.
+ * The ".batch" variants advertise that the client understands envelope frames
+ * carrying several messages at once.
+ */
+public enum WireProtocol {
+
+    JSON("xmsg-json", false, false),
+    JSON_BATCH("xmsg-json.batch", false, true),
+    BINARY("xmsg-bin", true, false),
+    BINARY_BATCH("xmsg-bin.batch", true, true);
+
+    public static final AttributeKey<WireProtocol> ATTR_PROTOCOL = AttributeKey.valueOf("wireProtocol");
+
+    // Comma separated list handed to WebSocketServerProtocolHandler
+    public static final String SUBPROTOCOLS = String.join(",",
+            JSON.subprotocol, JSON_BATCH.subprotocol, BINARY.subprotocol, BINARY_BATCH.subprotocol);
+
+    private final String subprotocol;
+    private final boolean binary;
+    private final boolean batch;
+
+    WireProtocol(String subprotocol, boolean binary, boolean batch) {
+        this.subprotocol = subprotocol;
+        this.binary = binary;
+        this.batch = batch;
+    }
+
+    public String getSubprotocol() {
+        return subprotocol;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    public boolean supportsBatch() {
+        return batch;
+    }
+
+    public static WireProtocol fromSubprotocol(String subprotocol) {
+        for (WireProtocol protocol : values()) {
+            if (protocol.subprotocol.equals(subprotocol)) {
+                return protocol;
+            }
+        }
+        return JSON;
+    }
+
+    public static WireProtocol of(Channel channel) {
+        WireProtocol protocol = channel.attr(ATTR_PROTOCOL).get();
+        return protocol != null ? protocol : JSON;
+    }
+}
@@ -0,0 +1,131 @@
+package com.teammors.server.im.netty.handler;
+
+import com.teammors.server.im.service.ChannelManager;
+import com.teammors.server.im.service.IMService;
+import com.teammors.server.im.service.RedisAdmission;
+import com.teammors.server.im.service.RedisBatcher;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.util.AttributeKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+/**
+ * Optional authentication on the WebSocket upgrade request, placed before
+ * WebSocketServerProtocolHandler.
+ *
+ * When the upgrade carries uid / deviceId / token (query parameters or X-Uid / X-Device-Id /
+ * X-Token headers) the token is validated off the event loop and the channel is bound before the
+ * handshake completes, so the client can skip the 1000000 login event. The remaining login work
+ * (Redis session, offline replay) starts as soon as the handshake is done, see
+ * {@link WebSocketHandler#userEventTriggered}. Upgrades without credentials fall through to the
+ * normal login event.
+ */
+@Component
+@ChannelHandler.Sharable
+public class HandshakeAuthHandler extends ChannelInboundHandlerAdapter {
+
+    private static final Logger log = LoggerFactory.getLogger(HandshakeAuthHandler.class);
+
+    // Set when the session was authenticated during the handshake
+    public static final AttributeKey<Boolean> ATTR_HANDSHAKE_AUTH = AttributeKey.valueOf("handshakeAuth");
+
+    @Value("${netty.handshake-auth:false}")
+    private boolean enabled;
+
+    @Autowired
+    @Lazy
+    private IMService imService;
+
+    @Autowired
+    private ChannelManager channelManager;
+
+    @Autowired
+    private RedisBatcher redisBatcher;
+
+    @Autowired
+    private RedisAdmission redisAdmission;
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (!(msg instanceof FullHttpRequest req)) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+
+        QueryStringDecoder query = new QueryStringDecoder(req.uri());
+        // WebSocketServerProtocolHandler matches the path exactly, so drop the query string
+        req.setUri(query.path());
+
+        String uid = param(req, query, "uid", "X-Uid");
+        String deviceId = param(req, query, "deviceId", "X-Device-Id");
+        String token = param(req, query, "token", "X-Token");
+
+        if (!enabled || uid == null || token == null) {
+            ctx.pipeline().remove(this);
+            ctx.fireChannelRead(req);
+            return;
+        }
+        String device = deviceId != null && !deviceId.isEmpty() ? deviceId : "default";
+
+        // Hold further reads until the token check (a Redis GET) is done on a virtual thread
+        ctx.channel().config().setAutoRead(false);
+        imService.executeAsync(() -> {
+            boolean valid;
+            try {
+                valid = token.equals(redisAdmission.call(RedisAdmission.OpClass.LOGIN,
+                        () -> redisBatcher.get("token_list:" + uid).join()));
+            } catch (Exception e) {
+                log.error("Handshake auth failed for user {}", uid, e);
+                valid = false;
+            }
+            boolean authenticated = valid;
+            ctx.executor().execute(() -> {
+                if (!ctx.channel().isActive()) {
+                    req.release();
+                    return;
+                }
+                ctx.channel().config().setAutoRead(true);
+                if (authenticated) {
+                    channelManager.bind(uid, device, ctx.channel());
+                    ctx.channel().attr(ATTR_HANDSHAKE_AUTH).set(Boolean.TRUE);
+                    ctx.pipeline().remove(this);
+                    ctx.fireChannelRead(req);
+                } else {
+                    log.warn("Handshake auth failed for user {}. Invalid token.", uid);
+                    req.release();
+                    reject(ctx);
+                }
+            });
+        });
+    }
+
+    private static String param(FullHttpRequest req, QueryStringDecoder query, String name, String header) {
+        List<String> values = query.parameters().get(name);
+        if (values != null && !values.isEmpty()) {
+            return values.get(0);
+        }
+        return req.headers().get(header);
+    }
+
+    private static void reject(ChannelHandlerContext ctx) {
+        FullHttpResponse resp = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.UNAUTHORIZED);
+        resp.headers().set(HttpHeaderNames.CONTENT_LENGTH, 0);
+        ctx.writeAndFlush(resp).addListener(ChannelFutureListener.CLOSE);
+    }
+}
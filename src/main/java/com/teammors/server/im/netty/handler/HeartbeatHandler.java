@@ -1,27 +1,75 @@
 package com.teammors.server.im.netty.handler;
 
 import com.alibaba.fastjson.JSON;
-import com.teammors.server.im.model.UserSessionInfo;
+import com.teammors.server.im.entity.Message;
+import com.teammors.server.im.handler.impl.PingHandler;
+import com.teammors.server.im.netty.codec.BinaryMessageCodec;
+import com.teammors.server.im.netty.codec.InboundMessageDecoder;
+import com.teammors.server.im.netty.codec.InboundPing;
+import com.teammors.server.im.netty.codec.WireProtocol;
 import com.teammors.server.im.service.IMService;
+import com.teammors.server.im.service.ChannelManager;
+import com.teammors.server.im.service.RedisAdmission;
+import com.teammors.server.im.utils.SessionCrypto;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
-import io.netty.handler.timeout.IdleState;
-import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.codec.base64.Base64;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
 import io.netty.util.AttributeKey;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Lazy;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Heartbeat handling on the event loop.
+ *
+ * A 9000000 ping arrives from {@link InboundMessageDecoder} as {@link InboundPing#INSTANCE} and is
+ * answered right here with a preallocated PONG frame: no dispatch, no serialization and, unless
+ * the channel has messages waiting for an ACK, no Redis. Unencrypted sessions share one frame per
+ * protocol; encrypted sessions encrypt their PONG once and reuse it. Reader-idle channels are
+ * evicted through {@link #evictIdle}.
+ */
 @Component
 @ChannelHandler.Sharable
 public class HeartbeatHandler extends ChannelInboundHandlerAdapter {
 
     private static final Logger log = LoggerFactory.getLogger(HeartbeatHandler.class);
 
+    private static final ByteBuf PONG_JSON;
+    private static final ByteBuf PONG_BINARY;
+
+    static {
+        Message pong = new Message();
+        pong.setEventId(InboundPing.EVENT_ID);
+        pong.setFromUid("SYSTEM");
+        pong.setDataBody("PONG");
+        pong.setCache(false);
+        PONG_JSON = Unpooled.unreleasableBuffer(Unpooled.directBuffer().writeBytes(JSON.toJSONBytes(pong)));
+        ByteBuf binary = Unpooled.directBuffer();
+        BinaryMessageCodec.encode(pong, binary);
+        PONG_BINARY = Unpooled.unreleasableBuffer(binary);
+    }
+
+    // This session's encrypted PONG payload, built on its first heartbeat
+    private static final AttributeKey<ByteBuf> ATTR_PONG = AttributeKey.valueOf("pong");
+
+    @Autowired
+    private PingHandler pingHandler;
+
     @Autowired
     @Lazy
     private IMService imService;
@@ -30,38 +78,80 @@ public class HeartbeatHandler extends ChannelInboundHandlerAdapter {
     private StringRedisTemplate redisTemplate;
 
     @Override
-    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
-        if (evt instanceof IdleStateEvent) {
-            IdleStateEvent event = (IdleStateEvent) evt;
-            if (event.state() == IdleState.READER_IDLE) {
-                log.info("Channel idle (no ping/message), closing connection: {}", ctx.channel().id());
-                
-                // Clean up Redis session before closing
-                // Although WebSocketHandler.handlerRemoved() calls imService.removeChannel(),
-                // which calls channelManager.unbind(), we also need to clean up the Redis "session:{uid}" entry.
-                // The current channelManager.unbind() only removes from local memory.
-                
-                removeRedisSession(ctx);
-                
-                ctx.close();
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg != InboundPing.INSTANCE) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+        Channel channel = ctx.channel();
+        WireProtocol protocol = WireProtocol.of(channel);
+        ByteBuf pong = pongPayload(ctx, protocol);
+        // Each write gets its own indices over the shared bytes; release is a no-op
+        ctx.writeAndFlush(protocol.isBinary() ? new BinaryWebSocketFrame(pong.duplicate())
+                : new TextWebSocketFrame(pong.duplicate()));
+        pingHandler.onHeartbeat(channel);
+    }
+
+    private static ByteBuf pongPayload(ChannelHandlerContext ctx, WireProtocol protocol) {
+        SessionCrypto crypto = ctx.channel().attr(SessionCrypto.ATTR_CRYPTO).get();
+        ByteBuf plain = protocol.isBinary() ? PONG_BINARY : PONG_JSON;
+        if (crypto == null) {
+            return plain;
+        }
+        ByteBuf cached = ctx.channel().attr(ATTR_PONG).get();
+        if (cached == null) {
+            ByteBuf cipher = crypto.encrypt(plain.duplicate(), ctx.alloc());
+            try {
+                byte[] bytes;
+                if (protocol.isBinary()) {
+                    bytes = ByteBufUtil.getBytes(cipher);
+                } else {
+                    ByteBuf base64 = Base64.encode(cipher, false);
+                    bytes = ByteBufUtil.getBytes(base64);
+                    base64.release();
+                }
+                cached = Unpooled.unreleasableBuffer(Unpooled.wrappedBuffer(bytes));
+            } finally {
+                cipher.release();
             }
-        } else {
-            super.userEventTriggered(ctx, evt);
+            ctx.channel().attr(ATTR_PONG).set(cached);
         }
+        return cached;
     }
-    
-    private void removeRedisSession(ChannelHandlerContext ctx) {
-        if (ctx.channel().hasAttr(AttributeKey.valueOf("userId")) && 
-            ctx.channel().hasAttr(AttributeKey.valueOf("deviceId"))) {
-            
-            String uid = (String) ctx.channel().attr(AttributeKey.valueOf("userId")).get();
-            String deviceId = (String) ctx.channel().attr(AttributeKey.valueOf("deviceId")).get();
-            
+
+    /**
+     * Close a batch of reader-idle channels found by {@link IdleTracker}.
+     * Called on the channels' event loop; the Redis session cleanup is pipelined off the loop.
+     */
+    public void evictIdle(List<Channel> channels) {
+        List<String[]> sessions = new ArrayList<>(channels.size());
+        for (Channel channel : channels) {
+            log.info("Channel idle (no ping/message), closing connection: {}", channel.id());
+            // channelManager.unbind() only removes from local memory, so also clean up "session:{uid}"
+            String uid = channel.attr(ChannelManager.ATTR_USER_ID).get();
+            String deviceId = channel.attr(ChannelManager.ATTR_DEVICE_ID).get();
             if (uid != null && deviceId != null) {
-                // Remove from Redis
-                redisTemplate.opsForHash().delete("session:" + uid, deviceId);
-                log.info("Removed session from Redis for user {} device {}", uid, deviceId);
+                sessions.add(new String[]{uid, deviceId});
             }
+            channel.close();
+        }
+        if (!sessions.isEmpty()) {
+            imService.executeAsync(RedisAdmission.OpClass.MAINTENANCE, () -> removeRedisSessions(sessions));
+        }
+    }
+
+    private void removeRedisSessions(List<String[]> sessions) {
+        try {
+            redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (String[] session : sessions) {
+                    connection.hashCommands().hDel(("session:" + session[0]).getBytes(StandardCharsets.UTF_8),
+                            session[1].getBytes(StandardCharsets.UTF_8));
+                }
+                return null;
+            });
+            log.info("Removed {} idle sessions from Redis", sessions.size());
+        } catch (Exception e) {
+            log.error("Error removing idle sessions from Redis", e);
         }
     }
 }
@@ -0,0 +1,137 @@
+package com.teammors.server.im.netty.handler;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.EventExecutor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reader-idle detection shared per event loop, replacing one IdleStateHandler per connection.
+ *
+ * Each event loop owns a hashed wheel with one-second slots and a single periodic tick task.
+ * A read only stamps the channel's entry with the current tick; entries are not moved on read.
+ * When a slot comes due, each entry in it is either re-filed at its real deadline or, if it has
+ * been idle for the full timeout, evicted together with the rest of that slot through
+ * {@link HeartbeatHandler#evictIdle}.
+ *
+ * All wheel state is confined to its event loop, so no locking is needed.
+ */
+@Component
+@ChannelHandler.Sharable
+public class IdleTracker extends ChannelInboundHandlerAdapter {
+
+    private static final AttributeKey<Entry> ATTR_IDLE_ENTRY = AttributeKey.valueOf("idleEntry");
+
+    @Value("${netty.idle.reader-timeout-seconds:60}")
+    private int readerTimeoutSeconds;
+
+    @Autowired
+    private HeartbeatHandler heartbeatHandler;
+
+    private final ConcurrentHashMap<EventExecutor, Wheel> wheels = new ConcurrentHashMap<>();
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        Wheel wheel = wheels.computeIfAbsent(ctx.executor(), Wheel::new);
+        Entry entry = new Entry(ctx.channel(), wheel);
+        ctx.channel().attr(ATTR_IDLE_ENTRY).set(entry);
+        wheel.add(entry);
+        super.channelActive(ctx);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        Entry entry = ctx.channel().attr(ATTR_IDLE_ENTRY).get();
+        if (entry != null) {
+            entry.lastReadTick = entry.wheel.tick;
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    /**
+     * Number of channels currently tracked across all event loops (diagnostics).
+     */
+    public int trackedChannels() {
+        int total = 0;
+        for (Wheel wheel : wheels.values()) {
+            total += wheel.size;
+        }
+        return total;
+    }
+
+    private static final class Entry {
+        final Channel channel;
+        final Wheel wheel;
+        long lastReadTick;
+
+        Entry(Channel channel, Wheel wheel) {
+            this.channel = channel;
+            this.wheel = wheel;
+            this.lastReadTick = wheel.tick;
+        }
+    }
+
+    private final class Wheel {
+        final List<Entry>[] slots;
+        long tick;
+        int size;
+
+        @SuppressWarnings("unchecked")
+        Wheel(EventExecutor executor) {
+            int timeout = Math.max(1, readerTimeoutSeconds);
+            slots = new List[timeout + 1];
+            for (int i = 0; i < slots.length; i++) {
+                slots[i] = new ArrayList<>();
+            }
+            executor.scheduleAtFixedRate(this::advance, 1, 1, TimeUnit.SECONDS);
+        }
+
+        void add(Entry entry) {
+            file(entry, entry.lastReadTick + readerTimeoutSeconds);
+            size++;
+        }
+
+        private void file(Entry entry, long deadlineTick) {
+            slots[(int) (deadlineTick % slots.length)].add(entry);
+        }
+
+        void advance() {
+            tick++;
+            int index = (int) (tick % slots.length);
+            List<Entry> due = slots[index];
+            if (due.isEmpty()) {
+                return;
+            }
+            slots[index] = new ArrayList<>();
+
+            List<Channel> idle = null;
+            for (Entry entry : due) {
+                if (!entry.channel.isActive()) {
+                    size--;
+                    continue;
+                }
+                long deadline = entry.lastReadTick + readerTimeoutSeconds;
+                if (deadline > tick) {
+                    file(entry, deadline);
+                } else {
+                    size--;
+                    if (idle == null) idle = new ArrayList<>();
+                    idle.add(entry.channel);
+                }
+            }
+            if (idle != null) {
+                heartbeatHandler.evictIdle(idle);
+            }
+        }
+    }
+}
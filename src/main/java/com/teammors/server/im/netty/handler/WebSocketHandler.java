@@ -1,25 +1,28 @@
 package com.teammors.server.im.netty.handler;
 
-import com.alibaba.fastjson.JSON;
 import com.teammors.server.im.entity.Message;
+import com.teammors.server.im.handler.impl.LoginHandler;
+import com.teammors.server.im.netty.codec.WireProtocol;
+import com.teammors.server.im.service.BackpressureManager;
 import com.teammors.server.im.service.ChannelManager;
 import com.teammors.server.im.service.IMService;
-import com.teammors.server.im.utils.SecurityUtil;
-import com.teammors.server.im.utils.XJSONUtils;
+import com.teammors.server.im.service.RedisAdmission;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
 import io.netty.channel.SimpleChannelInboundHandler;
-import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.websocketx.Utf8FrameValidator;
+import io.netty.handler.codec.http.websocketx.WebSocketServerProtocolHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
-import java.util.Objects;
-
 @Component
 @ChannelHandler.Sharable
-public class WebSocketHandler extends SimpleChannelInboundHandler<TextWebSocketFrame> {
+public class WebSocketHandler extends SimpleChannelInboundHandler<Message> {
 
     private static final Logger log = LoggerFactory.getLogger(WebSocketHandler.class);
 
@@ -29,34 +32,71 @@ public class WebSocketHandler extends SimpleChannelInboundHandler<TextWebSocketF
     @Autowired
     ChannelManager channelManager;
 
-    @Override
-    protected void channelRead0(ChannelHandlerContext ctx, TextWebSocketFrame frame) throws Exception {
-        String text = frame.text();
+    @Autowired
+    private BackpressureManager backpressureManager;
 
-        //If it is encrypted, it needs to be decrypted first.
-        if(!XJSONUtils.isJsonFast(text)){
-            String uid = channelManager.getUserIdByChannelId(ctx.channel().id().asLongText());
-            if(uid != null){
-                text = SecurityUtil.decrypt(SecurityUtil.getUidKey(uid), text);
-            }
+    @Autowired
+    private LoginHandler loginHandler;
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, Message msg) throws Exception {
+        // Decrypted and parsed once by InboundMessageDecoder
+        if(msg.getEventId() != 9000000){
+            log.info("Received message: {}", msg);
         }
+        msg.setSTimest(System.currentTimeMillis());
+        imService.handleEvent(ctx, msg);
+    }
 
-        try {
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (evt instanceof WebSocketServerProtocolHandler.HandshakeComplete handshake) {
+            WireProtocol protocol = WireProtocol.fromSubprotocol(handshake.selectedSubprotocol());
+            ctx.channel().attr(WireProtocol.ATTR_PROTOCOL).set(protocol);
+            slimPipeline(ctx.pipeline(), protocol);
 
-            Message msg = JSON.parseObject(text, Message.class);
-            if(!Objects.equals(msg.getEventId(), "9000000")){
-                log.info("Received message: {}", text);
+            // Authenticated on the upgrade request: finish the login without waiting for a 1000000 event
+            // hasAttr first: attr() would allocate the attribute on every connection
+            if (ctx.channel().hasAttr(HandshakeAuthHandler.ATTR_HANDSHAKE_AUTH)
+                    && Boolean.TRUE.equals(ctx.channel().attr(HandshakeAuthHandler.ATTR_HANDSHAKE_AUTH).getAndSet(null))) {
+                String uid = ctx.channel().attr(ChannelManager.ATTR_USER_ID).get();
+                String deviceId = ctx.channel().attr(ChannelManager.ATTR_DEVICE_ID).get();
+                imService.executeAsync(RedisAdmission.OpClass.LOGIN, () -> loginHandler.onAuthenticated(ctx, uid, deviceId));
             }
-            msg.setSTimest(String.valueOf(System.currentTimeMillis()));
-            imService.handleEvent(ctx, msg);
+        }
+        super.userEventTriggered(ctx, evt);
+    }
+
+    /**
+     * Drop everything the HTTP upgrade needed, leaving a frame-only pipeline.
+     * WebSocketServerHandshaker already removes the codec and aggregator once the 101 is written;
+     * they are checked again here in case the handshake ran without them being replaced.
+     */
+    private static void slimPipeline(ChannelPipeline pipeline, WireProtocol protocol) {
+        removeIfPresent(pipeline, HttpServerCodec.class);
+        removeIfPresent(pipeline, HttpObjectAggregator.class);
+        removeIfPresent(pipeline, HandshakeAuthHandler.class);
+        if (protocol.isBinary()) {
+            // Binary clients send no text frames worth validating; the decoder rejects bad ones anyway
+            removeIfPresent(pipeline, Utf8FrameValidator.class);
+        }
+    }
 
-        } catch (Exception e) {
-            log.error("Failed to parse message", e);
+    private static void removeIfPresent(ChannelPipeline pipeline, Class<? extends ChannelHandler> type) {
+        if (pipeline.get(type) != null) {
+            pipeline.remove(type);
         }
     }
 
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        backpressureManager.onWritabilityChanged(ctx.channel());
+        super.channelWritabilityChanged(ctx);
+    }
+
     @Override
     public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        backpressureManager.onWritabilityChanged(ctx.channel());
         imService.removeChannel(ctx.channel());
         super.handlerRemoved(ctx);
     }
@@ -0,0 +1,175 @@
+package com.teammors.server.im.netty.handler;
+
+import com.teammors.server.im.netty.codec.OutboundMessage;
+import com.teammors.server.im.netty.codec.WireProtocol;
+import io.netty.buffer.ByteBufHolder;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.concurrent.Future;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Per-channel outbound batching.
+ *
+ * Every delivery calls writeAndFlush on its own; during group fan-out, offline replay or unacked
+ * resend that is one syscall per message. This handler lets the writes through but holds back the
+ * flush until the end of the current event-loop tick, or earlier once maxMessages / maxBytes are
+ * pending. For clients that negotiated a ".batch" subprotocol, messages pending in the same tick
+ * are also packed into a single envelope frame.
+ *
+ * Pending flushes are pushed out early when the channel turns unwritable, so a held-back flush
+ * never keeps the outbound buffer from draining.
+ *
+ * Not sharable: one instance per channel. All methods run on the channel's event loop.
+ */
+public class WriteCoalescingHandler extends ChannelDuplexHandler {
+
+    private final int maxMessages;
+    private final int maxBytes;
+    private final boolean envelopeEnabled;
+
+    private final List<OutboundMessage> pendingBatch = new ArrayList<>();
+    private final List<ChannelPromise> pendingPromises = new ArrayList<>();
+    private int pendingMessages;
+    private long pendingBytes;
+    private boolean flushScheduled;
+    private boolean removed;
+
+    private ChannelHandlerContext ctx;
+    private final Runnable flushTask = () -> {
+        flushScheduled = false;
+        flushNow();
+    };
+
+    public WriteCoalescingHandler(int maxMessages, int maxBytes, boolean envelopeEnabled) {
+        this.maxMessages = Math.max(1, maxMessages);
+        this.maxBytes = Math.max(1, maxBytes);
+        this.envelopeEnabled = envelopeEnabled;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        this.ctx = ctx;
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (envelopeEnabled && msg instanceof OutboundMessage outbound
+                && WireProtocol.of(ctx.channel()).supportsBatch()) {
+            pendingBatch.add(outbound);
+            pendingPromises.add(promise);
+            pendingBytes += outbound.estimatedSize();
+        } else {
+            // Keep ordering: anything queued for the envelope goes out first
+            writePendingBatch();
+            ctx.write(msg, promise);
+            pendingBytes += sizeOf(msg);
+        }
+        pendingMessages++;
+    }
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) throws Exception {
+        if (pendingMessages >= maxMessages || pendingBytes >= maxBytes) {
+            flushNow();
+        } else if (!flushScheduled) {
+            // Runs after the writes already queued on this event loop
+            flushScheduled = true;
+            ctx.executor().execute(flushTask);
+        }
+    }
+
+    @Override
+    public void close(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+        flushNow();
+        ctx.close(promise);
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        // Held-back flushes may be what keeps the outbound buffer full; push them out so it drains
+        if (!ctx.channel().isWritable()) {
+            flushNow();
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        removed = true;
+        pendingMessages = 0;
+        pendingBytes = 0;
+        if (!ctx.channel().isActive()) {
+            failPendingBatch(new ClosedChannelException());
+            return;
+        }
+        // ctx is already unlinked. Nothing behind this handler is outbound, so writing from the
+        // pipeline tail reaches the encoder exactly as ctx.write would have.
+        ChannelPipeline pipeline = ctx.pipeline();
+        for (int i = 0; i < pendingBatch.size(); i++) {
+            pipeline.write(pendingBatch.get(i), pendingPromises.get(i));
+        }
+        pendingBatch.clear();
+        pendingPromises.clear();
+        pipeline.flush();
+    }
+
+    private void flushNow() {
+        if (removed) {
+            return;
+        }
+        writePendingBatch();
+        if (pendingMessages > 0) {
+            pendingMessages = 0;
+            pendingBytes = 0;
+            ctx.flush();
+        }
+    }
+
+    private void failPendingBatch(Throwable cause) {
+        for (ChannelPromise promise : pendingPromises) {
+            promise.tryFailure(cause);
+        }
+        pendingBatch.clear();
+        pendingPromises.clear();
+    }
+
+    private void writePendingBatch() {
+        if (pendingBatch.isEmpty()) {
+            return;
+        }
+        if (pendingBatch.size() == 1) {
+            ctx.write(pendingBatch.get(0), pendingPromises.get(0));
+        } else {
+            List<ChannelPromise> promises = new ArrayList<>(pendingPromises);
+            ChannelPromise batchPromise = ctx.newPromise();
+            batchPromise.addListener((Future<? super Void> f) -> {
+                for (ChannelPromise p : promises) {
+                    if (f.isSuccess()) {
+                        p.trySuccess();
+                    } else {
+                        p.tryFailure(f.cause());
+                    }
+                }
+            });
+            ctx.write(new OutboundMessage.Batch(new ArrayList<>(pendingBatch)), batchPromise);
+        }
+        pendingBatch.clear();
+        pendingPromises.clear();
+    }
+
+    private static int sizeOf(Object msg) {
+        if (msg instanceof OutboundMessage outbound) {
+            return outbound.estimatedSize();
+        }
+        if (msg instanceof ByteBufHolder holder) {
+            return holder.content().readableBytes();
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,130 @@
+package com.teammors.server.im.service;
+
+import com.alibaba.fastjson.JSON;
+import com.teammors.server.im.entity.Message;
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Outbound backpressure for slow consumers.
+ *
+ * A channel above its write-buffer high watermark is not written to. Messages that need an ACK
+ * are already in the Redis ack store (ack:msg:{uid}), so they are simply parked there and picked
+ * up by the heartbeat / reconnect resend. Ephemeral messages follow the configured policy.
+ * A channel that parks more than the disconnect threshold while unwritable is closed.
+ */
+@Component
+public class BackpressureManager {
+
+    private static final Logger log = LoggerFactory.getLogger(BackpressureManager.class);
+
+    // Messages parked while the channel has been unwritable
+    private static final AttributeKey<AtomicInteger> ATTR_PARKED = AttributeKey.valueOf("parkedMessages");
+    private static final AttributeKey<Boolean> ATTR_SLOW = AttributeKey.valueOf("slowConsumer");
+
+    public enum Policy {
+        DROP_EPHEMERAL, SPILL_TO_OFFLINE;
+
+        public static Policy of(String value) {
+            return "spill-to-offline".equalsIgnoreCase(value) ? SPILL_TO_OFFLINE : DROP_EPHEMERAL;
+        }
+    }
+
+    @Autowired
+    private RedisBatcher redisBatcher;
+
+    private final Policy policy;
+    private final int disconnectThreshold;
+
+    private final AtomicInteger slowConsumers = new AtomicInteger();
+    private final LongAdder parkedMessages = new LongAdder();
+    private final LongAdder parkedBytes = new LongAdder();
+    private final LongAdder droppedMessages = new LongAdder();
+    private final LongAdder spilledMessages = new LongAdder();
+    private final LongAdder disconnectedConsumers = new LongAdder();
+
+    public BackpressureManager(@Value("${netty.backpressure.policy:drop-ephemeral}") String policy,
+                               @Value("${netty.backpressure.disconnect-after-parked:1000}") int disconnectThreshold) {
+        this.policy = Policy.of(policy);
+        this.disconnectThreshold = disconnectThreshold;
+    }
+
+    /**
+     * A message that is already in the ack store could not be written.
+     * @param size encoded size, for the parked bytes metric
+     */
+    public void park(Channel channel, int size) {
+        parkedMessages.increment();
+        parkedBytes.add(size);
+        AtomicInteger counter = channel.attr(ATTR_PARKED).get();
+        if (counter == null) {
+            AtomicInteger created = new AtomicInteger();
+            counter = channel.attr(ATTR_PARKED).setIfAbsent(created);
+            if (counter == null) counter = created;
+        }
+        int parked = counter.incrementAndGet();
+        if (disconnectThreshold > 0 && parked >= disconnectThreshold && channel.isActive()) {
+            disconnectedConsumers.increment();
+            log.warn("Closing slow consumer {} (uid {}): {} messages parked while unwritable",
+                    channel.id(), channel.attr(ChannelManager.ATTR_USER_ID).get(), parked);
+            channel.close();
+        }
+    }
+
+    /**
+     * An ephemeral (not ack cached) message could not be written; apply the policy.
+     */
+    public void rejectEphemeral(Channel channel, Message msg) {
+        if (policy == Policy.SPILL_TO_OFFLINE && msg.isCache() && msg.getToUid() != null) {
+            RedisBatcher.logFailure(redisBatcher.rPush("offline:msg:" + msg.getToUid(), JSON.toJSONString(msg)), "offline spill RPUSH");
+            spilledMessages.increment();
+            park(channel, 0);
+        } else {
+            droppedMessages.increment();
+        }
+    }
+
+    /**
+     * Called from the pipeline when the channel crosses a watermark or goes away.
+     */
+    public void onWritabilityChanged(Channel channel) {
+        boolean slow = !channel.isWritable() && channel.isActive();
+        Boolean wasSlow = channel.attr(ATTR_SLOW).getAndSet(slow);
+        if (slow && !Boolean.TRUE.equals(wasSlow)) {
+            slowConsumers.incrementAndGet();
+        } else if (!slow && Boolean.TRUE.equals(wasSlow)) {
+            slowConsumers.decrementAndGet();
+            AtomicInteger parked = channel.attr(ATTR_PARKED).get();
+            if (parked != null) parked.set(0);
+        }
+    }
+
+    public Map<String, Long> metrics() {
+        Map<String, Long> m = new LinkedHashMap<>();
+        m.put("slowConsumers", (long) slowConsumers.get());
+        m.put("parkedMessages", parkedMessages.sum());
+        m.put("parkedBytes", parkedBytes.sum());
+        m.put("droppedMessages", droppedMessages.sum());
+        m.put("spilledMessages", spilledMessages.sum());
+        m.put("disconnectedConsumers", disconnectedConsumers.sum());
+        return m;
+    }
+
+    @Scheduled(fixedRate = 60000)
+    public void logMetrics() {
+        if (slowConsumers.get() > 0 || parkedMessages.sum() > 0) {
+            log.info("Backpressure: {}", metrics());
+        }
+    }
+}
@@ -1,25 +1,39 @@
 package com.teammors.server.im.service;
 
+import com.teammors.server.im.utils.SessionCrypto;
 import io.netty.channel.Channel;
 import io.netty.util.AttributeKey;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
-import java.util.Map;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
+/**
+ * Local registry of bound channels.
+ *
+ * Most users have one device, so the registry value is the Channel itself; only users with
+ * several devices get a small Channel[] (copy-on-write, updated under CHM.compute). The device id
+ * of each channel lives in its ATTR_DEVICE_ID attribute, and channel-to-user lookups read
+ * ATTR_USER_ID, so there is no nested per-user map and no channelId index.
+ */
 @Component
 public class ChannelManager {
     private static final Logger log = LoggerFactory.getLogger(ChannelManager.class);
     
-    // UserId -> (DeviceId -> Channel)
-    private final ConcurrentHashMap<String, ConcurrentHashMap<String, Channel>> userChannels = new ConcurrentHashMap<>();
+    // UserId -> Channel (single device) | Channel[] (multi-device)
+    private final ConcurrentHashMap<String, Object> userChannels = new ConcurrentHashMap<>();
 
     public static final AttributeKey<String> ATTR_USER_ID = AttributeKey.valueOf("userId");
     public static final AttributeKey<String> ATTR_DEVICE_ID = AttributeKey.valueOf("deviceId");
 
-    private final ConcurrentHashMap<String, String> userIdMaps = new ConcurrentHashMap<>();
+    // ecb (compatible with existing clients) | gcm
+    @Value("${im.crypto.mode:ecb}")
+    private String cryptoMode;
 
     /**
      * Bind User-Device-Channel
@@ -33,15 +47,14 @@ public class ChannelManager {
             return;
         }
         
-        // 1. Store in memory
-        userChannels.computeIfAbsent(uid, k -> new ConcurrentHashMap<>()).put(deviceId, channel);
-        
-        // 2. Attach attributes to channel for quick access during disconnect
+        // 1. Attach attributes to channel; the registry reads the device id from here
         channel.attr(ATTR_USER_ID).set(uid);
         channel.attr(ATTR_DEVICE_ID).set(deviceId);
+        // Derive the session key once; reused for every inbound/outbound frame of this channel
+        channel.attr(SessionCrypto.ATTR_CRYPTO).set(SessionCrypto.forUid(uid, SessionCrypto.Mode.of(cryptoMode)));
 
-        //3.channelId map userId
-        userIdMaps.put(channel.id().asLongText(), uid);
+        // 2. Store in memory, replacing an older channel of the same device
+        userChannels.compute(uid, (k, current) -> withChannel(current, deviceId, channel));
         
         log.info("Bound user: {}, device: {}, channel: {}", uid, deviceId, channel.id());
     }
@@ -53,24 +66,19 @@ public class ChannelManager {
     public void unbind(Channel channel) {
         if (channel == null) return;
 
-        userIdMaps.remove(channel.id().asLongText());
-
         String uid = channel.attr(ATTR_USER_ID).get();
         String deviceId = channel.attr(ATTR_DEVICE_ID).get();
         
         if (uid != null && deviceId != null) {
-            Map<String, Channel> deviceMap = userChannels.get(uid);
-            if (deviceMap != null) {
-                Channel storedChannel = deviceMap.get(deviceId);
-                // Only remove if it's the same channel (handling reconnections)
-                if (storedChannel == channel) {
-                    deviceMap.remove(deviceId);
-                    log.info("Unbound user: {}, device: {}, channel: {}", uid, deviceId, channel.id());
-                    
-                    if (deviceMap.isEmpty()) {
-                        userChannels.remove(uid);
-                    }
-                }
+            boolean[] removed = new boolean[1];
+            // Only remove if it's the same channel (handling reconnections)
+            userChannels.computeIfPresent(uid, (k, current) -> {
+                Object next = withoutChannel(current, channel);
+                removed[0] = next != current;
+                return next;
+            });
+            if (removed[0]) {
+                log.info("Unbound user: {}, device: {}, channel: {}", uid, deviceId, channel.id());
             }
         }
     }
@@ -82,9 +90,13 @@ public class ChannelManager {
      * @return Channel or null
      */
     public Channel getChannel(String uid, String deviceId) {
-        Map<String, Channel> deviceMap = userChannels.get(uid);
-        if (deviceMap != null) {
-            return deviceMap.get(deviceId);
+        Object value = userChannels.get(uid);
+        if (value instanceof Channel channel) {
+            return deviceId.equals(channel.attr(ATTR_DEVICE_ID).get()) ? channel : null;
+        }
+        if (value instanceof Channel[] channels) {
+            int i = indexOf(channels, deviceId);
+            return i >= 0 ? channels[i] : null;
         }
         return null;
     }
@@ -92,20 +104,78 @@ public class ChannelManager {
     /**
      * Get all channels for a user (multi-device support)
      * @param uid User ID
-     * @return Map of DeviceId -> Channel
+     * @return the user's channels, empty when not connected here
      */
-    public Map<String, Channel> getUserChannels(String uid) {
-        return userChannels.get(uid);
+    public List<Channel> getUserChannels(String uid) {
+        Object value = userChannels.get(uid);
+        if (value instanceof Channel channel) {
+            return List.of(channel);
+        }
+        if (value instanceof Channel[] channels) {
+            return Arrays.asList(channels);
+        }
+        return List.of();
     }
 
     /**
-     * get uid from channelId
-     * @return String <>uid</>
+     * Visit every bound channel (diagnostics)
      */
-    public String getUserIdByChannelId(String channelId) {
-        if(userIdMaps.containsKey(channelId)){
-            return userIdMaps.get(channelId);
+    public void forEachChannel(Consumer<Channel> action) {
+        for (Object value : userChannels.values()) {
+            if (value instanceof Channel channel) {
+                action.accept(channel);
+            } else {
+                for (Channel channel : (Channel[]) value) {
+                    action.accept(channel);
+                }
+            }
         }
-        return null;
+    }
+
+    public int userCount() {
+        return userChannels.size();
+    }
+
+    private static Object withChannel(Object current, String deviceId, Channel channel) {
+        if (current == null) {
+            return channel;
+        }
+        if (current instanceof Channel existing) {
+            return deviceId.equals(existing.attr(ATTR_DEVICE_ID).get()) ? channel : new Channel[]{existing, channel};
+        }
+        Channel[] channels = (Channel[]) current;
+        int i = indexOf(channels, deviceId);
+        Channel[] next = Arrays.copyOf(channels, i >= 0 ? channels.length : channels.length + 1);
+        next[i >= 0 ? i : channels.length] = channel;
+        return next;
+    }
+
+    private static Object withoutChannel(Object current, Channel channel) {
+        if (current == channel) {
+            return null;
+        }
+        if (!(current instanceof Channel[] channels)) {
+            return current;
+        }
+        int i = Arrays.asList(channels).indexOf(channel);
+        if (i < 0) {
+            return current;
+        }
+        if (channels.length == 2) {
+            return channels[1 - i];
+        }
+        Channel[] next = new Channel[channels.length - 1];
+        System.arraycopy(channels, 0, next, 0, i);
+        System.arraycopy(channels, i + 1, next, i, channels.length - i - 1);
+        return next;
+    }
+
+    private static int indexOf(Channel[] channels, String deviceId) {
+        for (int i = 0; i < channels.length; i++) {
+            if (deviceId.equals(channels[i].attr(ATTR_DEVICE_ID).get())) {
+                return i;
+            }
+        }
+        return -1;
     }
 }
@@ -0,0 +1,220 @@
+package com.teammors.server.im.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Node-local group membership: groupId -> immutable member array plus the group's version.
+ *
+ * The version lives in Redis (group:version:{groupId}) and is incremented by Create/Join/Leave/
+ * Dismiss after their membership writes are applied; the new value is broadcast on the cluster
+ * topic (see ClusterManager#publishGroupChange) and any cached entry with a different version is
+ * dropped. As a guard against a missed broadcast, an entry older than im.group-cache.revalidate-ms
+ * checks the version with a single GET before it is used again; only a changed version costs a
+ * fresh HKEYS.
+ *
+ * A miss reads the version first and the members second, so a cached member array is never older
+ * than its version. Entries are evicted least recently used first once im.group-cache.max-groups or
+ * im.group-cache.max-bytes (estimated) is exceeded.
+ */
+@Component
+public class GroupMemberCache {
+
+    private static final Logger log = LoggerFactory.getLogger(GroupMemberCache.class);
+
+    public static final String KEY_VERSION_PREFIX = "group:version:";
+
+    private static final String[] NO_MEMBERS = new String[0];
+    private static final int STRIPES = 1024;
+    // Entry, map node and array header
+    private static final int ENTRY_BYTES = 96;
+    // String object and array slot per member, plus one byte per char (compact strings)
+    private static final int MEMBER_BYTES = 48;
+
+    private static final class Entry {
+        final String[] members;
+        final long version;
+        final long bytes;
+        volatile long validatedAt;
+        volatile long lastUsed;
+
+        Entry(String[] members, long version, long now) {
+            this.members = members;
+            this.version = version;
+            long size = ENTRY_BYTES;
+            for (String member : members) {
+                size += MEMBER_BYTES + member.length();
+            }
+            this.bytes = size;
+            this.validatedAt = now;
+            this.lastUsed = now;
+        }
+    }
+
+    @Autowired
+    private RedisBatcher redisBatcher;
+
+    @Value("${im.group-cache.revalidate-ms:2000}")
+    private long revalidateMs;
+
+    @Value("${im.group-cache.max-groups:10000}")
+    private int maxGroups;
+
+    @Value("${im.group-cache.max-bytes:67108864}")
+    private long maxBytes;
+
+    private final ConcurrentHashMap<String, Entry> groups = new ConcurrentHashMap<>();
+    private final AtomicLongArray stamps = new AtomicLongArray(STRIPES);
+    private final AtomicLong totalBytes = new AtomicLong();
+    private final ReentrantLock evictLock = new ReentrantLock();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder revalidations = new LongAdder();
+    private final LongAdder staleOnRevalidate = new LongAdder();
+    private final LongAdder versionChanges = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Members of the group; empty if it does not exist. The array is shared and must not be modified.
+     */
+    public String[] members(String groupId) {
+        long now = System.currentTimeMillis();
+        Entry entry = groups.get(groupId);
+        if (entry != null) {
+            if (now - entry.validatedAt < revalidateMs || revalidate(groupId, entry, now)) {
+                hits.increment();
+                entry.lastUsed = now;
+                return entry.members;
+            }
+        }
+        misses.increment();
+
+        int stripe = stripe(groupId);
+        long stamp = stamps.get(stripe);
+        long version = parseVersion(redisBatcher.get(KEY_VERSION_PREFIX + groupId).join());
+        Set<String> keys = redisBatcher.hKeys(groupId).join();
+        String[] members = keys.isEmpty() ? NO_MEMBERS : keys.toArray(NO_MEMBERS);
+        if (members.length > 0 && stamps.get(stripe) == stamp) {
+            put(groupId, new Entry(members, version, now));
+        }
+        return members;
+    }
+
+    /**
+     * The group's version is now {@code version} (bumped here or on another node): drop an entry
+     * cached under any other version.
+     */
+    public void onVersion(String groupId, long version) {
+        versionChanges.increment();
+        stamps.incrementAndGet(stripe(groupId));
+        Entry entry = groups.get(groupId);
+        if (entry != null && entry.version != version && groups.remove(groupId, entry)) {
+            totalBytes.addAndGet(-entry.bytes);
+        }
+    }
+
+    // True if the entry is still current; a changed version drops it
+    private boolean revalidate(String groupId, Entry entry, long now) {
+        revalidations.increment();
+        long version = parseVersion(redisBatcher.get(KEY_VERSION_PREFIX + groupId).join());
+        if (version == entry.version) {
+            entry.validatedAt = now;
+            return true;
+        }
+        staleOnRevalidate.increment();
+        if (groups.remove(groupId, entry)) {
+            totalBytes.addAndGet(-entry.bytes);
+        }
+        return false;
+    }
+
+    private void put(String groupId, Entry entry) {
+        Entry previous = groups.put(groupId, entry);
+        totalBytes.addAndGet(entry.bytes - (previous != null ? previous.bytes : 0));
+        if (groups.size() > maxGroups || totalBytes.get() > maxBytes) {
+            evict();
+        }
+    }
+
+    // Over a limit: drop least recently used entries until under 90% of both.
+    // One evictor at a time; others skip instead of blocking (tryLock, no carrier pinning)
+    private void evict() {
+        if (!evictLock.tryLock()) {
+            return;
+        }
+        try {
+            long groupTarget = maxGroups - maxGroups / 10;
+            long byteTarget = maxBytes - maxBytes / 10;
+            List<Map.Entry<String, Entry>> byAge = new ArrayList<>(groups.entrySet());
+            byAge.sort(Comparator.comparingLong(e -> e.getValue().lastUsed));
+            for (Map.Entry<String, Entry> e : byAge) {
+                if (groups.size() <= groupTarget && totalBytes.get() <= byteTarget) {
+                    break;
+                }
+                if (groups.remove(e.getKey(), e.getValue())) {
+                    totalBytes.addAndGet(-e.getValue().bytes);
+                    evictions.increment();
+                }
+            }
+        } finally {
+            evictLock.unlock();
+        }
+    }
+
+    private static long parseVersion(String value) {
+        if (value == null) return 0;
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static int stripe(String groupId) {
+        return groupId.hashCode() & (STRIPES - 1);
+    }
+
+    /**
+     * Cached groups and estimated bytes, hits, misses, hit ratio (%), version checks and how many
+     * found a stale entry, version changes seen and evictions.
+     */
+    public Map<String, Long> metrics() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        Map<String, Long> m = new LinkedHashMap<>();
+        m.put("groups", (long) groups.size());
+        m.put("bytes", totalBytes.get());
+        m.put("hits", h);
+        m.put("misses", misses.sum());
+        m.put("hitRatio", total > 0 ? h * 100 / total : 0);
+        m.put("revalidations", revalidations.sum());
+        m.put("staleOnRevalidate", staleOnRevalidate.sum());
+        m.put("versionChanges", versionChanges.sum());
+        m.put("evicted", evictions.sum());
+        return m;
+    }
+
+    @Scheduled(fixedRate = 60000)
+    public void logMetrics() {
+        if (hits.sum() + misses.sum() > 0) {
+            log.info("Group member cache: {}", metrics());
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.teammors.server.im.service;
 
+import com.alibaba.fastjson.JSON;
 import com.teammors.server.im.cluster.ClusterManager;
 import com.teammors.server.im.entity.Message;
 import com.teammors.server.im.handler.EventHandler;
@@ -9,62 +10,246 @@ import io.netty.util.AttributeKey;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.function.Function;
-import java.util.stream.Collectors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 @Service
 public class IMService {
 
     private static final Logger log = LoggerFactory.getLogger(IMService.class);
 
-    private final Map<String, EventHandler> eventHandlerMap;
+    // Event codes are <category digit><6-digit sub code>, e.g. 1000001 or 5000004.
+    // Handlers sit in a dense array at category * CODES_PER_CATEGORY + sub code.
+    private static final int CATEGORY_DIVISOR = 1_000_000;
+    private static final int CODES_PER_CATEGORY = 64;
+
+    // Structured error pushed back when a session's mailbox is full (reject policy)
+    public static final int EVENT_OVERLOADED = 9000002;
+
+    // Per-channel FIFO of inbound events, created on the first event
+    private static final AttributeKey<SessionMailbox> ATTR_MAILBOX = AttributeKey.valueOf("mailbox");
+
+    /**
+     * What to do with an event when its session's mailbox is full.
+     */
+    public enum OverflowPolicy {
+        REJECT, DROP_OLDEST, DISCONNECT;
+
+        public static OverflowPolicy of(String value) {
+            if ("drop-oldest".equalsIgnoreCase(value)) return DROP_OLDEST;
+            if ("disconnect".equalsIgnoreCase(value)) return DISCONNECT;
+            return REJECT;
+        }
+    }
+
+    private final EventHandler[] eventHandlers;
+    private final EventStats[] eventStats;
     private final ChannelManager channelManager;
-    private final StringRedisTemplate redisTemplate;
+    private final RedisBatcher redisBatcher;
     private final ClusterManager clusterManager;
+    private final MessageSender messageSender;
+    private final RedisAdmission redisAdmission;
+    private final int mailboxMaxDepth;
+    private final OverflowPolicy overflowPolicy;
     
     // Virtual Thread Executor for dispatching events
     private final ExecutorService virtualThreadExecutor = Executors.newVirtualThreadPerTaskExecutor();
 
+    // Events queued in all mailboxes, and the deepest single mailbox since the last metrics log
+    private final AtomicInteger queuedEvents = new AtomicInteger();
+    private final AtomicInteger maxMailboxDepth = new AtomicInteger();
+
     @Autowired
-    public IMService(List<EventHandler> eventHandlers, ChannelManager channelManager, StringRedisTemplate redisTemplate, ClusterManager clusterManager) {
-        this.eventHandlerMap = eventHandlers.stream()
-                .collect(Collectors.toMap(EventHandler::getEventId, Function.identity()));
+    public IMService(List<EventHandler> eventHandlers, ChannelManager channelManager, RedisBatcher redisBatcher,
+                     ClusterManager clusterManager, MessageSender messageSender, RedisAdmission redisAdmission,
+                     @Value("${im.mailbox.max-depth:256}") int mailboxMaxDepth,
+                     @Value("${im.mailbox.overflow:reject}") String overflowPolicy) {
+        this.eventHandlers = new EventHandler[10 * CODES_PER_CATEGORY];
+        this.eventStats = new EventStats[this.eventHandlers.length];
+        for (EventHandler handler : eventHandlers) {
+            int slot = slotOf(handler.getEventCode());
+            if (slot < 0) {
+                throw new IllegalStateException("Event code out of range: " + handler.getEventCode());
+            }
+            if (this.eventHandlers[slot] != null) {
+                throw new IllegalStateException("Duplicate handler for event " + handler.getEventCode());
+            }
+            this.eventHandlers[slot] = handler;
+            this.eventStats[slot] = new EventStats();
+        }
         this.channelManager = channelManager;
-        this.redisTemplate = redisTemplate;
+        this.redisBatcher = redisBatcher;
         this.clusterManager = clusterManager;
+        this.messageSender = messageSender;
+        this.redisAdmission = redisAdmission;
+        this.mailboxMaxDepth = Math.max(1, mailboxMaxDepth);
+        this.overflowPolicy = OverflowPolicy.of(overflowPolicy);
     }
 
     public void handleEvent(ChannelHandlerContext ctx, Message msg) {
-        String eventId = msg.getEventId();
-        if (eventId == null) return;
+        int eventId = msg.getEventId();
+        if (eventId == 0) return;
 
-        EventHandler handler = eventHandlerMap.get(eventId);
+        int slot = slotOf(eventId);
+        EventHandler handler = slot >= 0 ? eventHandlers[slot] : null;
         if (handler != null) {
-            // Dispatch to Virtual Thread
-            virtualThreadExecutor.submit(() -> {
+            EventStats stats = eventStats[slot];
+            long enqueuedAt = System.nanoTime();
+            Runnable task = () -> {
+                queuedEvents.decrementAndGet();
+                stats.recordWait(System.nanoTime() - enqueuedAt);
                 try {
-                    handler.handle(ctx, msg);
+                    redisAdmission.run(handler.getRedisClass(), () -> handler.handle(ctx, msg));
+                } catch (RejectedExecutionException e) {
+                    log.warn("Event {} rejected: {}", eventId, e.getMessage());
+                    sendOverloaded(ctx, eventId);
                 } catch (Exception e) {
                     log.error("Error handling event {}", eventId, e);
                 }
-            });
+            };
+            // In order per session, on a Virtual Thread
+            enqueue(ctx, new SessionMailbox.Envelope(eventId, enqueuedAt, task), stats);
         } else {
             log.warn("Unknown event: {}", eventId);
         }
     }
     
+    private void enqueue(ChannelHandlerContext ctx, SessionMailbox.Envelope envelope, EventStats stats) {
+        Channel channel = ctx.channel();
+        SessionMailbox mailbox = channel.attr(ATTR_MAILBOX).get();
+        if (mailbox == null) {
+            mailbox = new SessionMailbox(virtualThreadExecutor);
+            channel.attr(ATTR_MAILBOX).set(mailbox);
+        }
+
+        int depth = mailbox.offer(envelope, mailboxMaxDepth);
+        if (depth < 0 && overflowPolicy == OverflowPolicy.DROP_OLDEST) {
+            SessionMailbox.Envelope dropped = mailbox.pollOldest();
+            if (dropped != null) {
+                queuedEvents.decrementAndGet();
+                // Only events with a registered handler are ever queued
+                eventStats[slotOf(dropped.eventId())].dropped.increment();
+            }
+            depth = mailbox.offer(envelope, mailboxMaxDepth);
+        }
+        if (depth >= 0) {
+            queuedEvents.incrementAndGet();
+            maxMailboxDepth.accumulateAndGet(depth, Math::max);
+            return;
+        }
+
+        stats.rejected.increment();
+        String uid = channel.attr(ChannelManager.ATTR_USER_ID).get();
+        if (overflowPolicy == OverflowPolicy.DISCONNECT) {
+            log.warn("Mailbox full for user {} on channel {}, closing", uid, channel.id());
+            channel.close();
+        } else {
+            log.warn("Mailbox full for user {} on channel {}, rejecting event {}", uid, channel.id(), envelope.eventId());
+            sendOverloaded(ctx, envelope.eventId());
+        }
+    }
+
+    private void sendOverloaded(ChannelHandlerContext ctx, int eventId) {
+        String uid = ctx.channel().attr(ChannelManager.ATTR_USER_ID).get();
+        messageSender.sendResponse(ctx, EVENT_OVERLOADED, "SYSTEM", uid,
+                JSON.toJSONString(Map.of("code", "OVERLOADED", "eventId", String.valueOf(eventId))));
+    }
+
+    /**
+     * Mailbox depth and, per event type: events run, average / max wait in the mailbox (ms),
+     * rejected and dropped on overflow.
+     */
+    public Map<String, Object> metrics() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("queuedEvents", queuedEvents.get());
+        m.put("maxMailboxDepth", maxMailboxDepth.get());
+        for (int slot = 0; slot < eventStats.length; slot++) {
+            EventStats stats = eventStats[slot];
+            if (stats != null && (stats.events.sum() > 0 || stats.rejected.sum() > 0)) {
+                m.put(eventHandlers[slot].getEventId(), stats.snapshot());
+            }
+        }
+        return m;
+    }
+
+    @Scheduled(fixedRate = 60000)
+    public void logMetrics() {
+        if (queuedEvents.get() > 0 || maxMailboxDepth.get() > 1) {
+            log.info("Event mailboxes: {}", metrics());
+        }
+        maxMailboxDepth.set(0);
+        for (EventStats stats : eventStats) {
+            if (stats != null) stats.maxWaitNanos.set(0);
+        }
+    }
+
+    private static final class EventStats {
+        final LongAdder events = new LongAdder();
+        final LongAdder waitNanos = new LongAdder();
+        final AtomicLong maxWaitNanos = new AtomicLong();
+        final LongAdder rejected = new LongAdder();
+        final LongAdder dropped = new LongAdder();
+
+        void recordWait(long nanos) {
+            events.increment();
+            waitNanos.add(nanos);
+            maxWaitNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        Map<String, Long> snapshot() {
+            long count = events.sum();
+            Map<String, Long> m = new LinkedHashMap<>();
+            m.put("events", count);
+            m.put("avgWaitMs", count > 0 ? TimeUnit.NANOSECONDS.toMillis(waitNanos.sum() / count) : 0);
+            m.put("maxWaitMs", TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get()));
+            m.put("rejected", rejected.sum());
+            m.put("dropped", dropped.sum());
+            return m;
+        }
+    }
+
+    private static int slotOf(int code) {
+        int category = code / CATEGORY_DIVISOR;
+        int sub = code % CATEGORY_DIVISOR;
+        if (code <= 0 || category >= 10 || sub >= CODES_PER_CATEGORY) {
+            return -1;
+        }
+        return category * CODES_PER_CATEGORY + sub;
+    }
+
     public void executeAsync(Runnable task) {
         virtualThreadExecutor.submit(task);
     }
 
+    /**
+     * Run Redis-bound work on a Virtual Thread once {@link RedisAdmission} lets it in;
+     * dropped (and counted) if it cannot get a permit in time.
+     */
+    public void executeAsync(RedisAdmission.OpClass opClass, Runnable task) {
+        virtualThreadExecutor.submit(() -> {
+            try {
+                redisAdmission.run(opClass, task);
+            } catch (RejectedExecutionException e) {
+                log.warn("Async task dropped: {}", e.getMessage());
+            } catch (Exception e) {
+                log.error("Error in async task", e);
+            }
+        });
+    }
+
     public void removeChannel(Channel channel) {
         // 1. Remove from ChannelManager (Local memory)
         channelManager.unbind(channel);
@@ -75,17 +260,16 @@ public class IMService {
             String deviceId = channel.attr(ChannelManager.ATTR_DEVICE_ID).get();
             
             if (uid != null && deviceId != null) {
-                try {
-                    // Remove from Global Session
-                    redisTemplate.opsForHash().delete("session:" + uid, deviceId);
-                    
-                    // Remove from Cluster Reverse Index (important for consistency)
-                    clusterManager.unregisterSession(uid, deviceId);
-                    
-                    log.info("Cleaned up Redis session for user {} device {}", uid, deviceId);
-                } catch (Exception e) {
-                    log.error("Failed to clean up Redis session for user {}", uid, e);
-                }
+                // Called on the event loop: queue both deletes on the batcher instead of blocking it
+                // Remove from Global Session
+                // Other nodes drop their cached route once the HDEL is applied
+                RedisBatcher.logFailure(redisBatcher.hDel("session:" + uid, deviceId)
+                        .thenCompose(removed -> clusterManager.publishRouteChange(uid)), "session HDEL");
+                
+                // Remove from Cluster Reverse Index (important for consistency)
+                RedisBatcher.logFailure(clusterManager.unregisterSession(uid, deviceId), "instance session SREM");
+                
+                log.info("Cleaned up Redis session for user {} device {}", uid, deviceId);
             }
         }
     }
@@ -2,14 +2,13 @@ package com.teammors.server.im.service;
 
 import com.alibaba.fastjson.JSON;
 import com.teammors.server.im.entity.Message;
-import com.teammors.server.im.utils.SecurityUtil;
+import com.teammors.server.im.netty.codec.OutboundMessage;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.util.AttributeKey;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
 @Service
@@ -17,26 +16,29 @@ public class MessageSender {
 
     private static final Logger log = LoggerFactory.getLogger(MessageSender.class);
 
+    // Set once something is in ack:msg:{uid} for this channel; heartbeats only check Redis while set
+    public static final AttributeKey<Boolean> ATTR_ACK_PENDING = AttributeKey.valueOf("ackPending");
+
     @Autowired
-    private StringRedisTemplate redisTemplate;
+    private RedisBatcher redisBatcher;
 
     @Autowired
     ChannelManager channelManager;
 
+    @Autowired
+    private BackpressureManager backpressureManager;
+
     /**
      * Send message to channel without caching (e.g. Pong, System Response)
      */
     public void send(Channel channel, Message msg) {
         if (channel != null && channel.isActive()) {
-
-            //encrypt data
-            String text = JSON.toJSONString(msg);
-            String uid = channelManager.getUserIdByChannelId(channel.id().asLongText());
-            if(uid != null){
-                text = SecurityUtil.encrypt(SecurityUtil.getUidKey(uid), text);
+            if (!channel.isWritable()) {
+                // Slow consumer: don't grow the outbound buffer
+                backpressureManager.rejectEphemeral(channel, msg);
+                return;
             }
-
-            channel.writeAndFlush(new TextWebSocketFrame(text));
+            write(channel, msg);
         }
     }
     
@@ -49,32 +51,84 @@ public class MessageSender {
         }
     }
 
+    /**
+     * Re-send a message that is already in the ACK cache (unacked / timed-out resend).
+     * On a slow consumer it stays parked in the cache for the next resend round.
+     */
+    public void sendCached(Channel channel, Message msg) {
+        if (channel != null && channel.isActive()) {
+            channel.attr(ATTR_ACK_PENDING).set(Boolean.TRUE);
+            if (!channel.isWritable()) {
+                backpressureManager.park(channel, 0);
+                return;
+            }
+            write(channel, msg);
+        }
+    }
+
+    public void sendCached(ChannelHandlerContext ctx, Message msg) {
+        if (ctx != null) {
+            sendCached(ctx.channel(), msg);
+        }
+    }
+
     /**
      * Send message and cache it for ACK mechanism (QoS 1)
      * Should be used for Private/Group messages that require reliability.
+     * A message without toUid or sTimest cannot be cached: it is written if the channel is
+     * writable and otherwise handled like {@link #send} on a slow consumer.
      */
     public void sendAndCache(Channel channel, Message msg) {
         if (channel != null && channel.isActive()) {
+            // Serialize once: the same JSON bytes feed the ACK cache and the text frame
+            byte[] json = JSON.toJSONBytes(msg);
+
             // Cache for ACK
             String toUid = msg.getToUid();
-            String sTimest = msg.getSTimest();
+            long sTimest = msg.getSTimest();
             
-            if (toUid != null && sTimest != null && !sTimest.isEmpty()) {
+            boolean cached = toUid != null && sTimest != 0;
+            if (cached) {
                 // Key: ack:msg:{userId}  HashKey: sTimest  Value: MessageJSON
-                redisTemplate.opsForHash().put("ack:msg:" + toUid, sTimest, JSON.toJSONString(msg));
+                cacheForAck(toUid, String.valueOf(sTimest), json);
+                channel.attr(ATTR_ACK_PENDING).set(Boolean.TRUE);
             }
 
-            //encrypt data
-            String text = JSON.toJSONString(msg);
-            String uid = channelManager.getUserIdByChannelId(channel.id().asLongText());
-            if(uid != null){
-                text = SecurityUtil.encrypt(SecurityUtil.getUidKey(uid), text);
+            if (!channel.isWritable()) {
+                if (cached) {
+                    // Slow consumer: leave it parked in the ack store, resent on heartbeat / reconnect
+                    backpressureManager.park(channel, json.length);
+                } else {
+                    // Nothing in the ack store to resend from: same policy as an ephemeral message
+                    log.warn("Message without toUid/sTimest cannot be ack cached, rejected on slow consumer {}", channel.id());
+                    backpressureManager.rejectEphemeral(channel, msg);
+                }
+                return;
             }
+
             // Send
-            channel.writeAndFlush(new TextWebSocketFrame(text));
+            write(channel, msg, json);
         }
     }
-    
+
+    // Not awaited: the batcher keeps per-key order, so a later ACK's HDEL cannot overtake this HSET
+    private void cacheForAck(String toUid, String sTimest, byte[] json) {
+        RedisBatcher.logFailure(redisBatcher.hSet("ack:msg:" + toUid, sTimest, json), "ack cache HSET");
+    }
+
+    private void write(Channel channel, Message msg) {
+        write(channel, msg, null);
+    }
+
+    /**
+     * Hand the message to the pipeline; OutboundMessageEncoder builds the frame for the
+     * negotiated protocol and WriteCoalescingHandler batches the flush.
+     * @param json already serialized JSON of msg, or null to serialize on encode
+     */
+    private void write(Channel channel, Message msg, byte[] json) {
+        channel.writeAndFlush(new OutboundMessage(msg, json));
+    }
+
     public void sendAndCache(ChannelHandlerContext ctx, Message msg) {
         if (ctx != null) {
             sendAndCache(ctx.channel(), msg);
@@ -84,14 +138,14 @@ public class MessageSender {
     /**
      * Send a simple system response (e.g. "Success", "Fail")
      */
-    public void sendResponse(ChannelHandlerContext ctx, String eventId, String fromUid, String toUid, String body) {
+    public void sendResponse(ChannelHandlerContext ctx, int eventId, String fromUid, String toUid, String body) {
         Message resp = new Message();
         resp.setEventId(eventId);
         resp.setFromUid(fromUid != null ? fromUid : "SYSTEM");
         resp.setToUid(toUid);
         resp.setDataBody(body);
-        resp.setSTimest(String.valueOf(System.currentTimeMillis()));
-        resp.setIsCache("0"); // System responses usually don't need caching
+        resp.setSTimest(System.currentTimeMillis());
+        resp.setCache(false); // System responses usually don't need caching
         
         send(ctx, resp);
     }
@@ -99,7 +153,7 @@ public class MessageSender {
     /**
      * Send a simple system response using original message context
      */
-    public void sendResponse(ChannelHandlerContext ctx, Message originalMsg, String eventId, String body) {
+    public void sendResponse(ChannelHandlerContext ctx, Message originalMsg, int eventId, String body) {
         sendResponse(ctx, eventId, "SYSTEM", originalMsg.getFromUid(), body);
     }
 }
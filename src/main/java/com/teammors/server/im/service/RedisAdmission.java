@@ -0,0 +1,254 @@
+package com.teammors.server.im.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Admission control in front of {@link RedisBatcher}.
+ *
+ * Virtual threads are cheap, Redis capacity is not: the batcher keeps at most
+ * flushers x max-in-flight x max-batch commands on the wire (2 x 4 x 128 = 1024 by default) and
+ * queues the rest, first come first served. Every Redis-bound task first takes a permit of its
+ * class (per-class concurrency limit), then one of the shared permits. Both are sized against
+ * that window: a single-message task has one to a few commands outstanding at a time, so 256 tasks
+ * roughly fill it, while a group batch task pipelines up to one per member (500), so the group
+ * limit stays in single digits. Beyond that, extra tasks wait here, where permits go to waiters by
+ * class priority so ACKs and logins overtake group fan-out, instead of in the batcher's queue. A
+ * task that cannot get in within the timeout fails fast with {@link RejectedExecutionException}.
+ * Resize the permits together with im.redis.batch.*.
+ *
+ * Limits: im.redis.admission.limit.{ack|login|delivery|group|maintenance}.
+ */
+@Component
+public class RedisAdmission {
+
+    private static final Logger log = LoggerFactory.getLogger(RedisAdmission.class);
+
+    /**
+     * Class of Redis work, in priority order (first = most urgent).
+     */
+    public enum OpClass {
+        ACK, LOGIN, DELIVERY, GROUP, MAINTENANCE;
+
+        String key() {
+            return name().toLowerCase();
+        }
+    }
+
+    private final PriorityGate shared;
+    private final long timeoutNanos;
+    private final Map<OpClass, Semaphore> classPermits = new EnumMap<>(OpClass.class);
+    private final Map<OpClass, ClassStats> stats = new EnumMap<>(OpClass.class);
+
+    public RedisAdmission(Environment env,
+                          @Value("${im.redis.admission.permits:256}") int permits,
+                          @Value("${im.redis.admission.timeout-ms:1000}") long timeoutMs) {
+        this.shared = new PriorityGate(Math.max(1, permits));
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        for (OpClass opClass : OpClass.values()) {
+            int limit = env.getProperty("im.redis.admission.limit." + opClass.key(), Integer.class, permits);
+            classPermits.put(opClass, new Semaphore(Math.max(1, limit)));
+            stats.put(opClass, new ClassStats());
+        }
+    }
+
+    /**
+     * Run a Redis-bound task once admitted.
+     * @throws RejectedExecutionException if no permit was free within the timeout
+     */
+    public void run(OpClass opClass, Runnable task) {
+        call(opClass, () -> {
+            task.run();
+            return null;
+        });
+    }
+
+    /**
+     * Run a Redis-bound call once admitted and return its result.
+     * @throws RejectedExecutionException if no permit was free within the timeout
+     */
+    public <T> T call(OpClass opClass, Supplier<T> task) {
+        long start = System.nanoTime();
+        ClassStats s = stats.get(opClass);
+        Semaphore classPermit = classPermits.get(opClass);
+        boolean admitted = false;
+        T result = null;
+        try {
+            if (classPermit.tryAcquire(timeoutNanos, TimeUnit.NANOSECONDS)) {
+                try {
+                    long remaining = timeoutNanos - (System.nanoTime() - start);
+                    if (shared.acquire(opClass.ordinal(), remaining)) {
+                        admitted = true;
+                        s.admitted(System.nanoTime() - start);
+                        try {
+                            result = task.get();
+                        } finally {
+                            s.inFlight.decrementAndGet();
+                            shared.release();
+                        }
+                    }
+                } finally {
+                    classPermit.release();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!admitted) {
+            s.rejected.increment();
+            throw new RejectedExecutionException("Redis admission timed out for " + opClass.key());
+        }
+        return result;
+    }
+
+    /**
+     * Per class: admitted, rejected, in flight, average / max wait for a permit (ms).
+     */
+    public Map<String, Map<String, Long>> metrics() {
+        Map<String, Map<String, Long>> m = new LinkedHashMap<>();
+        stats.forEach((opClass, s) -> m.put(opClass.key(), s.snapshot()));
+        return m;
+    }
+
+    @Scheduled(fixedRate = 60000)
+    public void logMetrics() {
+        boolean busy = stats.values().stream().anyMatch(s -> s.rejected.sum() > 0 || s.maxWaitNanos.get() > 0);
+        if (busy) {
+            log.info("Redis admission: {}", metrics());
+        }
+        stats.values().forEach(s -> s.maxWaitNanos.set(0));
+    }
+
+    private static final class ClassStats {
+        final LongAdder admitted = new LongAdder();
+        final LongAdder rejected = new LongAdder();
+        final LongAdder waitNanos = new LongAdder();
+        final AtomicLong maxWaitNanos = new AtomicLong();
+        final AtomicInteger inFlight = new AtomicInteger();
+
+        void admitted(long waited) {
+            admitted.increment();
+            inFlight.incrementAndGet();
+            waitNanos.add(waited);
+            // Below a millisecond is just the uncontended path
+            if (waited >= 1_000_000) {
+                maxWaitNanos.accumulateAndGet(waited, Math::max);
+            }
+        }
+
+        Map<String, Long> snapshot() {
+            long count = admitted.sum();
+            Map<String, Long> m = new LinkedHashMap<>();
+            m.put("admitted", count);
+            m.put("rejected", rejected.sum());
+            m.put("inFlight", (long) inFlight.get());
+            m.put("avgWaitMs", count > 0 ? TimeUnit.NANOSECONDS.toMillis(waitNanos.sum() / count) : 0);
+            m.put("maxWaitMs", TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get()));
+            return m;
+        }
+    }
+
+    /**
+     * Counting semaphore whose free permits go to the highest-priority (lowest value) waiter,
+     * FIFO within a priority.
+     */
+    private static final class PriorityGate {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final PriorityQueue<Waiter> waiters = new PriorityQueue<>();
+        private int available;
+        private long sequence;
+
+        PriorityGate(int permits) {
+            this.available = permits;
+        }
+
+        boolean acquire(int priority, long timeoutNanos) throws InterruptedException {
+            lock.lock();
+            try {
+                if (available > 0 && waiters.isEmpty()) {
+                    available--;
+                    return true;
+                }
+                Waiter waiter = new Waiter(priority, sequence++, lock.newCondition());
+                waiters.add(waiter);
+                long remaining = timeoutNanos;
+                try {
+                    while (!waiter.granted) {
+                        if (remaining <= 0) {
+                            waiters.remove(waiter);
+                            return false;
+                        }
+                        remaining = waiter.condition.awaitNanos(remaining);
+                    }
+                    return true;
+                } catch (InterruptedException e) {
+                    if (waiter.granted) {
+                        releaseLocked();
+                    } else {
+                        waiters.remove(waiter);
+                    }
+                    throw e;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void release() {
+            lock.lock();
+            try {
+                releaseLocked();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void releaseLocked() {
+            Waiter next = waiters.poll();
+            if (next != null) {
+                next.granted = true;
+                next.condition.signal();
+            } else {
+                available++;
+            }
+        }
+
+        private static final class Waiter implements Comparable<Waiter> {
+            final int priority;
+            final long sequence;
+            final Condition condition;
+            boolean granted;
+
+            Waiter(int priority, long sequence, Condition condition) {
+                this.priority = priority;
+                this.sequence = sequence;
+                this.condition = condition;
+            }
+
+            @Override
+            public int compareTo(Waiter other) {
+                return priority != other.priority
+                        ? Integer.compare(priority, other.priority)
+                        : Long.compare(sequence, other.sequence);
+            }
+        }
+    }
+}
@@ -0,0 +1,505 @@
+package com.teammors.server.im.service;
+
+import io.lettuce.core.AbstractRedisClient;
+import io.lettuce.core.Range;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.XAddArgs;
+import io.lettuce.core.api.StatefulConnection;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.cluster.RedisClusterClient;
+import io.lettuce.core.cluster.api.StatefulRedisClusterConnection;
+import io.lettuce.core.cluster.api.async.RedisClusterAsyncCommands;
+import io.lettuce.core.codec.ByteArrayCodec;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Auto-pipelining facade over the Redis connection.
+ *
+ * Callers (usually virtual threads) submit single commands and get a future back. A small set of
+ * flusher threads collects whatever arrives within a short window (or up to max-batch commands)
+ * and sends it as one pipeline, so concurrent messages share round trips instead of paying one
+ * each. Commands are routed to a flusher by key, so commands on the same key reach Redis in
+ * submission order even when the caller does not wait for the result.
+ *
+ * Each flusher owns a Lettuce connection (from the same client Spring Data uses, so the same
+ * endpoint, auth and database) with auto-flush off: a batch is written with one flushCommands()
+ * and every caller's future is completed from its own command's reply. Spring's closePipeline()
+ * is not used because it drops status replies (LTRIM's "OK"), which shifts positional results.
+ *
+ * A flusher does not wait for a batch's replies before writing the next one: up to max-in-flight
+ * batches share the connection, whose replies come back in write order. Replies are decoded and
+ * handed to callers on virtual threads, never on the flusher or the Lettuce I/O thread.
+ *
+ * Settings: im.redis.batch.{window-micros|max-batch|flushers|max-in-flight|queue-capacity|timeout-ms}.
+ */
+@Component
+public class RedisBatcher {
+
+    private static final Logger log = LoggerFactory.getLogger(RedisBatcher.class);
+
+    @Autowired
+    private RedisConnectionFactory connectionFactory;
+
+    @Value("${im.redis.batch.window-micros:200}")
+    private long windowMicros;
+
+    @Value("${im.redis.batch.max-batch:128}")
+    private int maxBatch;
+
+    @Value("${im.redis.batch.flushers:2}")
+    private int flusherCount;
+
+    // Batches written to a flusher's connection whose replies are not all back yet
+    @Value("${im.redis.batch.max-in-flight:4}")
+    private int maxInFlight;
+
+    @Value("${im.redis.batch.queue-capacity:16384}")
+    private int queueCapacity;
+
+    // How long a batch's replies may take before the rest of it fails
+    @Value("${im.redis.batch.timeout-ms:5000}")
+    private long timeoutMs;
+
+    private Flusher[] flushers;
+
+    // Decodes replies and completes callers' futures, off the flusher and Lettuce I/O threads
+    private final Executor replyExecutor =
+            Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("redis-reply-", 0).factory());
+
+    private final LongAdder commands = new LongAdder();
+    private final LongAdder roundTrips = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder flushNanos = new LongAdder();
+    private final AtomicLong maxBatchSeen = new AtomicLong();
+    private final AtomicLong maxFlushNanos = new AtomicLong();
+
+    private record Command(Function<RedisClusterAsyncCommands<byte[], byte[]>, RedisFuture<?>> op,
+                           Function<Object, ?> decoder, CompletableFuture<Object> future) {
+    }
+
+    /**
+     * A flusher's dedicated connection and its async command interface.
+     */
+    record Link(StatefulConnection<byte[], byte[]> connection, RedisClusterAsyncCommands<byte[], byte[]> commands) {
+    }
+
+    @PostConstruct
+    public void start() {
+        flushers = new Flusher[Math.max(1, flusherCount)];
+        for (int i = 0; i < flushers.length; i++) {
+            flushers[i] = new Flusher(i);
+            flushers[i].start();
+        }
+        log.info("Redis batcher started: {} flushers, window {}us, max batch {}, {} batches in flight",
+                flushers.length, windowMicros, maxBatch, maxInFlight);
+    }
+
+    @PreDestroy
+    public void stop() {
+        for (Flusher flusher : flushers) {
+            flusher.running = false;
+            flusher.interrupt();
+        }
+    }
+
+    // ---- Commands ----
+
+    public CompletableFuture<String> get(String key) {
+        return submit(key, c -> c.get(bytes(key)), RedisBatcher::string);
+    }
+
+    public CompletableFuture<Long> incr(String key) {
+        return submit(key, c -> c.incr(bytes(key)), RedisBatcher::number);
+    }
+
+    public CompletableFuture<Boolean> exists(String key) {
+        return submit(key, c -> c.exists(bytes(key)), r -> number(r) > 0);
+    }
+
+    public CompletableFuture<Long> del(String key) {
+        return submit(key, c -> c.del(bytes(key)), RedisBatcher::number);
+    }
+
+    public CompletableFuture<Map<String, String>> hGetAll(String key) {
+        return submit(key, c -> c.hgetall(bytes(key)), RedisBatcher::stringMap);
+    }
+
+    public CompletableFuture<String> hGet(String key, String field) {
+        return submit(key, c -> c.hget(bytes(key), bytes(field)), RedisBatcher::string);
+    }
+
+    public CompletableFuture<Set<String>> hKeys(String key) {
+        return submit(key, c -> c.hkeys(bytes(key)), RedisBatcher::stringSet);
+    }
+
+    public CompletableFuture<Boolean> hSet(String key, String field, String value) {
+        return hSet(key, field, bytes(value));
+    }
+
+    /**
+     * HSET with an already serialized value, so large payloads skip a String round trip.
+     */
+    public CompletableFuture<Boolean> hSet(String key, String field, byte[] value) {
+        return submit(key, c -> c.hset(bytes(key), bytes(field), value), r -> Boolean.TRUE.equals(r));
+    }
+
+    public CompletableFuture<Long> hDel(String key, String... fields) {
+        return submit(key, c -> c.hdel(bytes(key), bytes(fields)), RedisBatcher::number);
+    }
+
+    public CompletableFuture<Long> rPush(String key, String value) {
+        return submit(key, c -> c.rpush(bytes(key), bytes(value)), RedisBatcher::number);
+    }
+
+    public CompletableFuture<Long> lLen(String key) {
+        return submit(key, c -> c.llen(bytes(key)), RedisBatcher::number);
+    }
+
+    public CompletableFuture<List<String>> lRange(String key, long start, long end) {
+        return submit(key, c -> c.lrange(bytes(key), start, end), RedisBatcher::stringList);
+    }
+
+    public CompletableFuture<Void> lTrim(String key, long start, long end) {
+        return submit(key, c -> c.ltrim(bytes(key), start, end), r -> null);
+    }
+
+    public CompletableFuture<Long> sAdd(String key, String member) {
+        return submit(key, c -> c.sadd(bytes(key), bytes(member)), RedisBatcher::number);
+    }
+
+    public CompletableFuture<Long> sRem(String key, String member) {
+        return submit(key, c -> c.srem(bytes(key), bytes(member)), RedisBatcher::number);
+    }
+
+    /**
+     * XADD key [MAXLEN ~ maxLen] * with the given fields.
+     * @param maxLen approximate length to trim the stream to, 0 = no trimming
+     */
+    public CompletableFuture<RecordId> xAdd(String key, Map<String, String> fields, long maxLen) {
+        Map<String, byte[]> body = new LinkedHashMap<>(fields.size() * 2);
+        fields.forEach((field, value) -> body.put(field, bytes(value)));
+        return xAddRaw(key, body, maxLen);
+    }
+
+    /**
+     * {@link #xAdd} with binary field values.
+     */
+    public CompletableFuture<RecordId> xAddRaw(String key, Map<String, byte[]> fields, long maxLen) {
+        Map<byte[], byte[]> body = new LinkedHashMap<>(fields.size() * 2);
+        fields.forEach((field, value) -> body.put(bytes(field), value));
+        XAddArgs args = maxLen > 0 ? new XAddArgs().maxlen(maxLen).approximateTrimming() : new XAddArgs();
+        return submit(key, c -> c.xadd(bytes(key), args, body), r -> RecordId.of((String) r));
+    }
+
+    public CompletableFuture<Long> xAck(String key, String group, RecordId... ids) {
+        return submit(key, c -> c.xack(bytes(key), bytes(group), values(ids)), RedisBatcher::number);
+    }
+
+    public CompletableFuture<Long> xDel(String key, RecordId... ids) {
+        return submit(key, c -> c.xdel(bytes(key), values(ids)), RedisBatcher::number);
+    }
+
+    /**
+     * Whether the entry is still in the stream (XRANGE key id id); gone once read and deleted, or trimmed.
+     */
+    public CompletableFuture<Boolean> xExists(String key, RecordId id) {
+        return submit(key, c -> c.xrange(bytes(key), Range.create(id.getValue(), id.getValue())),
+                r -> r instanceof Collection<?> entries && !entries.isEmpty());
+    }
+
+    /**
+     * PUBLISH channel message; ordered with other commands on the same channel name only.
+     */
+    public CompletableFuture<Long> publish(String channel, String message) {
+        return submit(channel, c -> c.publish(bytes(channel), bytes(message)), RedisBatcher::number);
+    }
+
+    /**
+     * Complete-and-forget: log a failed write instead of leaving it unobserved.
+     */
+    public static void logFailure(CompletableFuture<?> future, String what) {
+        future.whenComplete((r, e) -> {
+            if (e != null) {
+                log.error("Redis {} failed", what, e);
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> CompletableFuture<T> submit(String key, Function<RedisClusterAsyncCommands<byte[], byte[]>, RedisFuture<?>> op,
+                                            Function<Object, T> decoder) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        Flusher flusher = flushers[Math.floorMod(key.hashCode(), flushers.length)];
+        if (!flusher.queue.offer(new Command(op, decoder, future))) {
+            rejected.increment();
+            future.completeExceptionally(new RejectedExecutionException("Redis batch queue full"));
+        }
+        return (CompletableFuture<T>) future;
+    }
+
+    // ---- Flushing ----
+
+    /**
+     * Open a dedicated connection on the client behind the Spring connection factory.
+     */
+    Link connect() {
+        if (!(connectionFactory instanceof LettuceConnectionFactory lettuce)) {
+            throw new IllegalStateException("RedisBatcher needs a LettuceConnectionFactory");
+        }
+        AbstractRedisClient client = lettuce.getRequiredNativeClient();
+        if (client instanceof RedisClusterClient cluster) {
+            StatefulRedisClusterConnection<byte[], byte[]> connection = cluster.connect(ByteArrayCodec.INSTANCE);
+            connection.setAutoFlushCommands(false);
+            return new Link(connection, connection.async());
+        }
+        StatefulRedisConnection<byte[], byte[]> connection = ((RedisClient) client).connect(ByteArrayCodec.INSTANCE);
+        connection.setAutoFlushCommands(false);
+        return new Link(connection, connection.async());
+    }
+
+    private final class Flusher extends Thread {
+        final BlockingQueue<Command> queue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+        final Semaphore inFlight = new Semaphore(Math.max(1, maxInFlight));
+        volatile boolean running = true;
+        // Only touched by this thread; Lettuce reconnects it on its own after a disconnect
+        private Link link;
+
+        Flusher(int index) {
+            super("redis-batcher-" + index);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            long windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+            List<Command> batch = new ArrayList<>(maxBatch);
+            while (running) {
+                try {
+                    Command first = queue.poll(1, TimeUnit.SECONDS);
+                    if (first == null) continue;
+                    batch.add(first);
+                    // Gather whatever else arrives within the window
+                    long deadline = System.nanoTime() + windowNanos;
+                    while (batch.size() < maxBatch) {
+                        queue.drainTo(batch, maxBatch - batch.size());
+                        long remaining = deadline - System.nanoTime();
+                        if (batch.size() >= maxBatch || remaining <= 0) break;
+                        Command next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                        if (next == null) break;
+                        batch.add(next);
+                    }
+                    // All slots busy: wait for the oldest batch, meanwhile the queue fills the next one
+                    inFlight.acquire();
+                    flush(batch.toArray(new Command[0]));
+                } catch (InterruptedException e) {
+                    for (Command command : batch) {
+                        command.future().completeExceptionally(new RejectedExecutionException("Redis batcher stopped"));
+                    }
+                    if (!running) break;
+                } finally {
+                    batch.clear();
+                }
+            }
+            // Fail whatever is left so no caller waits forever
+            Command left;
+            while ((left = queue.poll()) != null) {
+                left.future().completeExceptionally(new RejectedExecutionException("Redis batcher stopped"));
+            }
+            if (link != null) {
+                link.connection().close();
+            }
+        }
+
+        // Called with an in-flight slot held; the slot is returned once every command has settled
+        private void flush(Command[] batch) {
+            long start = System.nanoTime();
+            try {
+                if (link == null) {
+                    link = connect();
+                }
+            } catch (Exception e) {
+                inFlight.release();
+                failed.add(batch.length);
+                for (Command command : batch) {
+                    command.future().completeExceptionally(e);
+                }
+                return;
+            }
+
+            AtomicInteger pending = new AtomicInteger(batch.length);
+            Runnable settled = () -> {
+                if (pending.decrementAndGet() == 0) {
+                    inFlight.release();
+                    long elapsed = System.nanoTime() - start;
+                    flushNanos.add(elapsed);
+                    maxFlushNanos.accumulateAndGet(elapsed, Math::max);
+                }
+            };
+            for (Command command : batch) {
+                command.future().whenComplete((r, e) -> settled.run());
+                try {
+                    command.op().apply(link.commands())
+                            .whenCompleteAsync((result, error) -> complete(command, result, error), replyExecutor);
+                } catch (Exception e) {
+                    failed.increment();
+                    command.future().completeExceptionally(e);
+                }
+            }
+            link.connection().flushCommands();
+
+            commands.add(batch.length);
+            roundTrips.increment();
+            maxBatchSeen.accumulateAndGet(batch.length, Math::max);
+
+            // One timer per batch for replies that never come; a no-op once they all did
+            CompletableFuture.delayedExecutor(timeoutMs, TimeUnit.MILLISECONDS, replyExecutor).execute(() -> {
+                for (Command command : batch) {
+                    if (command.future().completeExceptionally(new TimeoutException("No Redis reply within " + timeoutMs + " ms"))) {
+                        failed.increment();
+                    }
+                }
+            });
+        }
+
+        private void complete(Command command, Object result, Throwable error) {
+            if (error != null) {
+                if (command.future().completeExceptionally(error instanceof CompletionException && error.getCause() != null
+                        ? error.getCause() : error)) {
+                    failed.increment();
+                }
+                return;
+            }
+            try {
+                command.future().complete(command.decoder().apply(result));
+            } catch (Exception e) {
+                command.future().completeExceptionally(e);
+            }
+        }
+    }
+
+    // ---- Metrics ----
+
+    /**
+     * Commands, round trips, commands per round trip, largest batch, average / max time from a
+     * batch's write to its last reply (us), batches in flight, failed commands and commands
+     * rejected on a full queue.
+     */
+    public Map<String, Long> metrics() {
+        long trips = roundTrips.sum();
+        long total = commands.sum();
+        int queued = 0;
+        int inFlight = 0;
+        for (Flusher flusher : flushers) {
+            queued += flusher.queue.size();
+            inFlight += Math.max(1, maxInFlight) - flusher.inFlight.availablePermits();
+        }
+        Map<String, Long> m = new LinkedHashMap<>();
+        m.put("commands", total);
+        m.put("roundTrips", trips);
+        m.put("commandsPerRoundTrip", trips > 0 ? total / trips : 0);
+        m.put("maxBatch", maxBatchSeen.get());
+        m.put("avgFlushMicros", trips > 0 ? TimeUnit.NANOSECONDS.toMicros(flushNanos.sum() / trips) : 0);
+        m.put("maxFlushMicros", TimeUnit.NANOSECONDS.toMicros(maxFlushNanos.get()));
+        m.put("queued", (long) queued);
+        m.put("inFlight", (long) inFlight);
+        m.put("failed", failed.sum());
+        m.put("rejected", rejected.sum());
+        return m;
+    }
+
+    @Scheduled(fixedRate = 60000)
+    public void logMetrics() {
+        if (commands.sum() > 0) {
+            log.info("Redis batcher: {}", metrics());
+        }
+        maxBatchSeen.set(0);
+        maxFlushNanos.set(0);
+    }
+
+    // ---- Codecs ----
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[][] bytes(String[] values) {
+        byte[][] raw = new byte[values.length][];
+        for (int i = 0; i < values.length; i++) {
+            raw[i] = bytes(values[i]);
+        }
+        return raw;
+    }
+
+    private static String string(Object raw) {
+        return raw instanceof byte[] b ? new String(b, StandardCharsets.UTF_8) : null;
+    }
+
+    private static Long number(Object raw) {
+        return raw instanceof Number n ? n.longValue() : 0L;
+    }
+
+    private static Map<String, String> stringMap(Object raw) {
+        if (!(raw instanceof Map<?, ?> map)) return Map.of();
+        Map<String, String> decoded = new HashMap<>(Math.max(4, map.size() * 2));
+        map.forEach((k, v) -> decoded.put(string(k), string(v)));
+        return decoded;
+    }
+
+    private static List<String> stringList(Object raw) {
+        if (!(raw instanceof List<?> list)) return List.of();
+        List<String> decoded = new ArrayList<>(list.size());
+        list.forEach(v -> decoded.add(string(v)));
+        return decoded;
+    }
+
+    private static Set<String> stringSet(Object raw) {
+        if (!(raw instanceof Collection<?> values)) return Set.of();
+        Set<String> decoded = new HashSet<>(Math.max(4, values.size() * 2));
+        values.forEach(v -> decoded.add(string(v)));
+        return decoded;
+    }
+
+    private static String[] values(RecordId[] ids) {
+        String[] values = new String[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            values[i] = ids[i].getValue();
+        }
+        return values;
+    }
+}
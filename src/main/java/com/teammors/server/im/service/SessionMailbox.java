@@ -0,0 +1,126 @@
+package com.teammors.server.im.service;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Per-session FIFO of inbound events.
+ *
+ * At most one drain task per mailbox is on the executor at a time, so events of one channel run
+ * in arrival order while different channels still run in parallel. Offered from the channel's
+ * event loop and drained on a virtual thread; a ReentrantLock (not synchronized) keeps the
+ * virtual thread from pinning its carrier.
+ */
+final class SessionMailbox implements Runnable {
+
+    /**
+     * One queued event; {@code enqueuedAt} is System.nanoTime() when it was offered.
+     */
+    record Envelope(int eventId, long enqueuedAt, Runnable task) {
+    }
+
+    private final Executor executor;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ArrayDeque<Envelope> queue = new ArrayDeque<>(4);
+    private boolean running;
+
+    SessionMailbox(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * @return the queue depth including this event, or -1 if the mailbox already holds maxDepth events
+     */
+    int offer(Envelope envelope, int maxDepth) {
+        int depth;
+        lock.lock();
+        try {
+            if (queue.size() >= maxDepth) {
+                return -1;
+            }
+            queue.addLast(envelope);
+            depth = queue.size();
+            if (running) {
+                return depth;
+            }
+            running = true;
+        } finally {
+            lock.unlock();
+        }
+        try {
+            executor.execute(this);
+        } catch (RuntimeException e) {
+            // Nothing will drain it; let the next offer start a drain task again
+            idle();
+            throw e;
+        }
+        return depth;
+    }
+
+    /**
+     * Remove the oldest queued event (drop-oldest overflow).
+     */
+    Envelope pollOldest() {
+        lock.lock();
+        try {
+            return queue.pollFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void run() {
+        boolean drained = false;
+        try {
+            while (true) {
+                Envelope next;
+                lock.lock();
+                try {
+                    next = queue.pollFirst();
+                    if (next == null) {
+                        running = false;
+                        drained = true;
+                        return;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                next.task().run();
+            }
+        } finally {
+            if (!drained) {
+                // A task threw (tasks catch Exception, so typically an Error): hand the rest of the
+                // queue to a fresh drain task rather than leaving running set with nobody draining
+                resume();
+            }
+        }
+    }
+
+    private void resume() {
+        lock.lock();
+        try {
+            if (queue.isEmpty()) {
+                running = false;
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        try {
+            executor.execute(this);
+        } catch (RuntimeException e) {
+            idle();
+        }
+    }
+
+    private void idle() {
+        lock.lock();
+        try {
+            running = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -1,9 +1,7 @@
 package com.teammors.server.im.utils;
 
 import cn.hutool.crypto.SecureUtil;
-import cn.hutool.crypto.symmetric.AES;
 import lombok.extern.slf4j.Slf4j;
-import java.nio.charset.StandardCharsets;
 
 @Slf4j
 public class SecurityUtil {
@@ -12,14 +10,4 @@ public class SecurityUtil {
         return SecureUtil.md5(uid);
     }
 
-    public static String encrypt(String key, String decryptStr) {
-        AES aes = SecureUtil.aes(key.getBytes());
-        return aes.encryptBase64(decryptStr);
-    }
-
-    public static String decrypt(String key, String encryptStr) {
-        AES aes = SecureUtil.aes(key.getBytes());
-        return aes.decryptStr(encryptStr, StandardCharsets.UTF_8);
-    }
-
 }
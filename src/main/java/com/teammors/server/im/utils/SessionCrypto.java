@@ -0,0 +1,181 @@
+package com.teammors.server.im.utils;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.util.AttributeKey;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Per-session crypto context, created once at login and stored on the channel.
+ *
+ * The key is derived a single time (md5(uid), same as {@link SecurityUtil#getUidKey}) and the
+ * Cipher objects are reused across messages. Ciphers are not thread safe, so each one is guarded
+ * by a lock; a caller that finds it busy (e.g. concurrent group fan-out to the same channel)
+ * uses a throwaway Cipher instead of waiting.
+ *
+ * ECB is wire compatible with the existing hutool AES clients. GCM is opt-in
+ * (im.crypto.mode=gcm), runs on the JDK AES/GHASH intrinsics and frames each message as
+ * IV(12) + ciphertext + tag(16).
+ */
+public final class SessionCrypto {
+
+    public static final AttributeKey<SessionCrypto> ATTR_CRYPTO = AttributeKey.valueOf("sessionCrypto");
+
+    public enum Mode {
+        ECB, GCM;
+
+        public static Mode of(String value) {
+            return "gcm".equalsIgnoreCase(value) ? GCM : ECB;
+        }
+    }
+
+    private static final String ECB_TRANSFORMATION = "AES/ECB/PKCS5Padding";
+    private static final String GCM_TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int GCM_IV_LENGTH = 12;
+    private static final int GCM_TAG_BITS = 128;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final SecretKeySpec key;
+    private final Mode mode;
+
+    private final ReentrantLock encryptLock = new ReentrantLock();
+    private final ReentrantLock decryptLock = new ReentrantLock();
+    private Cipher encryptCipher;
+    private Cipher decryptCipher;
+
+    // GCM nonce: random per-session prefix + counter, so sessions sharing a uid key never reuse an IV
+    private long ivPrefix;
+    private int ivCounter;
+
+    private SessionCrypto(byte[] keyBytes, Mode mode) {
+        this.key = new SecretKeySpec(keyBytes, "AES");
+        this.mode = mode;
+        this.ivPrefix = RANDOM.nextLong();
+    }
+
+    public static SessionCrypto forUid(String uid, Mode mode) {
+        return new SessionCrypto(SecurityUtil.getUidKey(uid).getBytes(StandardCharsets.UTF_8), mode);
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Rough retained size in bytes (key, locks and the cached Ciphers once created), for diagnostics.
+     */
+    public int estimatedSize() {
+        return 200 + (encryptCipher != null ? 700 : 0) + (decryptCipher != null ? 700 : 0);
+    }
+
+    /**
+     * Encrypt the readable bytes of {@code plain} into a new pooled direct buffer.
+     * The input buffer is not released.
+     */
+    public ByteBuf encrypt(ByteBuf plain, ByteBufAllocator alloc) {
+        boolean locked = encryptLock.tryLock();
+        try {
+            Cipher cipher = locked ? encryptCipher() : newCipher();
+            byte[] iv = null;
+            if (mode == Mode.GCM) {
+                iv = locked ? nextIv() : randomIv();
+                cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_BITS, iv));
+            } else if (!locked) {
+                cipher.init(Cipher.ENCRYPT_MODE, key);
+            }
+            return doFinal(cipher, plain, alloc, iv);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Encrypt failed", e);
+        } finally {
+            if (locked) encryptLock.unlock();
+        }
+    }
+
+    /**
+     * Decrypt the readable bytes of {@code encrypted} into a new pooled direct buffer.
+     * The input buffer is not released.
+     */
+    public ByteBuf decrypt(ByteBuf encrypted, ByteBufAllocator alloc) {
+        boolean locked = decryptLock.tryLock();
+        try {
+            Cipher cipher = locked ? decryptCipher() : newCipher();
+            ByteBuf input = encrypted;
+            if (mode == Mode.GCM) {
+                if (encrypted.readableBytes() < GCM_IV_LENGTH) {
+                    throw new IllegalArgumentException("Ciphertext too short");
+                }
+                byte[] iv = new byte[GCM_IV_LENGTH];
+                encrypted.getBytes(encrypted.readerIndex(), iv);
+                cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_BITS, iv));
+                input = encrypted.slice(encrypted.readerIndex() + GCM_IV_LENGTH, encrypted.readableBytes() - GCM_IV_LENGTH);
+            } else if (!locked) {
+                cipher.init(Cipher.DECRYPT_MODE, key);
+            }
+            return doFinal(cipher, input, alloc, null);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalArgumentException("Decrypt failed", e);
+        } finally {
+            if (locked) decryptLock.unlock();
+        }
+    }
+
+    private ByteBuf doFinal(Cipher cipher, ByteBuf input, ByteBufAllocator alloc, byte[] iv) throws GeneralSecurityException {
+        int len = input.readableBytes();
+        int outLen = cipher.getOutputSize(len);
+        ByteBuf out = alloc.directBuffer((iv != null ? iv.length : 0) + outLen);
+        try {
+            if (iv != null) {
+                out.writeBytes(iv);
+            }
+            ByteBuffer dst = out.nioBuffer(out.writerIndex(), outLen);
+            int written = cipher.doFinal(input.nioBuffer(input.readerIndex(), len), dst);
+            out.writerIndex(out.writerIndex() + written);
+            return out;
+        } catch (GeneralSecurityException | RuntimeException e) {
+            out.release();
+            throw e;
+        }
+    }
+
+    private Cipher encryptCipher() throws GeneralSecurityException {
+        if (encryptCipher == null) {
+            encryptCipher = newCipher();
+            if (mode == Mode.ECB) encryptCipher.init(Cipher.ENCRYPT_MODE, key);
+        }
+        return encryptCipher;
+    }
+
+    private Cipher decryptCipher() throws GeneralSecurityException {
+        if (decryptCipher == null) {
+            decryptCipher = newCipher();
+            if (mode == Mode.ECB) decryptCipher.init(Cipher.DECRYPT_MODE, key);
+        }
+        return decryptCipher;
+    }
+
+    private Cipher newCipher() throws GeneralSecurityException {
+        return Cipher.getInstance(mode == Mode.GCM ? GCM_TRANSFORMATION : ECB_TRANSFORMATION);
+    }
+
+    // Called with encryptLock held
+    private byte[] nextIv() {
+        if (++ivCounter == 0) {
+            ivPrefix = RANDOM.nextLong();
+        }
+        return ByteBuffer.allocate(GCM_IV_LENGTH).putLong(ivPrefix).putInt(ivCounter).array();
+    }
+
+    private static byte[] randomIv() {
+        byte[] iv = new byte[GCM_IV_LENGTH];
+        RANDOM.nextBytes(iv);
+        return iv;
+    }
+}
@@ -0,0 +1,199 @@
+package com.teammors.server.im.cluster;
+
+import com.alibaba.fastjson.JSON;
+import com.teammors.server.im.entity.Message;
+import com.teammors.server.im.service.ChannelManager;
+import com.teammors.server.im.service.GroupMemberCache;
+import com.teammors.server.im.service.MessageSender;
+import com.teammors.server.im.service.RedisBatcher;
+import io.netty.channel.Channel;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.stream.ByteRecord;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * One shard reader: pending entries first, then new ones, each read acknowledged and deleted at once.
+ */
+class ClusterManagerTest {
+
+    private static final String STREAM = "im:stream:instance:node-1:0";
+
+    private final StringRedisTemplate redisTemplate = mock(StringRedisTemplate.class);
+    private final RedisConnection connection = mock(RedisConnection.class);
+    private final RedisStreamCommands streamCommands = mock(RedisStreamCommands.class);
+    // Every batched command completes at once
+    private final RedisBatcher redisBatcher = mock(RedisBatcher.class, inv ->
+            inv.getMethod().getReturnType() == CompletableFuture.class ? CompletableFuture.completedFuture(1L) : null);
+    private final ChannelManager channelManager = mock(ChannelManager.class);
+    private final SessionRouteCache sessionRouteCache = mock(SessionRouteCache.class);
+    private final GroupMemberCache groupMemberCache = mock(GroupMemberCache.class);
+    private final MessageSender messageSender = mock(MessageSender.class);
+    private final ClusterManager manager = new ClusterManager();
+    private final Channel channel = new EmbeddedChannel();
+
+    // XREADGROUP replies per offset ("0" = pending, ">" = new); the reader stops once ">" runs dry
+    private final Queue<List<ByteRecord>> pending = new ArrayDeque<>();
+    private final Queue<List<ByteRecord>> fresh = new ArrayDeque<>();
+    private final List<String> offsets = new ArrayList<>();
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void wire() {
+        ReflectionTestUtils.setField(manager, "redisTemplate", redisTemplate);
+        ReflectionTestUtils.setField(manager, "redisBatcher", redisBatcher);
+        ReflectionTestUtils.setField(manager, "channelManager", channelManager);
+        ReflectionTestUtils.setField(manager, "messageSender", messageSender);
+        ReflectionTestUtils.setField(manager, "sessionRouteCache", sessionRouteCache);
+        ReflectionTestUtils.setField(manager, "groupMemberCache", groupMemberCache);
+        ReflectionTestUtils.setField(manager, "instanceId", "node-1");
+        ReflectionTestUtils.setField(manager, "streamReadCount", 200);
+        ReflectionTestUtils.setField(manager, "streamBlockMs", 10L);
+        when(channelManager.getUserChannels("u1")).thenReturn(List.of(channel));
+
+        when(redisTemplate.execute(any(RedisCallback.class)))
+                .thenAnswer(inv -> inv.getArgument(0, RedisCallback.class).doInRedis(connection));
+        when(connection.streamCommands()).thenReturn(streamCommands);
+        when(streamCommands.xReadGroup(any(Consumer.class), any(StreamReadOptions.class), any(StreamOffset.class)))
+                .thenAnswer(inv -> {
+                    StreamOffset<?> offset = inv.getArgument(2);
+                    String from = offset.getOffset().getOffset();
+                    offsets.add(from);
+                    List<ByteRecord> records = "0".equals(from) ? pending.poll() : fresh.poll();
+                    if (records == null) {
+                        ReflectionTestUtils.setField(manager, "isRunning", false);
+                        return List.of();
+                    }
+                    return records;
+                });
+    }
+
+    private static ByteRecord entry(String id, String dataBody) {
+        Message msg = new Message();
+        msg.setEventId(1000001);
+        msg.setToUid("u1");
+        msg.setCache(false);
+        msg.setDataBody(dataBody);
+        Map<byte[], byte[]> fields = Map.of(StreamForwarder.FIELD_BODY.getBytes(StandardCharsets.UTF_8),
+                JSON.toJSONString(msg).getBytes(StandardCharsets.UTF_8));
+        return StreamRecords.rawBytes(fields).withStreamKey(STREAM.getBytes(StandardCharsets.UTF_8)).withId(RecordId.of(id));
+    }
+
+    private void listen() {
+        ReflectionTestUtils.invokeMethod(manager, "listenStream", STREAM);
+    }
+
+    @Test
+    void pendingEntriesAreRecoveredBeforeNewOnes() {
+        pending.add(List.of(entry("1-0", "a"), entry("2-0", "b")));
+        pending.add(List.of());
+        fresh.add(List.of(entry("3-0", "c")));
+
+        listen();
+
+        // History until an empty read, then only new entries
+        assertEquals(List.of("0", "0", ">", ">"), offsets);
+        ArgumentCaptor<Message> sent = ArgumentCaptor.forClass(Message.class);
+        verify(messageSender, times(3)).send(eq(channel), sent.capture());
+        assertEquals(List.of("a", "b", "c"), sent.getAllValues().stream().map(Message::getDataBody).toList());
+    }
+
+    @Test
+    void eachReadIsAcknowledgedAndDeletedInOneCall() {
+        pending.add(List.of());
+        fresh.add(List.of(entry("1-0", "a"), entry("2-0", "b"), entry("3-0", "c")));
+        fresh.add(List.of(entry("4-0", "d")));
+
+        listen();
+
+        RecordId[] first = {RecordId.of("1-0"), RecordId.of("2-0"), RecordId.of("3-0")};
+        var order = inOrder(messageSender, redisBatcher);
+        order.verify(messageSender, times(3)).send(eq(channel), any(Message.class));
+        order.verify(redisBatcher).xAck(STREAM, "im-node", first);
+        order.verify(redisBatcher).xDel(STREAM, first);
+        order.verify(messageSender).send(eq(channel), any(Message.class));
+        order.verify(redisBatcher).xAck(STREAM, "im-node", RecordId.of("4-0"));
+        order.verify(redisBatcher).xDel(STREAM, RecordId.of("4-0"));
+    }
+
+    @Test
+    void failedRecoveryFallsBackToNewEntries() {
+        when(streamCommands.xReadGroup(any(Consumer.class), any(StreamReadOptions.class), any(StreamOffset.class)))
+                .thenThrow(new IllegalStateException("history unavailable"))
+                .thenAnswer(inv -> {
+                    offsets.add(inv.<StreamOffset<?>>getArgument(2).getOffset().getOffset());
+                    ReflectionTestUtils.setField(manager, "isRunning", false);
+                    return List.of(entry("5-0", "e"));
+                });
+
+        listen();
+
+        assertEquals(List.of(">"), offsets);
+        verify(redisBatcher).xAck(STREAM, "im-node", RecordId.of("5-0"));
+        verify(redisBatcher).xDel(STREAM, RecordId.of("5-0"));
+    }
+
+    @Test
+    void legacyForwardWritesTheUnshardedSingleMessageFormat() {
+        ReflectionTestUtils.setField(manager, "legacyForward", true);
+        ReflectionTestUtils.setField(manager, "streamMaxLen", 1000L);
+        Message msg = new Message();
+        msg.setToUid("u1");
+
+        manager.forwardToInstance("node-2", msg);
+        manager.forwardGroupToInstance("node-2", new Message(), List.of("u1", "u2"));
+
+        verify(redisBatcher).xAdd("im:stream:instance:node-2", Map.of("body", JSON.toJSONString(msg)), 1000L);
+        verify(redisBatcher).xAdd("im:stream:instance:node-2",
+                Map.of("body", JSON.toJSONString(new Message()), "members", "[\"u1\",\"u2\"]"), 1000L);
+    }
+
+    @Test
+    void ignoresOnlyItsOwnEvents() {
+        ReflectionTestUtils.invokeMethod(manager, "handleClusterEvent", "node-10:ROUTE:1700000000000:u1");
+        ReflectionTestUtils.invokeMethod(manager, "handleClusterEvent", "node-10:GROUP:7:g1");
+        ReflectionTestUtils.invokeMethod(manager, "handleClusterEvent", "node-1:ROUTE:1700000000000:u2");
+
+        verify(sessionRouteCache).invalidateRemote("u1", 1700000000000L);
+        verify(groupMemberCache).onVersion("g1", 7L);
+        verify(sessionRouteCache, never()).invalidateRemote(eq("u2"), anyLong());
+    }
+
+    @Test
+    void rejectsAnInstanceIdWithASeparator() {
+        ReflectionTestUtils.setField(manager, "configuredInstanceId", "zone:node-1");
+
+        assertThrows(IllegalStateException.class, manager::init);
+    }
+}
@@ -0,0 +1,317 @@
+package com.teammors.server.im.cluster;
+
+import com.teammors.server.im.entity.Message;
+import com.teammors.server.im.service.ChannelManager;
+import com.teammors.server.im.service.FakeRedisServer;
+import com.teammors.server.im.service.MessageSender;
+import com.teammors.server.im.service.RedisBatcher;
+import io.netty.channel.Channel;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.Limit;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.stream.ByteRecord;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.when;
+
+/**
+ * Forwarding between two nodes in this process with the {@link PeerTransport} connection against
+ * the Redis stream path it bypasses (XADD, XREADGROUP, XACK + XDEL): messages per second with 16
+ * senders forwarding as fast as they can, and the latency from {@link ClusterManager#forwardToInstance}
+ * on node-1 to node-2 handing the message to its local channel, for one message every 2 ms. Both
+ * include the 1 ms linger of {@link StreamForwarder}. Each node has its own {@link RedisBatcher} on a
+ * {@link FakeRedisServer} with a simulated round trip; the fake server has no consumer groups, so
+ * node-2's shard readers get each XREADGROUP answered by an XRANGE ... COUNT, and an empty read
+ * blocks until node-1's next XADD completes, as XREADGROUP BLOCK would.
+ *
+ * Run with: mvn test -Pbenchmark -Dtest=PeerTransportBenchmark
+ */
+@Tag("benchmark")
+class PeerTransportBenchmark {
+
+    private static final Logger log = LoggerFactory.getLogger(PeerTransportBenchmark.class);
+
+    private static final long ROUND_TRIP_MICROS = 200;
+    private static final int ROUNDS = 3;
+    private static final int SENDERS = 16;
+    private static final int MESSAGES_PER_SENDER = 2_000;
+    private static final int PACED_MESSAGES = 1_000;
+    private static final long PACE_MICROS = 2_000;
+    private static final int USERS = 1_000;
+    private static final int SHARDS = 4;
+    private static final String STREAM_PREFIX = "im:stream:instance:node-2:";
+
+    private final LongAdder delivered = new LongAdder();
+    private final long[] latencies = new long[SENDERS * MESSAGES_PER_SENDER];
+    private final AtomicInteger latencyCount = new AtomicInteger();
+    // Stream entries written by node-1; wakes node-2's idle readers
+    private final AtomicLong streamWrites = new AtomicLong();
+
+    @Test
+    void peerConnectionAgainstRedisStream() throws Exception {
+        try (FakeRedisServer redis = new FakeRedisServer(ROUND_TRIP_MICROS)) {
+            RedisBatcher senderBatcher = spy(new RedisBatcher());
+            doAnswer(inv -> {
+                @SuppressWarnings("unchecked")
+                CompletableFuture<RecordId> id = (CompletableFuture<RecordId>) inv.callRealMethod();
+                id.whenComplete((r, e) -> wroteToStream());
+                return id;
+            }).when(senderBatcher).xAddRaw(anyString(), any(), anyLong());
+            start(senderBatcher, redis);
+            RedisBatcher receiverBatcher = start(new RedisBatcher(), redis);
+            RedisConnection connection = redis.connectionFactory().getConnection();
+            StreamForwarder forwarder = new StreamForwarder();
+            PeerTransport senderTransport = transport(senderBatcher);
+            PeerTransport receiverTransport = transport(receiverBatcher);
+            ClusterManager receiver = receiver(receiverBatcher, connection);
+            List<Thread> readers = new ArrayList<>();
+            try {
+                receiverTransport.start(forwards -> ReflectionTestUtils.invokeMethod(receiver, "deliverForwards", forwards));
+                connection.stringCommands().set((ClusterManager.KEY_HEARTBEAT_PREFIX + "node-2").getBytes(StandardCharsets.UTF_8),
+                        ("1|" + receiverTransport.endpoint()).getBytes(StandardCharsets.UTF_8));
+                senderTransport.start(forwards -> { });
+                ClusterManager sender = sender(senderBatcher, forwarder, senderTransport);
+                for (int shard = 0; shard < SHARDS; shard++) {
+                    String stream = STREAM_PREFIX + shard;
+                    readers.add(Thread.ofPlatform().start(() -> ReflectionTestUtils.invokeMethod(receiver, "listenStream", stream)));
+                }
+
+                Map<String, Boolean> cases = new LinkedHashMap<>();
+                cases.put("Redis stream", false);
+                cases.put("peer connection", true);
+                // Rounds interleave the cases so each is measured after the shared code is compiled; the last one counts
+                for (int round = 1; round <= ROUNDS; round++) {
+                    for (Map.Entry<String, Boolean> c : cases.entrySet()) {
+                        ReflectionTestUtils.setField(senderTransport, "enabled", c.getValue());
+                        long commandsBefore = redis.commands();
+                        long perSecond = throughput(sender);
+                        long commands = redis.commands() - commandsBefore;
+                        long[] paced = latencies(sender);
+                        if (round == ROUNDS) {
+                            log.info("{}: {} msgs/s, {} Redis commands for {} messages; one every {} us: "
+                                            + "p50 {} us, p99 {} us, max {} us", c.getKey(), perSecond, commands,
+                                    SENDERS * MESSAGES_PER_SENDER, PACE_MICROS, percentile(paced, 50),
+                                    percentile(paced, 99), percentile(paced, 100));
+                        }
+                    }
+                }
+                log.info("Peer transport: {}", senderTransport.metrics());
+                assertEquals(0L, senderBatcher.metrics().get("failed"));
+                assertEquals(0L, receiverBatcher.metrics().get("failed"));
+            } finally {
+                ReflectionTestUtils.setField(receiver, "isRunning", false);
+                wroteToStream();
+                for (Thread reader : readers) {
+                    reader.join();
+                }
+                forwarder.flushAll();
+                senderTransport.stop();
+                receiverTransport.stop();
+                senderBatcher.stop();
+                receiverBatcher.stop();
+            }
+        }
+    }
+
+    // Every sender forwards its messages one after another; until node-2 has delivered the last one
+    private long throughput(ClusterManager sender) throws InterruptedException {
+        delivered.reset();
+        long total = (long) SENDERS * MESSAGES_PER_SENDER;
+        long start = System.nanoTime();
+        List<Thread> senders = new ArrayList<>(SENDERS);
+        for (int s = 0; s < SENDERS; s++) {
+            int senderIndex = s;
+            senders.add(Thread.ofVirtual().start(() -> {
+                for (int i = 0; i < MESSAGES_PER_SENDER; i++) {
+                    sender.forwardToInstance("node-2", message(senderIndex, i));
+                }
+            }));
+        }
+        for (Thread s : senders) {
+            s.join();
+        }
+        awaitDelivered(total);
+        return Math.round(total / ((System.nanoTime() - start) / 1e9));
+    }
+
+    // Forward-to-delivery latencies (us) of messages sent one at a time, sorted
+    private long[] latencies(ClusterManager sender) throws InterruptedException {
+        delivered.reset();
+        latencyCount.set(0);
+        for (int i = 0; i < PACED_MESSAGES; i++) {
+            sender.forwardToInstance("node-2", message(0, i));
+            TimeUnit.MICROSECONDS.sleep(PACE_MICROS);
+        }
+        awaitDelivered(PACED_MESSAGES);
+        long[] sorted = Arrays.copyOf(latencies, PACED_MESSAGES);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    private void awaitDelivered(long total) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+        while (delivered.sum() < total && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(total, delivered.sum());
+    }
+
+    private static long percentile(long[] sorted, int p) {
+        return sorted[Math.min(sorted.length - 1, sorted.length * p / 100)];
+    }
+
+    private void wroteToStream() {
+        streamWrites.incrementAndGet();
+        synchronized (streamWrites) {
+            streamWrites.notifyAll();
+        }
+    }
+
+    private static Message message(int sender, int i) {
+        Message msg = new Message();
+        msg.setEventId(1000001);
+        msg.setFromUid("s" + sender);
+        msg.setToUid("u" + (sender * MESSAGES_PER_SENDER + i) % USERS);
+        msg.setCache(false);
+        msg.setDataBody("{\"text\":\"hello from another node\",\"seq\":" + i + "}");
+        // Send time for the latency; nanoTime, both nodes are in this JVM
+        msg.setCTimest(System.nanoTime());
+        return msg;
+    }
+
+    private static RedisBatcher start(RedisBatcher batcher, FakeRedisServer redis) {
+        ReflectionTestUtils.setField(batcher, "connectionFactory", redis.connectionFactory());
+        ReflectionTestUtils.setField(batcher, "windowMicros", 200L);
+        ReflectionTestUtils.setField(batcher, "maxBatch", 128);
+        ReflectionTestUtils.setField(batcher, "flusherCount", 2);
+        ReflectionTestUtils.setField(batcher, "maxInFlight", 4);
+        ReflectionTestUtils.setField(batcher, "queueCapacity", 65536);
+        ReflectionTestUtils.setField(batcher, "timeoutMs", 60_000L);
+        batcher.start();
+        return batcher;
+    }
+
+    // As configured in application.yml, on the loopback interface
+    private static PeerTransport transport(RedisBatcher batcher) throws IOException {
+        PeerTransport transport = new PeerTransport();
+        ReflectionTestUtils.setField(transport, "redisBatcher", batcher);
+        ReflectionTestUtils.setField(transport, "enabled", true);
+        ReflectionTestUtils.setField(transport, "port", freePort());
+        ReflectionTestUtils.setField(transport, "advertisedHost", "127.0.0.1");
+        ReflectionTestUtils.setField(transport, "secret", "s3cret");
+        ReflectionTestUtils.setField(transport, "connectionsPerPeer", 2);
+        ReflectionTestUtils.setField(transport, "threads", 2);
+        ReflectionTestUtils.setField(transport, "connectTimeoutMs", 1000);
+        ReflectionTestUtils.setField(transport, "retryMs", 5000L);
+        ReflectionTestUtils.setField(transport, "maxFrameBytes", 8 << 20);
+        ReflectionTestUtils.setField(transport, "writeBufferLowWatermark", 1 << 20);
+        ReflectionTestUtils.setField(transport, "writeBufferHighWatermark", 4 << 20);
+        ReflectionTestUtils.setField(transport, "transportMode", "nio");
+        return transport;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    // node-1: forwardToInstance through StreamForwarder and the peer transport
+    private static ClusterManager sender(RedisBatcher batcher, StreamForwarder forwarder, PeerTransport peerTransport) {
+        ReflectionTestUtils.setField(forwarder, "redisBatcher", batcher);
+        ReflectionTestUtils.setField(forwarder, "peerTransport", peerTransport);
+        ReflectionTestUtils.setField(forwarder, "maxMessages", 128);
+        ReflectionTestUtils.setField(forwarder, "maxBytes", 65536);
+        ReflectionTestUtils.setField(forwarder, "lingerMicros", 1000L);
+        ReflectionTestUtils.setField(forwarder, "compressThreshold", 4096);
+
+        ClusterManager manager = new ClusterManager();
+        ReflectionTestUtils.setField(manager, "redisBatcher", batcher);
+        ReflectionTestUtils.setField(manager, "streamForwarder", forwarder);
+        ReflectionTestUtils.setField(manager, "instanceId", "node-1");
+        ReflectionTestUtils.setField(manager, "streamShards", SHARDS);
+        ReflectionTestUtils.setField(manager, "streamMaxLen", 100_000L);
+        return manager;
+    }
+
+    // node-2: its shard readers and peer frames both deliver, with every user connected through one channel
+    @SuppressWarnings("unchecked")
+    private ClusterManager receiver(RedisBatcher batcher, RedisConnection reader) {
+        StringRedisTemplate redisTemplate = mock(StringRedisTemplate.class);
+        RedisConnection connection = mock(RedisConnection.class);
+        RedisStreamCommands streamCommands = mock(RedisStreamCommands.class);
+        when(redisTemplate.execute(any(RedisCallback.class)))
+                .thenAnswer(inv -> inv.getArgument(0, RedisCallback.class).doInRedis(connection));
+        when(connection.streamCommands()).thenReturn(streamCommands);
+        when(streamCommands.xReadGroup(any(Consumer.class), any(StreamReadOptions.class), any(StreamOffset.class)))
+                .thenAnswer(inv -> {
+                    StreamReadOptions options = inv.getArgument(1);
+                    StreamOffset<byte[]> offset = inv.getArgument(2);
+                    long seen = streamWrites.get();
+                    List<ByteRecord> records = reader.streamCommands().xRange(offset.getKey(), Range.unbounded(),
+                            Limit.limit().count(options.getCount().intValue()));
+                    if (records == null || records.isEmpty()) {
+                        synchronized (streamWrites) {
+                            if (streamWrites.get() == seen) streamWrites.wait(100);
+                        }
+                        return List.of();
+                    }
+                    return records;
+                });
+
+        ChannelManager channelManager = mock(ChannelManager.class);
+        List<Channel> channels = List.of(new EmbeddedChannel());
+        when(channelManager.getUserChannels(anyString())).thenReturn(channels);
+        MessageSender messageSender = mock(MessageSender.class);
+        doAnswer(inv -> {
+            long latency = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - inv.getArgument(1, Message.class).getCTimest());
+            int i = latencyCount.getAndIncrement();
+            if (i < latencies.length) latencies[i] = latency;
+            delivered.increment();
+            return null;
+        }).when(messageSender).send(any(Channel.class), any(Message.class));
+
+        ClusterManager manager = new ClusterManager();
+        ReflectionTestUtils.setField(manager, "redisTemplate", redisTemplate);
+        ReflectionTestUtils.setField(manager, "redisBatcher", batcher);
+        ReflectionTestUtils.setField(manager, "channelManager", channelManager);
+        ReflectionTestUtils.setField(manager, "messageSender", messageSender);
+        ReflectionTestUtils.setField(manager, "instanceId", "node-2");
+        ReflectionTestUtils.setField(manager, "streamShards", SHARDS);
+        ReflectionTestUtils.setField(manager, "streamReadCount", 200);
+        return manager;
+    }
+}
@@ -0,0 +1,186 @@
+package com.teammors.server.im.cluster;
+
+import com.teammors.server.im.service.RedisBatcher;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Two transports on the loopback interface: "sender" connects to "receiver".
+ */
+class PeerTransportTest {
+
+    private static final String STREAM = "im:stream:instance:receiver:0";
+
+    private final List<PeerTransport> started = new ArrayList<>();
+    private final BlockingQueue<List<StreamForwarder.Forward>> received = new LinkedBlockingQueue<>();
+    private final RedisBatcher senderRedis = mock(RedisBatcher.class);
+    private final AtomicInteger streamed = new AtomicInteger();
+
+    @AfterEach
+    void stop() {
+        started.forEach(PeerTransport::stop);
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private PeerTransport transport(RedisBatcher redisBatcher, String secret) throws IOException {
+        PeerTransport transport = new PeerTransport();
+        ReflectionTestUtils.setField(transport, "redisBatcher", redisBatcher);
+        ReflectionTestUtils.setField(transport, "enabled", true);
+        ReflectionTestUtils.setField(transport, "port", freePort());
+        ReflectionTestUtils.setField(transport, "advertisedHost", "127.0.0.1");
+        ReflectionTestUtils.setField(transport, "secret", secret);
+        ReflectionTestUtils.setField(transport, "connectionsPerPeer", 1);
+        ReflectionTestUtils.setField(transport, "threads", 1);
+        ReflectionTestUtils.setField(transport, "connectTimeoutMs", 1000);
+        ReflectionTestUtils.setField(transport, "retryMs", 50L);
+        ReflectionTestUtils.setField(transport, "maxFrameBytes", 1024);
+        ReflectionTestUtils.setField(transport, "writeBufferLowWatermark", 1 << 20);
+        ReflectionTestUtils.setField(transport, "writeBufferHighWatermark", 4 << 20);
+        ReflectionTestUtils.setField(transport, "transportMode", "nio");
+        return transport;
+    }
+
+    // A receiver advertising its endpoint to the sender, and the sender
+    private PeerTransport pair(String receiverSecret, String senderSecret) throws IOException {
+        PeerTransport receiver = transport(mock(RedisBatcher.class), receiverSecret);
+        receiver.start(received::add);
+        started.add(receiver);
+        when(senderRedis.get(ClusterManager.KEY_HEARTBEAT_PREFIX + "receiver"))
+                .thenReturn(CompletableFuture.completedFuture("1|" + receiver.endpoint()));
+
+        PeerTransport sender = transport(senderRedis, senderSecret);
+        sender.start(forwards -> { });
+        started.add(sender);
+        return sender;
+    }
+
+    private Supplier<CompletableFuture<RecordId>> viaStream(String id) {
+        return () -> {
+            streamed.incrementAndGet();
+            return CompletableFuture.completedFuture(RecordId.of(id));
+        };
+    }
+
+    private static byte[] batch(String toUid) {
+        return ("{\"toUid\":\"" + toUid + "\"}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static long metric(PeerTransport transport, String name) {
+        return transport.metrics().get(name);
+    }
+
+    private static void await(Supplier<Boolean> condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.get()) {
+            assertTrue(System.currentTimeMillis() < deadline, "timed out");
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    void framesFlowOnceTheHandshakeIsDone() throws Exception {
+        PeerTransport sender = pair("s3cret", "s3cret");
+        when(senderRedis.xExists(anyString(), any())).thenReturn(CompletableFuture.completedFuture(false));
+
+        // Not connected yet: the stream, which starts the connection
+        assertFalse(sender.send("receiver", 0, STREAM, batch("a"), false, 1, viaStream("1-0")));
+        await(() -> metric(sender, "connects") == 1);
+
+        assertTrue(sender.send("receiver", 0, STREAM, batch("b"), false, 1, viaStream("2-0")));
+        assertEquals(List.of(new StreamForwarder.Forward("{\"toUid\":\"b\"}", null)), received.poll(5, TimeUnit.SECONDS));
+        assertEquals(1, streamed.get());
+    }
+
+    @Test
+    void wrongSecretIsRejected() throws Exception {
+        PeerTransport sender = pair("s3cret", "guess");
+        when(senderRedis.xExists(anyString(), any())).thenReturn(CompletableFuture.completedFuture(false));
+        PeerTransport receiver = started.get(0);
+
+        sender.send("receiver", 0, STREAM, batch("a"), false, 1, viaStream("1-0"));
+        await(() -> metric(receiver, "rejectedHandshakes") >= 1);
+        sender.send("receiver", 0, STREAM, batch("b"), false, 1, viaStream("2-0"));
+
+        assertNull(received.poll(200, TimeUnit.MILLISECONDS));
+        assertEquals(0, metric(receiver, "framesReceived"));
+    }
+
+    @Test
+    void shardMovesToThePeerOnlyAfterItsStreamEntryIsRead() throws Exception {
+        PeerTransport sender = pair("s3cret", "s3cret");
+        AtomicBoolean read = new AtomicBoolean();
+        when(senderRedis.xExists(anyString(), any()))
+                .thenAnswer(inv -> CompletableFuture.completedFuture(!read.get()));
+
+        assertFalse(sender.send("receiver", 0, STREAM, batch("a"), false, 1, viaStream("1-0")));
+        await(() -> metric(sender, "connects") == 1);
+
+        // Connected, but "a" is still on the stream: "b" waits behind it
+        assertTrue(sender.send("receiver", 0, STREAM, batch("b"), false, 1, viaStream("2-0")));
+        assertNull(received.poll(100, TimeUnit.MILLISECONDS));
+
+        read.set(true);
+        assertEquals(List.of(new StreamForwarder.Forward("{\"toUid\":\"b\"}", null)), received.poll(5, TimeUnit.SECONDS));
+        assertTrue(sender.send("receiver", 0, STREAM, batch("c"), false, 1, viaStream("3-0")));
+        assertEquals(List.of(new StreamForwarder.Forward("{\"toUid\":\"c\"}", null)), received.poll(5, TimeUnit.SECONDS));
+        assertEquals(1, streamed.get());
+    }
+
+    @Test
+    void heldBatchesFallBackToTheStream() throws Exception {
+        PeerTransport sender = pair("s3cret", "s3cret");
+        // The receiver never gets to the entry
+        when(senderRedis.xExists(anyString(), any())).thenReturn(CompletableFuture.completedFuture(true));
+        ReflectionTestUtils.setField(sender, "connectTimeoutMs", 100);
+
+        sender.send("receiver", 0, STREAM, batch("a"), false, 1, viaStream("1-0"));
+        await(() -> metric(sender, "connects") == 1);
+        sender.send("receiver", 0, STREAM, batch("b"), false, 1, viaStream("2-0"));
+
+        await(() -> streamed.get() == 2);
+        assertEquals(0, metric(sender, "framesSent"));
+    }
+
+    @Test
+    void oversizedBatchAndMissingSecretUseTheStream() throws Exception {
+        PeerTransport sender = pair("s3cret", "s3cret");
+        // 4 + 1 + 1019 = 1024 fits, one more byte does not
+        assertFalse(sender.send("receiver", 0, STREAM, new byte[1020], false, 1, viaStream("1-0")));
+        assertEquals(1, streamed.get());
+
+        PeerTransport open = transport(mock(RedisBatcher.class), "");
+        open.start(forwards -> { });
+        assertNull(open.endpoint());
+        assertFalse(open.send("receiver", 0, STREAM, batch("a"), false, 1, viaStream("2-0")));
+        assertEquals(2, streamed.get());
+    }
+}
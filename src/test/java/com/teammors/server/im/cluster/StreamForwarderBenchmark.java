@@ -0,0 +1,244 @@
+package com.teammors.server.im.cluster;
+
+import com.teammors.server.im.entity.Message;
+import com.teammors.server.im.service.ChannelManager;
+import com.teammors.server.im.service.FakeRedisServer;
+import com.teammors.server.im.service.MessageSender;
+import com.teammors.server.im.service.RedisBatcher;
+import io.netty.channel.Channel;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.Limit;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.stream.ByteRecord;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Forwarded messages per second between two nodes in this process, from the first
+ * {@link ClusterManager#forwardToInstance} on node-1 until node-2 has handed the last one to its
+ * local channel: messages coalesced per shard by {@link StreamForwarder} against one XADD per
+ * message on the unsharded stream (im.cluster.stream.legacy-forward). Each node has its own
+ * {@link RedisBatcher} on a {@link FakeRedisServer} with a simulated round trip. The fake server has
+ * no consumer groups, so node-2's shard readers get each XREADGROUP answered by an XRANGE of what
+ * is left in the stream (entries are deleted once handled), and an empty read waits 1 ms instead
+ * of blocking.
+ *
+ * Run with: mvn test -Pbenchmark -Dtest=StreamForwarderBenchmark
+ */
+@Tag("benchmark")
+class StreamForwarderBenchmark {
+
+    private static final Logger log = LoggerFactory.getLogger(StreamForwarderBenchmark.class);
+
+    private static final long ROUND_TRIP_MICROS = 200;
+    private static final int ROUNDS = 3;
+    private static final int SENDERS = 16;
+    private static final int MESSAGES_PER_SENDER = 2_000;
+    private static final int USERS = 1_000;
+    private static final int SHARDS = 4;
+    private static final String STREAM_PREFIX = "im:stream:instance:node-2";
+
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder entriesRead = new LongAdder();
+    private final LongAdder reads = new LongAdder();
+
+    @Test
+    void coalescedAgainstXaddPerMessage() throws Exception {
+        try (FakeRedisServer redis = new FakeRedisServer(ROUND_TRIP_MICROS)) {
+            RedisBatcher senderBatcher = batcher(redis);
+            RedisBatcher receiverBatcher = batcher(redis);
+            StreamForwarder forwarder = new StreamForwarder();
+            try {
+                ClusterManager sender = sender(senderBatcher, forwarder);
+                ClusterManager receiver = receiver(receiverBatcher, redis.connectionFactory().getConnection());
+
+                Map<String, Boolean> cases = new LinkedHashMap<>();
+                cases.put("XADD per message", true);
+                cases.put("coalesced per shard", false);
+                // Rounds interleave the cases so each is measured after the shared code is compiled; the last one counts
+                for (int round = 1; round <= ROUNDS; round++) {
+                    for (Map.Entry<String, Boolean> c : cases.entrySet()) {
+                        ReflectionTestUtils.setField(sender, "legacyForward", c.getValue());
+                        List<String> streams = new ArrayList<>();
+                        if (c.getValue()) {
+                            streams.add(STREAM_PREFIX);
+                        } else {
+                            for (int shard = 0; shard < SHARDS; shard++) {
+                                streams.add(STREAM_PREFIX + ":" + shard);
+                            }
+                        }
+                        long perSecond = run(sender, receiver, streams);
+                        if (round == ROUNDS) {
+                            log.info("{}: {} msgs/s, {} stream entries and {} reads for {} messages", c.getKey(),
+                                    perSecond, entriesRead.sum(), reads.sum(), SENDERS * MESSAGES_PER_SENDER);
+                        }
+                    }
+                }
+                log.info("Stream forwarder: {}", forwarder.metrics());
+                assertEquals(0L, senderBatcher.metrics().get("failed"));
+                assertEquals(0L, receiverBatcher.metrics().get("failed"));
+            } finally {
+                forwarder.flushAll();
+                senderBatcher.stop();
+                receiverBatcher.stop();
+            }
+        }
+    }
+
+    private long run(ClusterManager sender, ClusterManager receiver, List<String> streams) throws InterruptedException {
+        delivered.reset();
+        entriesRead.reset();
+        reads.reset();
+        ReflectionTestUtils.setField(receiver, "isRunning", true);
+        List<Thread> readers = new ArrayList<>();
+        for (String stream : streams) {
+            readers.add(Thread.ofPlatform().start(() -> ReflectionTestUtils.invokeMethod(receiver, "listenStream", stream)));
+        }
+
+        long total = (long) SENDERS * MESSAGES_PER_SENDER;
+        long start = System.nanoTime();
+        List<Thread> senders = new ArrayList<>(SENDERS);
+        for (int s = 0; s < SENDERS; s++) {
+            int senderIndex = s;
+            senders.add(Thread.ofVirtual().start(() -> {
+                for (int i = 0; i < MESSAGES_PER_SENDER; i++) {
+                    sender.forwardToInstance("node-2", message(senderIndex, i));
+                }
+            }));
+        }
+        for (Thread s : senders) {
+            s.join();
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+        while (delivered.sum() < total && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        ReflectionTestUtils.setField(receiver, "isRunning", false);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertEquals(total, delivered.sum());
+        return Math.round(total / (elapsed / 1e9));
+    }
+
+    private static Message message(int sender, int i) {
+        Message msg = new Message();
+        msg.setEventId(1000001);
+        msg.setFromUid("s" + sender);
+        msg.setToUid("u" + (sender * MESSAGES_PER_SENDER + i) % USERS);
+        msg.setCache(false);
+        msg.setDataBody("{\"text\":\"hello from another node\",\"seq\":" + i + "}");
+        msg.setSTimest(System.currentTimeMillis());
+        return msg;
+    }
+
+    private static RedisBatcher batcher(FakeRedisServer redis) {
+        RedisBatcher batcher = new RedisBatcher();
+        ReflectionTestUtils.setField(batcher, "connectionFactory", redis.connectionFactory());
+        ReflectionTestUtils.setField(batcher, "windowMicros", 200L);
+        ReflectionTestUtils.setField(batcher, "maxBatch", 128);
+        ReflectionTestUtils.setField(batcher, "flusherCount", 2);
+        ReflectionTestUtils.setField(batcher, "maxInFlight", 4);
+        ReflectionTestUtils.setField(batcher, "queueCapacity", 65536);
+        ReflectionTestUtils.setField(batcher, "timeoutMs", 60_000L);
+        batcher.start();
+        return batcher;
+    }
+
+    // node-1: forwardToInstance as configured, no peer connection so every batch goes through the stream
+    private static ClusterManager sender(RedisBatcher batcher, StreamForwarder forwarder) {
+        PeerTransport peerTransport = mock(PeerTransport.class);
+        when(peerTransport.send(anyString(), anyInt(), anyString(), any(), anyBoolean(), anyInt(), any()))
+                .thenAnswer(inv -> {
+                    inv.<Supplier<?>>getArgument(6).get();
+                    return false;
+                });
+        ReflectionTestUtils.setField(forwarder, "redisBatcher", batcher);
+        ReflectionTestUtils.setField(forwarder, "peerTransport", peerTransport);
+        ReflectionTestUtils.setField(forwarder, "maxMessages", 128);
+        ReflectionTestUtils.setField(forwarder, "maxBytes", 65536);
+        ReflectionTestUtils.setField(forwarder, "lingerMicros", 1000L);
+        ReflectionTestUtils.setField(forwarder, "compressThreshold", 4096);
+
+        ClusterManager manager = new ClusterManager();
+        ReflectionTestUtils.setField(manager, "redisBatcher", batcher);
+        ReflectionTestUtils.setField(manager, "streamForwarder", forwarder);
+        ReflectionTestUtils.setField(manager, "instanceId", "node-1");
+        ReflectionTestUtils.setField(manager, "streamShards", SHARDS);
+        ReflectionTestUtils.setField(manager, "streamMaxLen", 100_000L);
+        return manager;
+    }
+
+    // node-2: its shard readers, with every user connected through one channel
+    @SuppressWarnings("unchecked")
+    private ClusterManager receiver(RedisBatcher batcher, RedisConnection reader) {
+        StringRedisTemplate redisTemplate = mock(StringRedisTemplate.class);
+        RedisConnection connection = mock(RedisConnection.class);
+        RedisStreamCommands streamCommands = mock(RedisStreamCommands.class);
+        when(redisTemplate.execute(any(RedisCallback.class)))
+                .thenAnswer(inv -> inv.getArgument(0, RedisCallback.class).doInRedis(connection));
+        when(connection.streamCommands()).thenReturn(streamCommands);
+        when(streamCommands.xReadGroup(any(Consumer.class), any(StreamReadOptions.class), any(StreamOffset.class)))
+                .thenAnswer(inv -> {
+                    StreamReadOptions options = inv.getArgument(1);
+                    StreamOffset<byte[]> offset = inv.getArgument(2);
+                    List<ByteRecord> records = reader.streamCommands().xRange(offset.getKey(), Range.unbounded(),
+                            Limit.limit().count(options.getCount().intValue()));
+                    if (records == null || records.isEmpty()) {
+                        Thread.sleep(1);
+                        return List.of();
+                    }
+                    reads.increment();
+                    entriesRead.add(records.size());
+                    return records;
+                });
+
+        ChannelManager channelManager = mock(ChannelManager.class);
+        List<Channel> channels = List.of(new EmbeddedChannel());
+        when(channelManager.getUserChannels(anyString())).thenReturn(channels);
+        MessageSender messageSender = mock(MessageSender.class);
+        doAnswer(inv -> {
+            delivered.increment();
+            return null;
+        }).when(messageSender).send(any(Channel.class), any(Message.class));
+
+        ClusterManager manager = new ClusterManager();
+        ReflectionTestUtils.setField(manager, "redisTemplate", redisTemplate);
+        ReflectionTestUtils.setField(manager, "redisBatcher", batcher);
+        ReflectionTestUtils.setField(manager, "channelManager", channelManager);
+        ReflectionTestUtils.setField(manager, "messageSender", messageSender);
+        ReflectionTestUtils.setField(manager, "instanceId", "node-2");
+        ReflectionTestUtils.setField(manager, "streamShards", SHARDS);
+        ReflectionTestUtils.setField(manager, "streamReadCount", 200);
+        return manager;
+    }
+}
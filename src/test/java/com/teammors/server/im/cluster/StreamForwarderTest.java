@@ -0,0 +1,142 @@
+package com.teammors.server.im.cluster;
+
+import com.teammors.server.im.service.RedisBatcher;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.redis.connection.stream.ByteRecord;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class StreamForwarderTest {
+
+    private static final String GROUP = "{\"groupId\":\"g1\"}";
+    private static final String MEMBERS = "[\"u1\",\"u2\"]";
+
+    private final RedisBatcher redisBatcher = mock(RedisBatcher.class);
+    private final PeerTransport peerTransport = mock(PeerTransport.class);
+    private final StreamForwarder forwarder = new StreamForwarder();
+
+    @BeforeEach
+    void wire() {
+        ReflectionTestUtils.setField(forwarder, "redisBatcher", redisBatcher);
+        ReflectionTestUtils.setField(forwarder, "peerTransport", peerTransport);
+        ReflectionTestUtils.setField(forwarder, "maxMessages", 128);
+        ReflectionTestUtils.setField(forwarder, "maxBytes", 65536);
+        // Long enough that only flushAll writes
+        ReflectionTestUtils.setField(forwarder, "lingerMicros", 60_000_000L);
+        ReflectionTestUtils.setField(forwarder, "compressThreshold", 0);
+        when(redisBatcher.xAddRaw(anyString(), any(), anyLong()))
+                .thenReturn(CompletableFuture.completedFuture(RecordId.autoGenerate()));
+        // No peer connection: every batch goes through the stream
+        when(peerTransport.send(anyString(), anyInt(), anyString(), any(), anyBoolean(), anyInt(), any()))
+                .thenAnswer(inv -> {
+                    inv.<Supplier<?>>getArgument(6).get();
+                    return false;
+                });
+    }
+
+    private static ByteRecord record(Map<String, byte[]> fields) {
+        Map<byte[], byte[]> raw = new LinkedHashMap<>();
+        fields.forEach((name, value) -> raw.put(name.getBytes(StandardCharsets.UTF_8), value));
+        return StreamRecords.rawBytes(raw).withStreamKey("s".getBytes(StandardCharsets.UTF_8)).withId(RecordId.of("1-0"));
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] gzip(String value) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gz = new GZIPOutputStream(out)) {
+            gz.write(bytes(value));
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    void unpacksBatchLinesInOrder() {
+        String lines = "{\"toUid\":\"a\"}\n" + GROUP + "\t" + MEMBERS + "\n{\"toUid\":\"b\"}";
+
+        assertEquals(List.of(
+                new StreamForwarder.Forward("{\"toUid\":\"a\"}", null),
+                new StreamForwarder.Forward(GROUP, MEMBERS),
+                new StreamForwarder.Forward("{\"toUid\":\"b\"}", null)),
+                StreamForwarder.unpack(record(Map.of(StreamForwarder.FIELD_BATCH, bytes(lines)))));
+    }
+
+    @Test
+    void unpacksGzippedBatch() throws IOException {
+        String lines = GROUP + "\t" + MEMBERS + "\n{\"toUid\":\"a\"}";
+
+        assertEquals(List.of(
+                new StreamForwarder.Forward(GROUP, MEMBERS),
+                new StreamForwarder.Forward("{\"toUid\":\"a\"}", null)),
+                StreamForwarder.unpack(record(Map.of(StreamForwarder.FIELD_BATCH_GZIP, gzip(lines)))));
+    }
+
+    @Test
+    void unpacksLegacySingleMessageEntries() {
+        assertEquals(List.of(new StreamForwarder.Forward("{\"toUid\":\"a\"}", null)),
+                StreamForwarder.unpack(record(Map.of(StreamForwarder.FIELD_BODY, bytes("{\"toUid\":\"a\"}")))));
+        assertEquals(List.of(new StreamForwarder.Forward(GROUP, MEMBERS)),
+                StreamForwarder.unpack(record(Map.of(
+                        StreamForwarder.FIELD_BODY, bytes(GROUP),
+                        StreamForwarder.FIELD_MEMBERS, bytes(MEMBERS)))));
+        assertTrue(StreamForwarder.unpack(record(Map.of("other", bytes("x")))).isEmpty());
+    }
+
+    @Test
+    void flushedBatchRoundTrips() {
+        ReflectionTestUtils.setField(forwarder, "compressThreshold", 1);
+        forwarder.forward("node-2", 0, "im:stream:instance:node-2:0", 1000, "{\"toUid\":\"a\"}", null);
+        forwarder.forward("node-2", 0, "im:stream:instance:node-2:0", 1000, GROUP, MEMBERS);
+        forwarder.flushAll();
+
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<Map<String, byte[]>> fields = ArgumentCaptor.forClass(Map.class);
+        verify(redisBatcher).xAddRaw(eq("im:stream:instance:node-2:0"), fields.capture(), eq(1000L));
+        assertEquals(List.of(
+                new StreamForwarder.Forward("{\"toUid\":\"a\"}", null),
+                new StreamForwarder.Forward(GROUP, MEMBERS)),
+                StreamForwarder.unpack(record(fields.getValue())));
+    }
+
+    @Test
+    void forgetDropsTheDeadInstancesBuffers() {
+        forwarder.forward("node-2", 0, "im:stream:instance:node-2:0", 1000, "{\"toUid\":\"a\"}", null);
+        forwarder.forward("node-3", 1, "im:stream:instance:node-3:1", 1000, "{\"toUid\":\"b\"}", null);
+
+        forwarder.forget("node-2");
+        forwarder.flushAll();
+
+        verify(redisBatcher, never()).xAddRaw(eq("im:stream:instance:node-2:0"), any(), anyLong());
+        verify(redisBatcher).xAddRaw(eq("im:stream:instance:node-3:1"), any(), anyLong());
+        verify(peerTransport, never()).send(eq("node-2"), anyInt(), anyString(), any(), anyBoolean(), anyInt(), any());
+        assertEquals(1, ((Map<?, ?>) ReflectionTestUtils.getField(forwarder, "buffers")).size());
+    }
+}
@@ -0,0 +1,118 @@
+package com.teammors.server.im.entity;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONObject;
+import lombok.Data;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The typed Message must keep the JSON wire format of the original all-String Message.
+ */
+class MessageTest {
+
+    // The Message shape clients and older nodes were built against
+    @Data
+    public static class LegacyMessage {
+        private String eventId;
+        private String fromUid;
+        private String toUid;
+        private String token;
+        private String deviceId = "";
+        private String type;
+        private String cTimest;
+        private String sTimest;
+        private String dataBody;
+        private String isGroup = "0";
+        private String groupId = "";
+        private String isCache = "1";
+    }
+
+    private static LegacyMessage legacy() {
+        LegacyMessage m = new LegacyMessage();
+        m.setEventId("1000001");
+        m.setFromUid("u1");
+        m.setToUid("u2");
+        m.setToken("t");
+        m.setDeviceId("d1");
+        m.setType("text");
+        m.setCTimest("1700000000000");
+        m.setSTimest("1700000000123");
+        m.setDataBody("{\"text\":\"hi\"}");
+        m.setIsGroup("1");
+        m.setGroupId("g1");
+        m.setIsCache("0");
+        return m;
+    }
+
+    @Test
+    void serializesLikeTheLegacyMessage() {
+        String legacyJson = JSON.toJSONString(legacy());
+        Message message = JSON.parseObject(legacyJson, Message.class);
+
+        assertEquals(JSON.parseObject(legacyJson), JSON.parseObject(JSON.toJSONString(message)));
+    }
+
+    @Test
+    void parsesLegacyJsonIntoTypedFields() {
+        Message message = JSON.parseObject(JSON.toJSONString(legacy()), Message.class);
+
+        assertEquals(1000001, message.getEventId());
+        assertEquals(1700000000000L, message.getCTimest());
+        assertEquals(1700000000123L, message.getSTimest());
+        assertTrue(message.isGroup());
+        assertFalse(message.isCache());
+        assertEquals("g1", message.getGroupId());
+        assertEquals("{\"text\":\"hi\"}", message.getDataBody());
+    }
+
+    @Test
+    void legacyReadersParseTheTypedMessage() {
+        Message message = new Message();
+        message.setEventId(5000004);
+        message.setFromUid("u1");
+        message.setSTimest(42);
+        message.setGroup(true);
+
+        LegacyMessage parsed = JSON.parseObject(JSON.toJSONString(message), LegacyMessage.class);
+        assertEquals("5000004", parsed.getEventId());
+        assertEquals("42", parsed.getSTimest());
+        assertEquals("1", parsed.getIsGroup());
+        assertEquals("1", parsed.getIsCache());
+    }
+
+    @Test
+    void unsetNumbersAreOmittedAndDefaultsKept() {
+        JSONObject json = JSON.parseObject(JSON.toJSONString(new Message()));
+
+        assertFalse(json.containsKey("eventId"));
+        assertFalse(json.containsKey("cTimest"));
+        assertFalse(json.containsKey("sTimest"));
+        assertEquals("0", json.getString("isGroup"));
+        assertEquals("1", json.getString("isCache"));
+        assertEquals("", json.getString("deviceId"));
+    }
+
+    @Test
+    void nonNumericValuesCountAsUnset() {
+        Message message = JSON.parseObject("{\"eventId\":\"abc\",\"cTimest\":\"\"}", Message.class);
+
+        assertEquals(0, message.getEventId());
+        assertEquals(0, message.getCTimest());
+    }
+
+    @Test
+    void copyToChangesOnlyTheReceiver() {
+        Message template = JSON.parseObject(JSON.toJSONString(legacy()), Message.class);
+        Message copy = template.copyTo("u9");
+
+        assertNotSame(template, copy);
+        assertEquals("u9", copy.getToUid());
+        copy.setToUid(template.getToUid());
+        assertEquals(template, copy);
+    }
+}
@@ -0,0 +1,139 @@
+package com.teammors.server.im.handler.impl;
+
+import ch.qos.logback.classic.Level;
+import com.teammors.server.im.entity.Message;
+import com.teammors.server.im.service.FakeRedisServer;
+import com.teammors.server.im.service.GroupMemberCache;
+import com.teammors.server.im.service.IMService;
+import com.teammors.server.im.service.RedisAdmission;
+import com.teammors.server.im.service.RedisBatcher;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Messages per second into one hot 10,000-member group, up to handing the 500-member batches to
+ * the delivery workers: {@link GroupMessageHandler} reading members from {@link GroupMemberCache}
+ * against the HKEYS per message (copied into a new list) it did before. Senders are virtual threads
+ * against a {@link FakeRedisServer} with a simulated network round trip; the fake server shares the
+ * CPU, so serving each HKEYS weighs on the uncached figure as it would on a real Redis.
+ *
+ * Run with: mvn test -Pbenchmark -Dtest=GroupMessageHandlerBenchmark
+ */
+@Tag("benchmark")
+class GroupMessageHandlerBenchmark {
+
+    private static final Logger log = LoggerFactory.getLogger(GroupMessageHandlerBenchmark.class);
+
+    private static final long ROUND_TRIP_MICROS = 200;
+    private static final int MEMBERS = 10_000;
+    private static final int SENDERS = 16;
+    private static final int MESSAGES_PER_SENDER = 50;
+    private static final String GROUP_ID = "g1";
+
+    @Test
+    void cachedMembersAgainstHkeysPerMessage() throws Exception {
+        // handle logs every message at info
+        ((ch.qos.logback.classic.Logger) LoggerFactory.getLogger(GroupMessageHandler.class)).setLevel(Level.WARN);
+        try (FakeRedisServer redis = new FakeRedisServer(ROUND_TRIP_MICROS)) {
+            RedisBatcher batcher = new RedisBatcher();
+            ReflectionTestUtils.setField(batcher, "connectionFactory", redis.connectionFactory());
+            ReflectionTestUtils.setField(batcher, "windowMicros", 200L);
+            ReflectionTestUtils.setField(batcher, "maxBatch", 128);
+            ReflectionTestUtils.setField(batcher, "flusherCount", 2);
+            ReflectionTestUtils.setField(batcher, "maxInFlight", 4);
+            ReflectionTestUtils.setField(batcher, "queueCapacity", 16384);
+            ReflectionTestUtils.setField(batcher, "timeoutMs", 10_000L);
+            batcher.start();
+            try {
+                List<CompletableFuture<Boolean>> writes = new ArrayList<>(MEMBERS);
+                for (int i = 0; i < MEMBERS; i++) {
+                    writes.add(batcher.hSet(GROUP_ID, "u" + i, "1"));
+                }
+                writes.forEach(CompletableFuture::join);
+                batcher.incr(GroupMemberCache.KEY_VERSION_PREFIX + GROUP_ID).join();
+
+                LongAdder batches = new LongAdder();
+                IMService imService = mock(IMService.class);
+                doAnswer(inv -> {
+                    batches.increment();
+                    return null;
+                }).when(imService).executeAsync(eq(RedisAdmission.OpClass.GROUP), any(Runnable.class));
+
+                GroupMemberCache cache = new GroupMemberCache();
+                ReflectionTestUtils.setField(cache, "redisBatcher", batcher);
+                ReflectionTestUtils.setField(cache, "revalidateMs", 2000L);
+                ReflectionTestUtils.setField(cache, "maxGroups", 10_000);
+                ReflectionTestUtils.setField(cache, "maxBytes", 64L << 20);
+                GroupMessageHandler handler = new GroupMessageHandler();
+                ReflectionTestUtils.setField(handler, "groupMemberCache", cache);
+                ReflectionTestUtils.setField(handler, "privateMessageHandler", mock(PrivateMessageHandler.class));
+                ReflectionTestUtils.setField(handler, "imService", imService);
+
+                Message msg = new Message();
+                msg.setEventId(5000004);
+                msg.setFromUid("u0");
+                msg.setGroupId(GROUP_ID);
+                msg.setGroup(true);
+                msg.setDataBody("{\"text\":\"hello group\"}");
+
+                // The first pass of each only warms up; the second counts
+                for (int pass = 1; pass <= 2; pass++) {
+                    long hkeys = measure("HKEYS per message", batches, redis, () -> {
+                        List<String> members = new ArrayList<>(batcher.hKeys(GROUP_ID).join());
+                        for (int i = 0; i < members.size(); i += 500) {
+                            imService.executeAsync(RedisAdmission.OpClass.GROUP, () -> { });
+                        }
+                    }, pass == 2);
+                    long cached = measure("member cache", batches, redis, () -> handler.handle(null, msg), pass == 2);
+                    if (pass == 2) {
+                        log.info("Cache: {}x the messages/s, {}", cached / Math.max(1, hkeys), cache.metrics());
+                    }
+                }
+            } finally {
+                batcher.stop();
+            }
+        }
+    }
+
+    // Messages per second with every sender handling its messages one after another
+    private static long measure(String name, LongAdder batches, FakeRedisServer redis, Runnable handle, boolean report)
+            throws InterruptedException {
+        batches.reset();
+        long commandsBefore = redis.commands();
+        long start = System.nanoTime();
+        List<Thread> senders = new ArrayList<>(SENDERS);
+        for (int s = 0; s < SENDERS; s++) {
+            senders.add(Thread.ofVirtual().start(() -> {
+                for (int i = 0; i < MESSAGES_PER_SENDER; i++) {
+                    handle.run();
+                }
+            }));
+        }
+        for (Thread sender : senders) {
+            sender.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        long messages = (long) SENDERS * MESSAGES_PER_SENDER;
+        assertEquals(messages * (MEMBERS / 500), batches.sum());
+        long perSecond = Math.round(messages / (elapsed / 1e9));
+        if (report) {
+            log.info("{}: {} msgs/s, {} Redis commands for {} messages", name, perSecond,
+                    redis.commands() - commandsBefore, messages);
+        }
+        return perSecond;
+    }
+}
@@ -0,0 +1,87 @@
+package com.teammors.server.im.handler.impl;
+
+import com.teammors.server.im.service.ChannelManager;
+import com.teammors.server.im.service.IMService;
+import com.teammors.server.im.service.MessageSender;
+import com.teammors.server.im.service.RedisAdmission;
+import com.teammors.server.im.service.RedisBatcher;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class PingHandlerTest {
+
+    private final RedisBatcher redisBatcher = mock(RedisBatcher.class);
+    private final IMService imService = mock(IMService.class);
+    private final PingHandler handler = new PingHandler();
+    private final EmbeddedChannel channel = new EmbeddedChannel();
+
+    @BeforeEach
+    void wire() {
+        ReflectionTestUtils.setField(handler, "redisBatcher", redisBatcher);
+        ReflectionTestUtils.setField(handler, "imService", imService);
+        ReflectionTestUtils.setField(handler, "messageSender", mock(MessageSender.class));
+        channel.attr(ChannelManager.ATTR_USER_ID).set("u1");
+        channel.attr(MessageSender.ATTR_ACK_PENDING).set(Boolean.TRUE);
+    }
+
+    private void runAsyncTasksInline() {
+        doAnswer(inv -> {
+            inv.getArgument(1, Runnable.class).run();
+            return null;
+        }).when(imService).executeAsync(eq(RedisAdmission.OpClass.DELIVERY), any(Runnable.class));
+    }
+
+    @Test
+    void rejectedCheckKeepsTheFlag() {
+        // executeAsync drops the task, as it does when RedisAdmission rejects it
+        handler.onHeartbeat(channel);
+
+        verify(redisBatcher, never()).hGetAll(any());
+        assertEquals(Boolean.TRUE, channel.attr(MessageSender.ATTR_ACK_PENDING).get());
+    }
+
+    @Test
+    void failedReadKeepsTheFlag() {
+        runAsyncTasksInline();
+        when(redisBatcher.hGetAll("ack:msg:u1")).thenReturn(CompletableFuture.failedFuture(new IllegalStateException("down")));
+
+        handler.onHeartbeat(channel);
+
+        assertEquals(Boolean.TRUE, channel.attr(MessageSender.ATTR_ACK_PENDING).get());
+    }
+
+    @Test
+    void emptyAckStoreClearsTheFlag() {
+        runAsyncTasksInline();
+        when(redisBatcher.hGetAll("ack:msg:u1")).thenReturn(CompletableFuture.completedFuture(Map.of()));
+
+        handler.onHeartbeat(channel);
+
+        assertEquals(Boolean.FALSE, channel.attr(MessageSender.ATTR_ACK_PENDING).get());
+    }
+
+    @Test
+    void pendingAcksKeepTheFlag() {
+        runAsyncTasksInline();
+        String fresh = String.valueOf(System.currentTimeMillis());
+        when(redisBatcher.hGetAll("ack:msg:u1")).thenReturn(CompletableFuture.completedFuture(Map.of(fresh, "{}")));
+
+        handler.onHeartbeat(channel);
+
+        assertEquals(Boolean.TRUE, channel.attr(MessageSender.ATTR_ACK_PENDING).get());
+    }
+}
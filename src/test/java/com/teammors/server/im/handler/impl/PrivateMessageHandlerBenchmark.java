@@ -0,0 +1,188 @@
+package com.teammors.server.im.handler.impl;
+
+import ch.qos.logback.classic.Level;
+import com.teammors.server.im.cluster.ClusterManager;
+import com.teammors.server.im.cluster.SessionRouteCache;
+import com.teammors.server.im.entity.Message;
+import com.teammors.server.im.service.BackpressureManager;
+import com.teammors.server.im.service.ChannelManager;
+import com.teammors.server.im.service.FakeRedisServer;
+import com.teammors.server.im.service.MessageSender;
+import com.teammors.server.im.service.RedisAdmission;
+import com.teammors.server.im.service.RedisBatcher;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Latency of one group message to 500, 5,000 and 50,000 members, from handing out the 500-member
+ * batches until the last batch returns: {@link PrivateMessageHandler#deliverBatch} against the
+ * per-member loop it replaced (an awaited route lookup per member, offline RPUSHes fired and not
+ * awaited). A tenth of the members are connected here, four tenths on other nodes and the rest
+ * offline; routes start cold. Batches run on virtual threads behind {@link RedisAdmission} with the
+ * group limit of application.yml, against a {@link FakeRedisServer} with a simulated round trip.
+ *
+ * Run with: mvn test -Pbenchmark -Dtest=PrivateMessageHandlerBenchmark
+ */
+@Tag("benchmark")
+class PrivateMessageHandlerBenchmark {
+
+    private static final Logger log = LoggerFactory.getLogger(PrivateMessageHandlerBenchmark.class);
+
+    private static final long ROUND_TRIP_MICROS = 200;
+    private static final int BATCH_SIZE = 500;
+    private static final int[] GROUP_SIZES = {500, 5_000, 50_000};
+    private static final String SELF = "node-1";
+
+    private RedisBatcher batcher;
+    private ChannelManager channelManager;
+    private MessageSender messageSender;
+    private ClusterManager clusterManager;
+    // Rebuilt for every group message
+    private SessionRouteCache routes;
+    private PrivateMessageHandler handler;
+    private final RedisAdmission admission = new RedisAdmission(
+            new MockEnvironment().withProperty("im.redis.admission.limit.group", "4"), 256, 120_000);
+
+    @Test
+    void batchDeliveryAgainstPerMemberLookups() throws Exception {
+        // bind logs every session at info
+        ((ch.qos.logback.classic.Logger) LoggerFactory.getLogger(ChannelManager.class)).setLevel(Level.WARN);
+        try (FakeRedisServer redis = new FakeRedisServer(ROUND_TRIP_MICROS)) {
+            batcher = new RedisBatcher();
+            ReflectionTestUtils.setField(batcher, "connectionFactory", redis.connectionFactory());
+            ReflectionTestUtils.setField(batcher, "windowMicros", 200L);
+            ReflectionTestUtils.setField(batcher, "maxBatch", 128);
+            ReflectionTestUtils.setField(batcher, "flusherCount", 2);
+            ReflectionTestUtils.setField(batcher, "maxInFlight", 4);
+            ReflectionTestUtils.setField(batcher, "queueCapacity", 65536);
+            ReflectionTestUtils.setField(batcher, "timeoutMs", 60_000L);
+            batcher.start();
+            try {
+                channelManager = new ChannelManager();
+                messageSender = new MessageSender();
+                ReflectionTestUtils.setField(messageSender, "redisBatcher", batcher);
+                ReflectionTestUtils.setField(messageSender, "channelManager", channelManager);
+                ReflectionTestUtils.setField(messageSender, "backpressureManager", mock(BackpressureManager.class));
+                clusterManager = mock(ClusterManager.class);
+                when(clusterManager.getInstanceId()).thenReturn(SELF);
+
+                List<EmbeddedChannel> channels = new ArrayList<>();
+                List<String> members = new ArrayList<>();
+                int largest = GROUP_SIZES[GROUP_SIZES.length - 1];
+                List<CompletableFuture<Boolean>> writes = new ArrayList<>();
+                for (int i = 0; i < largest; i++) {
+                    String uid = "u" + i;
+                    members.add(uid);
+                    if (i % 10 == 0) {
+                        EmbeddedChannel ch = new EmbeddedChannel();
+                        channelManager.bind(uid, "d0", ch);
+                        channels.add(ch);
+                        writes.add(batcher.hSet("session:" + uid, "d0", session(SELF)));
+                    } else if (i % 10 < 5) {
+                        writes.add(batcher.hSet("session:" + uid, "d0", session("node-" + (2 + i % 3))));
+                    }
+                }
+                writes.forEach(CompletableFuture::join);
+
+                // Warm up both paths before anything is measured
+                deliver(members.subList(0, BATCH_SIZE), this::perMember);
+                deliver(members.subList(0, BATCH_SIZE), this::batched);
+                channels.forEach(EmbeddedChannel::releaseOutbound);
+
+                for (int size : GROUP_SIZES) {
+                    List<String> group = members.subList(0, size);
+                    long perMember = deliver(group, this::perMember);
+                    long batched = deliver(group, this::batched);
+                    channels.forEach(EmbeddedChannel::releaseOutbound);
+                    log.info("{} members: per-member lookups {} ms, deliverBatch {} ms",
+                            size, TimeUnit.NANOSECONDS.toMillis(perMember), TimeUnit.NANOSECONDS.toMillis(batched));
+                }
+                assertEquals(0L, batcher.metrics().get("failed"));
+            } finally {
+                batcher.stop();
+            }
+        }
+    }
+
+    // One group message: every batch on its own virtual thread, as IMService.executeAsync runs them
+    private long deliver(List<String> group, BiConsumer<Message, List<String>> processBatch) throws InterruptedException {
+        // Cold routes, as for a group that has not been written to for a while
+        routes = new SessionRouteCache();
+        ReflectionTestUtils.setField(routes, "redisBatcher", batcher);
+        ReflectionTestUtils.setField(routes, "ttlMs", 5000L);
+        ReflectionTestUtils.setField(routes, "maxEntries", 100_000);
+        handler = new PrivateMessageHandler();
+        ReflectionTestUtils.setField(handler, "channelManager", channelManager);
+        ReflectionTestUtils.setField(handler, "redisBatcher", batcher);
+        ReflectionTestUtils.setField(handler, "clusterManager", clusterManager);
+        ReflectionTestUtils.setField(handler, "sessionRouteCache", routes);
+        ReflectionTestUtils.setField(handler, "messageSender", messageSender);
+
+        Message template = new Message();
+        template.setEventId(1000001);
+        template.setFromUid("u0");
+        template.setGroupId("g1");
+        template.setGroup(true);
+        template.setCache(true);
+        template.setDataBody("{\"text\":\"hello group\"}");
+        template.setSTimest(System.currentTimeMillis());
+
+        long start = System.nanoTime();
+        List<Thread> batches = new ArrayList<>();
+        for (int i = 0; i < group.size(); i += BATCH_SIZE) {
+            List<String> batch = group.subList(i, Math.min(i + BATCH_SIZE, group.size()));
+            batches.add(Thread.ofVirtual().start(() -> admission.run(RedisAdmission.OpClass.GROUP,
+                    () -> processBatch.accept(template, batch))));
+        }
+        for (Thread batch : batches) {
+            batch.join();
+        }
+        return System.nanoTime() - start;
+    }
+
+    private void batched(Message template, List<String> batch) {
+        assertEquals(batch.size(), handler.deliverBatch(template, batch).size());
+    }
+
+    // GroupMessageHandler.processBatch before deliverBatch
+    private void perMember(Message template, List<String> batch) {
+        Map<String, List<String>> remoteMembers = new HashMap<>();
+        for (String memberId : batch) {
+            Message copy = template.copyTo(memberId);
+            copy.setSTimest(System.currentTimeMillis());
+            boolean sentLocally = handler.deliverLocally(copy);
+            String[] instanceIds = routes.instancesOf(memberId);
+            if (instanceIds.length == 0) {
+                if (!sentLocally) handler.storeOffline(copy);
+                continue;
+            }
+            for (String instanceId : instanceIds) {
+                if (!SELF.equals(instanceId)) {
+                    remoteMembers.computeIfAbsent(instanceId, k -> new ArrayList<>()).add(memberId);
+                }
+            }
+        }
+        remoteMembers.forEach((instanceId, uids) -> clusterManager.forwardGroupToInstance(instanceId, template, uids));
+    }
+
+    private static String session(String instanceId) {
+        return "{\"deviceId\":\"d0\",\"instanceId\":\"" + instanceId + "\"}";
+    }
+}
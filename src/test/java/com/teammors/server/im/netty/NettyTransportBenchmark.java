@@ -0,0 +1,164 @@
+package com.teammors.server.im.netty;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.MultiThreadIoEventLoopGroup;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Connection rate and echo throughput per transport mode (nio / epoll / io_uring), over loopback.
+ * Modes whose native library is not loadable on this host are skipped.
+ *
+ * Run with: mvn test -Pbenchmark -Dtest=NettyTransportBenchmark
+ */
+@Tag("benchmark")
+class NettyTransportBenchmark {
+
+    private static final Logger log = LoggerFactory.getLogger(NettyTransportBenchmark.class);
+
+    private static final int CONNECTIONS = 1000;
+    private static final int MESSAGES_PER_CONNECTION = 1000;
+    private static final int MESSAGE_BYTES = 64;
+
+    @Test
+    void compareTransports() throws Exception {
+        List<NettyTransport> stalled = new ArrayList<>();
+        for (NettyTransport transport : NettyTransport.values()) {
+            if (NettyTransport.resolve(transport.name().toLowerCase()) != transport) {
+                log.info("{}: not available on this host, skipped", transport);
+                continue;
+            }
+            if (!run(transport)) {
+                stalled.add(transport);
+            }
+        }
+        assertTrue(stalled.isEmpty(), "echo did not complete on " + stalled);
+    }
+
+    // False if the echo did not complete within the timeout
+    private boolean run(NettyTransport transport) throws Exception {
+        EventLoopGroup boss = new MultiThreadIoEventLoopGroup(1, transport.ioHandlerFactory());
+        EventLoopGroup workers = new MultiThreadIoEventLoopGroup(2, transport.ioHandlerFactory());
+        EventLoopGroup clients = new MultiThreadIoEventLoopGroup(2, transport.ioHandlerFactory());
+        try {
+            Channel server = new ServerBootstrap()
+                    .group(boss, workers)
+                    .channel(transport.serverChannelClass())
+                    .option(ChannelOption.SO_BACKLOG, 1024)
+                    .childOption(ChannelOption.TCP_NODELAY, true)
+                    .childHandler(new Echo())
+                    .bind("127.0.0.1", 0).sync().channel();
+            int port = ((InetSocketAddress) server.localAddress()).getPort();
+
+            long expectedBytes = (long) CONNECTIONS * MESSAGES_PER_CONNECTION * MESSAGE_BYTES;
+            Counter counter = new Counter(expectedBytes);
+            Bootstrap bootstrap = new Bootstrap()
+                    .group(clients)
+                    .channel(transport.socketChannelClass())
+                    .option(ChannelOption.TCP_NODELAY, true)
+                    .handler(counter);
+
+            // Connection rate: sequential connects
+            List<Channel> channels = new ArrayList<>(CONNECTIONS);
+            long connectStart = System.nanoTime();
+            for (int i = 0; i < CONNECTIONS; i++) {
+                channels.add(bootstrap.connect("127.0.0.1", port).sync().channel());
+            }
+            long connectNanos = System.nanoTime() - connectStart;
+
+            // Throughput: every connection sends its messages, the server echoes them back
+            long sendStart = System.nanoTime();
+            for (Channel channel : channels) {
+                channel.eventLoop().execute(() -> {
+                    for (int m = 0; m < MESSAGES_PER_CONNECTION; m++) {
+                        ByteBuf buf = channel.alloc().buffer(MESSAGE_BYTES);
+                        buf.writeZero(MESSAGE_BYTES);
+                        channel.write(buf);
+                    }
+                    channel.flush();
+                });
+            }
+            boolean done;
+            try {
+                counter.done.get(60, TimeUnit.SECONDS);
+                done = true;
+            } catch (Exception e) {
+                done = false;
+            }
+            long echoNanos = System.nanoTime() - sendStart;
+            if (!done) {
+                log.warn("{}: echo did not complete within 60s, {} bytes missing", transport, counter.remaining.get());
+            } else {
+                double seconds = echoNanos / 1e9;
+                long messages = (long) CONNECTIONS * MESSAGES_PER_CONNECTION;
+                log.info("{}: {} connects/s, {} msgs/s, {} MB/s echoed",
+                        transport,
+                        Math.round(CONNECTIONS / (connectNanos / 1e9)),
+                        Math.round(messages / seconds),
+                        Math.round(expectedBytes / seconds / (1024 * 1024)));
+            }
+
+            for (Channel channel : channels) {
+                channel.close();
+            }
+            server.close().sync();
+            return done;
+        } finally {
+            clients.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+            workers.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+            boss.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+        }
+    }
+
+    @ChannelHandler.Sharable
+    private static final class Echo extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ctx.write(msg);
+        }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext ctx) {
+            ctx.flush();
+        }
+    }
+
+    @ChannelHandler.Sharable
+    private static final class Counter extends ChannelInboundHandlerAdapter {
+        final AtomicLong remaining;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Counter(long expectedBytes) {
+            this.remaining = new AtomicLong(expectedBytes);
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            int bytes = ((ByteBuf) msg).readableBytes();
+            ReferenceCountUtil.release(msg);
+            if (remaining.addAndGet(-bytes) <= 0) {
+                done.complete(null);
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.teammors.server.im.netty.codec;
+
+import com.teammors.server.im.entity.Message;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.CorruptedFrameException;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class BinaryMessageCodecTest {
+
+    static Message sample(String toUid) {
+        Message m = new Message();
+        m.setEventId(1000001);
+        m.setFromUid("u1");
+        m.setToUid(toUid);
+        m.setType("text");
+        m.setCTimest(1700000000000L);
+        m.setSTimest(1700000000123L);
+        m.setDataBody("{\"text\":\"你好\"}");
+        m.setGroup(true);
+        m.setGroupId("g1");
+        return m;
+    }
+
+    @Test
+    void roundTrip() {
+        Message in = sample("u2");
+        ByteBuf buf = Unpooled.buffer();
+        try {
+            BinaryMessageCodec.encode(in, buf);
+            assertEquals(1000001, BinaryMessageCodec.peekEventId(buf));
+            assertEquals(in, BinaryMessageCodec.decode(buf));
+            assertFalse(buf.isReadable());
+        } finally {
+            buf.release();
+        }
+    }
+
+    @Test
+    void nullsAndDefaultsRoundTrip() {
+        Message in = new Message();
+        in.setCache(false);
+        ByteBuf buf = Unpooled.buffer();
+        try {
+            BinaryMessageCodec.encode(in, buf);
+            Message out = BinaryMessageCodec.decode(buf);
+            assertEquals(in, out);
+            assertEquals("", out.getDeviceId());
+            assertEquals("", out.getGroupId());
+        } finally {
+            buf.release();
+        }
+    }
+
+    @Test
+    void batchEnvelope() {
+        List<Message> in = List.of(sample("a"), sample("b"), sample("c"));
+        ByteBuf buf = Unpooled.buffer();
+        try {
+            BinaryMessageCodec.encodeBatch(in, buf);
+            assertEquals(BinaryMessageCodec.VERSION_BATCH, buf.readByte());
+            assertEquals(in.size(), BinaryMessageCodec.readVarLong(buf));
+            for (Message expected : in) {
+                int length = buf.readInt();
+                assertEquals(expected, BinaryMessageCodec.decode(buf.readSlice(length)));
+            }
+            assertFalse(buf.isReadable());
+        } finally {
+            buf.release();
+        }
+    }
+
+    @Test
+    void rejectsHostileLengths() {
+        ByteBuf buf = Unpooled.buffer();
+        try {
+            buf.writeByte(BinaryMessageCodec.VERSION);
+            BinaryMessageCodec.writeVarLong(buf, 1);
+            buf.writeByte(0);
+            BinaryMessageCodec.writeVarLong(buf, 0);
+            BinaryMessageCodec.writeVarLong(buf, 0);
+            BinaryMessageCodec.writeVarLong(buf, Integer.MAX_VALUE);
+            assertThrows(CorruptedFrameException.class, () -> BinaryMessageCodec.decode(buf));
+        } finally {
+            buf.release();
+        }
+    }
+
+    @Test
+    void rejectsUnknownVersion() {
+        ByteBuf buf = Unpooled.wrappedBuffer(new byte[]{9, 1, 0});
+        assertEquals(0, BinaryMessageCodec.peekEventId(buf));
+        assertThrows(CorruptedFrameException.class, () -> BinaryMessageCodec.decode(buf));
+    }
+}
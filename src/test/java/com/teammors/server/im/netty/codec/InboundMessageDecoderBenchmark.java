@@ -0,0 +1,130 @@
+package com.teammors.server.im.netty.codec;
+
+import cn.hutool.crypto.SecureUtil;
+import cn.hutool.crypto.symmetric.AES;
+import com.alibaba.fastjson.JSON;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.teammors.server.im.entity.Message;
+import com.teammors.server.im.service.MessageSender;
+import com.teammors.server.im.utils.SecurityUtil;
+import com.teammors.server.im.utils.SessionCrypto;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Text frame decode throughput and allocation per frame, {@link InboundMessageDecoder} against
+ * the path it replaced: frame to String, the isJsonFast sniff (a new Jackson ObjectMapper and a
+ * full Jackson parse per frame), then hutool AES for ciphertext and a fastjson parse.
+ * Single thread, plain JSON and ECB ciphertext frames.
+ *
+ * Run with: mvn test -Pbenchmark -Dtest=InboundMessageDecoderBenchmark
+ */
+@Tag("benchmark")
+class InboundMessageDecoderBenchmark {
+
+    private static final Logger log = LoggerFactory.getLogger(InboundMessageDecoderBenchmark.class);
+
+    private static final int ROUNDS = 3;
+    private static final int FRAMES = 100_000;
+    private static final String UID = "u1";
+
+    private final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    @Test
+    void decoderAgainstTheSniffAndParsePath() {
+        Message sample = BinaryMessageCodecTest.sample("u2");
+        byte[] plain = JSON.toJSONBytes(sample);
+        byte[] cipher = SecureUtil.aes(SecurityUtil.getUidKey(UID).getBytes()).encryptBase64(plain).getBytes(StandardCharsets.US_ASCII);
+        EmbeddedChannel plainChannel = decoderChannel(null);
+        EmbeddedChannel cipherChannel = decoderChannel(SessionCrypto.forUid(UID, SessionCrypto.Mode.ECB));
+
+        Map<String, Case> cases = new LinkedHashMap<>();
+        cases.put("plain, old path", new Case(plain, InboundMessageDecoderBenchmark::oldDecode));
+        cases.put("plain, decoder", new Case(plain, frame -> decode(plainChannel, frame)));
+        cases.put("ecb, old path", new Case(cipher, InboundMessageDecoderBenchmark::oldDecode));
+        cases.put("ecb, decoder", new Case(cipher, frame -> decode(cipherChannel, frame)));
+
+        // Rounds interleave the cases so each is measured after the shared code is compiled; the last one counts
+        for (int round = 1; round <= ROUNDS; round++) {
+            for (Map.Entry<String, Case> c : cases.entrySet()) {
+                long thread = Thread.currentThread().threadId();
+                long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+                long start = System.nanoTime();
+                Message last = null;
+                for (int i = 0; i < FRAMES; i++) {
+                    last = c.getValue().decode().apply(new TextWebSocketFrame(Unpooled.wrappedBuffer(c.getValue().payload())));
+                }
+                long elapsed = System.nanoTime() - start;
+                long allocated = threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+                assertEquals(sample, last);
+                if (round == ROUNDS) {
+                    log.info("{}: {} frames/s, {} bytes allocated per frame",
+                            c.getKey(), Math.round(FRAMES / (elapsed / 1e9)), allocated / FRAMES);
+                }
+            }
+        }
+    }
+
+    private record Case(byte[] payload, Function<TextWebSocketFrame, Message> decode) {
+    }
+
+    private static EmbeddedChannel decoderChannel(SessionCrypto crypto) {
+        InboundMessageDecoder decoder = new InboundMessageDecoder();
+        ReflectionTestUtils.setField(decoder, "messageSender", mock(MessageSender.class));
+        EmbeddedChannel ch = new EmbeddedChannel(decoder);
+        ch.attr(SessionCrypto.ATTR_CRYPTO).set(crypto);
+        return ch;
+    }
+
+    private static Message decode(EmbeddedChannel ch, TextWebSocketFrame frame) {
+        ch.writeInbound(frame);
+        return ch.readInbound();
+    }
+
+    // What WebSocketHandler did per text frame before the decoder stage
+    private static Message oldDecode(TextWebSocketFrame frame) {
+        try {
+            String text = frame.text();
+            if (!isJsonFast(text)) {
+                AES aes = SecureUtil.aes(SecurityUtil.getUidKey(UID).getBytes());
+                text = aes.decryptStr(text, StandardCharsets.UTF_8);
+            }
+            return JSON.parseObject(text, Message.class);
+        } finally {
+            frame.release();
+        }
+    }
+
+    // The removed XJSONUtils.isJsonFast
+    private static boolean isJsonFast(String str) {
+        if (str == null || str.trim().isEmpty()) return false;
+        String trimmed = str.trim();
+        char first = trimmed.charAt(0);
+        char last = trimmed.charAt(trimmed.length() - 1);
+        if (!((first == '{' && last == '}') || (first == '[' && last == ']'))) {
+            return false;
+        }
+        try {
+            new ObjectMapper().readTree(trimmed);
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.teammors.server.im.netty.codec;
+
+import cn.hutool.crypto.SecureUtil;
+import cn.hutool.crypto.symmetric.AES;
+import com.teammors.server.im.entity.Message;
+import com.teammors.server.im.service.MessageSender;
+import com.teammors.server.im.utils.SecurityUtil;
+import com.teammors.server.im.utils.SessionCrypto;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+class InboundMessageDecoderTest {
+
+    private static boolean isPing(String json) {
+        ByteBuf buf = Unpooled.copiedBuffer(json, StandardCharsets.UTF_8);
+        try {
+            return InboundMessageDecoder.isPing(buf);
+        } finally {
+            buf.release();
+        }
+    }
+
+    @Test
+    void recognisesTopLevelPing() {
+        assertTrue(isPing("{\"eventId\":\"9000000\"}"));
+        assertTrue(isPing("{\"eventId\":9000000}"));
+        assertTrue(isPing("{\"fromUid\":\"u1\",\"eventId\":\"9000000\",\"cTimest\":\"1\"}"));
+        assertTrue(isPing("  {\"token\":\"a\\\"b\",\"eventId\":9000000 }"));
+    }
+
+    @Test
+    void ignoresEventIdOutsideTheTopLevelObject() {
+        assertFalse(isPing("{\"eventId\":\"1000001\",\"dataBody\":{\"eventId\":\"9000000\"}}"));
+        assertFalse(isPing("{\"dataBody\":{\"eventId\":\"9000000\"},\"eventId\":\"1000001\"}"));
+        assertFalse(isPing("{\"items\":[{\"eventId\":9000000}],\"eventId\":1000001}"));
+        assertFalse(isPing("{\"dataBody\":\"{\\\"eventId\\\":\\\"9000000\\\"}\",\"eventId\":\"1000001\"}"));
+    }
+
+    @Test
+    void requiresTheExactValue() {
+        assertFalse(isPing("{\"eventId\":90000001}"));
+        assertFalse(isPing("{\"eventId\":9000000.5}"));
+        assertFalse(isPing("{\"eventId\":\"90000001\"}"));
+        assertFalse(isPing("{\"eventId\":\"9000000"));
+    }
+
+    @Test
+    void nestedPingIsDecodedAsAMessage() {
+        InboundMessageDecoder decoder = new InboundMessageDecoder();
+        ReflectionTestUtils.setField(decoder, "messageSender", mock(MessageSender.class));
+        EmbeddedChannel ch = new EmbeddedChannel(decoder);
+
+        ch.writeInbound(new TextWebSocketFrame("{\"eventId\":\"9000000\"}"));
+        assertSame(InboundPing.INSTANCE, ch.readInbound());
+
+        ch.writeInbound(new TextWebSocketFrame(
+                "{\"eventId\":\"1000001\",\"toUid\":\"u2\",\"dataBody\":{\"eventId\":\"9000000\"}}"));
+        Message msg = assertInstanceOf(Message.class, ch.readInbound());
+        assertEquals(1000001, msg.getEventId());
+        assertEquals("u2", msg.getToUid());
+        assertFalse(ch.finish());
+    }
+
+    @Test
+    void legacyClientCiphertextIsDecrypted() {
+        InboundMessageDecoder decoder = new InboundMessageDecoder();
+        ReflectionTestUtils.setField(decoder, "messageSender", mock(MessageSender.class));
+        EmbeddedChannel ch = new EmbeddedChannel(decoder);
+        ch.attr(SessionCrypto.ATTR_CRYPTO).set(SessionCrypto.forUid("u1", SessionCrypto.Mode.ECB));
+        AES clientAes = SecureUtil.aes(SecurityUtil.getUidKey("u1").getBytes());
+
+        ch.writeInbound(new TextWebSocketFrame(clientAes.encryptBase64("{\"eventId\":\"9000000\"}")));
+        assertSame(InboundPing.INSTANCE, ch.readInbound());
+
+        ch.writeInbound(new TextWebSocketFrame(clientAes.encryptBase64(
+                "{\"eventId\":\"1000001\",\"toUid\":\"u2\",\"dataBody\":\"你好\"}")));
+        Message msg = assertInstanceOf(Message.class, ch.readInbound());
+        assertEquals("u2", msg.getToUid());
+        assertEquals("你好", msg.getDataBody());
+
+        // Base64 wrapped over lines, as MIME encoders do
+        String wrapped = clientAes.encryptBase64("{\"eventId\":\"1000001\",\"toUid\":\"u3\"}").replaceAll("(.{16})", "$1\r\n");
+        ch.writeInbound(new TextWebSocketFrame(wrapped));
+        assertEquals("u3", assertInstanceOf(Message.class, ch.readInbound()).getToUid());
+        assertFalse(ch.finish());
+    }
+}
@@ -0,0 +1,102 @@
+package com.teammors.server.im.netty.codec;
+
+import cn.hutool.crypto.SecureUtil;
+import com.alibaba.fastjson.JSON;
+import com.teammors.server.im.entity.Message;
+import com.teammors.server.im.utils.SecurityUtil;
+import com.teammors.server.im.utils.SessionCrypto;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Heap bytes allocated and frames per second for one outbound text message, serialization for
+ * the ACK cache included: the old path (JSON serialized twice to Strings, the frame copied from
+ * a String, hutool AES and Base64 over Strings when encrypted) against {@link OutboundMessageEncoder}
+ * on a channel with an unpooled and with a pooled allocator. Direct memory taken by the unpooled
+ * allocator is not in the heap figure; its cost shows in the throughput.
+ *
+ * Run with: mvn test -Pbenchmark -Dtest=OutboundMessageEncoderBenchmark
+ */
+@Tag("benchmark")
+class OutboundMessageEncoderBenchmark {
+
+    private static final Logger log = LoggerFactory.getLogger(OutboundMessageEncoderBenchmark.class);
+
+    private static final int ROUNDS = 3;
+    private static final int MESSAGES = 100_000;
+    private static final String UID = "u2";
+
+    private final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    @Test
+    void pooledAgainstUnpooledAndTheOldPath() {
+        Message msg = BinaryMessageCodecTest.sample(UID);
+        Map<String, Function<Message, WebSocketFrame>> cases = new LinkedHashMap<>();
+        cases.put("plain, old path", m -> oldEncode(m, null));
+        cases.put("plain, unpooled", encoder(UnpooledByteBufAllocator.DEFAULT, null));
+        cases.put("plain, pooled", encoder(PooledByteBufAllocator.DEFAULT, null));
+        cases.put("ecb, old path", m -> oldEncode(m, SecurityUtil.getUidKey(UID)));
+        cases.put("ecb, unpooled", encoder(UnpooledByteBufAllocator.DEFAULT, SessionCrypto.Mode.ECB));
+        cases.put("ecb, pooled", encoder(PooledByteBufAllocator.DEFAULT, SessionCrypto.Mode.ECB));
+
+        // Rounds interleave the cases so each is measured after the shared code is compiled; the last one counts
+        for (int round = 1; round <= ROUNDS; round++) {
+            for (Map.Entry<String, Function<Message, WebSocketFrame>> c : cases.entrySet()) {
+                long thread = Thread.currentThread().threadId();
+                long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+                long start = System.nanoTime();
+                for (int i = 0; i < MESSAGES; i++) {
+                    WebSocketFrame frame = c.getValue().apply(msg);
+                    assertTrue(frame.release());
+                }
+                long elapsed = System.nanoTime() - start;
+                long allocated = threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+                if (round == ROUNDS) {
+                    log.info("{}: {} frames/s, {} heap bytes allocated per frame",
+                            c.getKey(), Math.round(MESSAGES / (elapsed / 1e9)), allocated / MESSAGES);
+                }
+            }
+        }
+    }
+
+    // sendAndCache today: serialize once for the ACK cache, the encoder reuses the bytes
+    private static Function<Message, WebSocketFrame> encoder(ByteBufAllocator alloc, SessionCrypto.Mode mode) {
+        EmbeddedChannel ch = new EmbeddedChannel();
+        ch.config().setAllocator(alloc);
+        ch.attr(WireProtocol.ATTR_PROTOCOL).set(WireProtocol.JSON);
+        ch.attr(SessionCrypto.ATTR_CRYPTO).set(mode != null ? SessionCrypto.forUid(UID, mode) : null);
+        ch.pipeline().addLast(OutboundMessageEncoder.INSTANCE);
+        return m -> {
+            byte[] json = JSON.toJSONBytes(m);
+            ch.writeOutbound(new OutboundMessage(m, json));
+            return ch.readOutbound();
+        };
+    }
+
+    // sendAndCache before the change: a String for the ACK cache, another for the frame
+    private static WebSocketFrame oldEncode(Message m, String key) {
+        String cached = JSON.toJSONString(m);
+        String text = JSON.toJSONString(m);
+        if (key != null) {
+            text = SecureUtil.aes(key.getBytes()).encryptBase64(text);
+        }
+        assertTrue(cached.length() > 0);
+        return new TextWebSocketFrame(text);
+    }
+}
@@ -0,0 +1,202 @@
+package com.teammors.server.im.netty.codec;
+
+import cn.hutool.crypto.SecureUtil;
+import com.alibaba.fastjson.JSON;
+import com.teammors.server.im.entity.Message;
+import com.teammors.server.im.utils.SecurityUtil;
+import com.teammors.server.im.utils.SessionCrypto;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.util.ResourceLeakDetector;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Every pooled buffer the encoder allocates must be released once the frame is, and the frame
+ * must decode back to the messages that went in.
+ */
+class OutboundMessageEncoderTest {
+
+    private static ResourceLeakDetector.Level previousLevel;
+
+    private final TrackingAllocator alloc = new TrackingAllocator();
+
+    @BeforeAll
+    static void paranoid() {
+        previousLevel = ResourceLeakDetector.getLevel();
+        ResourceLeakDetector.setLevel(ResourceLeakDetector.Level.PARANOID);
+    }
+
+    @AfterAll
+    static void restore() {
+        ResourceLeakDetector.setLevel(previousLevel);
+    }
+
+    @AfterEach
+    void allReleased() {
+        assertFalse(alloc.allocated.isEmpty(), "encoder did not use the channel allocator");
+        for (ByteBuf buf : alloc.allocated) {
+            assertEquals(0, buf.refCnt(), "leaked " + buf);
+        }
+    }
+
+    private EmbeddedChannel channel(WireProtocol protocol, SessionCrypto crypto) {
+        EmbeddedChannel ch = new EmbeddedChannel();
+        ch.config().setAllocator(alloc);
+        ch.attr(WireProtocol.ATTR_PROTOCOL).set(protocol);
+        ch.attr(SessionCrypto.ATTR_CRYPTO).set(crypto);
+        ch.pipeline().addLast(OutboundMessageEncoder.INSTANCE);
+        return ch;
+    }
+
+    private static Message message(String toUid) {
+        return BinaryMessageCodecTest.sample(toUid);
+    }
+
+    private static OutboundMessage.Batch batch(Message... messages) {
+        List<OutboundMessage> out = new ArrayList<>();
+        for (Message m : messages) {
+            out.add(new OutboundMessage(m, JSON.toJSONBytes(m)));
+        }
+        return new OutboundMessage.Batch(out);
+    }
+
+    @Test
+    void jsonSingle() {
+        Message in = message("u2");
+        EmbeddedChannel ch = channel(WireProtocol.JSON, null);
+        ch.writeOutbound(new OutboundMessage(in, null));
+
+        assertEquals(in, JSON.parseObject(text(ch.readOutbound()), Message.class));
+        assertFalse(ch.finish());
+    }
+
+    @Test
+    void jsonBatch() {
+        Message a = message("a");
+        Message b = message("b");
+        EmbeddedChannel ch = channel(WireProtocol.JSON_BATCH, null);
+        ch.writeOutbound(batch(a, b));
+
+        assertEquals(List.of(a, b), JSON.parseArray(text(ch.readOutbound()), Message.class));
+        assertFalse(ch.finish());
+    }
+
+    @Test
+    void jsonBatchEncrypted() {
+        Message a = message("a");
+        Message b = message("b");
+        EmbeddedChannel ch = channel(WireProtocol.JSON_BATCH, SessionCrypto.forUid("u1", SessionCrypto.Mode.GCM));
+        ch.writeOutbound(batch(a, b));
+
+        ByteBuf cipher = Unpooled.wrappedBuffer(Base64.getDecoder().decode(text(ch.readOutbound())));
+        ByteBuf plain = SessionCrypto.forUid("u1", SessionCrypto.Mode.GCM).decrypt(cipher, alloc);
+        try {
+            assertEquals(List.of(a, b), JSON.parseArray(plain.toString(StandardCharsets.UTF_8), Message.class));
+        } finally {
+            plain.release();
+        }
+        assertFalse(ch.finish());
+    }
+
+    @Test
+    void jsonSingleEncryptedReadsOnALegacyClient() {
+        Message in = message("u2");
+        EmbeddedChannel ch = channel(WireProtocol.JSON, SessionCrypto.forUid("u1", SessionCrypto.Mode.ECB));
+        ch.writeOutbound(new OutboundMessage(in, null));
+
+        String plain = SecureUtil.aes(SecurityUtil.getUidKey("u1").getBytes()).decryptStr(text(ch.readOutbound()));
+        assertEquals(in, JSON.parseObject(plain, Message.class));
+        assertFalse(ch.finish());
+    }
+
+    @Test
+    void binarySingle() {
+        Message in = message("u2");
+        EmbeddedChannel ch = channel(WireProtocol.BINARY, null);
+        ch.writeOutbound(new OutboundMessage(in, null));
+
+        BinaryWebSocketFrame frame = ch.readOutbound();
+        try {
+            assertTrue(frame.content().isDirect());
+            assertEquals(in, BinaryMessageCodec.decode(frame.content()));
+        } finally {
+            assertTrue(frame.release());
+        }
+        assertFalse(ch.finish());
+    }
+
+    @Test
+    void binaryBatchEncrypted() {
+        Message a = message("a");
+        Message b = message("b");
+        SessionCrypto crypto = SessionCrypto.forUid("u1", SessionCrypto.Mode.ECB);
+        EmbeddedChannel ch = channel(WireProtocol.BINARY_BATCH, crypto);
+        ch.writeOutbound(batch(a, b));
+
+        BinaryWebSocketFrame frame = ch.readOutbound();
+        ByteBuf plain = crypto.decrypt(frame.content(), alloc);
+        try {
+            assertEquals(BinaryMessageCodec.VERSION_BATCH, plain.readByte());
+            assertEquals(2, BinaryMessageCodec.readVarLong(plain));
+            assertEquals(a, BinaryMessageCodec.decode(plain.readSlice(plain.readInt())));
+            assertEquals(b, BinaryMessageCodec.decode(plain.readSlice(plain.readInt())));
+        } finally {
+            plain.release();
+            assertTrue(frame.release());
+        }
+        assertFalse(ch.finish());
+    }
+
+    private static String text(WebSocketFrame frame) {
+        assertInstanceOf(TextWebSocketFrame.class, frame);
+        try {
+            return frame.content().toString(StandardCharsets.UTF_8);
+        } finally {
+            assertTrue(frame.release());
+        }
+    }
+
+    // Pooled allocator that remembers every buffer it hands out
+    private static final class TrackingAllocator extends PooledByteBufAllocator {
+
+        final Queue<ByteBuf> allocated = new ConcurrentLinkedQueue<>();
+
+        TrackingAllocator() {
+            super(true);
+        }
+
+        @Override
+        protected ByteBuf newDirectBuffer(int initialCapacity, int maxCapacity) {
+            ByteBuf buf = super.newDirectBuffer(initialCapacity, maxCapacity);
+            allocated.add(buf);
+            return buf;
+        }
+
+        @Override
+        protected ByteBuf newHeapBuffer(int initialCapacity, int maxCapacity) {
+            ByteBuf buf = super.newHeapBuffer(initialCapacity, maxCapacity);
+            allocated.add(buf);
+            return buf;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.teammors.server.im.netty.handler;
+
+import com.alibaba.fastjson.JSON;
+import com.teammors.server.im.entity.Message;
+import com.teammors.server.im.handler.impl.PingHandler;
+import com.teammors.server.im.netty.codec.InboundMessageDecoder;
+import com.teammors.server.im.netty.codec.WireProtocol;
+import com.teammors.server.im.service.MessageSender;
+import com.teammors.server.im.utils.SessionCrypto;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.base64.Base64;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Heartbeats answered per second on one core, and heap allocated per heartbeat, for the event
+ * loop fast path ({@link InboundMessageDecoder} recognising the ping, {@link HeartbeatHandler}
+ * writing the preallocated PONG) against the path it replaced: a full Message parse, a virtual
+ * thread per ping and a PONG serialized (and encrypted) per reply. The replaced path's per-ping
+ * HGETALL on ack:msg:{uid} is left out, so its figure is an upper bound.
+ *
+ * Run with: mvn test -Pbenchmark -Dtest=HeartbeatHandlerBenchmark
+ */
+@Tag("benchmark")
+class HeartbeatHandlerBenchmark {
+
+    private static final Logger log = LoggerFactory.getLogger(HeartbeatHandlerBenchmark.class);
+
+    private static final int ROUNDS = 3;
+    private static final int HEARTBEATS = 200_000;
+    private static final String UID = "u1";
+    private static final byte[] PING = "{\"eventId\":9000000,\"fromUid\":\"u1\",\"cTimest\":1700000000000}"
+            .getBytes(StandardCharsets.UTF_8);
+
+    private final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    @FunctionalInterface
+    private interface Heartbeat {
+        void answer() throws Exception;
+    }
+
+    @Test
+    void fastPathAgainstDispatch() throws Exception {
+        SessionCrypto ecb = SessionCrypto.forUid(UID, SessionCrypto.Mode.ECB);
+        byte[] cipherPing = encrypt(ecb, PING);
+        try (ExecutorService virtualThreads = Executors.newVirtualThreadPerTaskExecutor()) {
+            AtomicLong pongs = new AtomicLong();
+            Map<String, Heartbeat> cases = new LinkedHashMap<>();
+            cases.put("plain, dispatched", dispatched(virtualThreads, null, PING, pongs));
+            cases.put("plain, fast path", fastPath(null, PING, pongs));
+            cases.put("ecb, dispatched", dispatched(virtualThreads, ecb, cipherPing, pongs));
+            cases.put("ecb, fast path", fastPath(ecb, cipherPing, pongs));
+
+            // Rounds interleave the cases so each is measured after the shared code is compiled; the last one counts
+            for (int round = 1; round <= ROUNDS; round++) {
+                for (Map.Entry<String, Heartbeat> c : cases.entrySet()) {
+                    pongs.set(0);
+                    long allocatedBefore = threads.getTotalThreadAllocatedBytes();
+                    long start = System.nanoTime();
+                    for (int i = 0; i < HEARTBEATS; i++) {
+                        c.getValue().answer();
+                    }
+                    while (pongs.get() < HEARTBEATS) {
+                        Thread.onSpinWait();
+                    }
+                    long elapsed = System.nanoTime() - start;
+                    long allocated = threads.getTotalThreadAllocatedBytes() - allocatedBefore;
+                    assertEquals(HEARTBEATS, pongs.get());
+                    if (round == ROUNDS) {
+                        log.info("{}: {} heartbeats/s on {} core(s), {} heap bytes allocated per heartbeat",
+                                c.getKey(), Math.round(HEARTBEATS / (elapsed / 1e9)),
+                                Runtime.getRuntime().availableProcessors(), allocated / HEARTBEATS);
+                    }
+                }
+            }
+        }
+    }
+
+    // Decoder and HeartbeatHandler as wired by WebSocketChannelInitializer; nothing awaits an ACK
+    private static Heartbeat fastPath(SessionCrypto crypto, byte[] ping, AtomicLong pongs) {
+        InboundMessageDecoder decoder = new InboundMessageDecoder();
+        ReflectionTestUtils.setField(decoder, "messageSender", mock(MessageSender.class));
+        HeartbeatHandler heartbeatHandler = new HeartbeatHandler();
+        ReflectionTestUtils.setField(heartbeatHandler, "pingHandler", new PingHandler());
+        EmbeddedChannel ch = new EmbeddedChannel(decoder, heartbeatHandler);
+        ch.config().setAllocator(PooledByteBufAllocator.DEFAULT);
+        ch.attr(WireProtocol.ATTR_PROTOCOL).set(WireProtocol.JSON);
+        ch.attr(SessionCrypto.ATTR_CRYPTO).set(crypto);
+        return () -> {
+            ch.writeInbound(new TextWebSocketFrame(Unpooled.wrappedBuffer(ping)));
+            WebSocketFrame pong = ch.readOutbound();
+            pong.release();
+            pongs.incrementAndGet();
+        };
+    }
+
+    // Before the fast path: parse the ping, IMService hands it to a virtual thread, and PingHandler
+    // answers through MessageSender.sendResponse, which OutboundMessageEncoder serialized and encrypted
+    private static Heartbeat dispatched(ExecutorService virtualThreads, SessionCrypto crypto, byte[] ping, AtomicLong pongs) {
+        ByteBufAllocator alloc = PooledByteBufAllocator.DEFAULT;
+        return () -> {
+            byte[] json = ping;
+            if (crypto != null) {
+                ByteBuf plain = crypto.decrypt(Unpooled.wrappedBuffer(java.util.Base64.getDecoder().decode(ping)), alloc);
+                json = new byte[plain.readableBytes()];
+                plain.readBytes(json);
+                plain.release();
+            }
+            Message msg = JSON.parseObject(json, Message.class);
+            assertEquals(9000000, msg.getEventId());
+            virtualThreads.execute(() -> {
+                Message resp = new Message();
+                resp.setEventId(9000000);
+                resp.setFromUid("SYSTEM");
+                resp.setDataBody("PONG");
+                resp.setSTimest(System.currentTimeMillis());
+                resp.setCache(false);
+                ByteBuf payload = Unpooled.wrappedBuffer(JSON.toJSONBytes(resp));
+                if (crypto != null) {
+                    ByteBuf cipher = crypto.encrypt(payload, alloc);
+                    payload = Base64.encode(cipher, false);
+                    cipher.release();
+                }
+                new TextWebSocketFrame(payload).release();
+                pongs.incrementAndGet();
+            });
+        };
+    }
+
+    private static byte[] encrypt(SessionCrypto crypto, byte[] plain) {
+        ByteBuf cipher = crypto.encrypt(Unpooled.wrappedBuffer(plain), PooledByteBufAllocator.DEFAULT);
+        byte[] text = java.util.Base64.getEncoder().encode(ByteBufUtil.getBytes(cipher));
+        cipher.release();
+        return text;
+    }
+}
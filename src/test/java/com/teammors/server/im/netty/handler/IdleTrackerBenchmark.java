@@ -0,0 +1,187 @@
+package com.teammors.server.im.netty.handler;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.MultiThreadIoEventLoopGroup;
+import io.netty.channel.local.LocalAddress;
+import io.netty.channel.local.LocalChannel;
+import io.netty.channel.local.LocalIoHandler;
+import io.netty.channel.local.LocalServerChannel;
+import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.EventExecutor;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Reader-idle detection for 100k connections, one IdleStateHandler (and its timer) per channel
+ * against the shared per-event-loop {@link IdleTracker}: retained heap per connection and event
+ * loop CPU time spent while every connection reads once every 3 s under a 10 s timeout, each
+ * relative to the same connections with no idle detection at all. In-VM (local) channels keep
+ * the file descriptor limit out of it.
+ *
+ * Run with: mvn test -Pbenchmark -Dtest=IdleTrackerBenchmark
+ */
+@Tag("benchmark")
+class IdleTrackerBenchmark {
+
+    private static final Logger log = LoggerFactory.getLogger(IdleTrackerBenchmark.class);
+
+    private static final int CONNECTIONS = 100_000;
+    private static final int TIMEOUT_SECONDS = 10;
+    private static final int READ_EVERY_SECONDS = 3;
+    private static final int ACTIVE_SECONDS = 10;
+
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    @Test
+    void sharedWheelAgainstIdleStateHandler() throws Exception {
+        // The first run only warms up the connect and read paths
+        run(() -> null);
+        Result none = run(() -> null);
+        Result perChannel = run(() -> new IdleStateHandler(TIMEOUT_SECONDS, 0, 0));
+        IdleTracker tracker = new IdleTracker();
+        ReflectionTestUtils.setField(tracker, "readerTimeoutSeconds", TIMEOUT_SECONDS);
+        HeartbeatHandler heartbeatHandler = mock(HeartbeatHandler.class);
+        ReflectionTestUtils.setField(tracker, "heartbeatHandler", heartbeatHandler);
+        Result wheel = run(() -> tracker);
+
+        log.info("No idle detection: {} ms event loop CPU over {} s", none.cpuMillis, ACTIVE_SECONDS);
+        log.info("IdleStateHandler: {} bytes per connection, {} ms event loop CPU over {} s",
+                (perChannel.heap - none.heap) / CONNECTIONS, perChannel.cpuMillis - none.cpuMillis, ACTIVE_SECONDS);
+        log.info("IdleTracker wheel: {} bytes per connection, {} ms event loop CPU over {} s",
+                (wheel.heap - none.heap) / CONNECTIONS, wheel.cpuMillis - none.cpuMillis, ACTIVE_SECONDS);
+        // Every connection read well within the timeout, so none may have been taken for idle
+        verify(heartbeatHandler, never()).evictIdle(anyList());
+    }
+
+    private record Result(long heap, long cpuMillis) {
+    }
+
+    private Result run(Supplier<ChannelHandler> idleHandler) throws Exception {
+        EventLoopGroup serverLoops = new MultiThreadIoEventLoopGroup(2, LocalIoHandler.newFactory());
+        EventLoopGroup clientLoops = new MultiThreadIoEventLoopGroup(2, LocalIoHandler.newFactory());
+        Sink sink = new Sink();
+        LocalAddress address = new LocalAddress("idle-benchmark-" + System.nanoTime());
+        try {
+            Channel server = new ServerBootstrap()
+                    .group(serverLoops)
+                    .channel(LocalServerChannel.class)
+                    .childHandler(new ChannelInitializer<LocalChannel>() {
+                        @Override
+                        protected void initChannel(LocalChannel ch) {
+                            ChannelHandler handler = idleHandler.get();
+                            if (handler != null) {
+                                ch.pipeline().addLast(handler);
+                            }
+                            ch.pipeline().addLast(sink);
+                        }
+                    })
+                    .bind(address).sync().channel();
+            Bootstrap bootstrap = new Bootstrap()
+                    .group(clientLoops)
+                    .channel(LocalChannel.class)
+                    .handler(sink);
+            // A third of the connections read each second, from the moment they open and while the rest connect
+            Queue<Channel> clients = new ConcurrentLinkedQueue<>();
+            AtomicInteger second = new AtomicInteger();
+            AtomicBoolean paused = new AtomicBoolean();
+            ScheduledExecutorService pinger = Executors.newSingleThreadScheduledExecutor();
+            pinger.scheduleAtFixedRate(() -> {
+                if (paused.get()) {
+                    return;
+                }
+                int slice = second.getAndIncrement() % READ_EVERY_SECONDS;
+                int i = 0;
+                for (Channel client : clients) {
+                    if (i++ % READ_EVERY_SECONDS == slice) {
+                        client.writeAndFlush(Boolean.TRUE);
+                    }
+                }
+            }, 1, 1, TimeUnit.SECONDS);
+            try {
+                // Weighed before and after connecting, so whatever earlier runs left behind cancels out
+                long heapBefore = usedHeapAfterGc();
+                // Ephemeral local addresses come from identity hash codes, which collide at this count
+                for (int i = 0; i < CONNECTIONS; i++) {
+                    clients.add(bootstrap.connect(address, new LocalAddress(address.id() + "-" + i)).sync().channel());
+                }
+                // Reads in flight would count as retained, so the heap is weighed between them
+                paused.set(true);
+                long heap = usedHeapAfterGc() - heapBefore;
+                paused.set(false);
+
+                List<Long> loopThreads = new ArrayList<>();
+                for (EventExecutor loop : serverLoops) {
+                    loopThreads.add(loop.submit(() -> Thread.currentThread().threadId()).get());
+                }
+                long cpuBefore = cpuNanos(loopThreads);
+                TimeUnit.SECONDS.sleep(ACTIVE_SECONDS);
+                long cpuMillis = TimeUnit.NANOSECONDS.toMillis(cpuNanos(loopThreads) - cpuBefore);
+
+                for (Channel client : clients) {
+                    client.close();
+                }
+                return new Result(heap, cpuMillis);
+            } finally {
+                pinger.shutdownNow();
+                server.close().sync();
+            }
+        } finally {
+            clientLoops.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+            serverLoops.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+        }
+    }
+
+    private long cpuNanos(List<Long> threadIds) {
+        long total = 0;
+        for (long id : threadIds) {
+            total += threads.getThreadCpuTime(id);
+        }
+        return total;
+    }
+
+    private static long usedHeapAfterGc() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            Thread.sleep(300);
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    @ChannelHandler.Sharable
+    private static final class Sink extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+}
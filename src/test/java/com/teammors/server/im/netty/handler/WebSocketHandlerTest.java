@@ -0,0 +1,121 @@
+package com.teammors.server.im.netty.handler;
+
+import com.teammors.server.im.handler.impl.LoginHandler;
+import com.teammors.server.im.netty.ConnectionDiagnostics;
+import com.teammors.server.im.netty.codec.OutboundMessageEncoder;
+import com.teammors.server.im.netty.codec.WireProtocol;
+import com.teammors.server.im.service.BackpressureManager;
+import com.teammors.server.im.service.ChannelManager;
+import com.teammors.server.im.service.IMService;
+import com.teammors.server.im.service.RedisAdmission;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.websocketx.Utf8FrameValidator;
+import io.netty.handler.codec.http.websocketx.WebSocketServerProtocolHandler;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Pipeline and attribute footprint of a connection once the WebSocket upgrade has completed.
+ */
+class WebSocketHandlerTest {
+
+    // application.yml netty.diagnostics.footprint-budget-bytes
+    private static final long FOOTPRINT_BUDGET_BYTES = 4096;
+
+    private final IMService imService = mock(IMService.class);
+    private final WebSocketHandler handler = new WebSocketHandler();
+    private final ConnectionDiagnostics diagnostics = new ConnectionDiagnostics();
+
+    private EmbeddedChannel upgrade(String subprotocol, boolean handshakeAuth) {
+        ReflectionTestUtils.setField(handler, "imService", imService);
+        ReflectionTestUtils.setField(handler, "backpressureManager", mock(BackpressureManager.class));
+        ReflectionTestUtils.setField(handler, "loginHandler", mock(LoginHandler.class));
+
+        // Same layout as WebSocketChannelInitializer, minus the handlers that need Spring wiring
+        EmbeddedChannel ch = new EmbeddedChannel(
+                new HttpServerCodec(),
+                new HttpObjectAggregator(8192),
+                new WebSocketServerProtocolHandler("/", WireProtocol.SUBPROTOCOLS),
+                OutboundMessageEncoder.INSTANCE,
+                new WriteCoalescingHandler(64, 65536, true),
+                handler);
+        if (handshakeAuth) {
+            ch.attr(ChannelManager.ATTR_USER_ID).set("u1");
+            ch.attr(HandshakeAuthHandler.ATTR_HANDSHAKE_AUTH).set(Boolean.TRUE);
+        }
+
+        String request = "GET / HTTP/1.1\r\n"
+                + "Host: localhost\r\n"
+                + "Upgrade: websocket\r\n"
+                + "Connection: Upgrade\r\n"
+                + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n"
+                + "Sec-WebSocket-Version: 13\r\n"
+                + "Sec-WebSocket-Protocol: " + subprotocol + "\r\n\r\n";
+        ch.writeInbound(Unpooled.copiedBuffer(request, StandardCharsets.US_ASCII));
+        ch.runPendingTasks();
+
+        ByteBuf response = ch.readOutbound();
+        assertTrue(response.toString(StandardCharsets.US_ASCII).startsWith("HTTP/1.1 101"));
+        response.release();
+        return ch;
+    }
+
+    @Test
+    void binaryConnectionKeepsAFrameOnlyPipeline() {
+        EmbeddedChannel ch = upgrade("xmsg-bin", false);
+
+        assertNull(ch.pipeline().get(HttpServerCodec.class));
+        assertNull(ch.pipeline().get(HttpObjectAggregator.class));
+        assertNull(ch.pipeline().get(Utf8FrameValidator.class));
+        assertEquals(WireProtocol.BINARY, ch.attr(WireProtocol.ATTR_PROTOCOL).get());
+
+        Map<String, Long> footprint = diagnostics.footprint(ch);
+        // wsencoder, wsdecoder, protocol handler, encoder, coalescer, WebSocketHandler
+        assertTrue(footprint.get("handlers") <= 6, "handlers: " + ch.pipeline().names());
+        assertEquals(1L, footprint.get("attributes"));
+        assertWithinBudget(footprint);
+        ch.finishAndReleaseAll();
+    }
+
+    @Test
+    void textConnectionKeepsTheUtf8Validator() {
+        EmbeddedChannel ch = upgrade("xmsg-json", false);
+
+        assertTrue(ch.pipeline().get(Utf8FrameValidator.class) != null);
+        assertTrue(diagnostics.footprint(ch).get("handlers") <= 7, "handlers: " + ch.pipeline().names());
+        assertWithinBudget(diagnostics.footprint(ch));
+        ch.finishAndReleaseAll();
+    }
+
+    @Test
+    void handshakeAuthIsConsumedOnce() {
+        EmbeddedChannel ch = upgrade("xmsg-bin", true);
+
+        verify(imService).executeAsync(eq(RedisAdmission.OpClass.LOGIN), any(Runnable.class));
+        assertNull(ch.attr(HandshakeAuthHandler.ATTR_HANDSHAKE_AUTH).get());
+        assertFalse(ch.pipeline().names().contains("HttpServerCodec#0"));
+        assertWithinBudget(diagnostics.footprint(ch));
+        ch.finishAndReleaseAll();
+    }
+
+    private static void assertWithinBudget(Map<String, Long> footprint) {
+        long bytes = footprint.get("pipelineBytes") + footprint.get("attributeBytes") + footprint.get("registryBytes");
+        assertTrue(bytes <= FOOTPRINT_BUDGET_BYTES, "footprint " + footprint);
+    }
+}
@@ -0,0 +1,181 @@
+package com.teammors.server.im.netty.handler;
+
+import com.alibaba.fastjson.JSON;
+import com.teammors.server.im.entity.Message;
+import com.teammors.server.im.netty.codec.OutboundMessage;
+import com.teammors.server.im.netty.codec.OutboundMessageEncoder;
+import com.teammors.server.im.netty.codec.WireProtocol;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.MultiThreadIoEventLoopGroup;
+import io.netty.channel.nio.NioIoHandler;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.websocketx.WebSocket13FrameEncoder;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.EventExecutor;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * A burst of group messages to 5,000 members, one loopback connection each: flushes that reach
+ * the socket (one write syscall each) and messages per second, for writeAndFlush per message
+ * against {@link WriteCoalescingHandler} with and without the envelope frame. Messages are
+ * dispatched from a caller thread the way MessageSender does during fan-out.
+ *
+ * Run with: mvn test -Pbenchmark -Dtest=WriteCoalescingHandlerBenchmark
+ */
+@Tag("benchmark")
+class WriteCoalescingHandlerBenchmark {
+
+    private static final Logger log = LoggerFactory.getLogger(WriteCoalescingHandlerBenchmark.class);
+
+    private static final int MEMBERS = 5000;
+    private static final int MESSAGES = 20;
+
+    @Test
+    void coalescedAgainstFlushPerMessage() throws Exception {
+        run("writeAndFlush per message", false, WireProtocol.JSON);
+        run("coalesced", true, WireProtocol.JSON);
+        run("coalesced, envelope", true, WireProtocol.JSON_BATCH);
+    }
+
+    private void run(String name, boolean coalesce, WireProtocol protocol) throws Exception {
+        EventLoopGroup boss = new MultiThreadIoEventLoopGroup(1, NioIoHandler.newFactory());
+        EventLoopGroup workers = new MultiThreadIoEventLoopGroup(2, NioIoHandler.newFactory());
+        EventLoopGroup clients = new MultiThreadIoEventLoopGroup(2, NioIoHandler.newFactory());
+        FlushCounter flushes = new FlushCounter();
+        BlockingQueue<Channel> accepted = new LinkedBlockingQueue<>();
+        try {
+            Channel server = new ServerBootstrap()
+                    .group(boss, workers)
+                    .channel(NioServerSocketChannel.class)
+                    .option(ChannelOption.SO_BACKLOG, 4096)
+                    .childOption(ChannelOption.TCP_NODELAY, true)
+                    .childHandler(new ChannelInitializer<SocketChannel>() {
+                        @Override
+                        protected void initChannel(SocketChannel ch) {
+                            ch.attr(WireProtocol.ATTR_PROTOCOL).set(protocol);
+                            ch.pipeline().addLast(flushes, new WebSocket13FrameEncoder(false), OutboundMessageEncoder.INSTANCE);
+                            if (coalesce) {
+                                ch.pipeline().addLast(new WriteCoalescingHandler(64, 65536, true));
+                            }
+                            accepted.add(ch);
+                        }
+                    })
+                    .bind("127.0.0.1", 0).sync().channel();
+            int port = ((InetSocketAddress) server.localAddress()).getPort();
+
+            Received received = new Received();
+            Bootstrap bootstrap = new Bootstrap()
+                    .group(clients)
+                    .channel(NioSocketChannel.class)
+                    .handler(received);
+            List<Channel> members = new ArrayList<>(MEMBERS);
+            for (int i = 0; i < MEMBERS; i++) {
+                bootstrap.connect("127.0.0.1", port).sync();
+                members.add(accepted.poll(5, TimeUnit.SECONDS));
+            }
+
+            Message msg = new Message();
+            msg.setEventId(1000001);
+            msg.setFromUid("u1");
+            msg.setGroup(true);
+            msg.setGroupId("g1");
+            msg.setDataBody("{\"text\":\"hello group\"}");
+            byte[] json = JSON.toJSONBytes(msg);
+
+            long start = System.nanoTime();
+            for (int m = 0; m < MESSAGES; m++) {
+                for (Channel member : members) {
+                    member.writeAndFlush(new OutboundMessage(msg, json));
+                }
+            }
+            // Everything queued so far, deferred flushes included, has run once each loop gets here
+            for (EventExecutor loop : workers) {
+                ((EventLoop) loop).submit(() -> { }).sync();
+            }
+            long sent = flushes.bytes.get();
+            boolean done = received.await(sent, 60_000);
+            long elapsed = System.nanoTime() - start;
+
+            long total = (long) MEMBERS * MESSAGES;
+            log.info("{}: {} flushes to the socket ({} msgs per flush), {} msgs/s",
+                    name, flushes.flushes.get(), total / Math.max(1, flushes.flushes.get()),
+                    Math.round(total / (elapsed / 1e9)));
+            server.close().sync();
+            assertTrue(done, name + ": not everything arrived");
+        } finally {
+            clients.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+            workers.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+            boss.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+        }
+    }
+
+    // Closest to the socket: every flush that gets here with bytes pending is a write syscall
+    @ChannelHandler.Sharable
+    private static final class FlushCounter extends ChannelOutboundHandlerAdapter {
+        final AtomicLong flushes = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+            if (msg instanceof ByteBuf buf) {
+                bytes.addAndGet(buf.readableBytes());
+            }
+            ctx.write(msg, promise);
+        }
+
+        @Override
+        public void flush(ChannelHandlerContext ctx) {
+            if (ctx.channel().unsafe().outboundBuffer().totalPendingWriteBytes() > 0) {
+                flushes.incrementAndGet();
+            }
+            ctx.flush();
+        }
+    }
+
+    @ChannelHandler.Sharable
+    private static final class Received extends ChannelInboundHandlerAdapter {
+        final AtomicLong bytes = new AtomicLong();
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            bytes.addAndGet(((ByteBuf) msg).readableBytes());
+            ReferenceCountUtil.release(msg);
+        }
+
+        boolean await(long expected, long timeoutMs) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMs;
+            while (bytes.get() < expected) {
+                if (System.currentTimeMillis() > deadline) return false;
+                Thread.sleep(1);
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.teammors.server.im.netty.handler;
+
+import com.teammors.server.im.entity.Message;
+import com.teammors.server.im.netty.codec.OutboundMessage;
+import com.teammors.server.im.netty.codec.WireProtocol;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WriteCoalescingHandlerTest {
+
+    // EmbeddedChannel runs queued tasks whenever a write reaches its head, which would end the
+    // "tick" early; this stands in for the socket and records what was flushed instead
+    private static final class Socket extends ChannelOutboundHandlerAdapter {
+        final List<Object> written = new ArrayList<>();
+        final List<ChannelPromise> promises = new ArrayList<>();
+        final List<Object> flushed = new ArrayList<>();
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+            written.add(msg);
+            promises.add(promise);
+        }
+
+        @Override
+        public void flush(ChannelHandlerContext ctx) {
+            flushed.addAll(written);
+            written.forEach(ReferenceCountUtil::release);
+            promises.forEach(ChannelPromise::trySuccess);
+            written.clear();
+            promises.clear();
+        }
+    }
+
+    private final Socket socket = new Socket();
+
+    private EmbeddedChannel channel(int maxMessages, int maxBytes) {
+        return new EmbeddedChannel(socket, new WriteCoalescingHandler(maxMessages, maxBytes, true));
+    }
+
+    private static TextWebSocketFrame frame(int bytes) {
+        return new TextWebSocketFrame(Unpooled.wrappedBuffer(new byte[bytes]));
+    }
+
+    private static OutboundMessage message(String toUid) {
+        Message m = new Message();
+        m.setToUid(toUid);
+        return new OutboundMessage(m, new byte[10]);
+    }
+
+    @Test
+    void flushIsHeldUntilTheEndOfTheTick() {
+        EmbeddedChannel ch = channel(64, 65536);
+        ch.pipeline().writeAndFlush(frame(10));
+        ch.pipeline().writeAndFlush(frame(10));
+        assertTrue(socket.flushed.isEmpty());
+
+        ch.runPendingTasks();
+        assertEquals(2, socket.flushed.size());
+        ch.finishAndReleaseAll();
+    }
+
+    @Test
+    void maxMessagesFlushesImmediately() {
+        EmbeddedChannel ch = channel(3, 65536);
+        ch.pipeline().writeAndFlush(frame(10));
+        ch.pipeline().writeAndFlush(frame(10));
+        assertTrue(socket.flushed.isEmpty());
+
+        ch.pipeline().writeAndFlush(frame(10));
+        assertEquals(3, socket.flushed.size());
+        ch.finishAndReleaseAll();
+    }
+
+    @Test
+    void maxBytesFlushesImmediately() {
+        EmbeddedChannel ch = channel(64, 250);
+        ch.pipeline().writeAndFlush(frame(100));
+        ch.pipeline().writeAndFlush(frame(100));
+        assertTrue(socket.flushed.isEmpty());
+
+        ch.pipeline().writeAndFlush(frame(100));
+        assertEquals(3, socket.flushed.size());
+        ch.finishAndReleaseAll();
+    }
+
+    @Test
+    void turningUnwritableFlushesPendingWrites() {
+        EmbeddedChannel ch = channel(64, 65536);
+        ch.attr(WireProtocol.ATTR_PROTOCOL).set(WireProtocol.JSON_BATCH);
+        ch.pipeline().write(frame(10));
+        ch.pipeline().write(message("a"));
+        ch.runPendingTasks();
+        assertTrue(socket.flushed.isEmpty());
+
+        ch.unsafe().outboundBuffer().setUserDefinedWritability(1, false);
+        ch.runPendingTasks();
+        assertEquals(2, socket.flushed.size());
+        ch.finishAndReleaseAll();
+    }
+
+    @Test
+    void batchClientsGetOneEnvelopeInOrder() {
+        EmbeddedChannel ch = channel(64, 65536);
+        ch.attr(WireProtocol.ATTR_PROTOCOL).set(WireProtocol.JSON_BATCH);
+        ChannelFuture first = ch.pipeline().writeAndFlush(message("a"));
+        ChannelFuture second = ch.pipeline().writeAndFlush(message("b"));
+        ch.pipeline().writeAndFlush(frame(10));
+        ch.runPendingTasks();
+
+        assertEquals(2, socket.flushed.size());
+        OutboundMessage.Batch batch = assertInstanceOf(OutboundMessage.Batch.class, socket.flushed.get(0));
+        assertEquals(2, batch.getMessages().size());
+        assertEquals("a", batch.getMessages().get(0).getMessage().getToUid());
+        assertInstanceOf(TextWebSocketFrame.class, socket.flushed.get(1));
+        assertTrue(first.isSuccess());
+        assertTrue(second.isSuccess());
+        ch.finishAndReleaseAll();
+    }
+
+    @Test
+    void plainClientsGetSeparateMessages() {
+        EmbeddedChannel ch = channel(64, 65536);
+        OutboundMessage a = message("a");
+        OutboundMessage b = message("b");
+        ch.pipeline().writeAndFlush(a);
+        ch.pipeline().writeAndFlush(b);
+        ch.runPendingTasks();
+
+        assertEquals(List.of(a, b), socket.flushed);
+        ch.finishAndReleaseAll();
+    }
+
+    @Test
+    void removalWritesPendingEnvelopeMessages() {
+        EmbeddedChannel ch = channel(64, 65536);
+        ch.attr(WireProtocol.ATTR_PROTOCOL).set(WireProtocol.JSON_BATCH);
+        OutboundMessage a = message("a");
+        OutboundMessage b = message("b");
+        ChannelFuture first = ch.pipeline().write(a);
+        ChannelFuture second = ch.pipeline().write(b);
+        assertTrue(socket.written.isEmpty());
+
+        ch.pipeline().remove(WriteCoalescingHandler.class);
+
+        assertEquals(2, socket.flushed.size());
+        assertSame(a, socket.flushed.get(0));
+        assertSame(b, socket.flushed.get(1));
+        assertTrue(first.isSuccess());
+        assertTrue(second.isSuccess());
+        ch.runPendingTasks();
+        ch.finishAndReleaseAll();
+    }
+}
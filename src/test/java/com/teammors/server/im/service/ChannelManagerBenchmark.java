@@ -0,0 +1,148 @@
+package com.teammors.server.im.service;
+
+import ch.qos.logback.classic.Level;
+import com.teammors.server.im.utils.SessionCrypto;
+import io.netty.channel.Channel;
+import io.netty.channel.local.LocalChannel;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Heap retained per million bound sessions by the {@link ChannelManager} registry against the
+ * layout it replaced (a nested device map per user plus a userId index keyed by
+ * channel.id().asLongText()), for users with one and with two devices, and heap allocated per
+ * channel-to-user lookup. The nested figure leaves out the long-text id Strings, which stay cached
+ * on the channel ids once built. The heap sample is scaled from 250k sessions, which with their
+ * channels is what fits the default test heap.
+ *
+ * Run with: mvn test -Pbenchmark -Dtest=ChannelManagerBenchmark
+ */
+@Tag("benchmark")
+class ChannelManagerBenchmark {
+
+    private static final Logger log = LoggerFactory.getLogger(ChannelManagerBenchmark.class);
+
+    private static final int SESSIONS = 250_000;
+    private static final int ROUNDS = 3;
+
+    private final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    @Test
+    void compactRegistryAgainstNestedMaps() throws Exception {
+        // bind logs every session at info
+        ((ch.qos.logback.classic.Logger) LoggerFactory.getLogger(ChannelManager.class)).setLevel(Level.WARN);
+        List<Channel> channels = new ArrayList<>(SESSIONS);
+        for (int i = 0; i < SESSIONS; i++) {
+            channels.add(new LocalChannel());
+        }
+
+        for (int devices = 1; devices <= 2; devices++) {
+            String[] uids = new String[SESSIONS];
+            String[] deviceIds = new String[SESSIONS];
+            for (int i = 0; i < SESSIONS; i++) {
+                uids[i] = "u" + (i / devices);
+                deviceIds[i] = "d" + (i % devices);
+            }
+            // Rounds alternate the layouts; the first binds attach the attributes and a crypto context to
+            // every channel and cache its long-text id, so only the last round is the registry alone
+            NestedMapRegistry nested = null;
+            long nestedHeap = 0;
+            long compactHeap = 0;
+            for (int round = 1; round <= ROUNDS; round++) {
+                nested = new NestedMapRegistry();
+                long before = usedHeapAfterGc();
+                for (int i = 0; i < SESSIONS; i++) {
+                    nested.bind(uids[i], deviceIds[i], channels.get(i));
+                }
+                nestedHeap = usedHeapAfterGc() - before;
+
+                ChannelManager manager = new ChannelManager();
+                before = usedHeapAfterGc();
+                for (int i = 0; i < SESSIONS; i++) {
+                    manager.bind(uids[i], deviceIds[i], channels.get(i));
+                }
+                compactHeap = usedHeapAfterGc() - before;
+                assertEquals(SESSIONS / devices, manager.userCount());
+                assertEquals(SESSIONS / devices, nested.userChannels.size());
+            }
+
+            log.info("{} device(s) per user: nested maps {} MB, compact registry {} MB per million sessions",
+                    devices, perMillion(nestedHeap) >> 20, perMillion(compactHeap) >> 20);
+            if (devices == 1) {
+                lookups(channels, nested);
+            }
+        }
+    }
+
+    // What WebSocketHandler and MessageSender did per message against reading the channel attribute
+    private void lookups(List<Channel> channels, NestedMapRegistry nested) {
+        Map<String, Function<Channel, String>> cases = new LinkedHashMap<>();
+        cases.put("userIdMaps.get(channel.id().asLongText())", ch -> nested.userIdByChannelId(ch.id().asLongText()));
+        cases.put("channel.attr(ATTR_USER_ID)", ch -> ch.attr(ChannelManager.ATTR_USER_ID).get());
+        // Rounds interleave the cases so each is measured after the shared code is compiled; the last one counts
+        for (int round = 1; round <= ROUNDS; round++) {
+            for (Map.Entry<String, Function<Channel, String>> c : cases.entrySet()) {
+                long thread = Thread.currentThread().threadId();
+                long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+                long start = System.nanoTime();
+                int found = 0;
+                for (Channel channel : channels) {
+                    if (c.getValue().apply(channel) != null) {
+                        found++;
+                    }
+                }
+                long elapsed = System.nanoTime() - start;
+                long allocated = threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+                assertEquals(SESSIONS, found);
+                if (round == ROUNDS) {
+                    log.info("{}: {} lookups/s, {} bytes allocated per lookup",
+                            c.getKey(), Math.round(SESSIONS / (elapsed / 1e9)), allocated / SESSIONS);
+                }
+            }
+        }
+    }
+
+    private static long perMillion(long bytes) {
+        return bytes * (1_000_000 / SESSIONS);
+    }
+
+    private static long usedHeapAfterGc() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // ChannelManager.bind before the compact registry, logging left out
+    private static final class NestedMapRegistry {
+        final ConcurrentHashMap<String, ConcurrentHashMap<String, Channel>> userChannels = new ConcurrentHashMap<>();
+        final ConcurrentHashMap<String, String> userIdMaps = new ConcurrentHashMap<>();
+
+        void bind(String uid, String deviceId, Channel channel) {
+            userChannels.computeIfAbsent(uid, k -> new ConcurrentHashMap<>()).put(deviceId, channel);
+            channel.attr(ChannelManager.ATTR_USER_ID).set(uid);
+            channel.attr(ChannelManager.ATTR_DEVICE_ID).set(deviceId);
+            channel.attr(SessionCrypto.ATTR_CRYPTO).set(SessionCrypto.forUid(uid, SessionCrypto.Mode.ECB));
+            userIdMaps.put(channel.id().asLongText(), uid);
+        }
+
+        String userIdByChannelId(String channelId) {
+            return userIdMaps.get(channelId);
+        }
+    }
+}
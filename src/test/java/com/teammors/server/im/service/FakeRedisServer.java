@@ -0,0 +1,377 @@
+package com.teammors.server.im.service;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.MultiThreadIoEventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioIoHandler;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.redis.ArrayRedisMessage;
+import io.netty.handler.codec.redis.ErrorRedisMessage;
+import io.netty.handler.codec.redis.FullBulkStringRedisMessage;
+import io.netty.handler.codec.redis.IntegerRedisMessage;
+import io.netty.handler.codec.redis.RedisArrayAggregator;
+import io.netty.handler.codec.redis.RedisBulkStringAggregator;
+import io.netty.handler.codec.redis.RedisDecoder;
+import io.netty.handler.codec.redis.RedisEncoder;
+import io.netty.handler.codec.redis.RedisMessage;
+import io.netty.handler.codec.redis.SimpleStringRedisMessage;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process RESP2 server with just the commands the benchmarks use, for hosts without a
+ * redis-server. Like Redis, one thread runs every command. Replies to what a connection sent in
+ * one read go out together after {@code replyDelayMicros}, which stands in for the network round
+ * trip; replies keep their order.
+ */
+public final class FakeRedisServer implements AutoCloseable {
+
+    private final EventLoopGroup group = new MultiThreadIoEventLoopGroup(1, NioIoHandler.newFactory());
+    private final Channel server;
+    private final long replyDelayMicros;
+    private final List<LettuceConnectionFactory> factories = new ArrayList<>();
+
+    // Only touched by the single event loop thread
+    private final Map<String, Object> data = new HashMap<>();
+    private long lastStreamMillis;
+    private long streamSequence;
+
+    private final AtomicLong commands = new AtomicLong();
+    private final AtomicLong reads = new AtomicLong();
+
+    public FakeRedisServer(long replyDelayMicros) throws InterruptedException {
+        this.replyDelayMicros = replyDelayMicros;
+        this.server = new ServerBootstrap()
+                .group(group)
+                .channel(NioServerSocketChannel.class)
+                .childOption(ChannelOption.TCP_NODELAY, true)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(new RedisDecoder(), new RedisBulkStringAggregator(),
+                                new RedisArrayAggregator(), new RedisEncoder(), new CommandHandler());
+                    }
+                })
+                .bind("127.0.0.1", 0).sync().channel();
+    }
+
+    public int port() {
+        return ((InetSocketAddress) server.localAddress()).getPort();
+    }
+
+    /**
+     * Commands executed so far.
+     */
+    public long commands() {
+        return commands.get();
+    }
+
+    /**
+     * Socket reads that carried commands, i.e. round trips as the server sees them.
+     */
+    public long reads() {
+        return reads.get();
+    }
+
+    /**
+     * A started Lettuce connection factory pointing at this server; stopped on {@link #close()}.
+     */
+    public LettuceConnectionFactory connectionFactory() {
+        LettuceConnectionFactory factory = new LettuceConnectionFactory(new RedisStandaloneConfiguration("127.0.0.1", port()));
+        factory.afterPropertiesSet();
+        factory.start();
+        factories.add(factory);
+        return factory;
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        factories.forEach(LettuceConnectionFactory::destroy);
+        server.close().sync();
+        group.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+    }
+
+    private final class CommandHandler extends SimpleChannelInboundHandler<ArrayRedisMessage> {
+        private List<RedisMessage> replies = new ArrayList<>();
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, ArrayRedisMessage msg) {
+            List<byte[]> args = new ArrayList<>(msg.children().size());
+            for (RedisMessage child : msg.children()) {
+                args.add(ByteBufUtil.getBytes(((FullBulkStringRedisMessage) child).content()));
+            }
+            commands.incrementAndGet();
+            RedisMessage reply;
+            try {
+                reply = execute(args);
+            } catch (RuntimeException e) {
+                reply = new ErrorRedisMessage("ERR " + e.getMessage());
+            }
+            replies.add(reply);
+        }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext ctx) {
+            if (replies.isEmpty()) return;
+            reads.incrementAndGet();
+            List<RedisMessage> batch = replies;
+            replies = new ArrayList<>();
+            Runnable send = () -> {
+                batch.forEach(ctx::write);
+                ctx.flush();
+            };
+            if (replyDelayMicros > 0) {
+                ctx.executor().schedule(send, replyDelayMicros, TimeUnit.MICROSECONDS);
+            } else {
+                send.run();
+            }
+        }
+    }
+
+    // ---- Commands ----
+
+    @SuppressWarnings("unchecked")
+    private RedisMessage execute(List<byte[]> args) {
+        String name = str(args.get(0)).toUpperCase();
+        switch (name) {
+            case "PING":
+                return new SimpleStringRedisMessage("PONG");
+            case "HELLO":
+                // Lettuce falls back to RESP2
+                return new ErrorRedisMessage("ERR unknown command 'HELLO'");
+            case "CLIENT", "SELECT", "AUTH":
+                return ok();
+            case "GET": {
+                Object value = data.get(str(args.get(1)));
+                return value == null ? FullBulkStringRedisMessage.NULL_INSTANCE : bulk((byte[]) value);
+            }
+            case "SET":
+                data.put(str(args.get(1)), args.get(2));
+                return ok();
+            case "INCR": {
+                String key = str(args.get(1));
+                Object value = data.get(key);
+                long next = (value == null ? 0 : Long.parseLong(str((byte[]) value))) + 1;
+                data.put(key, String.valueOf(next).getBytes(StandardCharsets.UTF_8));
+                return new IntegerRedisMessage(next);
+            }
+            case "DEL": {
+                long removed = 0;
+                for (int i = 1; i < args.size(); i++) {
+                    if (data.remove(str(args.get(i))) != null) removed++;
+                }
+                return new IntegerRedisMessage(removed);
+            }
+            case "EXISTS":
+                return new IntegerRedisMessage(data.containsKey(str(args.get(1))) ? 1 : 0);
+            case "EXPIRE", "PEXPIRE":
+                return new IntegerRedisMessage(data.containsKey(str(args.get(1))) ? 1 : 0);
+            case "PUBLISH":
+                return new IntegerRedisMessage(0);
+            case "HSET": {
+                Map<String, byte[]> hash = (Map<String, byte[]>) data.computeIfAbsent(str(args.get(1)), k -> new LinkedHashMap<>());
+                long added = 0;
+                for (int i = 2; i + 1 < args.size(); i += 2) {
+                    if (hash.put(str(args.get(i)), args.get(i + 1)) == null) added++;
+                }
+                return new IntegerRedisMessage(added);
+            }
+            case "HGET": {
+                Map<String, byte[]> hash = (Map<String, byte[]>) data.get(str(args.get(1)));
+                byte[] value = hash == null ? null : hash.get(str(args.get(2)));
+                return value == null ? FullBulkStringRedisMessage.NULL_INSTANCE : bulk(value);
+            }
+            case "HGETALL": {
+                Map<String, byte[]> hash = (Map<String, byte[]>) data.getOrDefault(str(args.get(1)), Map.of());
+                List<RedisMessage> out = new ArrayList<>(hash.size() * 2);
+                hash.forEach((field, value) -> {
+                    out.add(bulk(field));
+                    out.add(bulk(value));
+                });
+                return new ArrayRedisMessage(out);
+            }
+            case "HKEYS": {
+                Map<String, byte[]> hash = (Map<String, byte[]>) data.getOrDefault(str(args.get(1)), Map.of());
+                List<RedisMessage> out = new ArrayList<>(hash.size());
+                hash.keySet().forEach(field -> out.add(bulk(field)));
+                return new ArrayRedisMessage(out);
+            }
+            case "HDEL": {
+                Map<String, byte[]> hash = (Map<String, byte[]>) data.get(str(args.get(1)));
+                long removed = 0;
+                for (int i = 2; hash != null && i < args.size(); i++) {
+                    if (hash.remove(str(args.get(i))) != null) removed++;
+                }
+                return new IntegerRedisMessage(removed);
+            }
+            case "RPUSH": {
+                List<byte[]> list = (List<byte[]>) data.computeIfAbsent(str(args.get(1)), k -> new LinkedList<>());
+                list.addAll(args.subList(2, args.size()));
+                return new IntegerRedisMessage(list.size());
+            }
+            case "LLEN": {
+                List<byte[]> list = (List<byte[]>) data.get(str(args.get(1)));
+                return new IntegerRedisMessage(list == null ? 0 : list.size());
+            }
+            case "LRANGE": {
+                List<byte[]> list = (List<byte[]>) data.getOrDefault(str(args.get(1)), List.of());
+                int[] range = range(list.size(), args.get(2), args.get(3));
+                List<RedisMessage> out = new ArrayList<>();
+                for (int i = range[0]; i <= range[1]; i++) {
+                    out.add(bulk(list.get(i)));
+                }
+                return new ArrayRedisMessage(out);
+            }
+            case "LTRIM": {
+                String key = str(args.get(1));
+                List<byte[]> list = (List<byte[]>) data.get(key);
+                if (list != null) {
+                    int[] range = range(list.size(), args.get(2), args.get(3));
+                    data.put(key, new LinkedList<>(range[0] <= range[1] ? list.subList(range[0], range[1] + 1) : List.of()));
+                }
+                return ok();
+            }
+            case "SADD", "SREM": {
+                Set<String> set = (Set<String>) data.computeIfAbsent(str(args.get(1)), k -> new LinkedHashSet<>());
+                long changed = 0;
+                for (int i = 2; i < args.size(); i++) {
+                    if (name.equals("SADD") ? set.add(str(args.get(i))) : set.remove(str(args.get(i)))) changed++;
+                }
+                return new IntegerRedisMessage(changed);
+            }
+            case "XADD":
+                return xAdd(args);
+            case "XRANGE": {
+                NavigableMap<StreamId, List<byte[]>> stream = (NavigableMap<StreamId, List<byte[]>>) data.get(str(args.get(1)));
+                List<RedisMessage> out = new ArrayList<>();
+                // XRANGE key start end [COUNT n]
+                long count = args.size() > 5 ? Long.parseLong(str(args.get(5))) : Long.MAX_VALUE;
+                if (stream != null) {
+                    for (Map.Entry<StreamId, List<byte[]>> e : stream.subMap(StreamId.parse(str(args.get(2))), true,
+                            StreamId.parse(str(args.get(3))), true).entrySet()) {
+                        if (out.size() >= count) break;
+                        out.add(entry(e.getKey(), e.getValue()));
+                    }
+                }
+                return new ArrayRedisMessage(out);
+            }
+            case "XACK":
+                return new IntegerRedisMessage(args.size() - 3);
+            case "XDEL": {
+                NavigableMap<StreamId, List<byte[]>> stream = (NavigableMap<StreamId, List<byte[]>>) data.get(str(args.get(1)));
+                long removed = 0;
+                for (int i = 2; stream != null && i < args.size(); i++) {
+                    if (stream.remove(StreamId.parse(str(args.get(i)))) != null) removed++;
+                }
+                return new IntegerRedisMessage(removed);
+            }
+            default:
+                return new ErrorRedisMessage("ERR unknown command '" + name + "'");
+        }
+    }
+
+    // XADD key [MAXLEN [~|=] n] * field value ...
+    @SuppressWarnings("unchecked")
+    private RedisMessage xAdd(List<byte[]> args) {
+        NavigableMap<StreamId, List<byte[]>> stream =
+                (NavigableMap<StreamId, List<byte[]>>) data.computeIfAbsent(str(args.get(1)), k -> new TreeMap<>());
+        int i = 2;
+        long maxLen = 0;
+        if (str(args.get(i)).equalsIgnoreCase("MAXLEN")) {
+            i++;
+            if (str(args.get(i)).equals("~") || str(args.get(i)).equals("=")) i++;
+            maxLen = Long.parseLong(str(args.get(i++)));
+        }
+        i++; // "*"
+        long now = System.currentTimeMillis();
+        if (now > lastStreamMillis) {
+            lastStreamMillis = now;
+            streamSequence = 0;
+        } else {
+            streamSequence++;
+        }
+        StreamId id = new StreamId(lastStreamMillis, streamSequence);
+        stream.put(id, new ArrayList<>(args.subList(i, args.size())));
+        while (maxLen > 0 && stream.size() > maxLen) {
+            stream.pollFirstEntry();
+        }
+        return bulk(id.toString());
+    }
+
+    private static RedisMessage entry(StreamId id, List<byte[]> fields) {
+        List<RedisMessage> values = new ArrayList<>(fields.size());
+        fields.forEach(f -> values.add(bulk(f)));
+        return new ArrayRedisMessage(List.of(bulk(id.toString()), new ArrayRedisMessage(values)));
+    }
+
+    private record StreamId(long millis, long sequence) implements Comparable<StreamId> {
+        static StreamId parse(String value) {
+            if (value.equals("-")) return new StreamId(0, 0);
+            if (value.equals("+")) return new StreamId(Long.MAX_VALUE, Long.MAX_VALUE);
+            int dash = value.indexOf('-');
+            return dash < 0
+                    ? new StreamId(Long.parseLong(value), 0)
+                    : new StreamId(Long.parseLong(value.substring(0, dash)), Long.parseLong(value.substring(dash + 1)));
+        }
+
+        @Override
+        public int compareTo(StreamId other) {
+            return millis != other.millis ? Long.compare(millis, other.millis) : Long.compare(sequence, other.sequence);
+        }
+
+        @Override
+        public String toString() {
+            return millis + "-" + sequence;
+        }
+    }
+
+    // Inclusive [start, end] of LRANGE / LTRIM, negative indexes counting from the end
+    private static int[] range(int size, byte[] startArg, byte[] endArg) {
+        int start = Integer.parseInt(str(startArg));
+        int end = Integer.parseInt(str(endArg));
+        if (start < 0) start = Math.max(0, size + start);
+        if (end < 0) end = size + end;
+        return new int[]{start, Math.min(end, size - 1)};
+    }
+
+    private static RedisMessage ok() {
+        return new SimpleStringRedisMessage("OK");
+    }
+
+    private static RedisMessage bulk(String value) {
+        return bulk(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static RedisMessage bulk(byte[] value) {
+        ByteBuf content = Unpooled.wrappedBuffer(value);
+        return new FullBulkStringRedisMessage(content);
+    }
+
+    private static String str(byte[] value) {
+        return new String(value, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,94 @@
+package com.teammors.server.im.service;
+
+import com.teammors.server.im.entity.Message;
+import com.teammors.server.im.netty.codec.OutboundMessage;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class MessageSenderTest {
+
+    private final RedisBatcher redisBatcher = mock(RedisBatcher.class);
+    private final BackpressureManager backpressureManager = mock(BackpressureManager.class);
+    private final MessageSender sender = new MessageSender();
+
+    @BeforeEach
+    void wire() {
+        ReflectionTestUtils.setField(sender, "redisBatcher", redisBatcher);
+        ReflectionTestUtils.setField(sender, "backpressureManager", backpressureManager);
+        when(redisBatcher.hSet(anyString(), anyString(), any(byte[].class)))
+                .thenReturn(CompletableFuture.completedFuture(true));
+    }
+
+    private static Message message(String toUid, long sTimest) {
+        Message msg = new Message();
+        msg.setEventId(1000001);
+        msg.setToUid(toUid);
+        msg.setSTimest(sTimest);
+        return msg;
+    }
+
+    private static EmbeddedChannel unwritable() {
+        EmbeddedChannel ch = new EmbeddedChannel();
+        ch.unsafe().outboundBuffer().setUserDefinedWritability(1, false);
+        return ch;
+    }
+
+    @Test
+    void cachedMessageIsWritten() {
+        EmbeddedChannel ch = new EmbeddedChannel();
+        Message msg = message("u2", 42);
+        sender.sendAndCache(ch, msg);
+
+        verify(redisBatcher).hSet(eq("ack:msg:u2"), eq("42"), any(byte[].class));
+        assertEquals(msg, assertInstanceOf(OutboundMessage.class, ch.readOutbound()).getMessage());
+        assertEquals(Boolean.TRUE, ch.attr(MessageSender.ATTR_ACK_PENDING).get());
+    }
+
+    @Test
+    void cachedMessageIsParkedOnSlowConsumer() {
+        EmbeddedChannel ch = unwritable();
+        sender.sendAndCache(ch, message("u2", 42));
+
+        verify(redisBatcher).hSet(eq("ack:msg:u2"), eq("42"), any(byte[].class));
+        verify(backpressureManager).park(eq(ch), anyInt());
+        verify(backpressureManager, never()).rejectEphemeral(any(), any());
+        assertNull(ch.readOutbound());
+    }
+
+    @Test
+    void uncacheableMessageIsStillWritten() {
+        EmbeddedChannel ch = new EmbeddedChannel();
+        Message msg = message("u2", 0);
+        sender.sendAndCache(ch, msg);
+
+        verify(redisBatcher, never()).hSet(anyString(), anyString(), any(byte[].class));
+        assertEquals(msg, assertInstanceOf(OutboundMessage.class, ch.readOutbound()).getMessage());
+    }
+
+    @Test
+    void uncacheableMessageIsRejectedOnSlowConsumer() {
+        EmbeddedChannel ch = unwritable();
+        Message msg = message(null, 42);
+        sender.sendAndCache(ch, msg);
+
+        verify(backpressureManager).rejectEphemeral(ch, msg);
+        verify(backpressureManager, never()).park(any(), anyInt());
+        assertNull(ch.readOutbound());
+    }
+}
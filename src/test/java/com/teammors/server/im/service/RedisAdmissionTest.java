@@ -0,0 +1,94 @@
+package com.teammors.server.im.service;
+
+import com.teammors.server.im.service.RedisAdmission.OpClass;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.env.MockEnvironment;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RedisAdmissionTest {
+
+    @Test
+    void rejectsWhenNoSharedPermitFreesUpInTime() throws Exception {
+        RedisAdmission admission = new RedisAdmission(new MockEnvironment(), 1, 50);
+        CountDownLatch holding = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread holder = Thread.ofVirtual().start(() -> admission.run(OpClass.DELIVERY, () -> {
+            holding.countDown();
+            await(release);
+        }));
+        assertTrue(holding.await(1, TimeUnit.SECONDS));
+
+        assertThrows(RejectedExecutionException.class, () -> admission.run(OpClass.ACK, () -> { }));
+        assertEquals(1L, admission.metrics().get("ack").get("rejected"));
+
+        release.countDown();
+        holder.join();
+        assertEquals("ok", admission.call(OpClass.ACK, () -> "ok"));
+    }
+
+    @Test
+    void classLimitRejectsOnlyThatClass() throws Exception {
+        MockEnvironment env = new MockEnvironment().withProperty("im.redis.admission.limit.group", "1");
+        RedisAdmission admission = new RedisAdmission(env, 4, 50);
+        CountDownLatch holding = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread holder = Thread.ofVirtual().start(() -> admission.run(OpClass.GROUP, () -> {
+            holding.countDown();
+            await(release);
+        }));
+        assertTrue(holding.await(1, TimeUnit.SECONDS));
+
+        assertThrows(RejectedExecutionException.class, () -> admission.run(OpClass.GROUP, () -> { }));
+        assertEquals("ok", admission.call(OpClass.LOGIN, () -> "ok"));
+
+        release.countDown();
+        holder.join();
+    }
+
+    @Test
+    void freedPermitGoesToTheMostUrgentWaiter() throws Exception {
+        RedisAdmission admission = new RedisAdmission(new MockEnvironment(), 1, 2000);
+        CountDownLatch holding = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread holder = Thread.ofVirtual().start(() -> admission.run(OpClass.MAINTENANCE, () -> {
+            holding.countDown();
+            await(release);
+        }));
+        assertTrue(holding.await(1, TimeUnit.SECONDS));
+
+        StringBuffer order = new StringBuffer();
+        Thread group = Thread.ofVirtual().start(() -> admission.run(OpClass.GROUP, () -> order.append("group ")));
+        waitForQueued(group);
+        Thread ack = Thread.ofVirtual().start(() -> admission.run(OpClass.ACK, () -> order.append("ack ")));
+        waitForQueued(ack);
+
+        release.countDown();
+        holder.join();
+        group.join();
+        ack.join();
+        assertEquals("ack group ", order.toString());
+    }
+
+    private static void waitForQueued(Thread thread) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (thread.getState() != Thread.State.WAITING && thread.getState() != Thread.State.TIMED_WAITING
+                && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
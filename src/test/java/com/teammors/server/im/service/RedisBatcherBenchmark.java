@@ -0,0 +1,96 @@
+package com.teammors.server.im.service;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Round trip and per-command latency (p50 / p99) of {@link RedisBatcher} against a
+ * {@link FakeRedisServer} with a simulated network round trip, for three settings: one command
+ * per round trip (no pipelining), pipelined batches sent stop-and-wait, and pipelined batches with
+ * several in flight per connection. Callers are virtual threads issuing INCRs one after another.
+ *
+ * Run with: mvn test -Pbenchmark -Dtest=RedisBatcherBenchmark
+ */
+@Tag("benchmark")
+class RedisBatcherBenchmark {
+
+    private static final Logger log = LoggerFactory.getLogger(RedisBatcherBenchmark.class);
+
+    private static final long ROUND_TRIP_MICROS = 200;
+    private static final int CALLERS = 128;
+    private static final int COMMANDS_PER_CALLER = 100;
+
+    @Test
+    void pipelinedVersusOneCommandPerRoundTrip() throws Exception {
+        run("no pipelining", 0, 1, 1);
+        run("pipelined, stop-and-wait", 200, 128, 1);
+        run("pipelined, 4 in flight", 200, 128, 4);
+    }
+
+    private void run(String name, long windowMicros, int maxBatch, int maxInFlight) throws Exception {
+        try (FakeRedisServer redis = new FakeRedisServer(ROUND_TRIP_MICROS)) {
+            RedisBatcher batcher = new RedisBatcher();
+            ReflectionTestUtils.setField(batcher, "connectionFactory", redis.connectionFactory());
+            ReflectionTestUtils.setField(batcher, "windowMicros", windowMicros);
+            ReflectionTestUtils.setField(batcher, "maxBatch", maxBatch);
+            ReflectionTestUtils.setField(batcher, "flusherCount", 2);
+            ReflectionTestUtils.setField(batcher, "maxInFlight", maxInFlight);
+            ReflectionTestUtils.setField(batcher, "queueCapacity", 16384);
+            ReflectionTestUtils.setField(batcher, "timeoutMs", 10_000L);
+            batcher.start();
+            try {
+                // Warm up the connections and the JIT
+                drive(batcher, 10);
+                long readsBefore = redis.reads();
+
+                long start = System.nanoTime();
+                long[] latencies = drive(batcher, COMMANDS_PER_CALLER);
+                long elapsed = System.nanoTime() - start;
+
+                long total = (long) CALLERS * COMMANDS_PER_CALLER;
+                long roundTrips = redis.reads() - readsBefore;
+                Arrays.sort(latencies);
+                log.info("{}: {} cmds/s, {} round trips ({} cmds each), p50 {} us, p99 {} us",
+                        name,
+                        Math.round(total / (elapsed / 1e9)),
+                        roundTrips,
+                        roundTrips > 0 ? total / roundTrips : 0,
+                        TimeUnit.NANOSECONDS.toMicros(latencies[(int) (latencies.length * 0.50)]),
+                        TimeUnit.NANOSECONDS.toMicros(latencies[(int) (latencies.length * 0.99)]));
+                assertEquals(0L, batcher.metrics().get("failed"));
+            } finally {
+                batcher.stop();
+            }
+        }
+    }
+
+    // Every caller INCRs its own key, waiting for each reply; returns every command's latency
+    private static long[] drive(RedisBatcher batcher, int commandsPerCaller) throws InterruptedException {
+        long[] latencies = new long[CALLERS * commandsPerCaller];
+        List<Thread> callers = new ArrayList<>(CALLERS);
+        for (int c = 0; c < CALLERS; c++) {
+            int caller = c;
+            callers.add(Thread.ofVirtual().start(() -> {
+                for (int i = 0; i < commandsPerCaller; i++) {
+                    long start = System.nanoTime();
+                    batcher.incr("bench:" + caller).join();
+                    latencies[caller * commandsPerCaller + i] = System.nanoTime() - start;
+                }
+            }));
+        }
+        for (Thread caller : callers) {
+            caller.join();
+        }
+        return latencies;
+    }
+}
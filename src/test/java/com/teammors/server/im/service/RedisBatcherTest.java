@@ -0,0 +1,230 @@
+package com.teammors.server.im.service;
+
+import io.lettuce.core.RedisCommandExecutionException;
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.api.StatefulConnection;
+import io.lettuce.core.cluster.api.async.RedisClusterAsyncCommands;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Replies are matched to callers by command, not by position in the pipeline.
+ */
+class RedisBatcherTest {
+
+    // A Lettuce reply the test completes by hand
+    private static final class Reply<T> extends CompletableFuture<T> implements RedisFuture<T> {
+        final String command;
+
+        Reply(String command) {
+            this.command = command;
+        }
+
+        @Override
+        public String getError() {
+            return null;
+        }
+
+        @Override
+        public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+            try {
+                get(timeout, unit);
+            } catch (Exception e) {
+                return isDone();
+            }
+            return true;
+        }
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private final List<Reply<Object>> written = Collections.synchronizedList(new ArrayList<>());
+    @SuppressWarnings("unchecked")
+    private final StatefulConnection<byte[], byte[]> connection = mock(StatefulConnection.class);
+    @SuppressWarnings("unchecked")
+    private final RedisClusterAsyncCommands<byte[], byte[]> commands =
+            mock(RedisClusterAsyncCommands.class, invocation -> {
+                Reply<Object> reply = new Reply<>(invocation.getMethod().getName());
+                written.add(reply);
+                return reply;
+            });
+    private RedisBatcher batcher;
+
+    private RedisBatcher start(long timeoutMs) {
+        return start(timeoutMs, 500_000L, 4);
+    }
+
+    private RedisBatcher start(long timeoutMs, long windowMicros, int maxInFlight) {
+        batcher = new RedisBatcher() {
+            @Override
+            Link connect() {
+                return new Link(connection, commands);
+            }
+        };
+        // By default a window long enough that everything below lands in one flush
+        ReflectionTestUtils.setField(batcher, "windowMicros", windowMicros);
+        ReflectionTestUtils.setField(batcher, "maxBatch", 128);
+        ReflectionTestUtils.setField(batcher, "flusherCount", 1);
+        ReflectionTestUtils.setField(batcher, "maxInFlight", maxInFlight);
+        ReflectionTestUtils.setField(batcher, "queueCapacity", 128);
+        ReflectionTestUtils.setField(batcher, "timeoutMs", timeoutMs);
+        batcher.start();
+        return batcher;
+    }
+
+    @AfterEach
+    void stop() {
+        if (batcher != null) {
+            batcher.stop();
+        }
+    }
+
+    // Like the server: nothing is answered before the pipeline is flushed. Status replies come
+    // back too, and in reverse order so a positional match would hand out the wrong results
+    private void answerOnFlush(Map<String, Object> results) {
+        doAnswer(inv -> {
+            List<Reply<Object>> replies = new ArrayList<>(written);
+            Collections.reverse(replies);
+            for (Reply<Object> reply : replies) {
+                Object result = results.get(reply.command);
+                if (result instanceof Throwable t) {
+                    reply.completeExceptionally(t);
+                } else if (result != null) {
+                    reply.complete(result);
+                }
+            }
+            return null;
+        }).when(connection).flushCommands();
+    }
+
+    @Test
+    void statusRepliesDoNotShiftResults() {
+        answerOnFlush(Map.of(
+                "ltrim", "OK",
+                "hset", Boolean.TRUE,
+                "hgetall", Map.of(bytes("f"), bytes("v")),
+                "get", bytes("value"),
+                "exists", 1L,
+                "hkeys", List.of(bytes("a"), bytes("b")),
+                "xadd", "1700000000000-0",
+                "hdel", 2L));
+        start(1000);
+
+        CompletableFuture<Void> trim = batcher.lTrim("offline:msg:u1", 0, 99);
+        CompletableFuture<Boolean> set = batcher.hSet("ack:msg:u1", "42", "{}");
+        CompletableFuture<Map<String, String>> all = batcher.hGetAll("ack:msg:u1");
+        CompletableFuture<String> get = batcher.get("session:u1");
+        CompletableFuture<Boolean> exists = batcher.exists("session:u1");
+        CompletableFuture<Set<String>> keys = batcher.hKeys("group:g1");
+        CompletableFuture<RecordId> id = batcher.xAdd("im:stream:instance:a:0", Map.of("body", "{}"), 1000);
+        CompletableFuture<Long> deleted = batcher.hDel("ack:msg:u1", "1", "2");
+
+        assertNull(trim.join());
+        assertTrue(set.join());
+        assertEquals(Map.of("f", "v"), all.join());
+        assertEquals("value", get.join());
+        assertTrue(exists.join());
+        assertEquals(Set.of("a", "b"), keys.join());
+        assertEquals(RecordId.of("1700000000000-0"), id.join());
+        assertEquals(2L, deleted.join());
+        verify(connection, times(1)).flushCommands();
+    }
+
+    @Test
+    void aFailedCommandFailsOnlyItsOwnCaller() {
+        answerOnFlush(Map.of(
+                "ltrim", "OK",
+                "hget", new RedisCommandExecutionException("WRONGTYPE"),
+                "incr", 7L));
+        start(1000);
+
+        CompletableFuture<Void> trim = batcher.lTrim("k1", 0, 1);
+        CompletableFuture<String> hget = batcher.hGet("k2", "f");
+        CompletableFuture<Long> incr = batcher.incr("k3");
+
+        assertNull(trim.join());
+        CompletionException e = assertThrows(CompletionException.class, hget::join);
+        assertInstanceOf(RedisCommandExecutionException.class, e.getCause());
+        assertEquals(7L, incr.join());
+        assertEquals(1L, batcher.metrics().get("failed"));
+    }
+
+    @Test
+    void missingReplyTimesOutWithoutHoldingBackTheOthers() {
+        // No result for publish: its reply never arrives
+        answerOnFlush(Map.of("rpush", 1L, "sadd", 1L));
+        start(200);
+
+        CompletableFuture<Long> push = batcher.rPush("offline:msg:u1", "{}");
+        CompletableFuture<Long> publish = batcher.publish("cluster:events", "hello");
+        CompletableFuture<Long> add = batcher.sAdd("set", "m");
+
+        assertEquals(1L, push.join());
+        CompletionException e = assertThrows(CompletionException.class, publish::join);
+        assertInstanceOf(TimeoutException.class, e.getCause());
+        assertEquals(1L, add.join());
+    }
+
+    @Test
+    void nextBatchIsWrittenBeforeTheLastIsAnswered() throws Exception {
+        // Nothing is answered until the test says so; at most two batches on the wire
+        start(5000, 0, 2);
+
+        CompletableFuture<Long> first = batcher.incr("k1");
+        await(() -> written.size() == 1);
+        CompletableFuture<Long> second = batcher.incr("k1");
+        await(() -> written.size() == 2);
+        CompletableFuture<Long> third = batcher.incr("k1");
+        Thread.sleep(100);
+        assertEquals(2, written.size());
+        assertEquals(2L, batcher.metrics().get("inFlight"));
+
+        // The oldest batch's reply frees a slot for the third
+        String[] completedOn = new String[1];
+        CompletableFuture<Long> observed = first.whenComplete((r, e) -> completedOn[0] = Thread.currentThread().getName());
+        written.get(0).complete(1L);
+        assertEquals(1L, observed.join());
+        assertTrue(completedOn[0].startsWith("redis-reply-"), completedOn[0]);
+        await(() -> written.size() == 3);
+
+        written.get(1).complete(2L);
+        written.get(2).complete(3L);
+        assertEquals(2L, second.join());
+        assertEquals(3L, third.join());
+        verify(connection, times(3)).flushCommands();
+    }
+
+    private static void await(Supplier<Boolean> condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.get()) {
+            assertTrue(System.currentTimeMillis() < deadline, "timed out");
+            Thread.sleep(5);
+        }
+    }
+}
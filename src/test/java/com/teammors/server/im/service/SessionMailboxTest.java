@@ -0,0 +1,143 @@
+package com.teammors.server.im.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SessionMailboxTest {
+
+    // Runs submitted drain tasks only when asked, like a busy executor
+    private static final class ManualExecutor implements Executor {
+        final Queue<Runnable> tasks = new ArrayDeque<>();
+        boolean reject;
+
+        @Override
+        public void execute(Runnable command) {
+            if (reject) {
+                throw new RejectedExecutionException("shut down");
+            }
+            tasks.add(command);
+        }
+
+        void runAll() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (Error ignored) {
+                    // the pool would log and drop it
+                }
+            }
+        }
+    }
+
+    private static SessionMailbox.Envelope envelope(Runnable task) {
+        return new SessionMailbox.Envelope(1000001, System.nanoTime(), task);
+    }
+
+    @Test
+    void eventsRunInArrivalOrderOneAtATime() throws Exception {
+        ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+        try {
+            SessionMailbox mailbox = new SessionMailbox(executor);
+            List<Integer> seen = Collections.synchronizedList(new ArrayList<>());
+            AtomicInteger concurrent = new AtomicInteger();
+            AtomicInteger maxConcurrent = new AtomicInteger();
+            int events = 2000;
+            CountDownLatch done = new CountDownLatch(events);
+            for (int i = 0; i < events; i++) {
+                int n = i;
+                mailbox.offer(envelope(() -> {
+                    maxConcurrent.accumulateAndGet(concurrent.incrementAndGet(), Math::max);
+                    seen.add(n);
+                    if (n % 100 == 0) Thread.yield();
+                    concurrent.decrementAndGet();
+                    done.countDown();
+                }), Integer.MAX_VALUE);
+            }
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            for (int i = 0; i < events; i++) {
+                assertEquals(i, seen.get(i));
+            }
+            assertEquals(1, maxConcurrent.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void onlyOneDrainTaskIsScheduled() {
+        ManualExecutor executor = new ManualExecutor();
+        SessionMailbox mailbox = new SessionMailbox(executor);
+
+        assertEquals(1, mailbox.offer(envelope(() -> { }), 10));
+        assertEquals(2, mailbox.offer(envelope(() -> { }), 10));
+        assertEquals(1, executor.tasks.size());
+    }
+
+    @Test
+    void fullMailboxRefusesAndDropsOldest() {
+        ManualExecutor executor = new ManualExecutor();
+        SessionMailbox mailbox = new SessionMailbox(executor);
+        List<String> ran = new ArrayList<>();
+
+        mailbox.offer(envelope(() -> ran.add("a")), 2);
+        mailbox.offer(envelope(() -> ran.add("b")), 2);
+        assertEquals(-1, mailbox.offer(envelope(() -> ran.add("c")), 2));
+
+        mailbox.pollOldest();
+        assertEquals(2, mailbox.offer(envelope(() -> ran.add("c")), 2));
+        executor.runAll();
+        assertEquals(List.of("b", "c"), ran);
+    }
+
+    @Test
+    void errorInATaskDoesNotStallTheMailbox() {
+        ManualExecutor executor = new ManualExecutor();
+        SessionMailbox mailbox = new SessionMailbox(executor);
+        List<String> ran = new ArrayList<>();
+
+        mailbox.offer(envelope(() -> {
+            throw new AssertionError("boom");
+        }), 10);
+        mailbox.offer(envelope(() -> ran.add("after")), 10);
+        executor.runAll();
+        assertEquals(List.of("after"), ran);
+
+        // Idle again: the next event schedules a new drain task
+        mailbox.offer(envelope(() -> ran.add("later")), 10);
+        assertEquals(1, executor.tasks.size());
+        executor.runAll();
+        assertEquals(List.of("after", "later"), ran);
+    }
+
+    @Test
+    void rejectedDrainTaskDoesNotStallTheMailbox() {
+        ManualExecutor executor = new ManualExecutor();
+        SessionMailbox mailbox = new SessionMailbox(executor);
+        List<String> ran = new ArrayList<>();
+
+        executor.reject = true;
+        assertThrows(RejectedExecutionException.class, () -> mailbox.offer(envelope(() -> ran.add("a")), 10));
+
+        executor.reject = false;
+        mailbox.offer(envelope(() -> ran.add("b")), 10);
+        executor.runAll();
+        assertEquals(List.of("a", "b"), ran);
+    }
+}
@@ -0,0 +1,93 @@
+package com.teammors.server.im.utils;
+
+import cn.hutool.crypto.SecureUtil;
+import cn.hutool.crypto.symmetric.AES;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.base64.Base64;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.IntSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Messages per second on one core for an encrypt + decrypt round trip of a typical message:
+ * the old per-message path (md5 key derivation and a new hutool AES for every call, Strings in
+ * and out) against {@link SessionCrypto} in ECB and GCM over pooled buffers, Base64 included.
+ *
+ * Run with: mvn test -Pbenchmark -Dtest=SessionCryptoBenchmark
+ */
+@Tag("benchmark")
+class SessionCryptoBenchmark {
+
+    private static final Logger log = LoggerFactory.getLogger(SessionCryptoBenchmark.class);
+
+    private static final int ROUNDS = 3;
+    private static final int MESSAGES = 200_000;
+    private static final String UID = "10086";
+    private static final String PLAIN = "{\"eventId\":1000001,\"fromUid\":\"10086\",\"toUid\":\"10010\",\"type\":\"text\","
+            + "\"cTimest\":1700000000000,\"sTimest\":1700000000123,\"dataBody\":\"{\\\"text\\\":\\\"你好, world\\\"}\"}";
+
+    @Test
+    void perMessageHutoolAgainstSessionContext() {
+        Map<String, IntSupplier> cases = new LinkedHashMap<>();
+        cases.put("old path (hutool per message)", () -> {
+            AES encryptor = SecureUtil.aes(SecurityUtil.getUidKey(UID).getBytes());
+            String wire = encryptor.encryptBase64(PLAIN);
+            AES decryptor = SecureUtil.aes(SecurityUtil.getUidKey(UID).getBytes());
+            return decryptor.decryptStr(wire, StandardCharsets.UTF_8).length();
+        });
+        cases.put("session context, ECB", roundTrip(SessionCrypto.forUid(UID, SessionCrypto.Mode.ECB),
+                SessionCrypto.forUid(UID, SessionCrypto.Mode.ECB)));
+        cases.put("session context, GCM", roundTrip(SessionCrypto.forUid(UID, SessionCrypto.Mode.GCM),
+                SessionCrypto.forUid(UID, SessionCrypto.Mode.GCM)));
+
+        // Rounds interleave the cases so each is measured after the shared code is compiled; the last one counts
+        for (int round = 1; round <= ROUNDS; round++) {
+            for (Map.Entry<String, IntSupplier> c : cases.entrySet()) {
+                long perSecond = measure(c.getValue());
+                if (round == ROUNDS) {
+                    log.info("{}: {} msgs/s per core (encrypt + decrypt)", c.getKey(), perSecond);
+                }
+            }
+        }
+    }
+
+    // Encrypt and Base64 the way OutboundMessageEncoder does, decode and decrypt like InboundMessageDecoder
+    private static IntSupplier roundTrip(SessionCrypto server, SessionCrypto client) {
+        ByteBufAllocator alloc = PooledByteBufAllocator.DEFAULT;
+        ByteBuf plain = Unpooled.unreleasableBuffer(Unpooled.directBuffer().writeBytes(PLAIN.getBytes(StandardCharsets.UTF_8)));
+        return () -> {
+            ByteBuf cipher = server.encrypt(plain.duplicate(), alloc);
+            ByteBuf wire = Base64.encode(cipher, false);
+            cipher.release();
+            ByteBuf received = Base64.decode(wire);
+            wire.release();
+            ByteBuf decrypted = client.decrypt(received, alloc);
+            received.release();
+            int length = decrypted.toString(StandardCharsets.UTF_8).length();
+            decrypted.release();
+            return length;
+        };
+    }
+
+    private static long measure(IntSupplier roundTrip) {
+        long start = System.nanoTime();
+        long chars = 0;
+        for (int i = 0; i < MESSAGES; i++) {
+            chars += roundTrip.getAsInt();
+        }
+        long elapsed = System.nanoTime() - start;
+        assertEquals((long) MESSAGES * PLAIN.length(), chars);
+        return Math.round(MESSAGES / (elapsed / 1e9));
+    }
+}
@@ -0,0 +1,113 @@
+package com.teammors.server.im.utils;
+
+import cn.hutool.crypto.SecureUtil;
+import cn.hutool.crypto.symmetric.AES;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class SessionCryptoTest {
+
+    private static final String UID = "10086";
+    private static final String PLAIN = "{\"eventId\":\"1000001\",\"fromUid\":\"10086\",\"dataBody\":\"你好, world\"}";
+
+    // The legacy clients' cipher
+    private static final AES CLIENT_AES = SecureUtil.aes(SecurityUtil.getUidKey(UID).getBytes());
+
+    private static byte[] encrypt(SessionCrypto crypto, byte[] plain) {
+        ByteBuf out = crypto.encrypt(Unpooled.wrappedBuffer(plain), PooledByteBufAllocator.DEFAULT);
+        try {
+            return ByteBufUtil.getBytes(out);
+        } finally {
+            out.release();
+        }
+    }
+
+    private static byte[] decrypt(SessionCrypto crypto, byte[] cipher) {
+        ByteBuf out = crypto.decrypt(Unpooled.wrappedBuffer(cipher), PooledByteBufAllocator.DEFAULT);
+        try {
+            return ByteBufUtil.getBytes(out);
+        } finally {
+            out.release();
+        }
+    }
+
+    @Test
+    void ecbIsByteIdenticalToHutool() {
+        SessionCrypto crypto = SessionCrypto.forUid(UID, SessionCrypto.Mode.ECB);
+        byte[] plain = PLAIN.getBytes(StandardCharsets.UTF_8);
+
+        assertArrayEquals(CLIENT_AES.encrypt(plain), encrypt(crypto, plain));
+        assertArrayEquals(plain, decrypt(crypto, CLIENT_AES.encrypt(plain)));
+        assertArrayEquals(plain, CLIENT_AES.decrypt(encrypt(crypto, plain)));
+    }
+
+    @Test
+    void ecbConcurrentCallersGetTheSameCiphertext() throws Exception {
+        // Callers that find the cached Cipher busy use a throwaway one; output must not differ
+        SessionCrypto crypto = SessionCrypto.forUid(UID, SessionCrypto.Mode.ECB);
+        byte[] plain = PLAIN.getBytes(StandardCharsets.UTF_8);
+        byte[] expected = CLIENT_AES.encrypt(plain);
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<CompletableFuture<byte[]>> results = new ArrayList<>();
+            for (int i = 0; i < 2000; i++) {
+                results.add(CompletableFuture.supplyAsync(() -> encrypt(crypto, plain), pool));
+            }
+            for (CompletableFuture<byte[]> result : results) {
+                assertArrayEquals(expected, result.get());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void gcmRoundTrip() {
+        SessionCrypto sender = SessionCrypto.forUid(UID, SessionCrypto.Mode.GCM);
+        SessionCrypto receiver = SessionCrypto.forUid(UID, SessionCrypto.Mode.GCM);
+        byte[] plain = PLAIN.getBytes(StandardCharsets.UTF_8);
+
+        byte[] first = encrypt(sender, plain);
+        byte[] second = encrypt(sender, plain);
+
+        assertFalse(Arrays.equals(first, second), "IV must differ per message");
+        assertArrayEquals(plain, decrypt(receiver, first));
+        assertArrayEquals(plain, decrypt(receiver, second));
+    }
+
+    @Test
+    void gcmRejectsTamperedCiphertext() {
+        SessionCrypto crypto = SessionCrypto.forUid(UID, SessionCrypto.Mode.GCM);
+        ByteBuf sealed = crypto.encrypt(Unpooled.wrappedBuffer(PLAIN.getBytes(StandardCharsets.UTF_8)),
+                PooledByteBufAllocator.DEFAULT);
+        try {
+            int last = sealed.writerIndex() - 1;
+            sealed.setByte(last, sealed.getByte(last) ^ 1);
+            assertThrows(IllegalArgumentException.class, () -> crypto.decrypt(sealed, PooledByteBufAllocator.DEFAULT));
+        } finally {
+            sealed.release();
+        }
+    }
+
+    @Test
+    void gcmRejectsShortInput() {
+        SessionCrypto crypto = SessionCrypto.forUid(UID, SessionCrypto.Mode.GCM);
+        assertThrows(IllegalArgumentException.class,
+                () -> crypto.decrypt(Unpooled.wrappedBuffer(new byte[4]), PooledByteBufAllocator.DEFAULT));
+    }
+}